@@ -18,6 +18,7 @@ package com.android.builder.testing.api;
 
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
+import com.android.ddmlib.ApkContents;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.IShellEnabledDevice;
 import com.android.ddmlib.TimeoutException;
@@ -80,6 +81,31 @@ public abstract class DeviceConnector implements IShellEnabledDevice {
             ILogger logger)
             throws DeviceException;
 
+    /**
+     * Installs the given APK files on the device, reading their content from
+     * <var>apkContents</var>, which can be shared between the installs on several devices.
+     * It requires a device with API level 21+ otherwise a
+     * {@link com.android.builder.testing.api.DeviceException} will be thrown.
+     * <p/>
+     * The default implementation ignores <var>apkContents</var>.
+     *
+     * @param apkFiles the APK files to install.
+     * @param apkContents the contents of the APK files.
+     * @param options the install options.
+     * @param timeoutInMs the time out in milliseconds.
+     * @param logger the logger to use to log debug, warnings and errors.
+     * @throws DeviceException
+     */
+    public void installPackages(
+            @NonNull List<File> apkFiles,
+            @NonNull ApkContents apkContents,
+            @NonNull Collection<String> options,
+            int timeoutInMs,
+            ILogger logger)
+            throws DeviceException {
+        installPackages(apkFiles, options, timeoutInMs, logger);
+    }
+
     /**
      * Uninstall the given package name from the device
      * @param packageName the package name
@@ -52,6 +52,7 @@ public class AaptPackageProcessBuilder extends ProcessEnvBuilder<AaptPackageProc
     private boolean mVerboseExec = false;
     @Nullable private String mSourceOutputDir;
     @Nullable private String mSymbolOutputDir;
+    @Nullable private String mClassOutputDir;
     @Nullable private List<? extends SymbolFileProvider> mLibraries;
     @Nullable private String mResPackageOutput;
     @Nullable private String mProguardOutput;
@@ -120,6 +121,21 @@ public class AaptPackageProcessBuilder extends ProcessEnvBuilder<AaptPackageProc
         return mSourceOutputDir;
     }
 
+    /**
+     * @param classOutputDir optional class folder to generate the R classes of the libraries as
+     *                       bytecode, instead of generating their R.java in the source folder.
+     * @return itself
+     */
+    public AaptPackageProcessBuilder setClassOutputDir(@Nullable String classOutputDir) {
+        mClassOutputDir = classOutputDir;
+        return this;
+    }
+
+    @Nullable
+    public String getClassOutputDir() {
+        return mClassOutputDir;
+    }
+
     /**
      * @param symbolOutputDir the folder to write symbols into
      * @ itself
@@ -39,14 +39,18 @@ import com.android.builder.internal.SymbolLoader;
 import com.android.builder.internal.SymbolWriter;
 import com.android.builder.internal.TestManifestGenerator;
 import com.android.builder.internal.compiler.AidlProcessor;
+import com.android.builder.internal.compiler.DexWorkerPool;
+import com.android.builder.internal.compiler.IncrementalDexer;
 import com.android.builder.internal.compiler.JackConversionCache;
 import com.android.builder.internal.compiler.LeafFolderGatherer;
 import com.android.builder.internal.compiler.PreDexCache;
 import com.android.builder.internal.compiler.RenderScriptProcessor;
+import com.android.builder.internal.compiler.SharedPreDexCache;
 import com.android.builder.internal.compiler.SourceSearcher;
 import com.android.builder.internal.incremental.DependencyData;
 import com.android.builder.internal.packaging.JavaResourceProcessor;
 import com.android.builder.internal.packaging.Packager;
+import com.android.builder.internal.packaging.SplitPackager;
 import com.android.builder.model.ClassField;
 import com.android.builder.model.PackagingOptions;
 import com.android.builder.model.SigningConfig;
@@ -55,6 +59,7 @@ import com.android.builder.packaging.DuplicateFileException;
 import com.android.builder.packaging.PackagerException;
 import com.android.builder.packaging.SealedPackageException;
 import com.android.builder.packaging.SigningException;
+import com.android.builder.png.AaptWorkers;
 import com.android.builder.sdk.SdkInfo;
 import com.android.builder.sdk.TargetInfo;
 import com.android.builder.signing.SignedJarBuilder;
@@ -62,6 +67,7 @@ import com.android.ide.common.internal.AaptCruncher;
 import com.android.ide.common.internal.CommandLineRunner;
 import com.android.ide.common.internal.LoggedErrorException;
 import com.android.ide.common.internal.PngCruncher;
+import com.android.ide.common.internal.WaitableExecutor;
 import com.android.ide.common.process.CachedProcessOutputHandler;
 import com.android.ide.common.process.JavaProcessExecutor;
 import com.android.ide.common.process.JavaProcessInfo;
@@ -103,6 +109,7 @@ import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
@@ -125,6 +132,7 @@ import java.util.Enumeration;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.logging.Level;
@@ -181,6 +189,9 @@ public class AndroidBuilder {
     private SdkInfo mSdkInfo;
     private TargetInfo mTargetInfo;
 
+    @Nullable
+    private SharedPreDexCache mSharedPreDexCache;
+
     private List<File> mBootClasspath;
     @NonNull
     private List<LibraryRequest> mLibraryRequests = ImmutableList.of();
@@ -258,6 +269,14 @@ public class AndroidBuilder {
         mLibraryRequests = ImmutableList.copyOf(libraryRequests);
     }
 
+    /**
+     * Sets the pre-dex store shared with other projects and builds, or <code>null</code> to
+     * only reuse the pre-dexed libraries of the current build.
+     */
+    public void setSharedPreDexCache(@Nullable SharedPreDexCache sharedPreDexCache) {
+        mSharedPreDexCache = sharedPreDexCache;
+    }
+
     /**
      * Returns the SdkInfo, if set.
      */
@@ -545,56 +564,93 @@ public class AndroidBuilder {
             @Nullable File reportFile) {
 
         try {
-            Invoker manifestMergerInvoker =
-                    ManifestMerger2.newMerger(mainManifest, mLogger, mergeType)
-                    .setPlaceHolderValues(placeHolders)
-                    .addFlavorAndBuildTypeManifests(
-                            manifestOverlays.toArray(new File[manifestOverlays.size()]))
-                    .addLibraryManifests(collectLibraries(libraries))
-                    .setMergeReportFile(reportFile);
-
-            if (mergeType == ManifestMerger2.MergeType.APPLICATION) {
-                manifestMergerInvoker.withFeatures(Invoker.Feature.REMOVE_TOOLS_DECLARATIONS);
-            }
-
-            setInjectableValues(manifestMergerInvoker,
+            MergingReport mergingReport = createManifestMergerInvoker(
+                    mainManifest, manifestOverlays, libraries,
                     packageOverride, versionCode, versionName,
-                    minSdkVersion, targetSdkVersion, maxSdkVersion);
-
-            MergingReport mergingReport = manifestMergerInvoker.merge();
-            mLogger.info("Merging result:" + mergingReport.getResult());
-            switch (mergingReport.getResult()) {
-                case WARNING:
-                    mergingReport.log(mLogger);
-                    // fall through since these are just warnings.
-                case SUCCESS:
-                    XmlDocument xmlDocument = mergingReport.getMergedDocument().get();
-                    try {
-                        String annotatedDocument = mergingReport.getActions().blame(xmlDocument);
-                        mLogger.verbose(annotatedDocument);
-                    } catch (Exception e) {
-                        mLogger.error(e, "cannot print resulting xml");
-                    }
-                    save(xmlDocument, new File(outManifestLocation));
-                    if (outAaptSafeManifestLocation != null) {
-                        new PlaceholderEncoder().visit(xmlDocument);
-                        save(xmlDocument, new File(outAaptSafeManifestLocation));
-                    }
-                    mLogger.info("Merged manifest saved to " + outManifestLocation);
-                    break;
-                case ERROR:
-                    mergingReport.log(mLogger);
-                    throw new RuntimeException(mergingReport.getReportString());
-                default:
-                    throw new RuntimeException("Unhandled result type : "
-                            + mergingReport.getResult());
-            }
+                    minSdkVersion, targetSdkVersion, maxSdkVersion,
+                    mergeType, placeHolders, reportFile).merge();
+            saveMergedManifest(mergingReport, outManifestLocation, outAaptSafeManifestLocation);
         } catch (ManifestMerger2.MergeFailureException e) {
             // TODO: unacceptable.
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Creates the invoker of the Manifest Merger version 2 merging the manifests of a variant,
+     * so that the caller can configure it further before merging.
+     *
+     * The result of the merge is saved with
+     * {@link #saveMergedManifest(MergingReport, String, String)}.
+     */
+    @NonNull
+    public Invoker createManifestMergerInvoker(
+            @NonNull File mainManifest,
+            @NonNull List<File> manifestOverlays,
+            @NonNull List<? extends ManifestDependency> libraries,
+            String packageOverride,
+            int versionCode,
+            String versionName,
+            @Nullable String minSdkVersion,
+            @Nullable String targetSdkVersion,
+            @Nullable Integer maxSdkVersion,
+            ManifestMerger2.MergeType mergeType,
+            Map<String, String> placeHolders,
+            @Nullable File reportFile) {
+        Invoker manifestMergerInvoker =
+                ManifestMerger2.newMerger(mainManifest, mLogger, mergeType)
+                .setPlaceHolderValues(placeHolders)
+                .addFlavorAndBuildTypeManifests(
+                        manifestOverlays.toArray(new File[manifestOverlays.size()]))
+                .addLibraryManifests(collectLibraries(libraries))
+                .setMergeReportFile(reportFile);
+
+        if (mergeType == ManifestMerger2.MergeType.APPLICATION) {
+            manifestMergerInvoker.withFeatures(Invoker.Feature.REMOVE_TOOLS_DECLARATIONS);
+        }
+
+        setInjectableValues(manifestMergerInvoker,
+                packageOverride, versionCode, versionName,
+                minSdkVersion, targetSdkVersion, maxSdkVersion);
+        return manifestMergerInvoker;
+    }
+
+    /**
+     * Saves the result of a manifest merge, or fails if the merge reported errors.
+     */
+    public void saveMergedManifest(
+            @NonNull MergingReport mergingReport,
+            @NonNull String outManifestLocation,
+            @Nullable String outAaptSafeManifestLocation) {
+        mLogger.info("Merging result:" + mergingReport.getResult());
+        switch (mergingReport.getResult()) {
+            case WARNING:
+                mergingReport.log(mLogger);
+                // fall through since these are just warnings.
+            case SUCCESS:
+                XmlDocument xmlDocument = mergingReport.getMergedDocument().get();
+                try {
+                    String annotatedDocument = mergingReport.getActions().blame(xmlDocument);
+                    mLogger.verbose(annotatedDocument);
+                } catch (Exception e) {
+                    mLogger.error(e, "cannot print resulting xml");
+                }
+                save(xmlDocument, new File(outManifestLocation));
+                if (outAaptSafeManifestLocation != null) {
+                    new PlaceholderEncoder().visit(xmlDocument);
+                    save(xmlDocument, new File(outAaptSafeManifestLocation));
+                }
+                mLogger.info("Merged manifest saved to " + outManifestLocation);
+                break;
+            case ERROR:
+                mergingReport.log(mLogger);
+                throw new RuntimeException(mergingReport.getReportString());
+            default:
+                throw new RuntimeException("Unhandled result type : "
+                        + mergingReport.getResult());
+        }
+    }
+
     /**
      * Sets the {@link com.android.manifmerger.ManifestMerger2.SystemProperty} that can be injected
      * in the manifest file.
@@ -850,7 +906,14 @@ public class AndroidBuilder {
         ProcessInfo processInfo = aaptCommand.build(
                 mTargetInfo.getBuildTools(), mTargetInfo.getTarget(), mLogger);
 
-        ProcessResult result = mProcessExecutor.execute(processInfo, mProcessOutputHandler);
+        // aapt invocations share the limit of working aapt processes with the crunching slaves.
+        ProcessResult result;
+        AaptWorkers.get().acquire();
+        try {
+            result = mProcessExecutor.execute(processInfo, mProcessOutputHandler);
+        } finally {
+            AaptWorkers.get().release();
+        }
         result.rethrowFailure().assertNormalExitValue();
 
         // now if the project has libraries, R needs to be created for each libraries,
@@ -858,8 +921,6 @@ public class AndroidBuilder {
         if (aaptCommand.getSourceOutputDir() != null
                 && aaptCommand.getType() != VariantType.LIBRARY
                 && !aaptCommand.getLibraries().isEmpty()) {
-            SymbolLoader fullSymbolValues = null;
-
             // First pass processing the libraries, collecting them by packageName,
             // and ignoring the ones that have the same package name as the application
             // (since that R class was already created).
@@ -869,7 +930,7 @@ public class AndroidBuilder {
             }
 
             // list of all the symbol loaders per package names.
-            Multimap<String, SymbolLoader> libMap = ArrayListMultimap.create();
+            final Multimap<String, SymbolLoader> libMap = ArrayListMultimap.create();
 
             for (SymbolFileProvider lib : aaptCommand.getLibraries()) {
                 if (lib.isOptional()) {
@@ -895,43 +956,80 @@ public class AndroidBuilder {
                 File rFile = lib.getSymbolFile();
                 // if the library has no resource, this file won't exist.
                 if (rFile.isFile()) {
-
-                    // load the full values if that's not already been done.
-                    // Doing it lazily allow us to support the case where there's no
-                    // resources anywhere.
-                    if (fullSymbolValues == null) {
-                        fullSymbolValues = new SymbolLoader(new File(aaptCommand.getSymbolOutputDir(), "R.txt"),
-                                mLogger);
-                        fullSymbolValues.load();
-                    }
-
-                    SymbolLoader libSymbols = new SymbolLoader(rFile, mLogger);
-                    libSymbols.load();
-
-
                     // store these symbols by associating them with the package name.
-                    libMap.put(packageName, libSymbols);
+                    libMap.put(packageName, new SymbolLoader(rFile, mLogger));
                 }
             }
 
-            // now loop on all the package name, merge all the symbols to write, and write them
-            for (String packageName : libMap.keySet()) {
-                Collection<SymbolLoader> symbols = libMap.get(packageName);
+            // Only load the full values if there are symbols to write. Doing it lazily
+            // allow us to support the case where there's no resources anywhere.
+            if (libMap.isEmpty()) {
+                return;
+            }
 
-                if (enforceUniquePackageName && symbols.size() > 1) {
+            for (String packageName : libMap.keySet()) {
+                if (enforceUniquePackageName && libMap.get(packageName).size() > 1) {
                     String msg = String.format(
                             "Error: more than one library with package name '%s'\n" +
                             "You can temporarily disable this error with android.enforceUniquePackageName=false\n" +
                             "However, this is temporary and will be enforced in 1.0", packageName);
                     throw new RuntimeException(msg);
                 }
+            }
 
-                SymbolWriter writer = new SymbolWriter(aaptCommand.getSourceOutputDir(), packageName,
-                        fullSymbolValues);
-                for (SymbolLoader symbolLoader : symbols) {
-                    writer.addSymbolsToWrite(symbolLoader);
-                }
-                writer.write();
+            // the full values are loaded once, and shared by the R classes of all the packages.
+            final SymbolLoader fullSymbolValues = new SymbolLoader(
+                    new File(aaptCommand.getSymbolOutputDir(), "R.txt"), mLogger);
+
+            WaitableExecutor<Void> executor = new WaitableExecutor<Void>();
+            for (final SymbolLoader symbolLoader
+                    : Iterables.concat(libMap.values(), Collections.singleton(fullSymbolValues))) {
+                executor.execute(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        symbolLoader.load();
+                        return null;
+                    }
+                });
+            }
+            waitForSymbolTasks(executor);
+
+            // now loop on all the package name, merge all the symbols to write, and write them
+            // either as source or as bytecode.
+            final String classOutputDir = aaptCommand.getClassOutputDir();
+            final String outputDir = classOutputDir != null
+                    ? classOutputDir : aaptCommand.getSourceOutputDir();
+            for (final String packageName : libMap.keySet()) {
+                executor.execute(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        SymbolWriter writer = new SymbolWriter(outputDir, packageName,
+                                fullSymbolValues);
+                        for (SymbolLoader symbolLoader : libMap.get(packageName)) {
+                            writer.addSymbolsToWrite(symbolLoader);
+                        }
+                        if (classOutputDir != null) {
+                            writer.writeClasses();
+                        } else {
+                            writer.write();
+                        }
+                        return null;
+                    }
+                });
+            }
+            waitForSymbolTasks(executor);
+        }
+    }
+
+    private static void waitForSymbolTasks(@NonNull WaitableExecutor<Void> executor)
+            throws IOException, InterruptedException {
+        for (WaitableExecutor.TaskResult<Void> result : executor.waitForAllTasks()) {
+            if (result.exception instanceof IOException) {
+                throw (IOException) result.exception;
+            } else if (result.exception instanceof RuntimeException) {
+                throw (RuntimeException) result.exception;
+            } else if (result.exception != null) {
+                throw new IOException(result.exception);
             }
         }
     }
@@ -1272,10 +1370,89 @@ public class AndroidBuilder {
 
         JavaProcessInfo javaProcessInfo = builder.build(buildToolInfo, dexOptions);
 
-        ProcessResult result = mJavaProcessExecutor.execute(javaProcessInfo, mProcessOutputHandler);
+        ProcessResult result = getDexExecutor(dexOptions).execute(javaProcessInfo,
+                mProcessOutputHandler);
         result.rethrowFailure().assertNormalExitValue();
     }
 
+    /**
+     * Converts the bytecode to Dalvik format, re-dexing only the classes that changed since the
+     * previous call with the same state folder.
+     *
+     * @param inputs the input files
+     * @param preDexedLibraries the list of pre-dexed libraries
+     * @param outDexFolder the location of the output folder
+     * @param multidex whether multidex is enabled.
+     * @param mainDexList the list of classes for the main dex, or <code>null</code>.
+     * @param dexOptions dex options
+     * @param additionalParameters list of additional parameters to give to dx
+     * @param stateFolder the folder holding the dexed classes across builds.
+     * @param optimize whether to optimize the dex code.
+     * @return the counts of re-dexed and reused classes.
+     *
+     * @throws IOException
+     * @throws InterruptedException
+     * @throws ProcessException
+     */
+    @NonNull
+    public IncrementalDexer.Stats convertByteCodeIncrementally(
+            @NonNull Collection<File> inputs,
+            @NonNull Collection<File> preDexedLibraries,
+            @NonNull File outDexFolder,
+            boolean multidex,
+            @Nullable File mainDexList,
+            @NonNull DexOptions dexOptions,
+            @Nullable List<String> additionalParameters,
+            @NonNull File stateFolder,
+            boolean optimize) throws IOException, InterruptedException, ProcessException {
+        checkNotNull(inputs, "inputs cannot be null.");
+        checkNotNull(preDexedLibraries, "preDexedLibraries cannot be null.");
+        checkNotNull(outDexFolder, "outDexFolder cannot be null.");
+        checkNotNull(dexOptions, "dexOptions cannot be null.");
+        checkNotNull(stateFolder, "stateFolder cannot be null");
+        checkArgument(outDexFolder.isDirectory(), "outDexFolder must be a folder");
+        checkState(mTargetInfo != null,
+                "Cannot call convertByteCodeIncrementally() before setTargetInfo() is called.");
+
+        IncrementalDexer dexer = new IncrementalDexer(
+                stateFolder,
+                mTargetInfo.getBuildTools(),
+                dexOptions,
+                getDexExecutor(dexOptions),
+                mProcessOutputHandler);
+        dexer.setVerbose(mVerboseExec);
+
+        IncrementalDexer.Stats stats = dexer.dex(
+                inputs,
+                preDexedLibraries,
+                outDexFolder,
+                multidex,
+                mainDexList,
+                additionalParameters,
+                optimize);
+        mLogger.info("Incremental dex: %s", stats);
+        return stats;
+    }
+
+    /**
+     * Returns the executor to run dx with: the pool of in-process dx workers if enabled in the
+     * dex options and if the current JVM has enough heap for it, or the java process executor.
+     */
+    @NonNull
+    private JavaProcessExecutor getDexExecutor(@NonNull DexOptions dexOptions) {
+        if (dexOptions.getDexInProcess()) {
+            DexWorkerPool pool = DexWorkerPool.getPool(getDxJar(),
+                    dexOptions.getJavaMaxHeapSize());
+            if (pool != null) {
+                return pool;
+            }
+            mLogger.warning("Running dex in-process requires a larger heap than %1$d MB, "
+                    + "or a smaller dexOptions.javaMaxHeapSize. Running dex in separate "
+                    + "processes instead.", Runtime.getRuntime().maxMemory() / (1024 * 1024));
+        }
+        return mJavaProcessExecutor;
+    }
+
     public Set<String> createMainDexList(
             @NonNull File allClassesJarFile,
             @NonNull File jarOfRoots) throws ProcessException {
@@ -1334,8 +1511,9 @@ public class AndroidBuilder {
                 dexOptions,
                 buildToolInfo,
                 mVerboseExec,
-                mJavaProcessExecutor,
-                mProcessOutputHandler);
+                getDexExecutor(dexOptions),
+                mProcessOutputHandler,
+                mSharedPreDexCache);
     }
 
     /**
@@ -1762,6 +1940,52 @@ public class AndroidBuilder {
             @NonNull String outApkLocation)
             throws DuplicateFileException, FileNotFoundException,
             KeytoolException, PackagerException, SigningException {
+        packageApk(androidResPkgLocation, dexFolder, dexedLibraries, packagedJars,
+                javaResourcesLocation, jniLibsFolders, mergingFolder, null /*incrementalFolder*/,
+                abiFilters, jniDebugBuild, signingConfig, packagingOptions, outApkLocation);
+    }
+
+    /**
+     * Packages the apk, reusing the unchanged entries of the apk packaged by a previous build.
+     *
+     * @param androidResPkgLocation the location of the packaged resource file
+     * @param dexFolder the folder with the dex file.
+     * @param dexedLibraries optional collection of additional dex files to put in the apk.
+     * @param packagedJars the jars that are packaged (libraries + jar dependencies)
+     * @param javaResourcesLocation the processed Java resource folder
+     * @param jniLibsFolders the folders containing jni shared libraries
+     * @param mergingFolder folder to contain files that are being merged
+     * @param incrementalFolder folder to contain the state of the incremental packaging, or
+     *                          null to package the whole apk.
+     * @param abiFilters optional ABI filter
+     * @param jniDebugBuild whether the app should include jni debug data
+     * @param signingConfig the signing configuration
+     * @param packagingOptions the packaging options
+     * @param outApkLocation location of the APK.
+     * @throws DuplicateFileException
+     * @throws FileNotFoundException if the store location was not found
+     * @throws KeytoolException
+     * @throws PackagerException
+     * @throws SigningException when the key cannot be read from the keystore
+     *
+     * @see VariantConfiguration#getPackagedJars()
+     */
+    public void packageApk(
+            @NonNull String androidResPkgLocation,
+            @Nullable File dexFolder,
+            @NonNull Collection<File> dexedLibraries,
+            @NonNull Collection<File> packagedJars,
+            @Nullable String javaResourcesLocation,
+            @Nullable Collection<File> jniLibsFolders,
+            @NonNull File mergingFolder,
+            @Nullable File incrementalFolder,
+            @Nullable Set<String> abiFilters,
+            boolean jniDebugBuild,
+            @Nullable SigningConfig signingConfig,
+            @Nullable PackagingOptions packagingOptions,
+            @NonNull String outApkLocation)
+            throws DuplicateFileException, FileNotFoundException,
+            KeytoolException, PackagerException, SigningException {
         checkNotNull(androidResPkgLocation, "androidResPkgLocation cannot be null.");
         checkNotNull(outApkLocation, "outApkLocation cannot be null.");
 
@@ -1778,7 +2002,7 @@ public class AndroidBuilder {
 
         try {
             Packager packager = new Packager(
-                    outApkLocation, androidResPkgLocation, mergingFolder,
+                    outApkLocation, androidResPkgLocation, mergingFolder, incrementalFolder,
                     certificateInfo, mCreatedBy, packagingOptions, mLogger);
 
             // add dex folder to the apk root.
@@ -1832,6 +2056,73 @@ public class AndroidBuilder {
         }
     }
 
+    /**
+     * Packages several split apks at once.
+     * <p/>The jni folders are looked up once for all the splits, each native library is
+     * compressed once, and the splits are written in parallel.
+     *
+     * @param splits the packaged resource file of each split, by the location of its apk.
+     * @param splitAbis the ABIs of the native libraries to package in each split, by the
+     *                  location of its apk. Splits without ABIs get the native libraries of all
+     *                  the ABIs.
+     * @param jniLibsFolders the folders containing jni shared libraries
+     * @param incrementalFolder folder to contain the state of the incremental packaging of the
+     *                          splits, or null to package the whole splits.
+     * @param jniDebugBuild whether the app should include jni debug data
+     * @param signingConfig the signing configuration
+     * @param packagingOptions the packaging options
+     * @throws DuplicateFileException
+     * @throws FileNotFoundException if the store location was not found
+     * @throws KeytoolException
+     * @throws PackagerException
+     * @throws SigningException when the key cannot be read from the keystore
+     */
+    public void packageSplitApks(
+            @NonNull Map<File, File> splits,
+            @NonNull Map<File, Set<String>> splitAbis,
+            @Nullable Collection<File> jniLibsFolders,
+            @Nullable File incrementalFolder,
+            boolean jniDebugBuild,
+            @Nullable SigningConfig signingConfig,
+            @Nullable PackagingOptions packagingOptions)
+            throws DuplicateFileException, FileNotFoundException,
+            KeytoolException, PackagerException, SigningException {
+        checkNotNull(splits, "splits cannot be null.");
+        checkNotNull(splitAbis, "splitAbis cannot be null.");
+
+        CertificateInfo certificateInfo = null;
+        if (signingConfig != null && signingConfig.isSigningReady()) {
+            //noinspection ConstantConditions
+            certificateInfo = KeystoreHelper.getCertificateInfo(signingConfig.getStoreType(),
+                    signingConfig.getStoreFile(), signingConfig.getStorePassword(),
+                    signingConfig.getKeyPassword(), signingConfig.getKeyAlias());
+            if (certificateInfo == null) {
+                throw new SigningException("Failed to read key from keystore");
+            }
+        }
+
+        SplitPackager packager = new SplitPackager(
+                certificateInfo, mCreatedBy, packagingOptions, mLogger);
+        packager.setJniDebugMode(jniDebugBuild);
+        if (jniLibsFolders != null) {
+            for (File jniFolder : jniLibsFolders) {
+                if (jniFolder.isDirectory()) {
+                    packager.addNativeLibraries(jniFolder);
+                }
+            }
+        }
+
+        for (Map.Entry<File, File> split : splits.entrySet()) {
+            File outFile = split.getKey();
+            packager.addSplit(split.getValue(), splitAbis.get(outFile), outFile,
+                    incrementalFolder != null
+                            ? new File(incrementalFolder, outFile.getName())
+                            : null);
+        }
+
+        packager.sealApks();
+    }
+
     /**
      * Signs a single jar file using the passed {@link SigningConfig}.
      * @param in the jar file to sign.
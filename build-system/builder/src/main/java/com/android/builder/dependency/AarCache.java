@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.dependency;
+
+import static com.android.SdkConstants.DOT_JAR;
+import static com.android.SdkConstants.FD_JARS;
+
+import com.android.annotations.NonNull;
+import com.android.utils.FileUtils;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.google.common.primitives.Longs;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A store of exploded aar files, shared by all the modules of a build, and possibly by all the
+ * builds of the machine.
+ * <p/>Aar files are stored by the sha1 of their content, so each aar is only exploded once
+ * whatever the module using it, and whatever its path.
+ * <p/>Aar files are exploded in a temporary folder, then published in the store with an atomic
+ * rename, so several builds can use the same store at the same time. The exploded folders must
+ * not be modified.
+ * <p/>The store is trimmed to {@link #MAX_SIZE} the first time a build process uses it, by
+ * removing the exploded folders which were least recently used.
+ */
+public class AarCache {
+
+    /** maximum size of the store, in bytes. */
+    public static final long MAX_SIZE = 1024L * 1024 * 1024;
+
+    /** temporary folders older than this were left by a build which did not complete. */
+    private static final long TMP_FOLDER_MAX_AGE_MS = 60L * 60 * 1000;
+
+    private static final String FD_TMP = "tmp";
+
+    private static final Map<File, AarCache> sCaches = Maps.newHashMap();
+
+    @NonNull
+    private final File mRoot;
+
+    /**
+     * The keys of the aar files hashed by this store, by path, with the length and the time
+     * stamp of the files when they were hashed.
+     */
+    private final Map<File, String> mKeys = Maps.newHashMap();
+
+    /** The locks of the keys being exploded. */
+    private final Map<String, Object> mLocks = Maps.newHashMap();
+
+    /**
+     * Returns the store located in the given folder. The store is trimmed the first time it is
+     * used by this process.
+     */
+    @NonNull
+    public static synchronized AarCache get(@NonNull File root) {
+        AarCache cache = sCaches.get(root);
+        if (cache == null) {
+            cache = new AarCache(root);
+            cache.trim(MAX_SIZE);
+            sCaches.put(root, cache);
+        }
+        return cache;
+    }
+
+    /**
+     * Forgets the stores, and the keys of the aar files they hashed.
+     */
+    public static synchronized void unload() {
+        sCaches.clear();
+    }
+
+    private AarCache(@NonNull File root) {
+        mRoot = root;
+    }
+
+    /**
+     * Returns the key of an aar file, which is the sha1 of its content.
+     *
+     * @param aar the aar file.
+     * @return the key of the aar.
+     * @throws IOException if the file cannot be read.
+     */
+    @NonNull
+    public String getKey(@NonNull File aar) throws IOException {
+        String stamp = aar.length() + ":" + aar.lastModified() + ":";
+        synchronized (mKeys) {
+            String key = mKeys.get(aar);
+            if (key != null && key.startsWith(stamp)) {
+                return key.substring(stamp.length());
+            }
+        }
+
+        String key = Files.hash(aar, Hashing.sha1()).toString();
+        synchronized (mKeys) {
+            mKeys.put(aar, stamp + key);
+        }
+        return key;
+    }
+
+    /**
+     * Returns the folder where an aar file is exploded, exploding it if it is not in the store
+     * yet.
+     *
+     * @param aar the aar file.
+     * @return the folder of the exploded aar. It must not be modified.
+     * @throws IOException if the aar cannot be exploded.
+     */
+    @NonNull
+    public File getExplodedFolder(@NonNull File aar) throws IOException {
+        String key = getKey(aar);
+        File folder = new File(mRoot, key);
+
+        Object lock;
+        synchronized (mLocks) {
+            lock = mLocks.get(key);
+            if (lock == null) {
+                lock = new Object();
+                mLocks.put(key, lock);
+            }
+        }
+
+        // only the modules using the same aar wait for each other.
+        synchronized (lock) {
+            if (folder.isDirectory()) {
+                // keep track of the use of the folder so the store is trimmed in LRU order.
+                // This can fail if another build is trimming the store.
+                //noinspection ResultOfMethodCallIgnored
+                folder.setLastModified(System.currentTimeMillis());
+                return folder;
+            }
+
+            File tmp = createTempFolder(key);
+            try {
+                explode(aar, tmp);
+                // another build may have published the same aar in the meantime.
+                if (!tmp.renameTo(folder) && !folder.isDirectory()) {
+                    throw new IOException("Failed to add " + aar + " to " + mRoot);
+                }
+            } finally {
+                if (tmp.exists()) {
+                    FileUtils.deleteFolder(tmp);
+                }
+            }
+            return folder;
+        }
+    }
+
+    /**
+     * Removes the least recently used exploded folders until the store is at most
+     * <var>maxSize</var> bytes, and removes the temporary folders left by builds which did not
+     * complete.
+     * <p/>A removed folder is first moved to the temporary folder, so other builds never see a
+     * partially removed folder: they explode the aar again instead.
+     *
+     * @param maxSize the maximum size of the store, in bytes.
+     */
+    void trim(long maxSize) {
+        File[] folders = mRoot.listFiles();
+        if (folders == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        final Map<File, Long> lastUses = Maps.newHashMap();
+        Map<File, Long> sizes = Maps.newHashMap();
+        long size = 0;
+        for (File folder : folders) {
+            if (!folder.isDirectory()) {
+                continue;
+            }
+            if (folder.getName().equals(FD_TMP)) {
+                File[] tmpFolders = folder.listFiles();
+                if (tmpFolders != null) {
+                    for (File tmp : tmpFolders) {
+                        if (now - tmp.lastModified() > TMP_FOLDER_MAX_AGE_MS) {
+                            FileUtils.deleteFolder(tmp);
+                        }
+                    }
+                }
+                continue;
+            }
+            long folderSize = getSize(folder);
+            lastUses.put(folder, folder.lastModified());
+            sizes.put(folder, folderSize);
+            size += folderSize;
+        }
+        if (size <= maxSize) {
+            return;
+        }
+
+        List<File> exploded = Lists.newArrayList(lastUses.keySet());
+        Collections.sort(exploded, new Comparator<File>() {
+            @Override
+            public int compare(File file1, File file2) {
+                return Longs.compare(lastUses.get(file1), lastUses.get(file2));
+            }
+        });
+        for (File folder : exploded) {
+            if (size <= maxSize) {
+                break;
+            }
+            try {
+                File tmp = createTempFolder(folder.getName());
+                if (folder.renameTo(tmp)) {
+                    size -= sizes.get(folder);
+                }
+                FileUtils.deleteFolder(tmp);
+            } catch (IOException e) {
+                // another build is using the store, it will be trimmed next time.
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns a path in the temporary folder of the store, which does not exist.
+     */
+    @NonNull
+    private File createTempFolder(@NonNull String prefix) throws IOException {
+        File tmpFolder = new File(mRoot, FD_TMP);
+        if (!tmpFolder.isDirectory() && !tmpFolder.mkdirs() && !tmpFolder.isDirectory()) {
+            throw new IOException("Failed to create " + tmpFolder);
+        }
+        File tmp = File.createTempFile(prefix, null, tmpFolder);
+        if (!tmp.delete()) {
+            throw new IOException("Failed to delete " + tmp);
+        }
+        return tmp;
+    }
+
+    private static long getSize(@NonNull File folder) {
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        long size = 0;
+        for (File file : files) {
+            size += file.isDirectory() ? getSize(file) : file.length();
+        }
+        return size;
+    }
+
+    /**
+     * Explodes an aar file into a folder, moving the jar files into the jars folder.
+     *
+     * @param aar the aar file.
+     * @param folderOut the folder to explode the aar to.
+     * @throws IOException if the aar cannot be exploded.
+     */
+    public static void explode(@NonNull File aar, @NonNull File folderOut) throws IOException {
+        if (!folderOut.isDirectory() && !folderOut.mkdirs()) {
+            throw new IOException("Failed to create " + folderOut);
+        }
+        String root = folderOut.getCanonicalPath() + File.separator;
+
+        ZipFile zipFile = new ZipFile(aar);
+        try {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String path = entry.getName();
+                if (!entry.isDirectory() && path.endsWith(DOT_JAR)) {
+                    path = FD_JARS + '/' + path;
+                }
+
+                File file = new File(folderOut, path.replace('/', File.separatorChar));
+                if (!file.getCanonicalPath().startsWith(root)) {
+                    throw new IOException(
+                            "Invalid entry " + entry.getName() + " in " + aar);
+                }
+
+                if (entry.isDirectory()) {
+                    if (!file.isDirectory() && !file.mkdirs()) {
+                        throw new IOException("Failed to create " + file);
+                    }
+                    continue;
+                }
+
+                Files.createParentDirs(file);
+                InputStream in = zipFile.getInputStream(entry);
+                try {
+                    OutputStream out = new FileOutputStream(file);
+                    try {
+                        ByteStreams.copy(in, out);
+                    } finally {
+                        out.close();
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    /**
+     * Copies a folder of the store to another folder, replacing its content.
+     *
+     * @param from the folder of the store.
+     * @param to the folder to copy the store folder to.
+     * @throws IOException if the folder cannot be copied, including when the folder of the store
+     * was removed meanwhile, e.g. trimmed by another build sharing the store.
+     */
+    public static void copyFolder(@NonNull File from, @NonNull File to) throws IOException {
+        if (to.exists()) {
+            FileUtils.deleteFolder(to);
+        }
+        copyFolderContent(from, to);
+    }
+
+    private static void copyFolderContent(@NonNull File from, @NonNull File to)
+            throws IOException {
+        if (!to.isDirectory() && !to.mkdirs()) {
+            throw new IOException("Failed to create " + to);
+        }
+        File[] files = from.listFiles();
+        if (files == null) {
+            throw new IOException("Failed to list " + from);
+        }
+        for (File file : files) {
+            File dest = new File(to, file.getName());
+            if (file.isDirectory()) {
+                copyFolderContent(file, dest);
+            } else {
+                Files.copy(file, dest);
+            }
+        }
+    }
+}
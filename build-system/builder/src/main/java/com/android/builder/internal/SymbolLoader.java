@@ -19,19 +19,27 @@ package com.android.builder.internal;
 import com.android.utils.ILogger;
 import com.google.common.base.Charsets;
 import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import com.google.common.collect.Table;
 import com.google.common.io.Files;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.util.List;
 
 /**
  * A class to load the text symbol file generated by aapt with the
  * --output-text-symbols option.
+ * <p/>
+ * The types, classes and names of the symbols are interned, so that the symbols of the
+ * libraries share their strings with the symbols of the application, which are loaded for the
+ * same variant.
  */
 public class SymbolLoader {
 
+    private static final Interner<String> sInterner = Interners.newWeakInterner();
+
     private final File mSymbolFile;
     private Table<String, String, SymbolEntry> mSymbols;
     private final ILogger mLogger;
@@ -66,25 +74,21 @@ public class SymbolLoader {
     }
 
     public void load() throws IOException {
-        List<String> lines = Files.readLines(mSymbolFile, Charsets.UTF_8);
-
         mSymbols = HashBasedTable.create();
 
         int lineIndex = 1;
         String line = null;
+        BufferedReader reader = Files.newReader(mSymbolFile, Charsets.UTF_8);
         try {
-            final int count = lines.size();
-            for (; lineIndex <= count ; lineIndex++) {
-                line = lines.get(lineIndex-1);
-
+            for (; (line = reader.readLine()) != null; lineIndex++) {
                 // format is "<type> <class> <name> <value>"
                 // don't want to split on space as value could contain spaces.
                 int pos = line.indexOf(' ');
-                String type = line.substring(0, pos);
+                String type = sInterner.intern(line.substring(0, pos));
                 int pos2 = line.indexOf(' ', pos + 1);
-                String className = line.substring(pos + 1, pos2);
+                String className = sInterner.intern(line.substring(pos + 1, pos2));
                 int pos3 = line.indexOf(' ', pos2 + 1);
-                String name = line.substring(pos2 + 1, pos3);
+                String name = sInterner.intern(line.substring(pos2 + 1, pos3));
                 String value = line.substring(pos3 + 1);
 
                 mSymbols.put(className, name, new SymbolEntry(name, type, value));
@@ -94,6 +98,8 @@ public class SymbolLoader {
                     mSymbolFile.getAbsolutePath(), lineIndex, line);
             mLogger.error(null, s);
             throw new IOException(s, e);
+        } finally {
+            reader.close();
         }
     }
 
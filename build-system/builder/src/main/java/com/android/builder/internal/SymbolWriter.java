@@ -16,31 +16,42 @@
 
 package com.android.builder.internal;
 
+import static org.objectweb.asm.Opcodes.ACC_FINAL;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_STATIC;
+import static org.objectweb.asm.Opcodes.ACC_SUPER;
+
 import com.android.SdkConstants;
 import com.android.builder.internal.SymbolLoader.SymbolEntry;
 import com.google.common.base.Charsets;
 import com.google.common.base.Splitter;
-import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Table;
-import com.google.common.io.Closer;
 import com.google.common.io.Files;
 
-import java.io.BufferedWriter;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.SortedMap;
 
 /**
  * A class to write R.java classes based on data read from text symbol files generated by
  * aapt with the --output-text-symbols option.
+ * <p/>
+ * The R classes can also be written directly as bytecode with {@link #writeClasses()}, so that
+ * they do not need to be compiled.
  */
 public class SymbolWriter {
 
+    private static final String TYPE_INT = "int";
+    private static final String TYPE_INT_ARRAY = "int[]";
+
     private final String mOutFolder;
     private final String mPackageName;
     private final List<SymbolLoader> mSymbols = Lists.newArrayList();
@@ -56,17 +67,34 @@ public class SymbolWriter {
         mSymbols.add(symbols);
     }
 
-    private Table<String, String, SymbolEntry> getAllSymbols() {
-        Table<String, String, SymbolEntry> symbols = HashBasedTable.create();
+    /**
+     * Returns the values of the symbols to write, sorted by class and by name.
+     */
+    private SortedMap<String, SortedMap<String, SymbolEntry>> getValuesToWrite() {
+        Table<String, String, SymbolEntry> values = mValues.getSymbols();
+        SortedMap<String, SortedMap<String, SymbolEntry>> rows = Maps.newTreeMap();
 
         for (SymbolLoader symbolLoader : mSymbols) {
-            symbols.putAll(symbolLoader.getSymbols());
+            for (Table.Cell<String, String, SymbolEntry> cell
+                    : symbolLoader.getSymbols().cellSet()) {
+                SortedMap<String, SymbolEntry> row = rows.get(cell.getRowKey());
+                if (row == null) {
+                    row = Maps.newTreeMap();
+                    rows.put(cell.getRowKey(), row);
+                }
+
+                // get the matching SymbolEntry from the values Table.
+                SymbolEntry value = values.get(cell.getRowKey(), cell.getColumnKey());
+                if (value != null) {
+                    row.put(cell.getColumnKey(), value);
+                }
+            }
         }
 
-        return symbols;
+        return rows;
     }
 
-    public void write() throws IOException {
+    private File getPackageFolder() {
         Splitter splitter = Splitter.on('.');
         Iterable<String> folders = splitter.split(mPackageName);
         File file = new File(mOutFolder);
@@ -74,62 +102,171 @@ public class SymbolWriter {
             file = new File(file, folder);
         }
         file.mkdirs();
-        file = new File(file, SdkConstants.FN_RESOURCE_CLASS);
+        return file;
+    }
 
-        Closer closer = Closer.create();
-        try {
-            BufferedWriter writer = closer.register(Files.newWriter(file, Charsets.UTF_8));
-
-            writer.write("/* AUTO-GENERATED FILE.  DO NOT MODIFY.\n");
-            writer.write(" *\n");
-            writer.write(" * This class was automatically generated by the\n");
-            writer.write(" * aapt tool from the resource data it found.  It\n");
-            writer.write(" * should not be modified by hand.\n");
-            writer.write(" */\n");
-
-            writer.write("package ");
-            writer.write(mPackageName);
-            writer.write(";\n\npublic final class R {\n");
-
-            Table<String, String, SymbolEntry> symbols = getAllSymbols();
-            Table<String, String, SymbolEntry> values = mValues.getSymbols();
-
-            Set<String> rowSet = symbols.rowKeySet();
-            List<String> rowList = Lists.newArrayList(rowSet);
-            Collections.sort(rowList);
-
-            for (String row : rowList) {
-                writer.write("\tpublic static final class ");
-                writer.write(row);
-                writer.write(" {\n");
-
-                Map<String, SymbolEntry> rowMap = symbols.row(row);
-                Set<String> symbolSet = rowMap.keySet();
-                ArrayList<String> symbolList = Lists.newArrayList(symbolSet);
-                Collections.sort(symbolList);
-
-                for (String symbolName : symbolList) {
-                    // get the matching SymbolEntry from the values Table.
-                    SymbolEntry value = values.get(row, symbolName);
-                    if (value != null) {
-                        writer.write("\t\tpublic static final ");
-                        writer.write(value.getType());
-                        writer.write(" ");
-                        writer.write(value.getName());
-                        writer.write(" = ");
-                        writer.write(value.getValue());
-                        writer.write(";\n");
-                    }
+    public void write() throws IOException {
+        File file = new File(getPackageFolder(), SdkConstants.FN_RESOURCE_CLASS);
+
+        StringBuilder writer = new StringBuilder(8192);
+
+        writer.append("/* AUTO-GENERATED FILE.  DO NOT MODIFY.\n");
+        writer.append(" *\n");
+        writer.append(" * This class was automatically generated by the\n");
+        writer.append(" * aapt tool from the resource data it found.  It\n");
+        writer.append(" * should not be modified by hand.\n");
+        writer.append(" */\n");
+
+        writer.append("package ");
+        writer.append(mPackageName);
+        writer.append(";\n\npublic final class R {\n");
+
+        for (Map.Entry<String, SortedMap<String, SymbolEntry>> row
+                : getValuesToWrite().entrySet()) {
+            writer.append("\tpublic static final class ");
+            writer.append(row.getKey());
+            writer.append(" {\n");
+
+            for (SymbolEntry value : row.getValue().values()) {
+                writer.append("\t\tpublic static final ");
+                writer.append(value.getType());
+                writer.append(" ");
+                writer.append(value.getName());
+                writer.append(" = ");
+                writer.append(value.getValue());
+                writer.append(";\n");
+            }
+
+            writer.append("\t}\n");
+        }
+
+        writer.append("}\n");
+
+        Files.write(writer, file, Charsets.UTF_8);
+    }
+
+    /**
+     * Writes the R class and its inner classes as .class files, in the same form as if
+     * the R.java written by {@link #write()} was compiled.
+     */
+    public void writeClasses() throws IOException {
+        File folder = getPackageFolder();
+        String rName = mPackageName.replace('.', '/') + "/R";
+
+        SortedMap<String, SortedMap<String, SymbolEntry>> rows = getValuesToWrite();
+
+        ClassWriter rClass = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        rClass.visit(Opcodes.V1_6, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, rName, null,
+                "java/lang/Object", null);
+        for (String row : rows.keySet()) {
+            rClass.visitInnerClass(rName + "$" + row, rName, row,
+                    ACC_PUBLIC | ACC_STATIC | ACC_FINAL);
+        }
+        writeConstructor(rClass);
+        rClass.visitEnd();
+        Files.write(rClass.toByteArray(), new File(folder, SdkConstants.FN_COMPILED_RESOURCE_CLASS));
+
+        for (Map.Entry<String, SortedMap<String, SymbolEntry>> row : rows.entrySet()) {
+            String innerName = rName + "$" + row.getKey();
+            ClassWriter innerClass = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+            innerClass.visit(Opcodes.V1_6, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, innerName, null,
+                    "java/lang/Object", null);
+            innerClass.visitInnerClass(innerName, rName, row.getKey(),
+                    ACC_PUBLIC | ACC_STATIC | ACC_FINAL);
+            writeConstructor(innerClass);
+
+            List<SymbolEntry> arrays = Lists.newArrayList();
+            for (SymbolEntry value : row.getValue().values()) {
+                if (TYPE_INT.equals(value.getType())) {
+                    innerClass.visitField(ACC_PUBLIC | ACC_STATIC | ACC_FINAL, value.getName(),
+                            "I", null, parseInt(value.getValue())).visitEnd();
+                } else if (TYPE_INT_ARRAY.equals(value.getType())) {
+                    innerClass.visitField(ACC_PUBLIC | ACC_STATIC | ACC_FINAL, value.getName(),
+                            "[I", null, null).visitEnd();
+                    arrays.add(value);
+                } else {
+                    throw new IOException(String.format(
+                            "Unsupported type '%s' for symbol %s.%s",
+                            value.getType(), row.getKey(), value.getName()));
                 }
+            }
 
-                writer.write("\t}\n");
+            if (!arrays.isEmpty()) {
+                // arrays are initialized in the static initializer, like javac does.
+                MethodVisitor clinit = innerClass.visitMethod(ACC_STATIC, "<clinit>", "()V",
+                        null, null);
+                clinit.visitCode();
+                for (SymbolEntry array : arrays) {
+                    List<Integer> items = parseIntArray(array.getValue());
+                    pushInt(clinit, items.size());
+                    clinit.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_INT);
+                    for (int i = 0; i < items.size(); i++) {
+                        clinit.visitInsn(Opcodes.DUP);
+                        pushInt(clinit, i);
+                        pushInt(clinit, items.get(i));
+                        clinit.visitInsn(Opcodes.IASTORE);
+                    }
+                    clinit.visitFieldInsn(Opcodes.PUTSTATIC, innerName, array.getName(), "[I");
+                }
+                clinit.visitInsn(Opcodes.RETURN);
+                clinit.visitMaxs(0, 0);
+                clinit.visitEnd();
             }
 
-            writer.write("}\n");
-        } catch (Throwable e) {
-            throw closer.rethrow(e);
-        } finally {
-            closer.close();
+            innerClass.visitEnd();
+            Files.write(innerClass.toByteArray(),
+                    new File(folder, "R$" + row.getKey() + SdkConstants.DOT_CLASS));
+        }
+    }
+
+    private static void writeConstructor(ClassWriter classWriter) {
+        MethodVisitor init = classWriter.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        init.visitCode();
+        init.visitVarInsn(Opcodes.ALOAD, 0);
+        init.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        init.visitInsn(Opcodes.RETURN);
+        init.visitMaxs(0, 0);
+        init.visitEnd();
+    }
+
+    private static void pushInt(MethodVisitor method, int value) {
+        if (value >= -1 && value <= 5) {
+            method.visitInsn(Opcodes.ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            method.visitIntInsn(Opcodes.BIPUSH, value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            method.visitIntInsn(Opcodes.SIPUSH, value);
+        } else {
+            method.visitLdcInsn(value);
+        }
+    }
+
+    /**
+     * Parses an int value of a symbol file, in decimal or in hexadecimal.
+     */
+    private static int parseInt(String value) throws IOException {
+        try {
+            // hexadecimal values like 0x80000000 are ints in java, but not for Integer.decode.
+            return (int) (long) Long.decode(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid int value in symbol file: " + value, e);
+        }
+    }
+
+    /**
+     * Parses an int[] value of a symbol file, like "{ 0x7f010000, 0x7f010001 }".
+     */
+    private static List<Integer> parseIntArray(String value) throws IOException {
+        String content = value.trim();
+        if (!content.startsWith("{") || !content.endsWith("}")) {
+            throw new IOException("Invalid int[] value in symbol file: " + value);
+        }
+        content = content.substring(1, content.length() - 1);
+
+        List<Integer> items = Lists.newArrayList();
+        for (String item : Splitter.on(',').trimResults().omitEmptyStrings().split(content)) {
+            items.add(parseInt(item));
         }
+        return items;
     }
 }
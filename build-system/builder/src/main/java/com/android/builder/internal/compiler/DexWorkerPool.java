@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.compiler;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
+import com.android.annotations.concurrency.GuardedBy;
+import com.android.ide.common.process.JavaProcessExecutor;
+import com.android.ide.common.process.JavaProcessInfo;
+import com.android.ide.common.process.ProcessException;
+import com.android.ide.common.process.ProcessOutput;
+import com.android.ide.common.process.ProcessOutputHandler;
+import com.android.ide.common.process.ProcessResult;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Maps;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs dx inside the current JVM rather than in a new process for each invocation.
+ * <p/>
+ * dx keeps its state in static fields, so each worker loads dx.jar in its own isolated class
+ * loader and runs a single conversion at a time. Workers are created on demand, up to a number
+ * bounded by the number of cores and by how many times the per-worker heap fits in the heap of
+ * the current JVM (keeping one share for the build itself), and are kept warm for the following
+ * conversions.
+ * <p/>
+ * The pool implements {@link JavaProcessExecutor} for the dx processes built by
+ * {@link com.android.builder.core.DexProcessBuilder}, so it can be used in place of the
+ * executor spawning the processes.
+ */
+public class DexWorkerPool implements JavaProcessExecutor {
+
+    private static final String DX_MAIN = "com.android.dx.command.Main";
+    private static final String DEXER_MAIN = "com.android.dx.command.dexer.Main";
+    private static final String DEXER_ARGUMENTS = DEXER_MAIN + "$Arguments";
+    private static final String DX_CONSOLE = "com.android.dx.command.DxConsole";
+
+    /** Heap used by a dx process when no max heap size is set, see DexProcessBuilder. */
+    private static final long DEFAULT_WORKER_HEAP = 1024L * 1024 * 1024;
+
+    private static final long WORKER_WAIT_MS = 1000;
+
+    @GuardedBy("sPools")
+    private static final Map<String, DexWorkerPool> sPools = Maps.newHashMap();
+
+    @NonNull
+    private final File mDxJar;
+    private final int mMaxWorkers;
+    private final BlockingQueue<Worker> mIdleWorkers;
+    @GuardedBy("this")
+    private int mWorkerCount = 0;
+
+    /**
+     * Returns the pool for a given dx.jar, or <code>null</code> if the heap of the current JVM is
+     * too small to run even one worker with the given heap size.
+     *
+     * @param dxJar the dx.jar to load.
+     * @param javaMaxHeapSize the max heap size of a dx process, in the -Xmx format, or
+     *                        <code>null</code> for the default size.
+     */
+    @Nullable
+    public static DexWorkerPool getPool(@NonNull File dxJar, @Nullable String javaMaxHeapSize) {
+        int maxWorkers = computeMaxWorkers(Runtime.getRuntime().maxMemory(),
+                javaMaxHeapSize != null ? parseHeapSize(javaMaxHeapSize) : DEFAULT_WORKER_HEAP,
+                Runtime.getRuntime().availableProcessors());
+        if (maxWorkers == 0) {
+            return null;
+        }
+
+        // key on the file time stamp so that updated build tools are reloaded.
+        String key = dxJar.getAbsolutePath() + ':' + dxJar.lastModified() + ':' + maxWorkers;
+        synchronized (sPools) {
+            DexWorkerPool pool = sPools.get(key);
+            if (pool == null) {
+                pool = new DexWorkerPool(dxJar, maxWorkers);
+                sPools.put(key, pool);
+            }
+            return pool;
+        }
+    }
+
+    /**
+     * Drops all the pools and their workers.
+     */
+    public static void clearPools() {
+        synchronized (sPools) {
+            sPools.clear();
+        }
+    }
+
+    @VisibleForTesting
+    DexWorkerPool(@NonNull File dxJar, int maxWorkers) {
+        mDxJar = dxJar;
+        mMaxWorkers = maxWorkers;
+        mIdleWorkers = new ArrayBlockingQueue<Worker>(maxWorkers);
+    }
+
+    public int getMaxWorkers() {
+        return mMaxWorkers;
+    }
+
+    @NonNull
+    @Override
+    public ProcessResult execute(
+            @NonNull JavaProcessInfo javaProcessInfo,
+            @NonNull ProcessOutputHandler processOutputHandler) {
+        List<String> args = javaProcessInfo.getArgs();
+        String command = DX_MAIN + " " + Joiner.on(' ').join(args);
+        if (!DX_MAIN.equals(javaProcessInfo.getMainClass())
+                || args.isEmpty() || !"--dex".equals(args.get(0))) {
+            return new DexResult(command, -1, new IllegalArgumentException(
+                    "Not a dx --dex process: " + command));
+        }
+
+        Worker worker = null;
+        boolean reusable = false;
+        try {
+            worker = acquireWorker();
+            ProcessOutput output = processOutputHandler.createOutput();
+            PrintStream out = new PrintStream(output.getStandardOutput(), true);
+            PrintStream err = new PrintStream(output.getErrorOutput(), true);
+            int exitValue;
+            try {
+                exitValue = worker.run(args.subList(1, args.size()), out, err);
+            } finally {
+                out.flush();
+                err.flush();
+            }
+            reusable = !worker.isFailed();
+            processOutputHandler.handleOutput(output);
+            return new DexResult(command, exitValue, null);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new DexResult(command, -1, e);
+        } catch (Exception e) {
+            return new DexResult(command, -1, e);
+        } finally {
+            if (worker != null) {
+                if (reusable) {
+                    mIdleWorkers.offer(worker);
+                } else {
+                    // the static state of dx may be corrupted, a fresh worker replaces it on
+                    // the next request.
+                    synchronized (this) {
+                        mWorkerCount--;
+                    }
+                }
+            }
+        }
+    }
+
+    @NonNull
+    private Worker acquireWorker() throws InterruptedException, IOException {
+        while (true) {
+            Worker worker = mIdleWorkers.poll();
+            if (worker != null) {
+                return worker;
+            }
+            boolean create;
+            synchronized (this) {
+                create = mWorkerCount < mMaxWorkers;
+                if (create) {
+                    mWorkerCount++;
+                }
+            }
+            if (create) {
+                try {
+                    return new Worker(mDxJar);
+                } catch (IOException e) {
+                    synchronized (this) {
+                        mWorkerCount--;
+                    }
+                    throw e;
+                }
+            }
+            // wait for a worker to be released, or for a discarded one to leave room for a new
+            // one.
+            worker = mIdleWorkers.poll(WORKER_WAIT_MS, TimeUnit.MILLISECONDS);
+            if (worker != null) {
+                return worker;
+            }
+        }
+    }
+
+    /**
+     * Returns how many workers fit in the given heap, capped to the number of cores. The size of
+     * one worker is left to the rest of the build.
+     */
+    @VisibleForTesting
+    static int computeMaxWorkers(long maxMemory, long workerHeap, int processors) {
+        if (workerHeap <= 0) {
+            return processors;
+        }
+        return (int) Math.max(0, Math.min(processors, maxMemory / workerHeap - 1));
+    }
+
+    /**
+     * Parses a heap size in the -Xmx format (1024, 512k, 1024M, 2g...) into bytes.
+     */
+    @VisibleForTesting
+    static long parseHeapSize(@NonNull String size) {
+        String value = size.trim().toLowerCase(Locale.US);
+        long multiplier = 1;
+        char unit = value.charAt(value.length() - 1);
+        switch (unit) {
+            case 'k':
+                multiplier = 1024L;
+                break;
+            case 'm':
+                multiplier = 1024L * 1024;
+                break;
+            case 'g':
+                multiplier = 1024L * 1024 * 1024;
+                break;
+            case 't':
+                multiplier = 1024L * 1024 * 1024 * 1024;
+                break;
+            default:
+                return Long.parseLong(value);
+        }
+        return Long.parseLong(value.substring(0, value.length() - 1)) * multiplier;
+    }
+
+    /**
+     * A copy of dx loaded in its own class loader.
+     */
+    private static final class Worker {
+
+        private final Class<?> mArgumentsClass;
+        private final Method mParse;
+        private final Method mRun;
+        @Nullable
+        private final Field mConsoleOut;
+        @Nullable
+        private final Field mConsoleErr;
+        private boolean mFailed = false;
+
+        Worker(@NonNull File dxJar) throws IOException {
+            // no parent class loader besides the bootstrap one, so that nothing leaks between
+            // workers or from the build classpath.
+            ClassLoader classLoader = new URLClassLoader(new URL[] { dxJar.toURI().toURL() },
+                    null);
+            try {
+                Class<?> mainClass = classLoader.loadClass(DEXER_MAIN);
+                mArgumentsClass = classLoader.loadClass(DEXER_ARGUMENTS);
+                mParse = mArgumentsClass.getDeclaredMethod("parse", String[].class);
+                mParse.setAccessible(true);
+                mRun = mainClass.getMethod("run", mArgumentsClass);
+
+                Field out = null;
+                Field err = null;
+                try {
+                    Class<?> consoleClass = classLoader.loadClass(DX_CONSOLE);
+                    out = consoleClass.getField("out");
+                    err = consoleClass.getField("err");
+                } catch (ClassNotFoundException ignored) {
+                    // older dx, the output goes to the standard streams.
+                } catch (NoSuchFieldException ignored) {
+                    // same.
+                }
+                mConsoleOut = out;
+                mConsoleErr = err;
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Unable to load dx from " + dxJar, e);
+            } catch (NoSuchMethodException e) {
+                throw new IOException("Unsupported dx version in " + dxJar, e);
+            }
+        }
+
+        int run(@NonNull List<String> args, @NonNull PrintStream out, @NonNull PrintStream err)
+                throws ProcessException {
+            try {
+                if (mConsoleOut != null && mConsoleErr != null) {
+                    mConsoleOut.set(null, out);
+                    mConsoleErr.set(null, err);
+                }
+                Object arguments = mArgumentsClass.newInstance();
+                mParse.invoke(arguments, (Object) args.toArray(new String[args.size()]));
+                return (Integer) mRun.invoke(null, arguments);
+            } catch (InvocationTargetException e) {
+                // dx reports invalid inputs and arguments with exceptions, which the dx process
+                // would print before exiting with an error. Its static state may be left
+                // inconsistent, so this worker is not reused.
+                mFailed = true;
+                e.getCause().printStackTrace(err);
+                return 1;
+            } catch (InstantiationException e) {
+                mFailed = true;
+                throw new ProcessException(e);
+            } catch (IllegalAccessException e) {
+                mFailed = true;
+                throw new ProcessException(e);
+            }
+        }
+
+        /**
+         * Returns whether a run failed, after which the worker must not be reused.
+         */
+        boolean isFailed() {
+            return mFailed;
+        }
+    }
+
+    /**
+     * The result of a dx run.
+     */
+    private static final class DexResult implements ProcessResult {
+
+        private final String mCommand;
+        private final int mExitValue;
+        @Nullable
+        private final Exception mFailure;
+
+        DexResult(@NonNull String command, int exitValue, @Nullable Exception failure) {
+            mCommand = command;
+            mExitValue = exitValue;
+            mFailure = failure;
+        }
+
+        @Override
+        public ProcessResult assertNormalExitValue() throws ProcessException {
+            if (mExitValue != 0) {
+                throw new ProcessException(
+                        String.format("Return code %d for dx worker '%s'", mExitValue, mCommand));
+            }
+            return this;
+        }
+
+        @Override
+        public int getExitValue() {
+            return mExitValue;
+        }
+
+        @Override
+        public ProcessResult rethrowFailure() throws ProcessException {
+            if (mFailure != null) {
+                throw new ProcessException("", mFailure);
+            }
+            return this;
+        }
+    }
+}
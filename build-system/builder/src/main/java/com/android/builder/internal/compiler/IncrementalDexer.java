@@ -0,0 +1,925 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.compiler;
+
+import static com.android.SdkConstants.DOT_CLASS;
+import static com.android.SdkConstants.DOT_DEX;
+import static com.android.SdkConstants.DOT_JAR;
+import static com.android.SdkConstants.FN_APK_CLASSES_DEX;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
+import com.android.builder.core.DexOptions;
+import com.android.builder.core.DexProcessBuilder;
+import com.android.ide.common.internal.WaitableExecutor;
+import com.android.ide.common.process.JavaProcessExecutor;
+import com.android.ide.common.process.JavaProcessInfo;
+import com.android.ide.common.process.ProcessException;
+import com.android.ide.common.process.ProcessOutputHandler;
+import com.android.sdklib.BuildToolInfo;
+import com.android.utils.FileUtils;
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closer;
+import com.google.common.io.Files;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Converts classes to dex incrementally, re-dexing only the classes that changed since the
+ * previous run.
+ * <p/>
+ * The classes are grouped in small slices, by package and by top-level class so that inner
+ * classes stay with their outer class. Each slice is dexed on its own and kept in the state
+ * folder under the hash of the content of its classes, so a change to one class only re-dexes
+ * the slice holding it. The dex files of the slices, and the pre-dexed libraries, are then merged
+ * into the output dex files. Only the output dex files whose slices changed are merged again.
+ * <p/>
+ * With multi-dex, the slices holding the classes of the main dex list go to classes.dex, and the
+ * other slices are assigned to the dex file they were in during the previous run if it still has
+ * room for them, so that a change only re-merges the dex file holding it.
+ * <p/>
+ * The state folder contains:
+ * <pre>
+ *     slices/&lt;hash&gt;.jar  the dexed slices
+ *     state            the options and the slices of each output dex file of the previous run
+ *     tmp/             the classes of the slices being dexed
+ * </pre>
+ */
+public class IncrementalDexer {
+
+    /** Target number of top-level classes per slice. */
+    private static final int SLICE_SIZE = 64;
+
+    /** Maximum number of method or field references in a dex file. */
+    private static final int MAX_IDS = 65536;
+
+    private static final String FD_SLICES = "slices";
+    private static final String FD_TMP = "tmp";
+    private static final String FN_STATE = "state";
+
+    private static final int STATE_MAGIC = 0x49444558; // "IDEX"
+    private static final int STATE_VERSION = 1;
+
+    private static final String PREFIX_MAIN = "main:";
+    private static final String PREFIX_SECONDARY = "dex:";
+    private static final String PREFIX_LIBRARY = "lib:";
+
+    private static final String PARAM_MINIMAL_MAIN_DEX = "--minimal-main-dex";
+    private static final String PARAM_MAX_IDX = "--set-max-idx-number=";
+
+    /**
+     * Counts of the classes and dex files processed by a run.
+     */
+    public static final class Stats {
+        private int mReusedClasses;
+        private int mRedexedClasses;
+        private int mRedexedSlices;
+        private int mMergedDexFiles;
+        private int mReusedDexFiles;
+
+        /** Returns the number of classes whose dex output was reused. */
+        public int getReusedClasses() {
+            return mReusedClasses;
+        }
+
+        /** Returns the number of classes that were re-dexed. */
+        public int getRedexedClasses() {
+            return mRedexedClasses;
+        }
+
+        /** Returns the number of slices that were re-dexed. */
+        public int getRedexedSlices() {
+            return mRedexedSlices;
+        }
+
+        /** Returns the number of output dex files that were merged again. */
+        public int getMergedDexFiles() {
+            return mMergedDexFiles;
+        }
+
+        /** Returns the number of output dex files that were kept from the previous run. */
+        public int getReusedDexFiles() {
+            return mReusedDexFiles;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%1$d classes re-dexed in %2$d slices, %3$d classes reused, "
+                    + "%4$d dex files merged, %5$d dex files reused", mRedexedClasses,
+                    mRedexedSlices, mReusedClasses, mMergedDexFiles, mReusedDexFiles);
+        }
+    }
+
+    /**
+     * A class file, in a folder or a jar.
+     */
+    @VisibleForTesting
+    static final class ClassFile {
+        @NonNull
+        final String path;
+        @NonNull
+        final File container;
+        @NonNull
+        final HashCode hash;
+
+        ClassFile(@NonNull String path, @NonNull File container, @NonNull HashCode hash) {
+            this.path = path;
+            this.container = container;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * A group of classes dexed together, or a pre-dexed library.
+     */
+    @VisibleForTesting
+    static final class Slice {
+        @NonNull
+        final String name;
+        @NonNull
+        final List<ClassFile> classes;
+        @NonNull
+        final HashCode hash;
+        /** The jar holding the classes.dex of the slice. */
+        @NonNull
+        final File dexJar;
+        int methodIds;
+        int fieldIds;
+
+        Slice(@NonNull String name, @NonNull List<ClassFile> classes, @NonNull HashCode hash,
+                @NonNull File dexJar) {
+            this.name = name;
+            this.classes = classes;
+            this.hash = hash;
+            this.dexJar = dexJar;
+        }
+
+        boolean isMain() {
+            return name.startsWith(PREFIX_MAIN);
+        }
+    }
+
+    @NonNull
+    private final File mStateFolder;
+    @NonNull
+    private final BuildToolInfo mBuildToolInfo;
+    @NonNull
+    private final DexOptions mDexOptions;
+    @NonNull
+    private final JavaProcessExecutor mProcessExecutor;
+    @NonNull
+    private final ProcessOutputHandler mProcessOutputHandler;
+    private boolean mVerbose = false;
+
+    public IncrementalDexer(
+            @NonNull File stateFolder,
+            @NonNull BuildToolInfo buildToolInfo,
+            @NonNull DexOptions dexOptions,
+            @NonNull JavaProcessExecutor processExecutor,
+            @NonNull ProcessOutputHandler processOutputHandler) {
+        mStateFolder = stateFolder;
+        mBuildToolInfo = buildToolInfo;
+        mDexOptions = dexOptions;
+        mProcessExecutor = processExecutor;
+        mProcessOutputHandler = processOutputHandler;
+    }
+
+    @NonNull
+    public IncrementalDexer setVerbose(boolean verbose) {
+        mVerbose = verbose;
+        return this;
+    }
+
+    /**
+     * Converts classes to dex files.
+     *
+     * @param inputs the folders and jars of classes to convert.
+     * @param preDexedLibraries the pre-dexed libraries to merge with the classes.
+     * @param outDexFolder the folder of the dex files.
+     * @param multiDex whether multi-dex is enabled.
+     * @param mainDexList the list of the classes to put in the main dex file, or
+     *                    <code>null</code>.
+     * @param additionalParameters additional parameters for dx, or <code>null</code>.
+     * @param optimize whether to optimize the dex code.
+     * @return the counts of reused and re-dexed classes.
+     */
+    @NonNull
+    public Stats dex(
+            @NonNull Collection<File> inputs,
+            @NonNull Collection<File> preDexedLibraries,
+            @NonNull File outDexFolder,
+            boolean multiDex,
+            @Nullable File mainDexList,
+            @Nullable List<String> additionalParameters,
+            boolean optimize) throws IOException, ProcessException, InterruptedException {
+        Stats stats = new Stats();
+
+        List<String> dxParameters = Lists.newArrayList();
+        boolean minimalMainDex = false;
+        int maxIds = MAX_IDS;
+        if (additionalParameters != null) {
+            for (String parameter : additionalParameters) {
+                if (PARAM_MINIMAL_MAIN_DEX.equals(parameter)) {
+                    minimalMainDex = true;
+                } else if (parameter.startsWith(PARAM_MAX_IDX)) {
+                    maxIds = Integer.parseInt(parameter.substring(PARAM_MAX_IDX.length()));
+                } else {
+                    dxParameters.add(parameter);
+                }
+            }
+        }
+
+        // the dexed slices depend on the build tools and the dx options.
+        String config = Joiner.on(' ').join(mBuildToolInfo.getRevision(),
+                mDexOptions.getJumboMode(), optimize, dxParameters);
+        State previousState = readState(config);
+        if (previousState == null) {
+            FileUtils.deleteFolder(new File(mStateFolder, FD_SLICES));
+            previousState = new State(config);
+        }
+
+        File slicesFolder = new File(mStateFolder, FD_SLICES);
+        File tmpFolder = new File(mStateFolder, FD_TMP);
+        FileUtils.deleteFolder(tmpFolder);
+        if (!slicesFolder.isDirectory() && !slicesFolder.mkdirs()) {
+            throw new IOException("Failed to create " + slicesFolder);
+        }
+
+        // gather the classes and group them in slices.
+        Set<String> mainDexClasses = multiDex && mainDexList != null
+                ? readMainDexList(mainDexList) : Collections.<String>emptySet();
+        Map<String, ClassFile> classes = Maps.newTreeMap();
+        for (File input : inputs) {
+            if (input.isDirectory()) {
+                gatherClasses(input, input, classes);
+            } else if (input.isFile()) {
+                gatherClasses(input, classes);
+            }
+        }
+        List<Slice> slices = createSlices(classes.values(), mainDexClasses, slicesFolder);
+
+        // dex the new slices.
+        List<Slice> newSlices = Lists.newArrayList();
+        for (Slice slice : slices) {
+            if (slice.dexJar.isFile()) {
+                stats.mReusedClasses += slice.classes.size();
+            } else {
+                newSlices.add(slice);
+                stats.mRedexedClasses += slice.classes.size();
+            }
+        }
+        stats.mRedexedSlices = newSlices.size();
+        dexSlices(newSlices, tmpFolder, dxParameters, optimize);
+
+        for (File library : preDexedLibraries) {
+            if (library.isFile()) {
+                slices.add(new Slice(PREFIX_LIBRARY + library.getAbsolutePath(),
+                        Collections.<ClassFile>emptyList(),
+                        Files.hash(library, Hashing.sha1()),
+                        library));
+            }
+        }
+
+        // assign the slices to the output dex files, and merge the ones that changed.
+        List<List<Slice>> dexFiles;
+        if (multiDex) {
+            for (Slice slice : slices) {
+                readDexSize(slice);
+            }
+            dexFiles = assignSlices(slices, previousState, minimalMainDex, maxIds);
+        } else {
+            dexFiles = Collections.singletonList(slices);
+        }
+
+        State state = new State(config);
+        mergeDexFiles(dexFiles, previousState, outDexFolder, state, stats);
+
+        // clean up the slices that are no longer used.
+        Set<String> usedSlices = Sets.newHashSet();
+        for (Slice slice : slices) {
+            usedSlices.add(slice.dexJar.getName());
+        }
+        File[] sliceFiles = slicesFolder.listFiles();
+        if (sliceFiles != null) {
+            for (File sliceFile : sliceFiles) {
+                if (!usedSlices.contains(sliceFile.getName())) {
+                    sliceFile.delete();
+                }
+            }
+        }
+        FileUtils.deleteFolder(tmpFolder);
+
+        writeState(state);
+        return stats;
+    }
+
+    // --- slices
+
+    private static void gatherClasses(
+            @NonNull File root,
+            @NonNull File folder,
+            @NonNull Map<String, ClassFile> classes) throws IOException {
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                gatherClasses(root, file, classes);
+            } else if (file.getName().endsWith(DOT_CLASS)) {
+                String path = root.toURI().relativize(file.toURI()).getPath();
+                addClass(classes, new ClassFile(path, root, Files.hash(file, Hashing.sha1())));
+            }
+        }
+    }
+
+    private static void gatherClasses(
+            @NonNull File jar,
+            @NonNull Map<String, ClassFile> classes) throws IOException {
+        ZipFile zipFile = new ZipFile(jar);
+        try {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String path = entry.getName();
+                if (entry.isDirectory() || !path.endsWith(DOT_CLASS)) {
+                    continue;
+                }
+                InputStream in = zipFile.getInputStream(entry);
+                try {
+                    addClass(classes, new ClassFile(path, jar,
+                            Hashing.sha1().hashBytes(ByteStreams.toByteArray(in))));
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    private static void addClass(
+            @NonNull Map<String, ClassFile> classes,
+            @NonNull ClassFile classFile) throws IOException {
+        ClassFile previous = classes.put(classFile.path, classFile);
+        if (previous != null) {
+            throw new IOException(String.format("%1$s is defined in both %2$s and %3$s",
+                    classFile.path, previous.container, classFile.container));
+        }
+    }
+
+    /**
+     * Groups classes in slices, by main dex membership, package and top-level class.
+     */
+    @VisibleForTesting
+    @NonNull
+    static List<Slice> createSlices(
+            @NonNull Collection<ClassFile> classes,
+            @NonNull Set<String> mainDexClasses,
+            @NonNull File slicesFolder) {
+        // group by main dex membership and package.
+        Map<String, List<ClassFile>> groups = new TreeMap<String, List<ClassFile>>();
+        Map<String, Set<String>> topLevelClasses = Maps.newHashMap();
+        for (ClassFile classFile : classes) {
+            String path = classFile.path;
+            int slash = path.lastIndexOf('/');
+            String group = (mainDexClasses.contains(path) ? PREFIX_MAIN : PREFIX_SECONDARY)
+                    + (slash == -1 ? "" : path.substring(0, slash));
+            List<ClassFile> list = groups.get(group);
+            if (list == null) {
+                list = Lists.newArrayList();
+                groups.put(group, list);
+                topLevelClasses.put(group, Sets.<String>newHashSet());
+            }
+            list.add(classFile);
+            topLevelClasses.get(group).add(getTopLevelClass(path));
+        }
+
+        // then split each group in a number of buckets that only changes when the size of
+        // the group doubles, so that the slices of a group are stable across runs.
+        List<Slice> slices = Lists.newArrayList();
+        for (Map.Entry<String, List<ClassFile>> group : groups.entrySet()) {
+            int buckets = 1;
+            int topLevelCount = topLevelClasses.get(group.getKey()).size();
+            while (topLevelCount / buckets > SLICE_SIZE) {
+                buckets <<= 1;
+            }
+
+            ListMultimap<Integer, ClassFile> bucketMap = ArrayListMultimap.create();
+            for (ClassFile classFile : group.getValue()) {
+                bucketMap.put(getTopLevelClass(classFile.path).hashCode() & (buckets - 1),
+                        classFile);
+            }
+
+            for (Integer bucket : Sets.newTreeSet(bucketMap.keySet())) {
+                List<ClassFile> sliceClasses = bucketMap.get(bucket);
+                Hasher hasher = Hashing.sha1().newHasher();
+                for (ClassFile classFile : sliceClasses) {
+                    hasher.putString(classFile.path, Charsets.UTF_8);
+                    hasher.putBytes(classFile.hash.asBytes());
+                }
+                HashCode hash = hasher.hash();
+                slices.add(new Slice(group.getKey() + "#" + bucket, sliceClasses, hash,
+                        new File(slicesFolder, hash.toString() + DOT_JAR)));
+            }
+        }
+        return slices;
+    }
+
+    @NonNull
+    private static String getTopLevelClass(@NonNull String path) {
+        int dollar = path.indexOf('$', path.lastIndexOf('/') + 1);
+        if (dollar != -1) {
+            return path.substring(0, dollar);
+        }
+        return path.substring(0, path.length() - DOT_CLASS.length());
+    }
+
+    @NonNull
+    private static Set<String> readMainDexList(@NonNull File mainDexList) throws IOException {
+        Set<String> classes = Sets.newHashSet();
+        for (String line : Files.readLines(mainDexList, Charsets.UTF_8)) {
+            line = line.trim();
+            if (!line.isEmpty()) {
+                classes.add(line);
+            }
+        }
+        return classes;
+    }
+
+    private void dexSlices(
+            @NonNull List<Slice> slices,
+            @NonNull File tmpFolder,
+            @NonNull final List<String> dxParameters,
+            final boolean optimize) throws IOException, ProcessException, InterruptedException {
+        if (slices.isEmpty()) {
+            return;
+        }
+
+        WaitableExecutor<Void> executor = new WaitableExecutor<Void>();
+        for (final Slice slice : slices) {
+            final File classesFolder = new File(tmpFolder, slice.hash.toString());
+            final File tmpDexJar = new File(tmpFolder, slice.dexJar.getName());
+            executor.execute(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    extractClasses(slice, classesFolder);
+
+                    DexProcessBuilder builder = new DexProcessBuilder(tmpDexJar);
+                    builder.setVerbose(mVerbose)
+                            .setNoOptimize(!optimize)
+                            .addInput(classesFolder);
+                    if (!dxParameters.isEmpty()) {
+                        builder.additionalParameters(dxParameters);
+                    }
+                    runDx(builder);
+
+                    // publish the slice only once fully dexed.
+                    if (!tmpDexJar.renameTo(slice.dexJar)) {
+                        throw new IOException("Failed to move " + tmpDexJar + " to "
+                                + slice.dexJar);
+                    }
+                    FileUtils.deleteFolder(classesFolder);
+                    return null;
+                }
+            });
+        }
+
+        rethrowFirstFailure(executor.waitForAllTasks());
+    }
+
+    private static void extractClasses(@NonNull Slice slice, @NonNull File folder)
+            throws IOException {
+        ListMultimap<File, ClassFile> byContainer = ArrayListMultimap.create();
+        for (ClassFile classFile : slice.classes) {
+            byContainer.put(classFile.container, classFile);
+        }
+
+        for (File container : byContainer.keySet()) {
+            List<ClassFile> containerClasses = byContainer.get(container);
+            if (container.isDirectory()) {
+                for (ClassFile classFile : containerClasses) {
+                    File dest = new File(folder, classFile.path);
+                    dest.getParentFile().mkdirs();
+                    Files.copy(new File(container, classFile.path), dest);
+                }
+            } else {
+                ZipFile zipFile = new ZipFile(container);
+                try {
+                    for (ClassFile classFile : containerClasses) {
+                        File dest = new File(folder, classFile.path);
+                        dest.getParentFile().mkdirs();
+                        InputStream in = zipFile.getInputStream(zipFile.getEntry(classFile.path));
+                        try {
+                            Files.asByteSink(dest).writeFrom(in);
+                        } finally {
+                            in.close();
+                        }
+                    }
+                } finally {
+                    zipFile.close();
+                }
+            }
+        }
+    }
+
+    private void runDx(@NonNull DexProcessBuilder builder) throws ProcessException {
+        JavaProcessInfo javaProcessInfo = builder.build(mBuildToolInfo, mDexOptions);
+        mProcessExecutor.execute(javaProcessInfo, mProcessOutputHandler)
+                .rethrowFailure()
+                .assertNormalExitValue();
+    }
+
+    private static void rethrowFirstFailure(
+            @NonNull List<WaitableExecutor.TaskResult<Void>> results)
+            throws IOException, ProcessException {
+        for (WaitableExecutor.TaskResult<Void> result : results) {
+            Throwable exception = result.exception;
+            if (exception == null) {
+                continue;
+            }
+            if (exception instanceof ProcessException) {
+                throw (ProcessException) exception;
+            }
+            if (exception instanceof IOException) {
+                throw (IOException) exception;
+            }
+            throw new ProcessException(exception);
+        }
+    }
+
+    // --- output dex files
+
+    /**
+     * Reads the number of method and field references of the dex file of a slice.
+     */
+    private static void readDexSize(@NonNull Slice slice) throws IOException {
+        ZipFile zipFile = new ZipFile(slice.dexJar);
+        try {
+            ZipEntry entry = zipFile.getEntry(FN_APK_CLASSES_DEX);
+            if (entry == null) {
+                throw new IOException(slice.dexJar + " has no " + FN_APK_CLASSES_DEX);
+            }
+            byte[] header = new byte[0x70];
+            InputStream in = zipFile.getInputStream(entry);
+            try {
+                ByteStreams.readFully(in, header);
+            } finally {
+                in.close();
+            }
+            // see the header_item of the dex format.
+            slice.fieldIds = readLittleEndianInt(header, 0x50);
+            slice.methodIds = readLittleEndianInt(header, 0x58);
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    private static int readLittleEndianInt(@NonNull byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFF)
+                | (buffer[offset + 1] & 0xFF) << 8
+                | (buffer[offset + 2] & 0xFF) << 16
+                | (buffer[offset + 3] & 0xFF) << 24;
+    }
+
+    /**
+     * Assigns the slices to dex files. The sizes of the slices are summed up, which
+     * over-estimates the size of the merged dex files since the slices share references.
+     */
+    @VisibleForTesting
+    @NonNull
+    static List<List<Slice>> assignSlices(
+            @NonNull List<Slice> slices,
+            @NonNull State previousState,
+            boolean minimalMainDex,
+            int maxIds) throws ProcessException {
+        List<List<Slice>> dexFiles = Lists.newArrayList();
+        List<int[]> sizes = Lists.newArrayList();
+        dexFiles.add(Lists.<Slice>newArrayList());
+        sizes.add(new int[2]);
+
+        // the main dex classes first.
+        List<Slice> others = Lists.newArrayList();
+        for (Slice slice : slices) {
+            if (slice.isMain()) {
+                if (!fits(sizes.get(0), slice, maxIds)) {
+                    throw new ProcessException(
+                            "Too many classes in the main dex list, main dex capacity exceeded");
+                }
+                add(dexFiles.get(0), sizes.get(0), slice);
+            } else {
+                others.add(slice);
+            }
+        }
+
+        // then the other slices in the dex file they were in, if it still has room.
+        Map<String, Integer> previousDexFiles = previousState.getSliceDexFiles();
+        List<Slice> unassigned = Lists.newArrayList();
+        for (Slice slice : others) {
+            Integer index = previousDexFiles.get(slice.name);
+            if (index == null || (index == 0 && minimalMainDex)) {
+                unassigned.add(slice);
+                continue;
+            }
+            while (dexFiles.size() <= index) {
+                dexFiles.add(Lists.<Slice>newArrayList());
+                sizes.add(new int[2]);
+            }
+            if (fits(sizes.get(index), slice, maxIds)) {
+                add(dexFiles.get(index), sizes.get(index), slice);
+            } else {
+                unassigned.add(slice);
+            }
+        }
+
+        // and the remaining ones in the first dex file with room.
+        for (Slice slice : unassigned) {
+            int index = minimalMainDex ? 1 : 0;
+            while (true) {
+                if (dexFiles.size() <= index) {
+                    dexFiles.add(Lists.<Slice>newArrayList());
+                    sizes.add(new int[2]);
+                }
+                if (fits(sizes.get(index), slice, maxIds) || dexFiles.get(index).isEmpty()) {
+                    add(dexFiles.get(index), sizes.get(index), slice);
+                    break;
+                }
+                index++;
+            }
+        }
+
+        // drop the dex files left empty, but classes.dex.
+        for (int i = dexFiles.size() - 1; i > 0; i--) {
+            if (dexFiles.get(i).isEmpty()) {
+                dexFiles.remove(i);
+            }
+        }
+        return dexFiles;
+    }
+
+    private static boolean fits(@NonNull int[] size, @NonNull Slice slice, int maxIds) {
+        return size[0] + slice.methodIds <= maxIds && size[1] + slice.fieldIds <= maxIds;
+    }
+
+    private static void add(@NonNull List<Slice> dexFile, @NonNull int[] size,
+            @NonNull Slice slice) {
+        dexFile.add(slice);
+        size[0] += slice.methodIds;
+        size[1] += slice.fieldIds;
+    }
+
+    private void mergeDexFiles(
+            @NonNull List<List<Slice>> dexFiles,
+            @NonNull State previousState,
+            @NonNull File outDexFolder,
+            @NonNull State state,
+            @NonNull Stats stats) throws IOException, ProcessException, InterruptedException {
+        // the outputs no longer match the state until the new state is written.
+        File stateFile = new File(mStateFolder, FN_STATE);
+        if (stateFile.exists() && !stateFile.delete()) {
+            throw new IOException("Failed to delete " + stateFile);
+        }
+
+        // move the previous dex files aside, so that they can be reused even if their
+        // index changed.
+        File previousFolder = new File(mStateFolder, FD_TMP + File.separator + "previous");
+        if (!previousFolder.mkdirs()) {
+            throw new IOException("Failed to create " + previousFolder);
+        }
+        Map<HashCode, File> previousDexFiles = Maps.newHashMap();
+        File[] outputs = outDexFolder.listFiles();
+        if (outputs != null) {
+            for (File output : outputs) {
+                if (!output.getName().endsWith(DOT_DEX)) {
+                    continue;
+                }
+                HashCode signature = previousState.getDexFiles().get(output.getName());
+                File previous = new File(previousFolder, output.getName());
+                if (signature != null && output.renameTo(previous)) {
+                    previousDexFiles.put(signature, previous);
+                } else {
+                    output.delete();
+                }
+            }
+        }
+
+        WaitableExecutor<Void> executor = new WaitableExecutor<Void>();
+        for (int i = 0; i < dexFiles.size(); i++) {
+            final List<Slice> dexSlices = dexFiles.get(i);
+            final File output = new File(outDexFolder, getDexFileName(i));
+            if (dexSlices.isEmpty()) {
+                continue;
+            }
+
+            Hasher hasher = Hashing.sha1().newHasher();
+            for (Slice slice : dexSlices) {
+                hasher.putBytes(slice.hash.asBytes());
+                state.addSlice(slice.name, i);
+            }
+            HashCode signature = hasher.hash();
+            state.addDexFile(output.getName(), signature);
+
+            File previous = previousDexFiles.get(signature);
+            if (previous != null && previous.renameTo(output)) {
+                stats.mReusedDexFiles++;
+                continue;
+            }
+
+            stats.mMergedDexFiles++;
+            executor.execute(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    mergeSlices(dexSlices, output);
+                    return null;
+                }
+            });
+        }
+
+        rethrowFirstFailure(executor.waitForAllTasks());
+    }
+
+    private void mergeSlices(@NonNull List<Slice> slices, @NonNull File output)
+            throws IOException, ProcessException {
+        if (slices.size() == 1) {
+            // nothing to merge.
+            ZipFile zipFile = new ZipFile(slices.get(0).dexJar);
+            try {
+                ZipEntry entry = zipFile.getEntry(FN_APK_CLASSES_DEX);
+                if (entry == null) {
+                    throw new IOException(slices.get(0).dexJar + " has no "
+                            + FN_APK_CLASSES_DEX);
+                }
+                InputStream in = zipFile.getInputStream(entry);
+                try {
+                    Files.asByteSink(output).writeFrom(in);
+                } finally {
+                    in.close();
+                }
+            } finally {
+                zipFile.close();
+            }
+            return;
+        }
+
+        // dx merges dex files given as inputs.
+        DexProcessBuilder builder = new DexProcessBuilder(output);
+        builder.setVerbose(mVerbose);
+        for (Slice slice : slices) {
+            builder.addInput(slice.dexJar);
+        }
+        runDx(builder);
+    }
+
+    @NonNull
+    private static String getDexFileName(int index) {
+        return index == 0 ? FN_APK_CLASSES_DEX : "classes" + (index + 1) + DOT_DEX;
+    }
+
+    // --- state
+
+    /**
+     * The output dex files of a run.
+     */
+    @VisibleForTesting
+    static final class State {
+        @NonNull
+        private final String mConfig;
+        private final Map<String, HashCode> mDexFiles = Maps.newHashMap();
+        private final Map<String, Integer> mSliceDexFiles = Maps.newHashMap();
+
+        State(@NonNull String config) {
+            mConfig = config;
+        }
+
+        void addDexFile(@NonNull String name, @NonNull HashCode signature) {
+            mDexFiles.put(name, signature);
+        }
+
+        void addSlice(@NonNull String name, int dexFile) {
+            mSliceDexFiles.put(name, dexFile);
+        }
+
+        /** Returns the signature of the slices of each dex file, by file name. */
+        @NonNull
+        Map<String, HashCode> getDexFiles() {
+            return mDexFiles;
+        }
+
+        /** Returns the index of the dex file of each slice, by slice name. */
+        @NonNull
+        Map<String, Integer> getSliceDexFiles() {
+            return mSliceDexFiles;
+        }
+    }
+
+    @Nullable
+    private State readState(@NonNull String config) {
+        File stateFile = new File(mStateFolder, FN_STATE);
+        if (!stateFile.isFile()) {
+            return null;
+        }
+
+        try {
+            Closer closer = Closer.create();
+            try {
+                DataInputStream in = closer.register(new DataInputStream(
+                        new BufferedInputStream(new FileInputStream(stateFile))));
+                if (in.readInt() != STATE_MAGIC || in.readInt() != STATE_VERSION
+                        || !config.equals(in.readUTF())) {
+                    return null;
+                }
+                State state = new State(config);
+                int dexFileCount = in.readInt();
+                for (int i = 0; i < dexFileCount; i++) {
+                    String name = in.readUTF();
+                    byte[] signature = new byte[in.readUnsignedByte()];
+                    in.readFully(signature);
+                    state.addDexFile(name, HashCode.fromBytes(signature));
+                }
+                int sliceCount = in.readInt();
+                for (int i = 0; i < sliceCount; i++) {
+                    state.addSlice(in.readUTF(), in.readInt());
+                }
+                return state;
+            } catch (Throwable e) {
+                throw closer.rethrow(e);
+            } finally {
+                closer.close();
+            }
+        } catch (IOException e) {
+            // the slices are dexed again.
+            return null;
+        }
+    }
+
+    private void writeState(@NonNull State state) throws IOException {
+        Closer closer = Closer.create();
+        try {
+            DataOutputStream out = closer.register(new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(
+                            new File(mStateFolder, FN_STATE)))));
+            out.writeInt(STATE_MAGIC);
+            out.writeInt(STATE_VERSION);
+            out.writeUTF(state.mConfig);
+            out.writeInt(state.mDexFiles.size());
+            for (Map.Entry<String, HashCode> entry : state.mDexFiles.entrySet()) {
+                out.writeUTF(entry.getKey());
+                byte[] signature = entry.getValue().asBytes();
+                out.writeByte(signature.length);
+                out.write(signature);
+            }
+            out.writeInt(state.mSliceDexFiles.size());
+            for (Map.Entry<String, Integer> entry : state.mSliceDexFiles.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue());
+            }
+        } catch (Throwable e) {
+            throw closer.rethrow(e);
+        } finally {
+            closer.close();
+        }
+    }
+}
@@ -20,6 +20,7 @@ import static com.google.common.base.Preconditions.checkState;
 
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
+import com.android.annotations.concurrency.GuardedBy;
 import com.android.builder.core.AndroidBuilder;
 import com.android.builder.core.DexOptions;
 import com.android.ide.common.process.JavaProcessExecutor;
@@ -27,7 +28,10 @@ import com.android.ide.common.process.ProcessException;
 import com.android.ide.common.process.ProcessOutputHandler;
 import com.android.sdklib.BuildToolInfo;
 import com.android.sdklib.repository.FullRevision;
+import com.android.utils.ILogger;
 import com.android.utils.Pair;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
 import com.google.common.io.Files;
 
 import org.w3c.dom.Attr;
@@ -38,6 +42,7 @@ import org.w3c.dom.Node;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.Set;
 import java.util.logging.Logger;
 
 /**
@@ -51,13 +56,17 @@ import java.util.logging.Logger;
  * Because different project could use different build-tools, both the library to pre-dex and the
  * version of the build tools are used as keys in the cache.
  *
- * The API is fairly simple, just call {@link #preDexLibrary(File, File, boolean, DexOptions, BuildToolInfo, boolean, JavaProcessExecutor, ProcessOutputHandler)}
+ * The API is fairly simple, just call {@link #preDexLibrary(File, File, boolean, DexOptions, BuildToolInfo, boolean, JavaProcessExecutor, ProcessOutputHandler, SharedPreDexCache)}
  *
  * The call will be blocking until the pre-dexing happened, either through actual pre-dexing or
  * through copying the output of a previous pre-dex run.
  *
  * After a build a call to {@link #clear(java.io.File, com.android.utils.ILogger)} with a file
  * will allow saving the known pre-dexed libraries for future reuse.
+ *
+ * Optionally, each call can be given a {@link SharedPreDexCache}, which allows reusing the
+ * pre-dexed libraries across projects and builds based on their content. The stores used
+ * during a build are trimmed by {@link #clear(File, ILogger)}.
  */
 public class PreDexCache extends PreProcessCache<DexKey> {
 
@@ -65,10 +74,28 @@ public class PreDexCache extends PreProcessCache<DexKey> {
 
     private static final PreDexCache sSingleton = new PreDexCache();
 
+    /** The shared stores used during the build. */
+    @GuardedBy("this")
+    private final Set<SharedPreDexCache> mSharedCaches = Sets.newHashSet();
+
     public static PreDexCache getCache() {
         return sSingleton;
     }
 
+    @Override
+    public synchronized void clear(@Nullable File itemStorage, @Nullable ILogger logger)
+            throws IOException {
+        for (SharedPreDexCache sharedCache : mSharedCaches) {
+            sharedCache.trim();
+        }
+        mSharedCaches.clear();
+        super.clear(itemStorage, logger);
+    }
+
+    private synchronized void addSharedCache(@NonNull SharedPreDexCache sharedCache) {
+        mSharedCaches.add(sharedCache);
+    }
+
     @Override
     @NonNull
     protected KeyFactory<DexKey> getKeyFactory() {
@@ -105,6 +132,36 @@ public class PreDexCache extends PreProcessCache<DexKey> {
             @NonNull JavaProcessExecutor processExecutor,
             @NonNull ProcessOutputHandler processOutputHandler)
             throws IOException, ProcessException, InterruptedException {
+        preDexLibrary(inputFile, outFile, multiDex, dexOptions, buildToolInfo, verbose,
+                processExecutor, processOutputHandler, null /*sharedCache*/);
+    }
+
+    /**
+     * Pre-dex a given library to a given output with a specific version of the build-tools,
+     * reusing the output stored in a shared store if there is one.
+     * @param inputFile the jar to pre-dex
+     * @param outFile the output file or folder (if multi-dex is enabled). must exist
+     * @param multiDex whether mutli-dex is enabled.
+     * @param dexOptions the dex options to run pre-dex
+     * @param buildToolInfo the build tools info
+     * @param verbose verbose flag
+     * @param processExecutor the process executor
+     * @param sharedCache the store shared with other projects and builds, or null.
+     * @throws IOException
+     * @throws ProcessException
+     * @throws InterruptedException
+     */
+    public void preDexLibrary(
+            @NonNull File inputFile,
+            @NonNull File outFile,
+                     boolean multiDex,
+            @NonNull DexOptions dexOptions,
+            @NonNull BuildToolInfo buildToolInfo,
+            boolean verbose,
+            @NonNull JavaProcessExecutor processExecutor,
+            @NonNull ProcessOutputHandler processOutputHandler,
+            @Nullable SharedPreDexCache sharedCache)
+            throws IOException, ProcessException, InterruptedException {
         checkState(!multiDex || outFile.isDirectory());
 
         DexKey itemKey = DexKey.of(
@@ -118,21 +175,42 @@ public class PreDexCache extends PreProcessCache<DexKey> {
         // if this is a new item
         if (pair.getSecond()) {
             try {
-                // haven't process this file yet so do it and record it.
-                List<File> files = AndroidBuilder.preDexLibrary(
-                        inputFile,
-                        outFile,
-                        multiDex,
-                        dexOptions,
-                        buildToolInfo,
-                        verbose,
-                        processExecutor,
-                        processOutputHandler);
+                // haven't process this file yet, look for it in the shared cache.
+                HashCode sharedKey = null;
+                List<File> files = null;
+                if (sharedCache != null && inputFile.isFile()) {
+                    addSharedCache(sharedCache);
+                    sharedKey = SharedPreDexCache.computeKey(
+                            inputFile,
+                            buildToolInfo.getRevision(),
+                            dexOptions.getJumboMode(),
+                            multiDex);
+                    files = sharedCache.restore(sharedKey, outFile, multiDex);
+                }
+
+                if (files != null) {
+                    incrementHits();
+                } else {
+                    // otherwise do it and record it.
+                    files = AndroidBuilder.preDexLibrary(
+                            inputFile,
+                            outFile,
+                            multiDex,
+                            dexOptions,
+                            buildToolInfo,
+                            verbose,
+                            processExecutor,
+                            processOutputHandler);
+
+                    if (sharedKey != null) {
+                        sharedCache.publish(sharedKey, files, multiDex);
+                    }
+
+                    incrementMisses();
+                }
 
                 item.getOutputFiles().clear();
                 item.getOutputFiles().addAll(files);
-
-                incrementMisses();
             } catch (ProcessException exception) {
                 // in case of error, delete (now obsolete) output file
                 outFile.delete();
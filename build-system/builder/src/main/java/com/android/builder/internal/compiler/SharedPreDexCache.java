@@ -0,0 +1,579 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.compiler;
+
+import static com.android.SdkConstants.DOT_DEX;
+import static com.android.SdkConstants.FN_APK_CLASSES_DEX;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
+import com.android.annotations.concurrency.GuardedBy;
+import com.android.sdklib.repository.FullRevision;
+import com.android.utils.FileUtils;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pre-dex store shared by all the projects, and all the Gradle daemons, of a machine.
+ * <p/>
+ * Entries are addressed by the content of the pre-dexed jar, the build tools revision and the
+ * dex options changing the output, so the same library is pre-dexed once whatever its location
+ * and whichever project uses it. The layout of the store is:
+ * <pre>
+ *     lock              file locked by the daemons using the store
+ *     index             journal of the entry sizes and access times
+ *     entries/ab/abcd.. one folder per entry, holding its dex files
+ *     tmp/              entries being published
+ * </pre>
+ * Entries are written in the tmp folder, then published by renaming them into the entries
+ * folder, so an entry folder is always complete. Reading and publishing entries is done under
+ * a shared lock, while {@link #trim()} evicts the least recently used entries under an exclusive
+ * lock.
+ * <p/>
+ * The index is an append-only journal of fixed size records, one for each publish or access
+ * of an entry, which {@link #trim()} compacts when evicting entries. Failures to use the store
+ * are logged and otherwise ignored, since all they cost is pre-dexing a library again.
+ */
+public class SharedPreDexCache {
+
+    private static final String FN_LOCK = "lock";
+    private static final String FN_INDEX = "index";
+    private static final String FD_ENTRIES = "entries";
+    private static final String FD_TMP = "tmp";
+
+    private static final int INDEX_MAGIC = 0x50444558; // "PDEX"
+    private static final int INDEX_VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    /** sha1 of the key, entry size, last access time. */
+    private static final int RECORD_SIZE = 20 + 8 + 8;
+
+    /** Bumped when the content of the entries changes. */
+    private static final int KEY_VERSION = 1;
+
+    @GuardedBy("sCaches")
+    private static final Map<File, SharedPreDexCache> sCaches = Maps.newHashMap();
+
+    @NonNull
+    private final File mRoot;
+    private final long mMaxSize;
+    private final long mMaxAge;
+
+    /** Serializes the accesses from this JVM, since file locks are held by the whole JVM. */
+    private final ReentrantReadWriteLock mJvmLock = new ReentrantReadWriteLock();
+    private final Object mFileLockMonitor = new Object();
+    private final Object mIndexMonitor = new Object();
+    @GuardedBy("mFileLockMonitor")
+    private int mSharedHolders = 0;
+    @GuardedBy("mFileLockMonitor")
+    private RandomAccessFile mLockFile;
+    @GuardedBy("mFileLockMonitor")
+    private FileLock mFileLock;
+
+    /**
+     * Returns the store in a given folder, creating it if needed.
+     *
+     * @param root the folder of the store.
+     * @param maxSize the size above which least recently used entries are evicted, in bytes.
+     * @param maxAge the time after which unused entries are evicted, in milliseconds.
+     */
+    @NonNull
+    public static SharedPreDexCache get(@NonNull File root, long maxSize, long maxAge) {
+        File key = root.getAbsoluteFile();
+        synchronized (sCaches) {
+            SharedPreDexCache cache = sCaches.get(key);
+            if (cache == null || cache.mMaxSize != maxSize || cache.mMaxAge != maxAge) {
+                cache = new SharedPreDexCache(key, maxSize, maxAge);
+                sCaches.put(key, cache);
+            }
+            return cache;
+        }
+    }
+
+    @VisibleForTesting
+    SharedPreDexCache(@NonNull File root, long maxSize, long maxAge) {
+        mRoot = root;
+        mMaxSize = maxSize;
+        mMaxAge = maxAge;
+    }
+
+    @NonNull
+    public File getRoot() {
+        return mRoot;
+    }
+
+    /**
+     * Returns the key of the pre-dexed output of a jar.
+     */
+    @NonNull
+    public static HashCode computeKey(
+            @NonNull File inputFile,
+            @NonNull FullRevision buildToolsRevision,
+            boolean jumboMode,
+            boolean multiDex) throws IOException {
+        return Hashing.sha1().newHasher()
+                .putInt(KEY_VERSION)
+                .putBytes(Files.hash(inputFile, Hashing.sha1()).asBytes())
+                .putString(buildToolsRevision.toString(), Charsets.UTF_8)
+                .putBoolean(jumboMode)
+                .putBoolean(multiDex)
+                .hash();
+    }
+
+    /**
+     * Copies the entry of a key to the output of a pre-dex.
+     *
+     * @param key the key of the entry.
+     * @param outFile the dex file, or the folder of the dex files if multi-dex is enabled.
+     * @param multiDex whether multi-dex is enabled.
+     * @return the dex files, or <code>null</code> if there is no entry for the key.
+     */
+    @Nullable
+    public List<File> restore(@NonNull HashCode key, @NonNull File outFile, boolean multiDex) {
+        try {
+            lockShared();
+            try {
+                File entry = getEntryFolder(key);
+                File[] dexFiles = listDexFiles(entry);
+                if (dexFiles == null || dexFiles.length == 0) {
+                    return null;
+                }
+
+                List<File> files = Lists.newArrayListWithCapacity(dexFiles.length);
+                if (multiDex) {
+                    for (File dexFile : dexFiles) {
+                        File destFile = new File(outFile, dexFile.getName());
+                        Files.copy(dexFile, destFile);
+                        files.add(destFile);
+                    }
+                } else {
+                    Files.copy(dexFiles[0], outFile);
+                    files.add(outFile);
+                }
+
+                appendRecord(key, getSize(dexFiles), System.currentTimeMillis());
+                return files;
+            } finally {
+                unlockShared();
+            }
+        } catch (IOException e) {
+            Logger.getAnonymousLogger().log(Level.WARNING,
+                    "Failed to read the pre-dex cache in " + mRoot, e);
+            return null;
+        }
+    }
+
+    /**
+     * Publishes the output of a pre-dex as the entry of a key. Does nothing if there already is
+     * an entry for the key.
+     *
+     * @param key the key of the entry.
+     * @param dexFiles the dex files.
+     * @param multiDex whether multi-dex is enabled.
+     */
+    public void publish(@NonNull HashCode key, @NonNull List<File> dexFiles, boolean multiDex) {
+        if (dexFiles.isEmpty()) {
+            return;
+        }
+
+        File tmpFolder = null;
+        try {
+            // copy the files outside of the lock.
+            tmpFolder = new File(new File(mRoot, FD_TMP), UUID.randomUUID().toString());
+            if (!tmpFolder.mkdirs()) {
+                throw new IOException("Failed to create " + tmpFolder);
+            }
+            long size = 0;
+            for (File dexFile : dexFiles) {
+                File destFile = new File(tmpFolder,
+                        multiDex ? dexFile.getName() : FN_APK_CLASSES_DEX);
+                Files.copy(dexFile, destFile);
+                size += destFile.length();
+            }
+
+            lockShared();
+            try {
+                File entry = getEntryFolder(key);
+                if (!entry.isDirectory()) {
+                    entry.getParentFile().mkdirs();
+                    if (tmpFolder.renameTo(entry)) {
+                        tmpFolder = null;
+                        appendRecord(key, size, System.currentTimeMillis());
+                    }
+                    // else another daemon published the same entry first.
+                }
+            } finally {
+                unlockShared();
+            }
+        } catch (IOException e) {
+            Logger.getAnonymousLogger().log(Level.WARNING,
+                    "Failed to write the pre-dex cache in " + mRoot, e);
+        } finally {
+            if (tmpFolder != null) {
+                FileUtils.deleteFolder(tmpFolder);
+            }
+        }
+    }
+
+    /**
+     * Evicts the entries not used for longer than the max age, then the least recently used
+     * entries until the store is below its max size, and compacts the index.
+     */
+    public void trim() {
+        try {
+            lockExclusive();
+            try {
+                Map<HashCode, IndexRecord> records = readIndex();
+                long now = System.currentTimeMillis();
+
+                // entries missing from the index, if it was lost, are considered just used.
+                File[] shards = new File(mRoot, FD_ENTRIES).listFiles();
+                if (shards != null) {
+                    for (File shard : shards) {
+                        File[] entries = shard.listFiles();
+                        if (entries == null) {
+                            continue;
+                        }
+                        for (File entry : entries) {
+                            HashCode key;
+                            try {
+                                key = HashCode.fromString(entry.getName());
+                            } catch (IllegalArgumentException e) {
+                                FileUtils.deleteFolder(entry);
+                                continue;
+                            }
+                            if (!records.containsKey(key)) {
+                                File[] dexFiles = listDexFiles(entry);
+                                records.put(key, new IndexRecord(key,
+                                        dexFiles != null ? getSize(dexFiles) : 0, now));
+                            }
+                        }
+                    }
+                }
+
+                List<IndexRecord> sorted = Lists.newArrayList(records.values());
+                Collections.sort(sorted, new Comparator<IndexRecord>() {
+                    @Override
+                    public int compare(IndexRecord r1, IndexRecord r2) {
+                        // most recently used first.
+                        return r1.lastAccess < r2.lastAccess ? 1
+                                : (r1.lastAccess == r2.lastAccess ? 0 : -1);
+                    }
+                });
+
+                List<IndexRecord> kept = Lists.newArrayListWithCapacity(sorted.size());
+                long totalSize = 0;
+                for (IndexRecord record : sorted) {
+                    File entry = getEntryFolder(record.key);
+                    if (!entry.isDirectory()) {
+                        continue;
+                    }
+                    if (now - record.lastAccess > mMaxAge
+                            || totalSize + record.size > mMaxSize) {
+                        FileUtils.deleteFolder(entry);
+                    } else {
+                        totalSize += record.size;
+                        kept.add(record);
+                    }
+                }
+
+                writeIndex(kept);
+
+                // leftovers of interrupted publishes.
+                File[] tmpFolders = new File(mRoot, FD_TMP).listFiles();
+                if (tmpFolders != null) {
+                    for (File tmpFolder : tmpFolders) {
+                        if (now - tmpFolder.lastModified() > mMaxAge) {
+                            FileUtils.deleteFolder(tmpFolder);
+                        }
+                    }
+                }
+            } finally {
+                unlockExclusive();
+            }
+        } catch (IOException e) {
+            Logger.getAnonymousLogger().log(Level.WARNING,
+                    "Failed to trim the pre-dex cache in " + mRoot, e);
+        }
+    }
+
+    @NonNull
+    private File getEntryFolder(@NonNull HashCode key) {
+        String name = key.toString();
+        return new File(new File(new File(mRoot, FD_ENTRIES), name.substring(0, 2)), name);
+    }
+
+    @Nullable
+    private static File[] listDexFiles(@NonNull File entry) {
+        File[] files = entry.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(DOT_DEX);
+            }
+        });
+        if (files != null) {
+            // classes.dex, classes2.dex, ...
+            Arrays.sort(files);
+        }
+        return files;
+    }
+
+    private static long getSize(@NonNull File[] files) {
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        return size;
+    }
+
+    // --- index
+
+    /**
+     * The latest record of an entry in the index.
+     */
+    private static final class IndexRecord {
+        @NonNull
+        final HashCode key;
+        final long size;
+        final long lastAccess;
+
+        IndexRecord(@NonNull HashCode key, long size, long lastAccess) {
+            this.key = key;
+            this.size = size;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    /**
+     * Appends a record to the index, writing the header first if the index is empty. The index
+     * is locked while appending so that concurrent builds write a single header and do not
+     * interleave their records. File locks are held on behalf of the whole JVM, so appends from
+     * the same JVM are serialized on {@link #mIndexMonitor}.
+     */
+    private void appendRecord(@NonNull HashCode key, long size, long lastAccess)
+            throws IOException {
+        byte[] record = new byte[RECORD_SIZE];
+        byte[] keyBytes = key.asBytes();
+        System.arraycopy(keyBytes, 0, record, 0, keyBytes.length);
+        int offset = putLong(record, keyBytes.length, size);
+        putLong(record, offset, lastAccess);
+
+        synchronized (mIndexMonitor) {
+            RandomAccessFile index = new RandomAccessFile(new File(mRoot, FN_INDEX), "rw");
+            try {
+                FileLock lock = index.getChannel().lock();
+                try {
+                    if (index.length() == 0) {
+                        byte[] header = new byte[HEADER_SIZE];
+                        putInt(header, putInt(header, 0, INDEX_MAGIC), INDEX_VERSION);
+                        index.write(header);
+                    }
+                    index.seek(index.length());
+                    index.write(record);
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                index.close();
+            }
+        }
+    }
+
+    @NonNull
+    private Map<HashCode, IndexRecord> readIndex() throws IOException {
+        Map<HashCode, IndexRecord> records = Maps.newHashMap();
+        File index = new File(mRoot, FN_INDEX);
+        if (!index.isFile()) {
+            return records;
+        }
+
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(index)));
+        try {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+                // unknown format, the entries are re-indexed from the entries folder.
+                return records;
+            }
+            byte[] keyBytes = new byte[20];
+            while (true) {
+                try {
+                    in.readFully(keyBytes);
+                } catch (EOFException e) {
+                    break;
+                }
+                HashCode key = HashCode.fromBytes(keyBytes.clone());
+                IndexRecord record = new IndexRecord(key, in.readLong(), in.readLong());
+                IndexRecord previous = records.get(key);
+                if (previous == null || previous.lastAccess <= record.lastAccess) {
+                    records.put(key, record);
+                }
+            }
+        } catch (EOFException ignored) {
+            // truncated record, ignore it.
+        } finally {
+            in.close();
+        }
+        return records;
+    }
+
+    private void writeIndex(@NonNull List<IndexRecord> records) throws IOException {
+        File tmpIndex = new File(mRoot, FN_INDEX + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpIndex)));
+        try {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            for (IndexRecord record : records) {
+                out.write(record.key.asBytes());
+                out.writeLong(record.size);
+                out.writeLong(record.lastAccess);
+            }
+        } finally {
+            out.close();
+        }
+
+        File index = new File(mRoot, FN_INDEX);
+        if (!tmpIndex.renameTo(index)) {
+            // renameTo does not replace existing files on all platforms.
+            index.delete();
+            if (!tmpIndex.renameTo(index)) {
+                throw new IOException("Failed to write " + index);
+            }
+        }
+    }
+
+    private static int putInt(@NonNull byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+        return offset + 4;
+    }
+
+    private static int putLong(@NonNull byte[] buffer, int offset, long value) {
+        putInt(buffer, offset, (int) (value >>> 32));
+        return putInt(buffer, offset + 4, (int) value);
+    }
+
+    // --- locking
+
+    private void lockShared() throws IOException {
+        mJvmLock.readLock().lock();
+        try {
+            synchronized (mFileLockMonitor) {
+                if (mSharedHolders == 0) {
+                    acquireFileLock(true);
+                }
+                mSharedHolders++;
+            }
+        } catch (IOException e) {
+            mJvmLock.readLock().unlock();
+            throw e;
+        }
+    }
+
+    private void unlockShared() throws IOException {
+        try {
+            synchronized (mFileLockMonitor) {
+                mSharedHolders--;
+                if (mSharedHolders == 0) {
+                    releaseFileLock();
+                }
+            }
+        } finally {
+            mJvmLock.readLock().unlock();
+        }
+    }
+
+    private void lockExclusive() throws IOException {
+        mJvmLock.writeLock().lock();
+        try {
+            synchronized (mFileLockMonitor) {
+                acquireFileLock(false);
+            }
+        } catch (IOException e) {
+            mJvmLock.writeLock().unlock();
+            throw e;
+        }
+    }
+
+    private void unlockExclusive() throws IOException {
+        try {
+            synchronized (mFileLockMonitor) {
+                releaseFileLock();
+            }
+        } finally {
+            mJvmLock.writeLock().unlock();
+        }
+    }
+
+    @GuardedBy("mFileLockMonitor")
+    private void acquireFileLock(boolean shared) throws IOException {
+        if (!mRoot.isDirectory() && !mRoot.mkdirs()) {
+            throw new IOException("Failed to create " + mRoot);
+        }
+        mLockFile = new RandomAccessFile(new File(mRoot, FN_LOCK), "rw");
+        try {
+            mFileLock = mLockFile.getChannel().lock(0, Long.MAX_VALUE, shared);
+        } catch (IOException e) {
+            mLockFile.close();
+            mLockFile = null;
+            throw e;
+        }
+    }
+
+    @GuardedBy("mFileLockMonitor")
+    private void releaseFileLock() throws IOException {
+        try {
+            if (mFileLock != null) {
+                mFileLock.release();
+            }
+        } finally {
+            mFileLock = null;
+            if (mLockFile != null) {
+                mLockFile.close();
+                mLockFile = null;
+            }
+        }
+    }
+}
@@ -26,8 +26,10 @@ import com.android.builder.model.PackagingOptions;
 import com.android.builder.packaging.DuplicateFileException;
 import com.android.builder.packaging.PackagerException;
 import com.android.builder.packaging.SealedPackageException;
+import com.android.builder.signing.IncrementalSignedJarBuilder;
 import com.android.builder.signing.SignedJarBuilder;
 import com.android.builder.signing.SignedJarBuilder.IZipEntryFilter;
+import com.android.builder.signing.SignedJarBuilder.IZipEntryFilter.ZipAbortException;
 import com.android.builder.signing.SignedJarBuilder.ZipEntryExtractor;
 import com.android.ide.common.packaging.PackagingUtils;
 import com.android.ide.common.signing.CertificateInfo;
@@ -102,7 +104,7 @@ public final class Packager implements IArchiveBuilder {
     /**
      * Filter based on packaging options.
      */
-    private static final class FileFilter implements Predicate<String> {
+    static final class FileFilter implements Predicate<String> {
         @Nullable
         private final PackagingOptions mPackagingOptions;
         @NonNull
@@ -261,6 +263,7 @@ public final class Packager implements IArchiveBuilder {
     }
 
     private SignedJarBuilder mBuilder = null;
+    private IncrementalSignedJarBuilder mIncrementalBuilder = null;
     private final ILogger mLogger;
     private boolean mJniDebugMode = false;
     private boolean mIsSealed = false;
@@ -337,6 +340,32 @@ public final class Packager implements IArchiveBuilder {
             @Nullable String createdBy,
             @Nullable PackagingOptions packagingOptions,
             ILogger logger) throws PackagerException {
+        this(apkLocation, resLocation, mergingFolder, null, certificateInfo, createdBy,
+                packagingOptions, logger);
+    }
+
+    /**
+     * Creates a new instance, which reuses the unchanged entries of the APK created by a
+     * previous build if <var>incrementalFolder</var> is not null.
+     *
+     * @param apkLocation the file to create
+     * @param resLocation the file representing the packaged resource file.
+     * @param mergingFolder the folder to store files that are being merged.
+     * @param incrementalFolder the folder to store the state of the incremental packaging, or
+     *                          null to package the whole APK.
+     * @param certificateInfo the signing information used to sign the package.
+     * @param logger the logger.
+     * @throws com.android.builder.packaging.PackagerException
+     */
+    public Packager(
+            @NonNull String apkLocation,
+            @NonNull String resLocation,
+            @NonNull File mergingFolder,
+            @Nullable File incrementalFolder,
+            CertificateInfo certificateInfo,
+            @Nullable String createdBy,
+            @Nullable PackagingOptions packagingOptions,
+            ILogger logger) throws PackagerException {
         mFileFilter = new FileFilter(packagingOptions);
         mJarFilter = new JavaAndNativeResourceFilter(mFileFilter);
 
@@ -357,12 +386,22 @@ public final class Packager implements IArchiveBuilder {
 
             mLogger = logger;
 
-            mBuilder = new SignedJarBuilder(
-                    new FileOutputStream(apkFile, false /* append */),
-                    certificateInfo != null ? certificateInfo.getKey() : null,
-                    certificateInfo != null ? certificateInfo.getCertificate() : null,
-                    getLocalVersion(),
-                    createdBy);
+            if (incrementalFolder != null) {
+                mIncrementalBuilder = new IncrementalSignedJarBuilder(
+                        apkFile,
+                        incrementalFolder,
+                        certificateInfo != null ? certificateInfo.getKey() : null,
+                        certificateInfo != null ? certificateInfo.getCertificate() : null,
+                        getLocalVersion(),
+                        createdBy);
+            } else {
+                mBuilder = new SignedJarBuilder(
+                        new FileOutputStream(apkFile, false /* append */),
+                        certificateInfo != null ? certificateInfo.getKey() : null,
+                        certificateInfo != null ? certificateInfo.getCertificate() : null,
+                        getLocalVersion(),
+                        createdBy);
+            }
 
             mLogger.verbose("Packaging %s", apkFile.getName());
 
@@ -370,14 +409,10 @@ public final class Packager implements IArchiveBuilder {
             addZipFile(resFile);
 
         } catch (PackagerException e) {
-            if (mBuilder != null) {
-                mBuilder.cleanUp();
-            }
+            cleanUp();
             throw e;
         } catch (Exception e) {
-            if (mBuilder != null) {
-                mBuilder.cleanUp();
-            }
+            cleanUp();
             throw new PackagerException(e);
         }
     }
@@ -444,10 +479,10 @@ public final class Packager implements IArchiveBuilder {
         try {
             doAddFile(file, archivePath);
         } catch (DuplicateFileException e) {
-            mBuilder.cleanUp();
+            cleanUp();
             throw e;
         } catch (Exception e) {
-            mBuilder.cleanUp();
+            cleanUp();
             throw new PackagerException(e, "Failed to add %s", file);
         }
     }
@@ -467,7 +502,6 @@ public final class Packager implements IArchiveBuilder {
             throw new SealedPackageException("APK is already sealed");
         }
 
-        FileInputStream fis = null;
         try {
             mLogger.verbose("%s:", zipFile);
 
@@ -475,20 +509,13 @@ public final class Packager implements IArchiveBuilder {
             mNullFilter.reset(zipFile);
 
             // ask the builder to add the content of the file.
-            fis = new FileInputStream(zipFile);
-            mBuilder.writeZip(fis, mNullFilter, new MergeEntryExtractor());
+            writeZip(zipFile, mNullFilter);
         } catch (DuplicateFileException e) {
-            mBuilder.cleanUp();
+            cleanUp();
             throw e;
         } catch (Exception e) {
-            mBuilder.cleanUp();
+            cleanUp();
             throw new PackagerException(e, "Failed to add %s", zipFile);
-        } finally {
-            try {
-                Closeables.close(fis, true /* swallowIOException */);
-            } catch (IOException e) {
-                // ignore
-            }
         }
     }
 
@@ -508,7 +535,6 @@ public final class Packager implements IArchiveBuilder {
             throw new SealedPackageException("APK is already sealed");
         }
 
-        FileInputStream fis = null;
         try {
             mLogger.verbose("%s:", jarFile);
 
@@ -517,24 +543,17 @@ public final class Packager implements IArchiveBuilder {
 
             // ask the builder to add the content of the file, filtered to only let through
             // the java resources.
-            fis = new FileInputStream(jarFile);
-            mBuilder.writeZip(fis, mJarFilter, new MergeEntryExtractor());
+            writeZip(jarFile, mJarFilter);
 
             // check if native libraries were found in the external library. This should
             // constitutes an error or warning depending on if they are in lib/
             return new JarStatusImpl(mJarFilter.getNativeLibs(), mJarFilter.getNativeLibsConflict());
         } catch (DuplicateFileException e) {
-            mBuilder.cleanUp();
+            cleanUp();
             throw e;
         } catch (Exception e) {
-            mBuilder.cleanUp();
+            cleanUp();
             throw new PackagerException(e, "Failed to add %s", jarFile);
-        } finally {
-            try {
-                Closeables.close(fis, true /* swallowIOException */);
-            } catch (IOException e) {
-                // ignore.
-            }
         }
     }
 
@@ -584,23 +603,15 @@ public final class Packager implements IArchiveBuilder {
                     File[] libs = abi.listFiles();
                     if (libs != null) {
                         for (File lib : libs) {
-                            // only consider files that are .so or, if in debug mode, that
-                            // are gdbserver executables
-                            String libName = lib.getName();
-                            if (lib.isFile() &&
-                                    (PATTERN_NATIVELIB_EXT.matcher(lib.getName()).matches() ||
-                                        (mJniDebugMode &&
-                                            (SdkConstants.FN_GDBSERVER.equals(libName) ||
-                                             SdkConstants.FN_GDB_SETUP.equals(libName))))) {
-
+                            if (isPackagedNativeFile(lib, mJniDebugMode)) {
                                 String path =
                                     SdkConstants.FD_APK_NATIVE_LIBS + "/" +
-                                    abi.getName() + "/" + libName;
+                                    abi.getName() + "/" + lib.getName();
 
                                 try {
                                     doAddFile(lib, path);
                                 } catch (IOException e) {
-                                    mBuilder.cleanUp();
+                                    cleanUp();
                                     throw new PackagerException(e, "Failed to add %s", lib);
                                 }
                             }
@@ -611,6 +622,19 @@ public final class Packager implements IArchiveBuilder {
         }
     }
 
+    /**
+     * Returns whether a file of an ABI folder is packaged: only files that are .so or, if in
+     * debug mode, that are gdbserver executables.
+     */
+    static boolean isPackagedNativeFile(@NonNull File lib, boolean jniDebugMode) {
+        String libName = lib.getName();
+        return lib.isFile() &&
+                (PATTERN_NATIVELIB_EXT.matcher(libName).matches() ||
+                    (jniDebugMode &&
+                        (SdkConstants.FN_GDBSERVER.equals(libName) ||
+                         SdkConstants.FN_GDB_SETUP.equals(libName))));
+    }
+
     /**
      * Seals the APK, and signs it if necessary.
      *
@@ -628,21 +652,59 @@ public final class Packager implements IArchiveBuilder {
             String archivePath = entry.getKey();
             try {
                 if (inputFile.exists()) {
-                    mBuilder.writeFile(inputFile, archivePath);
+                    writeFile(inputFile, archivePath);
                 }
             } catch (IOException e) {
-                mBuilder.cleanUp();
+                cleanUp();
                 throw new PackagerException(e, "Failed to add merged file %s", inputFile);
             }
         }
 
         // close and sign the application package.
         try {
-            mBuilder.close();
+            if (mIncrementalBuilder != null) {
+                mLogger.verbose("Reused %1$d of %2$d entries",
+                        mIncrementalBuilder.getReusedEntryCount(),
+                        mIncrementalBuilder.getEntryCount());
+                mIncrementalBuilder.close();
+            } else {
+                mBuilder.close();
+            }
             mIsSealed = true;
         } catch (Exception e) {
             throw new PackagerException(e, "Failed to seal APK");
         } finally {
+            cleanUp();
+        }
+    }
+
+    private void writeFile(File file, String archivePath) throws IOException {
+        if (mIncrementalBuilder != null) {
+            mIncrementalBuilder.writeFile(file, archivePath);
+        } else {
+            mBuilder.writeFile(file, archivePath);
+        }
+    }
+
+    private void writeZip(File zipFile, IZipEntryFilter filter)
+            throws IOException, ZipAbortException {
+        if (mIncrementalBuilder != null) {
+            mIncrementalBuilder.writeZip(zipFile, filter, new MergeEntryExtractor());
+            return;
+        }
+
+        FileInputStream fis = new FileInputStream(zipFile);
+        try {
+            mBuilder.writeZip(fis, filter, new MergeEntryExtractor());
+        } finally {
+            Closeables.close(fis, true /* swallowIOException */);
+        }
+    }
+
+    private void cleanUp() {
+        if (mIncrementalBuilder != null) {
+            mIncrementalBuilder.cleanUp();
+        } else if (mBuilder != null) {
             mBuilder.cleanUp();
         }
     }
@@ -676,7 +738,7 @@ public final class Packager implements IArchiveBuilder {
         }
 
         mAddedFiles.put(archivePath, file);
-        mBuilder.writeFile(file, archivePath);
+        writeFile(file, archivePath);
     }
 
     /**
@@ -755,7 +817,7 @@ public final class Packager implements IArchiveBuilder {
      * @throws FileNotFoundException if the file is not here.
      * @throws PackagerException If the file is a folder or a file that cannot be read.
      */
-    private static void checkInputFile(File file) throws FileNotFoundException, PackagerException {
+    static void checkInputFile(File file) throws FileNotFoundException, PackagerException {
         if (file.isDirectory()) {
             throw new PackagerException("%s is a directory!", file);
         }
@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.packaging;
+
+import com.android.SdkConstants;
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.builder.model.PackagingOptions;
+import com.android.builder.packaging.DuplicateFileException;
+import com.android.builder.packaging.PackagerException;
+import com.android.builder.signing.IncrementalSignedJarBuilder;
+import com.android.builder.signing.IncrementalSignedJarBuilder.CompressedEntry;
+import com.android.ide.common.internal.WaitableExecutor;
+import com.android.ide.common.signing.CertificateInfo;
+import com.android.utils.ILogger;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * Packages several split APKs at once.
+ * <p/>The native libraries are looked up once for all the splits. A library is only read and
+ * compressed if a split cannot copy it from its previous build, and then only once even when
+ * it is packaged in several splits. The resource package of each split is copied without
+ * being inflated and deflated again, and the splits are written in parallel.
+ */
+public final class SplitPackager {
+
+    /**
+     * A split APK to package.
+     */
+    private static final class Split {
+        @NonNull
+        final File resPackage;
+        @Nullable
+        final Set<String> abiFilters;
+        @NonNull
+        final File outFile;
+        @Nullable
+        final File incrementalFolder;
+
+        /** the builder of the split, while it is being written. */
+        @Nullable
+        IncrementalSignedJarBuilder builder;
+        /** the native libraries of the split which cannot be copied from its previous build. */
+        final List<NativeLib> missingLibs = Lists.newArrayList();
+
+        Split(@NonNull File resPackage, @Nullable Set<String> abiFilters, @NonNull File outFile,
+                @Nullable File incrementalFolder) {
+            this.resPackage = resPackage;
+            this.abiFilters = abiFilters;
+            this.outFile = outFile;
+            this.incrementalFolder = incrementalFolder;
+        }
+
+        boolean acceptsAbi(@NonNull String abi) {
+            return abiFilters == null || abiFilters.isEmpty() || abiFilters.contains(abi);
+        }
+    }
+
+    /**
+     * A native library found in one of the native folders.
+     */
+    private static final class NativeLib {
+        @NonNull
+        final String path;
+        @NonNull
+        final String abi;
+        @NonNull
+        final File file;
+
+        /** the compressed library, if at least one split cannot reuse its previous copy. */
+        @Nullable
+        CompressedEntry compressed;
+
+        NativeLib(@NonNull String path, @NonNull String abi, @NonNull File file) {
+            this.path = path;
+            this.abi = abi;
+            this.file = file;
+        }
+    }
+
+    @Nullable
+    private final CertificateInfo mCertificateInfo;
+    @Nullable
+    private final String mCreatedBy;
+    @Nullable
+    private final PackagingOptions mPackagingOptions;
+    @NonNull
+    private final ILogger mLogger;
+    private boolean mJniDebugMode = false;
+
+    private final List<File> mNativeFolders = Lists.newArrayList();
+    private final List<Split> mSplits = Lists.newArrayList();
+
+    /**
+     * Creates a new instance.
+     *
+     * @param certificateInfo the signing information used to sign the splits, or null.
+     * @param createdBy the value of the Created-By attribute of the manifests.
+     * @param packagingOptions the packaging options.
+     * @param logger the logger.
+     */
+    public SplitPackager(
+            @Nullable CertificateInfo certificateInfo,
+            @Nullable String createdBy,
+            @Nullable PackagingOptions packagingOptions,
+            @NonNull ILogger logger) {
+        mCertificateInfo = certificateInfo;
+        mCreatedBy = createdBy;
+        mPackagingOptions = packagingOptions;
+        mLogger = logger;
+    }
+
+    /**
+     * Sets the debug mode. In debug mode, when native libraries are present, the packaging
+     * will also include one or more copies of gdbserver in the final APK file.
+     */
+    public void setJniDebugMode(boolean jniDebugMode) {
+        mJniDebugMode = jniDebugMode;
+    }
+
+    /**
+     * Adds a native folder, whose libraries are packaged in the splits matching their ABI.
+     * The content of this folder must be the various ABI folders.
+     *
+     * @param nativeFolder the root folder containing the abi folders which contain the .so
+     * @throws PackagerException if the folder does not exist.
+     */
+    public void addNativeLibraries(@NonNull File nativeFolder) throws PackagerException {
+        if (!nativeFolder.isDirectory()) {
+            // not a directory? check if it's a file or doesn't exist
+            if (nativeFolder.exists()) {
+                throw new PackagerException("%s is not a folder", nativeFolder);
+            } else {
+                throw new PackagerException("%s does not exist", nativeFolder);
+            }
+        }
+        mNativeFolders.add(nativeFolder);
+    }
+
+    /**
+     * Adds a split to package.
+     *
+     * @param resPackage the packaged resources of the split.
+     * @param abiFilters the ABIs of the native libraries to include. If null or empty, all abis
+     *                   are included.
+     * @param outFile the split APK to create.
+     * @param incrementalFolder the folder to store the state of the incremental packaging of
+     *                          this split, or null to package the whole split.
+     * @throws PackagerException if the resource package cannot be read.
+     */
+    public void addSplit(
+            @NonNull File resPackage,
+            @Nullable Set<String> abiFilters,
+            @NonNull File outFile,
+            @Nullable File incrementalFolder) throws PackagerException {
+        try {
+            Packager.checkInputFile(resPackage);
+        } catch (FileNotFoundException e) {
+            throw new PackagerException(e.getMessage());
+        }
+        mSplits.add(new Split(resPackage, abiFilters, outFile, incrementalFolder));
+    }
+
+    /**
+     * Writes all the splits, and signs them if necessary.
+     *
+     * @throws DuplicateFileException if two native folders contain the same library.
+     * @throws PackagerException if an error occurred.
+     */
+    public void sealApks() throws DuplicateFileException, PackagerException {
+        final Collection<NativeLib> nativeLibs = findNativeLibraries().values();
+
+        // the split builders use the shared pool for their own tasks, so the splits are
+        // written by a pool of their own.
+        int threadCount = Math.max(1,
+                Math.min(mSplits.size(), Runtime.getRuntime().availableProcessors()));
+        try {
+            // start the splits, reusing the libraries of their previous build when possible.
+            WaitableExecutor<Void> splitExecutor = new WaitableExecutor<Void>(threadCount);
+            for (final Split split : mSplits) {
+                splitExecutor.execute(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        startApk(split, nativeLibs);
+                        return null;
+                    }
+                });
+            }
+            waitForTasks(splitExecutor, "Failed to seal the split APKs");
+
+            // compress once each library that at least one split could not reuse.
+            Set<NativeLib> missingLibs = Sets.newLinkedHashSet();
+            for (Split split : mSplits) {
+                missingLibs.addAll(split.missingLibs);
+            }
+            WaitableExecutor<Void> executor = new WaitableExecutor<Void>();
+            for (final NativeLib lib : missingLibs) {
+                executor.execute(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        lib.compressed = IncrementalSignedJarBuilder.compress(lib.file);
+                        return null;
+                    }
+                });
+            }
+            waitForTasks(executor, "Failed to compress the native libraries");
+
+            splitExecutor = new WaitableExecutor<Void>(threadCount);
+            for (final Split split : mSplits) {
+                splitExecutor.execute(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        finishApk(split);
+                        return null;
+                    }
+                });
+            }
+            waitForTasks(splitExecutor, "Failed to seal the split APKs");
+        } finally {
+            for (Split split : mSplits) {
+                if (split.builder != null) {
+                    split.builder.cleanUp();
+                    split.builder = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the native libraries of all the native folders, by their path in the APKs.
+     */
+    @NonNull
+    private Map<String, NativeLib> findNativeLibraries() throws DuplicateFileException {
+        Packager.FileFilter filter = new Packager.FileFilter(mPackagingOptions);
+        Map<String, NativeLib> libs = Maps.newLinkedHashMap();
+        for (File nativeFolder : mNativeFolders) {
+            mLogger.verbose("Native folder: %s", nativeFolder);
+            File[] abiList = nativeFolder.listFiles();
+            if (abiList == null) {
+                continue;
+            }
+
+            for (File abi : abiList) {
+                File[] files = abi.listFiles();
+                if (files == null) {
+                    // ignore files
+                    continue;
+                }
+
+                for (File file : files) {
+                    if (!Packager.isPackagedNativeFile(file, mJniDebugMode)) {
+                        continue;
+                    }
+
+                    String path = SdkConstants.FD_APK_NATIVE_LIBS + "/" + abi.getName() + "/"
+                            + file.getName();
+                    if (!filter.apply(path)) {
+                        continue;
+                    }
+
+                    NativeLib duplicate = libs.get(path);
+                    if (duplicate != null) {
+                        throw new DuplicateFileException(path, duplicate.file, file);
+                    }
+                    libs.put(path, new NativeLib(path, abi.getName(), file));
+                }
+            }
+        }
+        return libs;
+    }
+
+    /**
+     * Creates the builder of a split, and writes the entries which do not need to be
+     * compressed: the resources, and the libraries which are copied from the previous build.
+     */
+    private void startApk(@NonNull Split split,
+            @NonNull Collection<NativeLib> nativeLibs) throws Exception {
+        mLogger.verbose("Packaging %s", split.outFile.getName());
+
+        split.builder = new IncrementalSignedJarBuilder(
+                split.outFile,
+                split.incrementalFolder,
+                mCertificateInfo != null ? mCertificateInfo.getKey() : null,
+                mCertificateInfo != null ? mCertificateInfo.getCertificate() : null,
+                Packager.getLocalVersion(),
+                mCreatedBy);
+        split.builder.writeZip(split.resPackage, null /* filter */, null /* extractor */);
+        for (NativeLib lib : nativeLibs) {
+            if (split.acceptsAbi(lib.abi) && !split.builder.reuseFile(lib.file, lib.path)) {
+                split.missingLibs.add(lib);
+            }
+        }
+    }
+
+    /**
+     * Writes the compressed libraries which were not copied from the previous build, and
+     * closes the split.
+     */
+    private static void finishApk(@NonNull Split split) throws Exception {
+        IncrementalSignedJarBuilder builder = split.builder;
+        for (NativeLib lib : split.missingLibs) {
+            //noinspection ConstantConditions
+            builder.writeCompressedFile(lib.compressed, lib.path);
+        }
+        //noinspection ConstantConditions
+        builder.close();
+        split.builder = null;
+    }
+
+    private static void waitForTasks(@NonNull WaitableExecutor<Void> executor,
+            @NonNull String message) throws PackagerException {
+        List<WaitableExecutor.TaskResult<Void>> results;
+        try {
+            results = executor.waitForAllTasks();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PackagerException(e, message);
+        }
+
+        for (WaitableExecutor.TaskResult<Void> result : results) {
+            if (result.exception instanceof PackagerException) {
+                throw (PackagerException) result.exception;
+            } else if (result.exception != null) {
+                throw new PackagerException(result.exception, message);
+            }
+        }
+    }
+}
@@ -20,6 +20,9 @@ import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.builder.tasks.BooleanLatch;
 import com.android.builder.tasks.Job;
+import com.android.ide.common.blame.Message;
+import com.android.ide.common.blame.parser.ToolOutputParser;
+import com.android.ide.common.blame.parser.aapt.AaptOutputParser;
 import com.android.utils.GrabProcessOutput;
 import com.android.utils.ILogger;
 import com.google.common.base.Objects;
@@ -29,9 +32,11 @@ import java.io.File;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * interface to the aapt long running process.
@@ -44,12 +49,20 @@ public class AaptProcess {
                     ? DEFAULT_SLAVE_APPT_TIMEOUT_IN_SECONDS
                     : Integer.parseInt(System.getenv("SLAVE_AAPT_TIMEOUT"));
 
+    private static final int DEFAULT_SLAVE_AAPT_MAX_JOBS = 500;
+    private static final int SLAVE_AAPT_MAX_JOBS =
+            System.getenv("SLAVE_AAPT_MAX_JOBS") == null
+                    ? DEFAULT_SLAVE_AAPT_MAX_JOBS
+                    : Integer.parseInt(System.getenv("SLAVE_AAPT_MAX_JOBS"));
+
     private final Process mProcess;
     private final ILogger mLogger;
 
     private final ProcessOutputFacade mProcessOutputFacade = new ProcessOutputFacade();
     private final List<String> mMessages = new ArrayList<String>();
     private final AtomicBoolean mReady = new AtomicBoolean(false);
+    private final AtomicBoolean mFailed = new AtomicBoolean(false);
+    private final AtomicInteger mJobCount = new AtomicInteger(0);
     private final BooleanLatch mReadyLatch = new BooleanLatch();
     private final OutputStreamWriter mWriter;
 
@@ -76,26 +89,48 @@ public class AaptProcess {
      */
     public void crunch(@NonNull File in, @NonNull File out, @NonNull Job<AaptProcess> job)
             throws IOException {
+        crunch(Collections.singletonList(in), Collections.singletonList(out), job, null);
+    }
+
+    /**
+     * Notifies the slave process of a batch of crunching requests, do not block on completion.
+     * All the requests are sent at once, and the job is notified once the slave processed all
+     * of them, with {@link com.android.builder.tasks.Job#error()} if any of them failed.
+     *
+     * @param in the source files to crunch
+     * @param out where to place each crunched file
+     * @param job the job to notify when the crunching is finished successfully or not.
+     * @param listener the listener notified of the outcome of each request, or null.
+     * @throws IOException
+     */
+    public void crunch(@NonNull List<File> in, @NonNull List<File> out,
+            @NonNull Job<AaptProcess> job, @Nullable CrunchListener listener)
+            throws IOException {
 
-        mLogger.verbose("Process(" + mProcess.hashCode() + ")" + in.getName() +
+        mLogger.verbose("Process(" + mProcess.hashCode() + ") " + in.size() + " files " +
                 "job: " + job.toString());
         if (!mReady.get()) {
             throw new RuntimeException("AAPT process not ready to receive commands");
         }
         NotifierProcessOutput notifier =
-                new NotifierProcessOutput(job, mProcessOutputFacade, mLogger);
+                new NotifierProcessOutput(job, in.size(), listener, mProcessOutputFacade, mLogger);
 
         mProcessOutputFacade.setNotifier(notifier);
-        mWriter.write("s\n");
-        mWriter.write(in.getAbsolutePath());
-        mWriter.write("\n");
-        mWriter.write(out.getAbsolutePath());
-        mWriter.write("\n");
+        mJobCount.addAndGet(in.size());
+        for (int i = 0; i < in.size(); i++) {
+            mWriter.write("s\n");
+            mWriter.write(in.get(i).getAbsolutePath());
+            mWriter.write("\n");
+            mWriter.write(out.get(i).getAbsolutePath());
+            mWriter.write("\n");
+        }
         mWriter.flush();
-        mLogger.verbose("Processed(" + mProcess.hashCode() + ")" + in.getName() +
-                "job: " + job.toString());
-        mMessages.add("Process(" + mProcess.hashCode() + ") processed " + in.getName() +
-            "job: " + job.toString());
+        for (File file : in) {
+            mLogger.verbose("Processed(" + mProcess.hashCode() + ")" + file.getName() +
+                    "job: " + job.toString());
+            mMessages.add("Process(" + mProcess.hashCode() + ") processed " + file.getName() +
+                    "job: " + job.toString());
+        }
     }
 
     public void waitForReady() throws InterruptedException {
@@ -109,10 +144,20 @@ public class AaptProcess {
         mLogger.info("Slave %1$s is ready", hashCode());
     }
 
+    /**
+     * Returns whether this slave process should be replaced by a new one before being given
+     * more work, because one of its jobs failed or it already processed
+     * SLAVE_AAPT_MAX_JOBS jobs.
+     */
+    public boolean shouldRecycle() {
+        return mFailed.get() || mJobCount.get() >= SLAVE_AAPT_MAX_JOBS;
+    }
+
     @Override
     public String toString() {
         return Objects.toStringHelper(this)
                 .add("ready", mReady.get())
+                .add("jobs", mJobCount.get())
                 .add("process", mProcess.hashCode())
                 .toString();
     }
@@ -136,6 +181,31 @@ public class AaptProcess {
         }
     }
 
+    /**
+     * Kills the slave process without waiting for its pending requests, for a slave which
+     * stopped responding.
+     */
+    public void destroy() {
+        mReady.set(false);
+        mProcess.destroy();
+    }
+
+    /**
+     * Listener of the outcome of each request of a batch of crunching requests.
+     */
+    public interface CrunchListener {
+
+        /**
+         * Notifies that the slave process is done with a request. This is called from the
+         * thread reading the output of the slave process.
+         *
+         * @param index the index of the request in the batch.
+         * @param success whether the file was crunched.
+         * @param timeInMs the time spent by the slave process on the request.
+         */
+        void crunched(int index, boolean success, long timeInMs);
+    }
+
     public static class Builder {
         private final String mAaptLocation;
         private final ILogger mLogger;
@@ -172,6 +242,10 @@ public class AaptProcess {
             notifier = null;
         }
 
+        void failed() {
+            AaptProcess.this.mFailed.set(true);
+        }
+
         @Nullable
         synchronized NotifierProcessOutput getNotifier() {
             return notifier;
@@ -234,13 +308,25 @@ public class AaptProcess {
         @NonNull private final Job<AaptProcess> mJob;
         @NonNull private final ProcessOutputFacade mOwner;
         @NonNull private final ILogger mLogger;
+        @Nullable private final CrunchListener mListener;
+        // the number of requests sent, and the number of those done so far.
+        private final int mRequestCount;
+        private int mDoneCount = 0;
+        private boolean mHasFailures = false;
+        private long mLastDoneTime = System.currentTimeMillis();
+        // the error output of the job, reported once the job is done.
+        @NonNull private final StringBuilder mErrors = new StringBuilder();
 
         NotifierProcessOutput(
                 @NonNull Job<AaptProcess> job,
+                int requestCount,
+                @Nullable CrunchListener listener,
                 @NonNull ProcessOutputFacade owner,
                 @NonNull ILogger iLogger) {
             mOwner = owner;
             mJob = job;
+            mRequestCount = requestCount;
+            mListener = listener;
             mLogger = iLogger;
         }
 
@@ -249,11 +335,9 @@ public class AaptProcess {
             if (line != null) {
                 mLogger.verbose("AAPT notify(%1$s): %2$s", mJob, line);
                 if (line.equalsIgnoreCase("Done")) {
-                    mOwner.reset();
-                    mJob.finished();
+                    requestDone(true);
                 } else if (line.equalsIgnoreCase("Error")) {
-                    mOwner.reset();
-                    mJob.error();
+                    requestDone(false);
                 } else {
                     mLogger.verbose("AAPT(%1$s) discarded: %2$s", mJob, line);
                 }
@@ -265,9 +349,58 @@ public class AaptProcess {
             if (line != null) {
                 mLogger.verbose("AAPT warning(%1$s), Job(%2$s): %3$s",
                         mOwner.getProcess().hashCode(), mJob, line);
-                mLogger.warning("AAPT: %3$s",
-                        mOwner.getProcess().hashCode(), mJob, line);
+                synchronized (mErrors) {
+                    mErrors.append(line).append('\n');
+                }
+            }
+        }
+
+        private void requestDone(boolean success) {
+            long now = System.currentTimeMillis();
+            if (mListener != null) {
+                mListener.crunched(mDoneCount, success, now - mLastDoneTime);
+            }
+            mLastDoneTime = now;
+            mHasFailures |= !success;
+            if (++mDoneCount < mRequestCount) {
+                return;
+            }
+
+            mOwner.reset();
+            reportErrors();
+            if (mHasFailures) {
+                mOwner.failed();
+                mJob.error();
+            } else {
+                mJob.finished();
+            }
+        }
 
+        /**
+         * Parses the error output of the job into messages blaming the source files, and logs
+         * them.
+         */
+        private void reportErrors() {
+            String errors;
+            synchronized (mErrors) {
+                errors = mErrors.toString();
+                mErrors.setLength(0);
+            }
+            if (errors.isEmpty()) {
+                return;
+            }
+
+            List<Message> messages =
+                    new ToolOutputParser(new AaptOutputParser(), mLogger).parseToolOutput(errors);
+            for (Message message : messages) {
+                String text = message.getSourcePath() == null
+                        ? message.getText()
+                        : message.getSourceFilePositions().get(0) + ": " + message.getText();
+                if (message.getKind() == Message.Kind.ERROR) {
+                    mLogger.error(null, "AAPT: %1$s", text);
+                } else {
+                    mLogger.warning("AAPT: %1$s", text);
+                }
             }
         }
     }
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.png;
+
+import com.android.annotations.NonNull;
+import com.android.builder.tasks.Job;
+import com.android.builder.tasks.JobContext;
+
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of aapt processes working at the same time in the build process, whatever
+ * the build tools revision they come from, and whether they are long running slaves serving
+ * crunching requests or single aapt invocations packaging resources.
+ * <p/>The limit is per JVM: builds running in separate processes, like several Gradle daemons,
+ * each have their own limit.
+ * <p/>The limit defaults to the number of processors, and can be changed with the
+ * SLAVE_AAPT_MAX_WORKERS environment variable.
+ */
+public final class AaptWorkers {
+
+    private static final int MAX_WORKERS =
+            System.getenv("SLAVE_AAPT_MAX_WORKERS") == null
+                    ? Runtime.getRuntime().availableProcessors()
+                    : Integer.parseInt(System.getenv("SLAVE_AAPT_MAX_WORKERS"));
+
+    private static final AaptWorkers sInstance = new AaptWorkers(MAX_WORKERS);
+
+    private final int mMaxWorkers;
+    private final Semaphore mWorkers;
+
+    AaptWorkers(int maxWorkers) {
+        mMaxWorkers = Math.max(1, maxWorkers);
+        mWorkers = new Semaphore(mMaxWorkers, true);
+    }
+
+    /**
+     * Returns the limit shared by all the aapt processes of the build process.
+     */
+    @NonNull
+    public static AaptWorkers get() {
+        return sInstance;
+    }
+
+    /**
+     * Waits until an aapt process can start working. Each call must be followed by a call to
+     * {@link #release()} once the work is done.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void acquire() throws InterruptedException {
+        mWorkers.acquire();
+    }
+
+    /**
+     * Notifies that an aapt process finished its work.
+     */
+    public void release() {
+        mWorkers.release();
+    }
+
+    /**
+     * Runs a job once an aapt process can start working, and waits for its completion for at
+     * most the given time.
+     * <p/>The job is notified with {@link Job#error()} if it cannot be started or if it does
+     * not complete in time, and the worker is released in all cases.
+     *
+     * @param job the job to run.
+     * @param context the context of the job.
+     * @param timeout the maximum time to wait for the job to complete.
+     * @param unit the unit of <var>timeout</var>.
+     * @return true if the job completed, successfully or not, before the timeout.
+     * @throws IOException if the job cannot be started.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public <T> boolean runJob(@NonNull Job<T> job, @NonNull JobContext<T> context,
+            long timeout, @NonNull TimeUnit unit) throws IOException, InterruptedException {
+        acquire();
+        try {
+            boolean completed = false;
+            try {
+                job.runTask(context);
+                completed = job.awaitCompletion(timeout, unit);
+                return completed;
+            } finally {
+                if (!completed) {
+                    job.error();
+                }
+            }
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Returns the maximum number of aapt processes working at the same time.
+     */
+    public int getMaxWorkers() {
+        return mMaxWorkers;
+    }
+
+    /**
+     * Returns the number of aapt processes which can start working without waiting.
+     */
+    public int getAvailableWorkers() {
+        return mWorkers.availablePermits();
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.png;
+
+import com.android.SdkConstants;
+import com.android.annotations.NonNull;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.primitives.Longs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A store of crunched images shared by all the projects of the machine.
+ * <p/>Images are stored by the sha1 of the content of the image to crunch and by the version of
+ * aapt that crunched them, so an image is only crunched once whatever the module or build
+ * crunching it.
+ * <p/>Images are published in the store with an atomic rename, so several builds can use the
+ * same store at the same time.
+ * <p/>The store is trimmed to {@link #MAX_SIZE} the first time a build process uses it, by
+ * removing the images which were least recently used.
+ */
+public class CrunchCache {
+
+    /** maximum size of the store, in bytes. */
+    public static final long MAX_SIZE = 256L * 1024 * 1024;
+
+    /** temporary files older than this were left by a build which did not complete. */
+    private static final long TMP_FILE_MAX_AGE_MS = 60L * 60 * 1000;
+
+    private static final String FD_TMP = "tmp";
+
+    private static final Map<File, CrunchCache> sCaches = Maps.newHashMap();
+
+    @NonNull
+    private final File mRoot;
+
+    /**
+     * Returns the store located in the given folder. The store is trimmed the first time it is
+     * used by this process.
+     */
+    @NonNull
+    public static synchronized CrunchCache get(@NonNull File root) {
+        CrunchCache cache = sCaches.get(root);
+        if (cache == null) {
+            cache = new CrunchCache(root);
+            cache.trim(MAX_SIZE);
+            sCaches.put(root, cache);
+        }
+        return cache;
+    }
+
+    private CrunchCache(@NonNull File root) {
+        mRoot = root;
+    }
+
+    /**
+     * Returns a key identifying an aapt executable, which is part of the key of the images
+     * crunched by this executable.
+     */
+    @NonNull
+    public static String getAaptKey(@NonNull File aapt) {
+        return Hashing.sha1().hashString(
+                aapt.getAbsolutePath() + ':' + aapt.length() + ':' + aapt.lastModified(),
+                Charsets.UTF_8).toString().substring(0, 16);
+    }
+
+    /**
+     * Returns the key of an image to crunch.
+     *
+     * @param aaptKey the key of the aapt executable, see {@link #getAaptKey(File)}
+     * @param image the image to crunch.
+     * @return the key of the crunched image.
+     * @throws IOException if the image cannot be read.
+     */
+    @NonNull
+    public static String getKey(@NonNull String aaptKey, @NonNull File image)
+            throws IOException {
+        // nine patches are crunched differently.
+        String suffix = image.getName().endsWith(SdkConstants.DOT_9PNG)
+                ? SdkConstants.DOT_9PNG
+                : SdkConstants.DOT_PNG;
+        return aaptKey + '-' + Files.hash(image, Hashing.sha1()).toString() + suffix;
+    }
+
+    /**
+     * Copies a crunched image from the store.
+     *
+     * @param key the key of the image, see {@link #getKey(String, File)}
+     * @param to the file to copy the crunched image to.
+     * @return true if the image was found in the store.
+     * @throws IOException if the image cannot be copied.
+     */
+    public boolean fetch(@NonNull String key, @NonNull File to) throws IOException {
+        File cached = getFile(key);
+        if (!cached.isFile()) {
+            return false;
+        }
+        Files.createParentDirs(to);
+        Files.copy(cached, to);
+        // keep track of the use of the image so the store is trimmed in LRU order. This can
+        // fail if another build is trimming the store.
+        //noinspection ResultOfMethodCallIgnored
+        cached.setLastModified(System.currentTimeMillis());
+        return true;
+    }
+
+    /**
+     * Adds a crunched image to the store, unless it is already there.
+     *
+     * @param key the key of the image, see {@link #getKey(String, File)}
+     * @param crunched the crunched image.
+     * @throws IOException if the image cannot be added.
+     */
+    public void store(@NonNull String key, @NonNull File crunched) throws IOException {
+        File cached = getFile(key);
+        if (cached.isFile()) {
+            return;
+        }
+
+        File tmpFolder = new File(mRoot, FD_TMP);
+        if (!tmpFolder.isDirectory() && !tmpFolder.mkdirs() && !tmpFolder.isDirectory()) {
+            throw new IOException("Failed to create " + tmpFolder);
+        }
+        File tmp = File.createTempFile(key, null, tmpFolder);
+        Files.createParentDirs(cached);
+        Files.copy(crunched, tmp);
+        // another build may have published the same image in the meantime.
+        if (!tmp.renameTo(cached) && !cached.isFile()) {
+            tmp.delete();
+            throw new IOException("Failed to add " + crunched + " to " + mRoot);
+        }
+        tmp.delete();
+    }
+
+    /**
+     * Removes the least recently used images until the store is at most <var>maxSize</var>
+     * bytes, and removes the temporary files left by builds which did not complete.
+     * <p/>Images can disappear while this runs, as several builds can trim the same store.
+     *
+     * @param maxSize the maximum size of the store, in bytes.
+     */
+    void trim(long maxSize) {
+        File[] folders = mRoot.listFiles();
+        if (folders == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        List<File> images = Lists.newArrayList();
+        long size = 0;
+        for (File folder : folders) {
+            File[] files = folder.listFiles();
+            if (files == null) {
+                continue;
+            }
+            boolean tmp = folder.getName().equals(FD_TMP);
+            for (File file : files) {
+                if (tmp) {
+                    if (now - file.lastModified() > TMP_FILE_MAX_AGE_MS) {
+                        //noinspection ResultOfMethodCallIgnored
+                        file.delete();
+                    }
+                } else if (file.isFile()) {
+                    images.add(file);
+                    size += file.length();
+                }
+            }
+        }
+        if (size <= maxSize) {
+            return;
+        }
+
+        final Map<File, Long> lastUses = Maps.newHashMapWithExpectedSize(images.size());
+        for (File image : images) {
+            lastUses.put(image, image.lastModified());
+        }
+        Collections.sort(images, new Comparator<File>() {
+            @Override
+            public int compare(File file1, File file2) {
+                return Longs.compare(lastUses.get(file1), lastUses.get(file2));
+            }
+        });
+        for (File image : images) {
+            if (size <= maxSize) {
+                break;
+            }
+            long length = image.length();
+            if (image.delete()) {
+                size -= length;
+            }
+        }
+    }
+
+    @NonNull
+    private File getFile(@NonNull String key) {
+        int hash = key.indexOf('-') + 1;
+        return new File(mRoot, key.substring(hash, hash + 2) + File.separator + key);
+    }
+}
@@ -17,6 +17,11 @@
 package com.android.builder.png;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.builder.profile.ExecutionRecord;
+import com.android.builder.profile.ExecutionType;
+import com.android.builder.profile.Recorder;
+import com.android.builder.profile.ThreadRecorder;
 import com.android.builder.tasks.Job;
 import com.android.builder.tasks.JobContext;
 import com.android.builder.tasks.QueueThreadContext;
@@ -26,18 +31,27 @@ import com.android.ide.common.internal.PngCruncher;
 import com.android.ide.common.internal.PngException;
 import com.android.utils.ILogger;
 import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * implementation of {@link com.android.ide.common.internal.PngCruncher} that queues request and
  * use a pool or aapt server processes to serve those.
+ *
+ * There is one pool per aapt executable, hence per build tools revision. Slave processes are
+ * replaced after a failed job or after a number of jobs, and the number of slaves working at
+ * the same time is limited by {@link AaptWorkers}.
  */
 public class QueuedCruncher implements PngCruncher {
 
@@ -68,10 +82,45 @@ public class QueuedCruncher implements PngCruncher {
                 return sInstances.get(aaptLocation);
             }
         }
+
+        /**
+         * Creates a new {@link com.android.builder.png.QueuedCruncher} or return an existing one
+         * based on the underlying AAPT executable location, which reuses the images crunched
+         * by any build using the same store.
+         * <p/>The store only applies to the requests made through the returned cruncher, so
+         * builds using different stores, or none, can share the same slave processes.
+         * @param aaptLocation the APPT executable location.
+         * @param logger the logger to use
+         * @param cacheFolder the folder of the {@link CrunchCache} store, or null to crunch all
+         *                    the images.
+         * @return a cruncher using a new or existing instance of the
+         * {@link com.android.builder.png.QueuedCruncher}
+         */
+        public PngCruncher newCruncher(
+                @NonNull String aaptLocation,
+                @NonNull ILogger logger,
+                @Nullable File cacheFolder) {
+            QueuedCruncher cruncher = newCruncher(aaptLocation, logger);
+            if (cacheFolder == null) {
+                return cruncher;
+            }
+            return new CachingCruncher(cruncher, CrunchCache.get(cacheFolder));
+        }
     }
 
 
+    // number of crunching requests sent at once to an aapt slave process.
+    private static final int BATCH_SIZE = 16;
+
+    private static final int DEFAULT_SLAVE_AAPT_JOB_TIMEOUT_IN_SECONDS = 300;
+    // maximum time a slave process can spend on a batch of requests.
+    private static final int SLAVE_AAPT_JOB_TIMEOUT_IN_SECONDS =
+            System.getenv("SLAVE_AAPT_JOB_TIMEOUT") == null
+                    ? DEFAULT_SLAVE_AAPT_JOB_TIMEOUT_IN_SECONDS
+                    : Integer.parseInt(System.getenv("SLAVE_AAPT_JOB_TIMEOUT"));
+
     @NonNull private final String mAaptLocation;
+    @NonNull private final String mAaptKey;
     @NonNull private final ILogger mLogger;
     // Queue responsible for handling all passed jobs with a pool of worker threads.
     @NonNull private final WorkQueue<AaptProcess> mCrunchingRequests;
@@ -82,6 +131,14 @@ public class QueuedCruncher implements PngCruncher {
     // and the queue should be shutdown.
     @NonNull private final AtomicInteger refCount = new AtomicInteger(0);
 
+    // requests not sent to the slave processes yet, by user key.
+    @NonNull private final Map<Integer, List<CrunchRequest>> mPendingRequests =
+            new ConcurrentHashMap<Integer, List<CrunchRequest>>();
+
+    // stores of crunched images, by user key, for the users which have one.
+    @NonNull private final Map<Integer, CrunchCache> mCaches =
+            new ConcurrentHashMap<Integer, CrunchCache>();
+
     // per process unique key provider to remember which users enlisted which requests.
     @NonNull private final AtomicInteger keyProvider = new AtomicInteger(0);
 
@@ -90,6 +147,7 @@ public class QueuedCruncher implements PngCruncher {
             @NonNull String aaptLocation,
             @NonNull ILogger iLogger) {
         mAaptLocation = aaptLocation;
+        mAaptKey = CrunchCache.getAaptKey(new File(aaptLocation));
         mLogger = iLogger;
         QueueThreadContext<AaptProcess> queueThreadContext = new QueueThreadContext<AaptProcess>() {
 
@@ -102,10 +160,7 @@ public class QueuedCruncher implements PngCruncher {
                 try {
                     mLogger.verbose("Thread(%1$s): create aapt slave",
                             Thread.currentThread().getName());
-                    AaptProcess aaptProcess = new AaptProcess.Builder(mAaptLocation, mLogger).start();
-                    assert aaptProcess != null;
-                    aaptProcess.waitForReady();
-                    mAaptProcesses.put(t.getName(), aaptProcess);
+                    mAaptProcesses.put(t.getName(), startProcess());
                 } catch (InterruptedException e) {
                     mLogger.error(e, "Cannot start slave process");
                     e.printStackTrace();
@@ -114,10 +169,43 @@ public class QueuedCruncher implements PngCruncher {
 
             @Override
             public void runTask(@NonNull Job<AaptProcess> job) throws Exception {
-                job.runTask(
-                        new JobContext<AaptProcess>(
-                                mAaptProcesses.get(Thread.currentThread().getName())));
-                mOutstandingJobs.get(((QueuedJob) job).key).remove(job);
+                String threadName = Thread.currentThread().getName();
+                AaptProcess aaptProcess = mAaptProcesses.get(threadName);
+                boolean completed = false;
+                try {
+                    // the slave is only given back once it is done with the job.
+                    completed = AaptWorkers.get().runJob(job,
+                            new JobContext<AaptProcess>(aaptProcess),
+                            SLAVE_AAPT_JOB_TIMEOUT_IN_SECONDS, TimeUnit.SECONDS);
+                    if (!completed) {
+                        mLogger.warning("%1$s timed out after %2$d seconds, try setting "
+                                + "environment variable SLAVE_AAPT_JOB_TIMEOUT to a bigger "
+                                + "value", job.getJobTitle(), SLAVE_AAPT_JOB_TIMEOUT_IN_SECONDS);
+                    }
+                } finally {
+                    QueuedJob queuedJob = (QueuedJob) job;
+                    mOutstandingJobs.get(queuedJob.key).remove(job);
+                    batchCompleted(queuedJob.requests);
+
+                    // a slave which did not complete its job may still be working on it.
+                    if (aaptProcess != null && (!completed || aaptProcess.shouldRecycle())) {
+                        mLogger.verbose("Thread(%1$s): recycle aapt slave %2$s",
+                                threadName, aaptProcess);
+                        mAaptProcesses.remove(threadName);
+                        if (!completed) {
+                            aaptProcess.destroy();
+                        } else {
+                            try {
+                                aaptProcess.shutdown();
+                            } catch (IOException e) {
+                                // the slave may have died already.
+                                mLogger.verbose("Thread(%1$s): cannot shutdown aapt slave: %2$s",
+                                        threadName, e.getMessage());
+                            }
+                        }
+                        mAaptProcesses.put(threadName, startProcess());
+                    }
+                }
             }
 
             @Override
@@ -155,12 +243,77 @@ public class QueuedCruncher implements PngCruncher {
                 mLogger, queueThreadContext, "png-cruncher", 5, 2f);
     }
 
+    @NonNull
+    private AaptProcess startProcess() throws IOException, InterruptedException {
+        AaptProcess aaptProcess = new AaptProcess.Builder(mAaptLocation, mLogger).start();
+        assert aaptProcess != null;
+        aaptProcess.waitForReady();
+        return aaptProcess;
+    }
+
+    /**
+     * A request to crunch an image, and its outcome.
+     */
+    private static final class CrunchRequest {
+        @NonNull final File from;
+        @NonNull final File to;
+        // the store to add the crunched image to, and the key of the image in the store.
+        @Nullable final CrunchCache cache;
+        @Nullable final String cacheKey;
+
+        volatile boolean success = false;
+        volatile long doneTimeInMs;
+        volatile long timeInMs;
+
+        CrunchRequest(@NonNull File from, @NonNull File to, @Nullable CrunchCache cache,
+                @Nullable String cacheKey) {
+            this.from = from;
+            this.to = to;
+            this.cache = cache;
+            this.cacheKey = cacheKey;
+        }
+    }
+
+    /**
+     * A {@link PngCruncher} sending its requests to a shared {@link QueuedCruncher}, and
+     * using a store of crunched images.
+     */
+    private static final class CachingCruncher implements PngCruncher {
+        @NonNull private final QueuedCruncher mCruncher;
+        @NonNull private final CrunchCache mCache;
+
+        CachingCruncher(@NonNull QueuedCruncher cruncher, @NonNull CrunchCache cache) {
+            mCruncher = cruncher;
+            mCache = cache;
+        }
+
+        @Override
+        public int start() {
+            return mCruncher.start(mCache);
+        }
+
+        @Override
+        public void crunchPng(int key, @NonNull File from, @NonNull File to)
+                throws PngException {
+            mCruncher.crunchPng(key, from, to);
+        }
+
+        @Override
+        public void end(int key) throws InterruptedException {
+            mCruncher.end(key);
+        }
+    }
+
     private static final class QueuedJob extends Job<AaptProcess> {
 
         private final int key;
-        public QueuedJob(int key, String jobTile, Task<AaptProcess> task) {
+        @NonNull private final List<CrunchRequest> requests;
+
+        public QueuedJob(int key, String jobTile, Task<AaptProcess> task,
+                @NonNull List<CrunchRequest> requests) {
             super(jobTile, task);
             this.key = key;
+            this.requests = requests;
         }
     }
 
@@ -168,17 +321,83 @@ public class QueuedCruncher implements PngCruncher {
     public void crunchPng(int key, @NonNull final File from, @NonNull final File to)
             throws PngException {
 
+        String cacheKey = null;
+        CrunchCache cache = mCaches.get(key);
+        if (cache != null) {
+            long startTime = System.currentTimeMillis();
+            try {
+                cacheKey = CrunchCache.getKey(mAaptKey, from);
+                if (cache.fetch(cacheKey, to)) {
+                    recordCrunch(from, true /* cacheHit */, startTime,
+                            System.currentTimeMillis() - startTime);
+                    return;
+                }
+            } catch (IOException e) {
+                mLogger.warning("Cannot use the crunched image cache for %1$s: %2$s",
+                        from, e.getMessage());
+                cacheKey = null;
+            }
+        }
+
+        // requests are sent in batches, so the slaves are not waited for after each image.
+        List<CrunchRequest> batch = mPendingRequests.get(key);
+        List<CrunchRequest> fullBatch = null;
+        synchronized (batch) {
+            batch.add(new CrunchRequest(from, to, cache, cacheKey));
+            if (batch.size() >= BATCH_SIZE) {
+                fullBatch = new ArrayList<CrunchRequest>(batch);
+                batch.clear();
+            }
+        }
+        if (fullBatch != null) {
+            pushBatch(key, fullBatch);
+        }
+    }
+
+    private void flushPendingRequests(int key) throws PngException {
+        List<CrunchRequest> batch = mPendingRequests.get(key);
+        List<CrunchRequest> lastBatch;
+        synchronized (batch) {
+            if (batch.isEmpty()) {
+                return;
+            }
+            lastBatch = new ArrayList<CrunchRequest>(batch);
+            batch.clear();
+        }
+        pushBatch(key, lastBatch);
+    }
+
+    private void pushBatch(int key, @NonNull final List<CrunchRequest> requests)
+            throws PngException {
+        final List<File> from = Lists.newArrayListWithCapacity(requests.size());
+        final List<File> to = Lists.newArrayListWithCapacity(requests.size());
+        for (CrunchRequest request : requests) {
+            from.add(request.from);
+            to.add(request.to);
+        }
+
         try {
             final Job<AaptProcess> aaptProcessJob = new QueuedJob(
                     key,
-                    "Cruncher " + from.getName(),
+                    "Cruncher " + from.get(0).getName()
+                            + (from.size() > 1 ? " and " + (from.size() - 1) + " more" : ""),
                     new Task<AaptProcess>() {
                         @Override
                         public void run(@NonNull Job<AaptProcess> job,
                                 @NonNull JobContext<AaptProcess> context) throws IOException {
                             mLogger.verbose("Thread(%1$s): begin executing job %2$s",
                                     Thread.currentThread().getName(), job.getJobTitle());
-                            context.getPayload().crunch(from, to, job);
+                            context.getPayload().crunch(from, to, job,
+                                    new AaptProcess.CrunchListener() {
+                                        @Override
+                                        public void crunched(int index, boolean success,
+                                                long timeInMs) {
+                                            CrunchRequest request = requests.get(index);
+                                            request.success = success;
+                                            request.timeInMs = timeInMs;
+                                            request.doneTimeInMs = System.currentTimeMillis();
+                                        }
+                                    });
                             mLogger.verbose("Thread(%1$s): done executing job %2$s",
                                     Thread.currentThread().getName(), job.getJobTitle());
                         }
@@ -186,11 +405,12 @@ public class QueuedCruncher implements PngCruncher {
                         @Override
                         public String toString() {
                             return Objects.toStringHelper(this)
-                                    .add("from", from.getAbsolutePath())
-                                    .add("to", to.getAbsolutePath())
+                                    .add("from", from)
+                                    .add("to", to)
                                     .toString();
                         }
-                    });
+                    },
+                    requests);
             mOutstandingJobs.get(key).add(aaptProcessJob);
             mCrunchingRequests.push(aaptProcessJob);
         } catch (InterruptedException e) {
@@ -200,6 +420,39 @@ public class QueuedCruncher implements PngCruncher {
         }
     }
 
+    /**
+     * Records the outcome of a batch of requests processed by a slave, and adds the crunched
+     * images to the cache.
+     */
+    private void batchCompleted(@NonNull List<CrunchRequest> requests) {
+        for (CrunchRequest request : requests) {
+            recordCrunch(request.from, false /* cacheHit */,
+                    request.doneTimeInMs - request.timeInMs, request.timeInMs);
+            if (request.cache != null && request.success && request.cacheKey != null) {
+                try {
+                    request.cache.store(request.cacheKey, request.to);
+                } catch (IOException e) {
+                    mLogger.warning("Cannot add %1$s to the crunched image cache: %2$s",
+                            request.to, e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Records the crunching of an image in the profile of the build.
+     */
+    private static void recordCrunch(@NonNull File file, boolean cacheHit, long startTimeInMs,
+            long durationInMs) {
+        Recorder recorder = ThreadRecorder.get();
+        long recordId = recorder.allocationRecordId();
+        recorder.closeRecord(new ExecutionRecord(recordId, 0 /* parentId */, startTimeInMs,
+                durationInMs, ExecutionType.PNG_CRUNCH,
+                ImmutableList.of(
+                        new Recorder.Property("file", file.getPath()),
+                        new Recorder.Property("cache", cacheHit ? "hit" : "miss"))));
+    }
+
     private void waitForAll(int key) throws InterruptedException {
         mLogger.verbose("Thread(%1$s): begin waitForAll", Thread.currentThread().getName());
         ConcurrentLinkedQueue<Job<AaptProcess>> jobs = mOutstandingJobs.get(key);
@@ -223,6 +476,16 @@ public class QueuedCruncher implements PngCruncher {
         // get a unique key for the lifetime of this process.
         int key = keyProvider.incrementAndGet();
         mOutstandingJobs.put(key, new ConcurrentLinkedQueue<Job<AaptProcess>>());
+        mPendingRequests.put(key, new ArrayList<CrunchRequest>());
+        return key;
+    }
+
+    /**
+     * Initiates a series of crunching requests which use a store of crunched images.
+     */
+    private synchronized int start(@NonNull CrunchCache cache) {
+        int key = start();
+        mCaches.put(key, cache);
         return key;
     }
 
@@ -230,10 +493,17 @@ public class QueuedCruncher implements PngCruncher {
     public synchronized void end(int key) throws InterruptedException {
         long startTime = System.currentTimeMillis();
         try {
+            try {
+                flushPendingRequests(key);
+            } catch (PngException e) {
+                throw new RuntimeException(e);
+            }
             waitForAll(key);
             mOutstandingJobs.get(key).clear();
+            mPendingRequests.remove(key);
             mLogger.verbose("Job finished in %1$d", System.currentTimeMillis() - startTime);
         } finally {
+            mCaches.remove(key);
             // even if we have failures, we need to shutdown property the sub processes.
             if (refCount.decrementAndGet() == 0) {
                 mCrunchingRequests.shutdown();
@@ -0,0 +1,764 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.signing;
+
+import static com.android.builder.signing.SignedJarBuilder.DIGEST_ALGORITHM;
+import static com.android.builder.signing.SignedJarBuilder.DIGEST_ATTR;
+import static com.android.builder.signing.ZipUtils.FLAG_ENCRYPTED;
+import static com.android.builder.signing.ZipUtils.deleteIfExists;
+import static com.android.builder.signing.ZipUtils.toDosTime;
+import static com.android.builder.signing.ZipUtils.writeCentralHeader;
+import static com.android.builder.signing.ZipUtils.writeEnd;
+import static com.android.builder.signing.ZipUtils.writeLocalHeader;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.builder.signing.SignedJarBuilder.IZipEntryFilter;
+import com.android.builder.signing.SignedJarBuilder.IZipEntryFilter.ZipAbortException;
+import com.android.builder.signing.SignedJarBuilder.ZipEntryExtractor;
+import com.android.builder.signing.ZipUtils.ZipRecord;
+import com.android.builder.signing.ZipUtils.ZipSource;
+import com.android.ide.common.internal.WaitableExecutor;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closer;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.io.Files;
+
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.util.encoders.Base64;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * A Jar file builder with signature support, which reuses the entries of the archive it wrote
+ * in a previous build.
+ * <p/>The builder records the origin of each entry (the path, size and date of a file, or the
+ * checksum and sizes of an entry of another archive) in a state folder. When an entry has the
+ * same origin as in the previous archive, its compressed data and its digest are copied from
+ * the previous archive as they are. Entries of other archives are copied without being
+ * inflated and deflated again, and the remaining files are compressed and digested in
+ * parallel.
+ * <p/>The entries are written in the order they were added, when {@link #close()} is called.
+ */
+public class IncrementalSignedJarBuilder {
+
+    private static final String FN_STATE = "package-state.bin";
+    private static final String FN_PREVIOUS = "previous.ap_";
+
+    private static final int STATE_MAGIC = 0x494A4152; // IJAR
+    private static final int STATE_VERSION = 1;
+
+    /**
+     * An entry of the archive being built.
+     */
+    private static final class PendingEntry {
+        @NonNull
+        final String name;
+        @NonNull
+        final String origin;
+
+        /** the archive the compressed data is copied from, if any. */
+        @Nullable
+        ZipSource source;
+        @Nullable
+        ZipRecord record;
+
+        /** the compressed data, if not copied from another archive. */
+        @Nullable
+        byte[] data;
+        int method;
+        int dosTime;
+        long crc;
+        long compressedSize;
+        long size;
+
+        @Nullable
+        String digest;
+
+        PendingEntry(@NonNull String name, @NonNull String origin) {
+            this.name = name;
+            this.origin = origin;
+        }
+
+        void setRecord(@NonNull ZipSource source, @NonNull ZipRecord record) {
+            this.source = source;
+            this.record = record;
+            method = record.method;
+            dosTime = record.dosTime;
+            crc = record.crc;
+            compressedSize = record.compressedSize;
+            size = record.size;
+        }
+
+        void setContent(@NonNull byte[] content, long time) {
+            CRC32 checksum = new CRC32();
+            checksum.update(content);
+            data = deflate(content);
+            method = ZipEntry.DEFLATED;
+            dosTime = toDosTime(time);
+            crc = checksum.getValue();
+            compressedSize = data.length;
+            size = content.length;
+        }
+
+        void setContent(@NonNull CompressedEntry compressed) {
+            data = compressed.mData;
+            method = ZipEntry.DEFLATED;
+            dosTime = compressed.mDosTime;
+            crc = compressed.mCrc;
+            compressedSize = compressed.mData.length;
+            size = compressed.mSize;
+        }
+    }
+
+    /**
+     * The compressed content and the digest of a file, which can be written into several
+     * archives while being read and compressed only once.
+     *
+     * @see #compress(File)
+     * @see #writeCompressedFile(CompressedEntry, String)
+     */
+    public static final class CompressedEntry {
+        @NonNull
+        private final String mOrigin;
+        @NonNull
+        private final byte[] mData;
+        private final int mDosTime;
+        private final long mCrc;
+        private final long mSize;
+        @NonNull
+        private final String mDigest;
+
+        private CompressedEntry(@NonNull String origin, @NonNull PendingEntry entry,
+                @NonNull String digest) {
+            //noinspection ConstantConditions
+            mData = entry.data;
+            mOrigin = origin;
+            mDosTime = entry.dosTime;
+            mCrc = entry.crc;
+            mSize = entry.size;
+            mDigest = digest;
+        }
+
+        /**
+         * Returns the size of the file before compression.
+         */
+        public long getSize() {
+            return mSize;
+        }
+
+        /**
+         * Returns the size of the compressed data.
+         */
+        public long getCompressedSize() {
+            return mData.length;
+        }
+    }
+
+    @NonNull
+    private final File mOutFile;
+    @Nullable
+    private final File mStateFolder;
+    @Nullable
+    private final PrivateKey mKey;
+    @Nullable
+    private final X509Certificate mCertificate;
+    @Nullable
+    private final Manifest mManifest;
+
+    @Nullable
+    private ZipSource mPrevious;
+    @NonNull
+    private Map<String, String> mPreviousOrigins = Collections.emptyMap();
+    @NonNull
+    private Map<String, String> mPreviousDigests = Collections.emptyMap();
+
+    private final List<ZipSource> mSources = Lists.newArrayList();
+    private final Map<String, PendingEntry> mEntries = Maps.newLinkedHashMap();
+    private final WaitableExecutor<Void> mExecutor = new WaitableExecutor<Void>();
+    private int mReusedEntryCount = 0;
+
+    /**
+     * Creates a {@link IncrementalSignedJarBuilder} for a given output file, and signing
+     * information.
+     * <p/>If either <code>key</code> or <code>certificate</code> is <code>null</code> then
+     * the archive will not be signed.
+     * @param outFile the Jar archive to create. If it was created by a previous build using
+     * the same state folder, its entries are reused.
+     * @param stateFolder the folder where the origin of the entries is stored, or
+     * <code>null</code> to write all the entries.
+     * @param key the {@link PrivateKey} used to sign the archive, or <code>null</code>.
+     * @param certificate the {@link X509Certificate} used to sign the archive, or
+     * <code>null</code>.
+     * @throws IOException
+     */
+    public IncrementalSignedJarBuilder(@NonNull File outFile,
+                                       @Nullable File stateFolder,
+                                       @Nullable PrivateKey key,
+                                       @Nullable X509Certificate certificate,
+                                       @Nullable String builtBy,
+                                       @Nullable String createdBy) throws IOException {
+        mOutFile = outFile;
+        mStateFolder = stateFolder;
+        mKey = key;
+        mCertificate = certificate;
+
+        if (mKey != null && mCertificate != null) {
+            mManifest = new Manifest();
+            Attributes main = mManifest.getMainAttributes();
+            main.putValue("Manifest-Version", "1.0");
+            if (builtBy != null) {
+                main.putValue("Built-By", builtBy);
+            }
+            if (createdBy != null) {
+                main.putValue("Created-By", createdBy);
+            }
+        } else {
+            mManifest = null;
+        }
+
+        if (mStateFolder == null) {
+            return;
+        }
+
+        if (!mStateFolder.isDirectory() && !mStateFolder.mkdirs()) {
+            throw new IOException("Failed to create " + mStateFolder);
+        }
+
+        // the state no longer matches the output once the output is written again.
+        File stateFile = new File(mStateFolder, FN_STATE);
+        Map<String, String> origins = readState(stateFile);
+        deleteIfExists(stateFile);
+
+        File previousFile = new File(mStateFolder, FN_PREVIOUS);
+        deleteIfExists(previousFile);
+        if (!origins.isEmpty() && mOutFile.isFile() && mOutFile.renameTo(previousFile)) {
+            try {
+                mPrevious = new ZipSource(previousFile);
+                mPreviousOrigins = origins;
+                if (mManifest != null) {
+                    mPreviousDigests = readDigests(mPrevious);
+                }
+            } catch (IOException e) {
+                // the previous archive cannot be reused, everything is packaged again.
+                if (mPrevious != null) {
+                    mPrevious.close();
+                    mPrevious = null;
+                }
+                mPreviousOrigins = Collections.emptyMap();
+            }
+        }
+    }
+
+    /**
+     * Writes a new {@link File} into the archive.
+     * @param inputFile the {@link File} to write.
+     * @param jarPath the filepath inside the archive.
+     * @throws IOException
+     */
+    public void writeFile(@NonNull final File inputFile, @NonNull String jarPath)
+            throws IOException {
+        final PendingEntry entry = addEntry(jarPath, getOrigin(inputFile));
+        if (reuse(entry)) {
+            return;
+        }
+
+        final boolean digest = mManifest != null;
+        mExecutor.execute(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                byte[] content = Files.toByteArray(inputFile);
+                entry.setContent(content, inputFile.lastModified());
+                if (digest) {
+                    entry.digest = computeDigest(content);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Writes a {@link File} into the archive only if it can be copied from the previous
+     * archive, which does not read the file.
+     * <p/>If it cannot, the file is not written, and it must be written with
+     * {@link #writeFile(File, String)} or {@link #writeCompressedFile(CompressedEntry, String)}.
+     * @param inputFile the {@link File} to write.
+     * @param jarPath the filepath inside the archive.
+     * @return true if the file was copied from the previous archive.
+     * @throws IOException
+     */
+    public boolean reuseFile(@NonNull File inputFile, @NonNull String jarPath)
+            throws IOException {
+        if (mEntries.containsKey(jarPath)) {
+            throw new ZipException("duplicate entry: " + jarPath);
+        }
+        PendingEntry entry = new PendingEntry(jarPath, getOrigin(inputFile));
+        if (!reuse(entry)) {
+            return false;
+        }
+        mEntries.put(jarPath, entry);
+        return true;
+    }
+
+    /**
+     * Writes a file compressed by {@link #compress(File)} into the archive, without
+     * compressing it again.
+     * @param compressed the compressed file to write.
+     * @param jarPath the filepath inside the archive.
+     * @throws IOException
+     */
+    public void writeCompressedFile(@NonNull CompressedEntry compressed, @NonNull String jarPath)
+            throws IOException {
+        PendingEntry entry = addEntry(jarPath, compressed.mOrigin);
+        if (reuse(entry)) {
+            return;
+        }
+
+        entry.setContent(compressed);
+        if (mManifest != null) {
+            entry.digest = compressed.mDigest;
+        }
+    }
+
+    /**
+     * Reads, compresses and digests a file, so that it can be written into several archives.
+     * <p/>This can be called from any thread.
+     * @param inputFile the {@link File} to compress.
+     * @return the compressed file.
+     * @throws IOException
+     */
+    @NonNull
+    public static CompressedEntry compress(@NonNull File inputFile) throws IOException {
+        String origin = getOrigin(inputFile);
+        byte[] content = Files.toByteArray(inputFile);
+        PendingEntry entry = new PendingEntry(inputFile.getName(), origin);
+        entry.setContent(content, inputFile.lastModified());
+        return new CompressedEntry(origin, entry, computeDigest(content));
+    }
+
+    /**
+     * Copies the content of a Jar/Zip archive into the receiver archive.
+     * <p/>An optional {@link IZipEntryFilter} allows to selectively choose which files
+     * to copy over.
+     * @param inputFile the Jar/Zip to copy.
+     * @param filter the filter or <code>null</code>
+     * @param extractor the extractor of the entries to merge, or <code>null</code>
+     * @throws IOException
+     * @throws ZipAbortException if the {@link IZipEntryFilter} filter indicated that the write
+     *                           must be aborted.
+     */
+    public void writeZip(@NonNull File inputFile, @Nullable IZipEntryFilter filter,
+            @Nullable ZipEntryExtractor extractor) throws IOException, ZipAbortException {
+        final ZipSource source = new ZipSource(inputFile);
+        mSources.add(source);
+
+        for (final ZipRecord record : source.getRecords()) {
+            String name = record.name;
+
+            // do not take directories or anything inside a potential META-INF folder.
+            if (name.endsWith("/") || SignedJarBuilder.isIgnoredEntry(name)) {
+                continue;
+            }
+
+            if (extractor != null && extractor.checkEntry(name)) {
+                InputStream in = source.getInputStream(record);
+                try {
+                    extractor.extract(name, in);
+                } finally {
+                    in.close();
+                }
+                continue;
+            }
+
+            if (filter != null && !filter.checkEntry(name)) {
+                continue;
+            }
+
+            if ((record.flags & FLAG_ENCRYPTED) != 0
+                    || (record.method != ZipEntry.STORED && record.method != ZipEntry.DEFLATED)) {
+                throw new ZipException("Unsupported entry " + name + " in " + inputFile);
+            }
+
+            final PendingEntry entry = addEntry(name, "zip:" + record.method + ':'
+                    + Long.toHexString(record.crc) + ':' + record.compressedSize + ':'
+                    + record.size);
+            if (reuse(entry)) {
+                continue;
+            }
+
+            // the compressed data is copied as is, only the digest needs the content.
+            entry.setRecord(source, record);
+            if (mManifest != null) {
+                mExecutor.execute(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        InputStream in = source.getInputStream(record);
+                        try {
+                            entry.digest = computeDigest(in);
+                        } finally {
+                            in.close();
+                        }
+                        return null;
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Returns the number of entries added to the archive so far.
+     */
+    public int getEntryCount() {
+        return mEntries.size();
+    }
+
+    /**
+     * Returns the number of entries copied from the previous archive so far.
+     */
+    public int getReusedEntryCount() {
+        return mReusedEntryCount;
+    }
+
+    /**
+     * Writes the Jar archive, creating the manifest and signing the archive.
+     * @throws IOException
+     * @throws SigningException
+     */
+    public void close() throws IOException, SigningException {
+        waitForTasks();
+
+        List<ZipRecord> records = Lists.newArrayListWithCapacity(mEntries.size() + 3);
+        CountingOutputStream out = new CountingOutputStream(
+                new BufferedOutputStream(new FileOutputStream(mOutFile)));
+        try {
+            byte[] buffer = new byte[65536];
+            for (PendingEntry entry : mEntries.values()) {
+                records.add(writeLocalHeader(out, entry.name, entry.method, entry.dosTime,
+                        entry.crc, entry.compressedSize, entry.size));
+                if (entry.source != null && entry.record != null) {
+                    entry.source.copyRaw(entry.record, out, buffer);
+                } else if (entry.data != null) {
+                    out.write(entry.data);
+                }
+
+                if (mManifest != null) {
+                    Attributes attr = new Attributes();
+                    attr.putValue(DIGEST_ATTR, entry.digest);
+                    mManifest.getEntries().put(entry.name, attr);
+                }
+            }
+
+            if (mManifest != null) {
+                writeSignature(out, records);
+            }
+
+            long centralDirectoryOffset = out.getCount();
+            for (ZipRecord record : records) {
+                writeCentralHeader(out, record);
+            }
+            writeEnd(out, records.size(), centralDirectoryOffset,
+                    out.getCount() - centralDirectoryOffset);
+        } finally {
+            out.close();
+        }
+
+        closeSources();
+        if (mStateFolder != null) {
+            writeState(mStateFolder);
+            deleteIfExists(new File(mStateFolder, FN_PREVIOUS));
+        }
+    }
+
+    /**
+     * Clean up of the builder for interrupted workflow.
+     * This does nothing if {@link #close()} was called successfully.
+     */
+    public void cleanUp() {
+        mExecutor.cancelAllTasks();
+        try {
+            closeSources();
+        } catch (IOException e) {
+            // pass
+        }
+    }
+
+    @NonNull
+    private static String getOrigin(@NonNull File inputFile) {
+        return "file:" + inputFile.getAbsolutePath() + ':' + inputFile.length() + ':'
+                + inputFile.lastModified();
+    }
+
+    private PendingEntry addEntry(@NonNull String name, @NonNull String origin)
+            throws ZipException {
+        if (mEntries.containsKey(name)) {
+            throw new ZipException("duplicate entry: " + name);
+        }
+        PendingEntry entry = new PendingEntry(name, origin);
+        mEntries.put(name, entry);
+        return entry;
+    }
+
+    /**
+     * Copies an entry from the previous archive if it has the same origin.
+     */
+    private boolean reuse(@NonNull PendingEntry entry) {
+        if (mPrevious == null || !entry.origin.equals(mPreviousOrigins.get(entry.name))) {
+            return false;
+        }
+
+        ZipRecord record = mPrevious.getRecord(entry.name);
+        if (record == null) {
+            return false;
+        }
+
+        if (mManifest != null) {
+            String digest = mPreviousDigests.get(entry.name);
+            if (digest == null) {
+                return false;
+            }
+            entry.digest = digest;
+        }
+
+        entry.setRecord(mPrevious, record);
+        mReusedEntryCount++;
+        return true;
+    }
+
+    private void waitForTasks() throws IOException {
+        List<WaitableExecutor.TaskResult<Void>> results;
+        try {
+            results = mExecutor.waitForAllTasks();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while packaging " + mOutFile);
+        }
+
+        for (WaitableExecutor.TaskResult<Void> result : results) {
+            if (result.exception instanceof IOException) {
+                throw (IOException) result.exception;
+            } else if (result.exception != null) {
+                throw new IOException(result.exception);
+            }
+        }
+    }
+
+    private void writeSignature(@NonNull CountingOutputStream out,
+            @NonNull List<ZipRecord> records) throws IOException, SigningException {
+        //noinspection ConstantConditions
+        ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+        mManifest.write(manifest);
+        writeEntry(out, records, JarFile.MANIFEST_NAME, manifest.toByteArray());
+
+        try {
+            // CERT.SF
+            Signature signature = Signature.getInstance("SHA1with" + mKey.getAlgorithm());
+            signature.initSign(mKey);
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            SignedJarBuilder.writeSignatureFile(mManifest, baos);
+            byte[] signedData = baos.toByteArray();
+            writeEntry(out, records, "META-INF/CERT.SF", signedData);
+
+            // CERT.*
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            SignedJarBuilder.writeSignatureBlock(new CMSProcessableByteArray(signedData),
+                    mCertificate, mKey, block);
+            writeEntry(out, records, "META-INF/CERT." + mKey.getAlgorithm(),
+                    block.toByteArray());
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new SigningException(e);
+        }
+    }
+
+    private static void writeEntry(@NonNull CountingOutputStream out,
+            @NonNull List<ZipRecord> records, @NonNull String name, @NonNull byte[] content)
+            throws IOException {
+        PendingEntry entry = new PendingEntry(name, "");
+        entry.setContent(content, System.currentTimeMillis());
+        //noinspection ConstantConditions
+        records.add(writeLocalHeader(out, name, entry.method, entry.dosTime, entry.crc,
+                entry.compressedSize, entry.size));
+        out.write(entry.data);
+    }
+
+    private void closeSources() throws IOException {
+        Closer closer = Closer.create();
+        for (ZipSource source : mSources) {
+            closer.register(source);
+        }
+        if (mPrevious != null) {
+            closer.register(mPrevious);
+        }
+        mSources.clear();
+        mPrevious = null;
+        closer.close();
+    }
+
+    // --- state
+
+    @NonNull
+    private static Map<String, String> readState(@NonNull File stateFile) {
+        if (!stateFile.isFile()) {
+            return Collections.emptyMap();
+        }
+
+        try {
+            Closer closer = Closer.create();
+            try {
+                DataInputStream in = closer.register(new DataInputStream(
+                        new BufferedInputStream(new FileInputStream(stateFile))));
+                if (in.readInt() != STATE_MAGIC || in.readInt() != STATE_VERSION) {
+                    return Collections.emptyMap();
+                }
+                int count = in.readInt();
+                Map<String, String> origins = Maps.newHashMapWithExpectedSize(count);
+                for (int i = 0; i < count; i++) {
+                    origins.put(in.readUTF(), in.readUTF());
+                }
+                return origins;
+            } catch (Throwable e) {
+                throw closer.rethrow(e);
+            } finally {
+                closer.close();
+            }
+        } catch (IOException e) {
+            // everything is packaged again.
+            return Collections.emptyMap();
+        }
+    }
+
+    private void writeState(@NonNull File stateFolder) throws IOException {
+        Closer closer = Closer.create();
+        try {
+            DataOutputStream out = closer.register(new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(
+                            new File(stateFolder, FN_STATE)))));
+            out.writeInt(STATE_MAGIC);
+            out.writeInt(STATE_VERSION);
+            out.writeInt(mEntries.size());
+            for (PendingEntry entry : mEntries.values()) {
+                out.writeUTF(entry.name);
+                out.writeUTF(entry.origin);
+            }
+        } catch (Throwable e) {
+            throw closer.rethrow(e);
+        } finally {
+            closer.close();
+        }
+    }
+
+    @NonNull
+    private static Map<String, String> readDigests(@NonNull ZipSource previous)
+            throws IOException {
+        ZipRecord manifestRecord = previous.getRecord(JarFile.MANIFEST_NAME);
+        if (manifestRecord == null) {
+            return Collections.emptyMap();
+        }
+
+        Manifest manifest;
+        InputStream in = previous.getInputStream(manifestRecord);
+        try {
+            manifest = new Manifest(in);
+        } finally {
+            in.close();
+        }
+
+        Map<String, String> digests = Maps.newHashMap();
+        for (Map.Entry<String, Attributes> entry : manifest.getEntries().entrySet()) {
+            String digest = entry.getValue().getValue(DIGEST_ATTR);
+            if (digest != null) {
+                digests.put(entry.getKey(), digest);
+            }
+        }
+        return digests;
+    }
+
+    // --- content
+
+    @NonNull
+    private static byte[] deflate(@NonNull byte[] content) {
+        Deflater deflater = new Deflater(9, true /* nowrap */);
+        try {
+            deflater.setInput(content);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 2 + 64);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @NonNull
+    private static String computeDigest(@NonNull byte[] content) throws IOException {
+        MessageDigest digest = newMessageDigest();
+        digest.update(content);
+        return new String(Base64.encode(digest.digest()), "ASCII");
+    }
+
+    @NonNull
+    private static String computeDigest(@NonNull InputStream in) throws IOException {
+        MessageDigest digest = newMessageDigest();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            digest.update(buffer, 0, count);
+        }
+        return new String(Base64.encode(digest.digest()), "ASCII");
+    }
+
+    @NonNull
+    private static MessageDigest newMessageDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+}
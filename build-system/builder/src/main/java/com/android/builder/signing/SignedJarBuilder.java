@@ -67,8 +67,8 @@ import java.util.zip.ZipInputStream;
  * A Jar file builder with signature support.
  */
 public class SignedJarBuilder {
-    private static final String DIGEST_ALGORITHM = "SHA1";
-    private static final String DIGEST_ATTR = "SHA1-Digest";
+    static final String DIGEST_ALGORITHM = "SHA1";
+    static final String DIGEST_ATTR = "SHA1-Digest";
     private static final String DIGEST_MANIFEST_ATTR = "SHA1-Digest-Manifest";
 
     /** Write to another stream and track how many bytes have been
@@ -251,34 +251,10 @@ public class SignedJarBuilder {
                 String name = entry.getName();
 
                 // do not take directories or anything inside a potential META-INF folder.
-                if (entry.isDirectory()) {
+                if (entry.isDirectory() || isIgnoredEntry(name)) {
                     continue;
                 }
 
-                // ignore some of the content in META-INF/ but not all
-                if (name.startsWith("META-INF/")) {
-                    // ignore the manifest file.
-                    String subName = name.substring(9);
-                    if ("MANIFEST.MF".equals(subName)) {
-                        continue;
-                    }
-
-                    // special case for Maven meta-data because we really don't care about them in apks.
-                    if (name.startsWith("META-INF/maven/")) {
-                        continue;
-                    }
-
-
-                    // check for subfolder
-                    int index = subName.indexOf('/');
-                    if (index == -1) {
-                        // no sub folder, ignores signature files.
-                        if (subName.endsWith(".SF") || name.endsWith(".RSA") || name.endsWith(".DSA")) {
-                            continue;
-                        }
-                    }
-                }
-
                 // if we have a filter, we check the entry to see if it's a file that should be extracted.
                 if (extractor != null && extractor.checkEntry(name)) {
                     extractor.extract(name, zis);
@@ -309,6 +285,39 @@ public class SignedJarBuilder {
         }
     }
 
+    /**
+     * Returns whether an entry of a Jar/Zip archive must not be copied in the receiver archive:
+     * the manifest, the signature files and the Maven meta-data.
+     * @param name the path of the entry.
+     */
+    static boolean isIgnoredEntry(@NonNull String name) {
+        // ignore some of the content in META-INF/ but not all
+        if (name.startsWith("META-INF/")) {
+            // ignore the manifest file.
+            String subName = name.substring(9);
+            if ("MANIFEST.MF".equals(subName)) {
+                return true;
+            }
+
+            // special case for Maven meta-data because we really don't care about them in apks.
+            if (name.startsWith("META-INF/maven/")) {
+                return true;
+            }
+
+
+            // check for subfolder
+            int index = subName.indexOf('/');
+            if (index == -1) {
+                // no sub folder, ignores signature files.
+                if (subName.endsWith(".SF") || name.endsWith(".RSA") || name.endsWith(".DSA")) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
     /**
      * Closes the Jar archive by creating the manifest, and signing the archive.
      * @throws IOException
@@ -327,13 +336,14 @@ public class SignedJarBuilder {
                 mOutputJar.putNextEntry(new JarEntry("META-INF/CERT.SF"));
 
                 ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                writeSignatureFile(baos);
+                writeSignatureFile(mManifest, baos);
                 byte[] signedData = baos.toByteArray();
                 mOutputJar.write(signedData);
 
                 // CERT.*
                 mOutputJar.putNextEntry(new JarEntry("META-INF/CERT." + mKey.getAlgorithm()));
-                writeSignatureBlock(new CMSProcessableByteArray(signedData), mCertificate, mKey);
+                writeSignatureBlock(new CMSProcessableByteArray(signedData), mCertificate, mKey,
+                        mOutputJar);
             } catch (Exception e) {
                 throw new SigningException(e);
             }
@@ -394,7 +404,7 @@ public class SignedJarBuilder {
     }
 
     /** Writes a .SF file with a digest to the manifest. */
-    private void writeSignatureFile(OutputStream out)
+    static void writeSignatureFile(@NonNull Manifest manifest, @NonNull OutputStream out)
             throws IOException, GeneralSecurityException {
         Manifest sf = new Manifest();
         Attributes main = sf.getMainAttributes();
@@ -407,11 +417,11 @@ public class SignedJarBuilder {
                 true, SdkConstants.UTF_8);
 
         // Digest of the entire manifest
-        mManifest.write(print);
+        manifest.write(print);
         print.flush();
         main.putValue(DIGEST_MANIFEST_ATTR, new String(Base64.encode(md.digest()), "ASCII"));
 
-        Map<String, Attributes> entries = mManifest.getEntries();
+        Map<String, Attributes> entries = manifest.getEntries();
         for (Map.Entry<String, Attributes> entry : entries.entrySet()) {
             // Digest of the manifest stanza for this entry.
             print.print("Name: " + entry.getKey() + "\r\n");
@@ -439,8 +449,8 @@ public class SignedJarBuilder {
     }
 
     /** Write the certificate file with a digital signature. */
-    private void writeSignatureBlock(CMSTypedData data, X509Certificate publicKey,
-            PrivateKey privateKey)
+    static void writeSignatureBlock(CMSTypedData data, X509Certificate publicKey,
+            PrivateKey privateKey, OutputStream out)
                         throws IOException,
                         CertificateEncodingException,
                         OperatorCreationException,
@@ -464,7 +474,7 @@ public class SignedJarBuilder {
         CMSSignedData sigData = gen.generate(data, false);
 
         ASN1InputStream asn1 = new ASN1InputStream(sigData.getEncoded());
-        DEROutputStream dos = new DEROutputStream(mOutputJar);
+        DEROutputStream dos = new DEROutputStream(out);
         dos.writeObject(asn1.readObject());
 
         dos.flush();
@@ -0,0 +1,428 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.signing;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.builder.signing.SignedJarBuilder.IZipEntryFilter;
+import com.android.builder.signing.SignedJarBuilder.IZipEntryFilter.ZipAbortException;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closer;
+import com.google.common.io.CountingOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * Zip archive utilities, which copy the compressed data of entries as is rather than inflating
+ * and deflating it again.
+ * <p/>This also holds the reading and writing of the zip format used by
+ * {@link IncrementalSignedJarBuilder}.
+ */
+public final class ZipUtils {
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+
+    private static final int ZIP_VERSION = 20;
+    static final int FLAG_ENCRYPTED = 0x1;
+    private static final int FLAG_UTF8 = 0x800;
+
+    /**
+     * An entry of a zip archive, as described by the central directory.
+     */
+    static final class ZipRecord {
+        @NonNull
+        final String name;
+        final int flags;
+        final int method;
+        final int dosTime;
+        final long crc;
+        final long compressedSize;
+        final long size;
+        final long localHeaderOffset;
+
+        ZipRecord(@NonNull String name, int flags, int method, int dosTime, long crc,
+                long compressedSize, long size, long localHeaderOffset) {
+            this.name = name;
+            this.flags = flags;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+    }
+
+    /**
+     * A zip archive from which entries are copied.
+     */
+    static final class ZipSource implements Closeable {
+        @NonNull
+        private final File mFile;
+        @NonNull
+        private final RandomAccessFile mRandomAccessFile;
+        @NonNull
+        private final Map<String, ZipRecord> mRecords = Maps.newLinkedHashMap();
+        @Nullable
+        private ZipFile mZipFile;
+
+        ZipSource(@NonNull File file) throws IOException {
+            mFile = file;
+            mRandomAccessFile = new RandomAccessFile(file, "r");
+            try {
+                for (ZipRecord record : readCentralDirectory(mRandomAccessFile)) {
+                    mRecords.put(record.name, record);
+                }
+            } catch (IOException e) {
+                mRandomAccessFile.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Returns the uncompressed content of an entry. This can be called from any thread.
+         */
+        @NonNull
+        synchronized InputStream getInputStream(@NonNull ZipRecord record) throws IOException {
+            if (mZipFile == null) {
+                mZipFile = new ZipFile(mFile);
+            }
+            ZipEntry entry = mZipFile.getEntry(record.name);
+            if (entry == null) {
+                throw new ZipException(record.name + " not found in " + mFile);
+            }
+            return mZipFile.getInputStream(entry);
+        }
+
+        /**
+         * Copies the compressed data of an entry.
+         */
+        void copyRaw(@NonNull ZipRecord record, @NonNull OutputStream out, @NonNull byte[] buffer)
+                throws IOException {
+            byte[] header = new byte[LOCAL_HEADER_SIZE];
+            mRandomAccessFile.seek(record.localHeaderOffset);
+            mRandomAccessFile.readFully(header);
+            if (readInt(header, 0) != LOCAL_HEADER_SIGNATURE) {
+                throw new ZipException("Invalid local header for " + record.name + " in " + mFile);
+            }
+            mRandomAccessFile.seek(record.localHeaderOffset + LOCAL_HEADER_SIZE
+                    + readShort(header, 26) + readShort(header, 28));
+
+            long remaining = record.compressedSize;
+            while (remaining > 0) {
+                int count = mRandomAccessFile.read(buffer, 0,
+                        (int) Math.min(buffer.length, remaining));
+                if (count == -1) {
+                    throw new EOFException("Unexpected end of " + mFile);
+                }
+                out.write(buffer, 0, count);
+                remaining -= count;
+            }
+        }
+
+        /**
+         * Returns the entries of the archive, in the order of its central directory.
+         */
+        @NonNull
+        Collection<ZipRecord> getRecords() {
+            return mRecords.values();
+        }
+
+        @Nullable
+        ZipRecord getRecord(@NonNull String name) {
+            return mRecords.get(name);
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            Closer closer = Closer.create();
+            closer.register(mRandomAccessFile);
+            if (mZipFile != null) {
+                closer.register(mZipFile);
+            }
+            closer.close();
+        }
+    }
+
+    private ZipUtils() {
+    }
+
+    /**
+     * Copies the entries of a Zip archive to another archive, copying their compressed data as
+     * is rather than inflating and deflating it again.
+     * <p/>The archive is written to a temporary file which then replaces the destination, so
+     * the destination can be the source itself.
+     *
+     * @param source the Zip archive to copy.
+     * @param dest the archive to write.
+     * @param filter the filter of the entries to copy or <code>null</code>
+     * @throws IOException
+     * @throws ZipAbortException if the {@link IZipEntryFilter} filter indicated that the write
+     *                           must be aborted.
+     */
+    public static void copyZip(@NonNull File source, @NonNull File dest,
+            @Nullable IZipEntryFilter filter) throws IOException, ZipAbortException {
+        File parent = dest.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Failed to create " + parent);
+        }
+        File tmp = File.createTempFile(dest.getName(), null, parent);
+        try {
+            ZipSource zipSource = new ZipSource(source);
+            try {
+                List<ZipRecord> records = Lists.newArrayListWithCapacity(
+                        zipSource.getRecords().size());
+                CountingOutputStream out = new CountingOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(tmp)));
+                try {
+                    byte[] buffer = new byte[65536];
+                    for (ZipRecord record : zipSource.getRecords()) {
+                        if ((record.flags & FLAG_ENCRYPTED) != 0) {
+                            throw new ZipException("Encrypted entries are not supported: "
+                                    + record.name);
+                        }
+                        if (filter != null && !filter.checkEntry(record.name)) {
+                            continue;
+                        }
+                        records.add(writeLocalHeader(out, record.name, record.method,
+                                record.dosTime, record.crc, record.compressedSize,
+                                record.size));
+                        zipSource.copyRaw(record, out, buffer);
+                    }
+
+                    long centralDirectoryOffset = out.getCount();
+                    for (ZipRecord record : records) {
+                        writeCentralHeader(out, record);
+                    }
+                    writeEnd(out, records.size(), centralDirectoryOffset,
+                            out.getCount() - centralDirectoryOffset);
+                } finally {
+                    out.close();
+                }
+            } finally {
+                zipSource.close();
+            }
+
+            deleteIfExists(dest);
+            if (!tmp.renameTo(dest)) {
+                throw new IOException("Failed to rename " + tmp + " to " + dest);
+            }
+        } finally {
+            if (tmp.exists()) {
+                tmp.delete();
+            }
+        }
+    }
+
+    static void deleteIfExists(@NonNull File file) throws IOException {
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Failed to delete " + file);
+        }
+    }
+
+    /**
+     * Reads the central directory of a zip archive.
+     */
+    @NonNull
+    static List<ZipRecord> readCentralDirectory(@NonNull RandomAccessFile file)
+            throws IOException {
+        long length = file.length();
+        if (length < END_SIZE) {
+            throw new ZipException("Not a zip archive");
+        }
+
+        // the end of central directory record is followed by a comment of up to 64k.
+        int tailSize = (int) Math.min(length, END_SIZE + MAX_COMMENT_SIZE);
+        byte[] tail = new byte[tailSize];
+        file.seek(length - tailSize);
+        file.readFully(tail);
+        int end = -1;
+        for (int i = tailSize - END_SIZE; i >= 0; i--) {
+            if (readInt(tail, i) == END_SIGNATURE) {
+                end = i;
+                break;
+            }
+        }
+        if (end == -1) {
+            throw new ZipException("End of central directory not found");
+        }
+
+        int count = readShort(tail, end + 10);
+        long size = readUnsignedInt(tail, end + 12);
+        long offset = readUnsignedInt(tail, end + 16);
+        if (count == 0xFFFF || offset == 0xFFFFFFFFL) {
+            throw new ZipException("Zip64 archives are not supported");
+        }
+        if (offset + size > length) {
+            throw new ZipException("Invalid central directory");
+        }
+
+        byte[] directory = new byte[(int) size];
+        file.seek(offset);
+        file.readFully(directory);
+
+        List<ZipRecord> records = Lists.newArrayListWithCapacity(count);
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            if (position + CENTRAL_HEADER_SIZE > directory.length
+                    || readInt(directory, position) != CENTRAL_HEADER_SIGNATURE) {
+                throw new ZipException("Invalid central directory");
+            }
+            int nameLength = readShort(directory, position + 28);
+            int extraLength = readShort(directory, position + 30);
+            int commentLength = readShort(directory, position + 32);
+            if (position + CENTRAL_HEADER_SIZE + nameLength > directory.length) {
+                throw new ZipException("Invalid central directory");
+            }
+            records.add(new ZipRecord(
+                    new String(directory, position + CENTRAL_HEADER_SIZE, nameLength,
+                            Charsets.UTF_8),
+                    readShort(directory, position + 8),
+                    readShort(directory, position + 10),
+                    readInt(directory, position + 12),
+                    readUnsignedInt(directory, position + 16),
+                    readUnsignedInt(directory, position + 20),
+                    readUnsignedInt(directory, position + 24),
+                    readUnsignedInt(directory, position + 42)));
+            position += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+        return records;
+    }
+
+    @NonNull
+    static ZipRecord writeLocalHeader(@NonNull CountingOutputStream out,
+            @NonNull String name, int method, int dosTime, long crc, long compressedSize,
+            long size) throws IOException {
+        long offset = out.getCount();
+        if (offset > 0xFFFFFFFFL || compressedSize > 0xFFFFFFFFL || size > 0xFFFFFFFFL) {
+            throw new ZipException("Zip64 archives are not supported");
+        }
+
+        byte[] nameBytes = name.getBytes(Charsets.UTF_8);
+        writeInt(out, LOCAL_HEADER_SIGNATURE);
+        writeShort(out, ZIP_VERSION);
+        writeShort(out, FLAG_UTF8);
+        writeShort(out, method);
+        writeInt(out, dosTime);
+        writeInt(out, crc);
+        writeInt(out, compressedSize);
+        writeInt(out, size);
+        writeShort(out, nameBytes.length);
+        writeShort(out, 0);
+        out.write(nameBytes);
+
+        return new ZipRecord(name, FLAG_UTF8, method, dosTime, crc, compressedSize, size,
+                offset);
+    }
+
+    static void writeCentralHeader(@NonNull OutputStream out, @NonNull ZipRecord record)
+            throws IOException {
+        byte[] nameBytes = record.name.getBytes(Charsets.UTF_8);
+        writeInt(out, CENTRAL_HEADER_SIGNATURE);
+        writeShort(out, ZIP_VERSION);
+        writeShort(out, ZIP_VERSION);
+        writeShort(out, record.flags);
+        writeShort(out, record.method);
+        writeInt(out, record.dosTime);
+        writeInt(out, record.crc);
+        writeInt(out, record.compressedSize);
+        writeInt(out, record.size);
+        writeShort(out, nameBytes.length);
+        writeShort(out, 0); // extra
+        writeShort(out, 0); // comment
+        writeShort(out, 0); // disk
+        writeShort(out, 0); // internal attributes
+        writeInt(out, 0);   // external attributes
+        writeInt(out, record.localHeaderOffset);
+        out.write(nameBytes);
+    }
+
+    static void writeEnd(@NonNull OutputStream out, int count, long offset, long size)
+            throws IOException {
+        if (count >= 0xFFFF || offset > 0xFFFFFFFFL) {
+            throw new ZipException("Zip64 archives are not supported");
+        }
+        writeInt(out, END_SIGNATURE);
+        writeShort(out, 0);
+        writeShort(out, 0);
+        writeShort(out, count);
+        writeShort(out, count);
+        writeInt(out, size);
+        writeInt(out, offset);
+        writeShort(out, 0);
+    }
+
+    static int toDosTime(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25
+                | (calendar.get(Calendar.MONTH) + 1) << 21
+                | calendar.get(Calendar.DAY_OF_MONTH) << 16
+                | calendar.get(Calendar.HOUR_OF_DAY) << 11
+                | calendar.get(Calendar.MINUTE) << 5
+                | calendar.get(Calendar.SECOND) >> 1;
+    }
+
+    private static int readShort(@NonNull byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFF) | (buffer[offset + 1] & 0xFF) << 8;
+    }
+
+    private static int readInt(@NonNull byte[] buffer, int offset) {
+        return readShort(buffer, offset) | readShort(buffer, offset + 2) << 16;
+    }
+
+    private static long readUnsignedInt(@NonNull byte[] buffer, int offset) {
+        return readInt(buffer, offset) & 0xFFFFFFFFL;
+    }
+
+    private static void writeShort(@NonNull OutputStream out, int value) throws IOException {
+        out.write(value & 0xFF);
+        out.write((value >>> 8) & 0xFF);
+    }
+
+    private static void writeInt(@NonNull OutputStream out, long value) throws IOException {
+        writeShort(out, (int) (value & 0xFFFF));
+        writeShort(out, (int) ((value >>> 16) & 0xFFFF));
+    }
+}
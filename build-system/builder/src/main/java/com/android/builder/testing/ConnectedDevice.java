@@ -22,6 +22,7 @@ import com.android.builder.testing.api.DeviceConfig;
 import com.android.builder.testing.api.DeviceConnector;
 import com.android.builder.testing.api.DeviceException;
 import com.android.ddmlib.AdbCommandRejectedException;
+import com.android.ddmlib.ApkContents;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.IShellOutputReceiver;
 import com.android.ddmlib.MultiLineReceiver;
@@ -118,6 +119,22 @@ public class ConnectedDevice extends DeviceConnector {
         }
     }
 
+    @Override
+    public void installPackages(@NonNull List<File> splitApkFiles,
+            @NonNull ApkContents apkContents,
+            @NonNull Collection<String> options,
+            int timeoutInMs,
+            ILogger logger)
+            throws DeviceException {
+        try {
+            iDevice.installPackages(splitApkFiles, apkContents, timeoutInMs, true /*reinstall*/,
+                    options.isEmpty() ? null : options.toArray(new String[options.size()]));
+        } catch (Exception e) {
+            logger.error(e, "Unable to install " + Joiner.on(',').join(splitApkFiles));
+            throw new DeviceException(e);
+        }
+    }
+
     @Override
     public void uninstallPackage(@NonNull String packageName, int timeout, ILogger logger) throws DeviceException {
         try {
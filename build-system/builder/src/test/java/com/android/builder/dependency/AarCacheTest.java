@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.dependency;
+
+import com.android.utils.FileUtils;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class AarCacheTest extends TestCase {
+
+    private File mTmpDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTmpDir = Files.createTempDir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        AarCache.unload();
+        FileUtils.deleteFolder(mTmpDir);
+        super.tearDown();
+    }
+
+    public void testExplode() throws Exception {
+        File aar = createAar("lib.aar",
+                "AndroidManifest.xml", "manifest",
+                "classes.jar", "classes",
+                "libs/", null,
+                "libs/dep.jar", "dep",
+                "res/values/values.xml", "values");
+
+        File out = new File(mTmpDir, "out");
+        AarCache.explode(aar, out);
+
+        assertEquals("manifest", read(out, "AndroidManifest.xml"));
+        assertEquals("classes", read(out, "jars/classes.jar"));
+        assertEquals("dep", read(out, "jars/libs/dep.jar"));
+        assertEquals("values", read(out, "res/values/values.xml"));
+        assertFalse(new File(out, "classes.jar").exists());
+    }
+
+    public void testExplodeInvalidEntry() throws Exception {
+        File aar = createAar("lib.aar", "../outside.txt", "outside");
+
+        try {
+            AarCache.explode(aar, new File(mTmpDir, "out"));
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // expected.
+        }
+        assertFalse(new File(mTmpDir, "outside.txt").exists());
+    }
+
+    public void testSharedExplodedFolder() throws Exception {
+        AarCache cache = AarCache.get(new File(mTmpDir, "cache"));
+        assertSame(cache, AarCache.get(new File(mTmpDir, "cache")));
+
+        File aar = createAar("a/lib.aar", "AndroidManifest.xml", "manifest");
+        File folder = cache.getExplodedFolder(aar);
+        assertEquals("manifest", read(folder, "AndroidManifest.xml"));
+
+        // the same content in another module uses the same folder.
+        File other = createAar("b/lib.aar", "AndroidManifest.xml", "manifest");
+        assertEquals(folder, cache.getExplodedFolder(other));
+
+        // the folder is not exploded again.
+        Files.write("changed", new File(folder, "AndroidManifest.xml"), Charsets.UTF_8);
+        assertEquals("changed", read(cache.getExplodedFolder(aar), "AndroidManifest.xml"));
+
+        // another content uses another folder.
+        File changed = createAar("c/lib.aar", "AndroidManifest.xml", "other");
+        File changedFolder = cache.getExplodedFolder(changed);
+        assertFalse(folder.equals(changedFolder));
+        assertEquals("other", read(changedFolder, "AndroidManifest.xml"));
+
+        // no temporary folders are left.
+        String[] tmpFiles = new File(mTmpDir, "cache/tmp").list();
+        assertNotNull(tmpFiles);
+        assertEquals(0, tmpFiles.length);
+    }
+
+    public void testCopyFolder() throws Exception {
+        File aar = createAar("lib.aar",
+                "AndroidManifest.xml", "manifest",
+                "classes.jar", "classes");
+        File folder = AarCache.get(new File(mTmpDir, "cache")).getExplodedFolder(aar);
+
+        File out = new File(mTmpDir, "exploded-aar/lib");
+        File stale = new File(out, "stale.txt");
+        Files.createParentDirs(stale);
+        Files.write("stale", stale, Charsets.UTF_8);
+
+        AarCache.copyFolder(folder, out);
+        assertEquals("manifest", read(out, "AndroidManifest.xml"));
+        assertEquals("classes", read(out, "jars/classes.jar"));
+        assertFalse(stale.exists());
+    }
+
+    public void testCopyRemovedFolder() throws Exception {
+        File aar = createAar("lib.aar", "AndroidManifest.xml", "manifest");
+        AarCache cache = AarCache.get(new File(mTmpDir, "cache"));
+        File folder = cache.getExplodedFolder(aar);
+
+        // another build sharing the cache trims it.
+        cache.trim(0);
+        assertFalse(folder.exists());
+
+        try {
+            AarCache.copyFolder(folder, new File(mTmpDir, "exploded-aar/lib"));
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testTrimRemovesLeastRecentlyUsedFolders() throws Exception {
+        AarCache cache = AarCache.get(new File(mTmpDir, "cache"));
+        File[] folders = new File[3];
+        for (int i = 0; i < folders.length; i++) {
+            folders[i] = cache.getExplodedFolder(
+                    createAar("lib" + i + ".aar", "AndroidManifest.xml", "manifest" + i));
+        }
+        // set the last use of the folders, the oldest being the second one.
+        long now = System.currentTimeMillis();
+        assertTrue(folders[0].setLastModified(now - 1000));
+        assertTrue(folders[1].setLastModified(now - 3000));
+        assertTrue(folders[2].setLastModified(now - 2000));
+
+        // each folder is 9 bytes.
+        cache.trim(20);
+        assertTrue(folders[0].isDirectory());
+        assertFalse(folders[1].exists());
+        assertTrue(folders[2].isDirectory());
+
+        // a trimmed aar is exploded again.
+        assertEquals("manifest1",
+                read(cache.getExplodedFolder(new File(mTmpDir, "lib1.aar")),
+                        "AndroidManifest.xml"));
+
+        cache.trim(0);
+        String[] files = new File(mTmpDir, "cache").list();
+        assertNotNull(files);
+        assertEquals(1, files.length);
+        String[] tmpFiles = new File(mTmpDir, "cache/tmp").list();
+        assertNotNull(tmpFiles);
+        assertEquals(0, tmpFiles.length);
+    }
+
+    public void testTrimRemovesStaleTemporaryFolders() throws Exception {
+        AarCache cache = AarCache.get(new File(mTmpDir, "cache"));
+        File stale = new File(mTmpDir, "cache/tmp/stale");
+        File staleFile = new File(stale, "AndroidManifest.xml");
+        Files.createParentDirs(staleFile);
+        Files.write("stale", staleFile, Charsets.UTF_8);
+        assertTrue(stale.setLastModified(System.currentTimeMillis() - 2 * 60 * 60 * 1000));
+        File recent = new File(mTmpDir, "cache/tmp/recent");
+        assertTrue(recent.mkdirs());
+
+        cache.trim(AarCache.MAX_SIZE);
+        assertFalse(stale.exists());
+        // another build may be exploding this aar.
+        assertTrue(recent.exists());
+    }
+
+    private File createAar(String path, String... entries) throws Exception {
+        File aar = new File(mTmpDir, path);
+        Files.createParentDirs(aar);
+        ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(aar));
+        try {
+            for (int i = 0; i < entries.length; i += 2) {
+                ZipEntry entry = new ZipEntry(entries[i]);
+                // a fixed time so that the same entries make the same aar.
+                entry.setTime(0);
+                zip.putNextEntry(entry);
+                if (entries[i + 1] != null) {
+                    zip.write(entries[i + 1].getBytes(Charsets.UTF_8));
+                }
+                zip.closeEntry();
+            }
+        } finally {
+            zip.close();
+        }
+        return aar;
+    }
+
+    private static String read(File folder, String path) throws Exception {
+        return Files.toString(new File(folder, path), Charsets.UTF_8);
+    }
+}
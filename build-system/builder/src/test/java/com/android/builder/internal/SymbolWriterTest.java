@@ -24,10 +24,25 @@ import com.google.common.io.Files;
 import junit.framework.TestCase;
 
 import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
 import java.util.List;
 
 @SuppressWarnings("javadoc")
 public class SymbolWriterTest extends TestCase {
+    private static SymbolLoader load(String rText) throws Exception {
+        File file = File.createTempFile(SymbolWriterTest.class.getSimpleName(), "txt");
+        file.deleteOnExit();
+        Files.write(rText, file, Charsets.UTF_8);
+        SymbolLoader loader = new SymbolLoader(file, NullLogger.getLogger());
+        loader.load();
+        return loader;
+    }
+
     private void check(String packageName, String rJava, String rValues, String... rTexts)
             throws Exception {
         if (rValues == null) {
@@ -283,4 +298,63 @@ public class SymbolWriterTest extends TestCase {
             "int style AppTheme 0x80000000\n"
         );
     }
+
+    public void testWriteClasses() throws Exception {
+        SymbolLoader values = load(
+                "int[] styleable TiledView { 0x7f010000, 0x80000000 }\n" +
+                "int[] styleable Empty {  }\n" +
+                "int styleable TiledView_tileName 1\n" +
+                "int string app_name 0x7f030000\n" +
+                "int string lib1 0x80000001\n" +
+                "int string other 0x7f030002\n");
+        SymbolLoader symbols = load(
+                "int[] styleable TiledView { 0x7fffffff, 0x7fffffff }\n" +
+                "int[] styleable Empty {  }\n" +
+                "int styleable TiledView_tileName 0\n" +
+                "int string app_name 0x7fffffff\n" +
+                "int string lib1 0x7fffffff\n");
+
+        File outFolder = Files.createTempDir();
+        SymbolWriter writer = new SymbolWriter(outFolder.getPath(), "test.pkg", values);
+        writer.addSymbolsToWrite(symbols);
+        writer.writeClasses();
+
+        assertTrue(new File(outFolder, "test/pkg/R.class").isFile());
+        assertFalse(new File(outFolder, "test/pkg/R.java").exists());
+
+        ClassLoader classLoader = new URLClassLoader(
+                new URL[] { outFolder.toURI().toURL() }, null);
+        Class<?> r = classLoader.loadClass("test.pkg.R");
+        assertEquals(2, r.getDeclaredClasses().length);
+
+        Class<?> string = classLoader.loadClass("test.pkg.R$string");
+        assertEquals(r, string.getDeclaringClass());
+        Field appName = string.getField("app_name");
+        assertTrue(Modifier.isFinal(appName.getModifiers()));
+        assertTrue(Modifier.isStatic(appName.getModifiers()));
+        assertEquals(0x7f030000, appName.getInt(null));
+        assertEquals(0x80000001, string.getField("lib1").getInt(null));
+        // only the symbols of the libraries are written.
+        assertEquals(2, string.getDeclaredFields().length);
+
+        Class<?> styleable = classLoader.loadClass("test.pkg.R$styleable");
+        assertTrue(Arrays.equals(new int[] { 0x7f010000, 0x80000000 },
+                (int[]) styleable.getField("TiledView").get(null)));
+        assertEquals(0, ((int[]) styleable.getField("Empty").get(null)).length);
+        assertEquals(1, styleable.getField("TiledView_tileName").getInt(null));
+    }
+
+    public void testWriteClassesInvalidValue() throws Exception {
+        SymbolLoader values = load("int string app_name notanumber\n");
+
+        SymbolWriter writer = new SymbolWriter(Files.createTempDir().getPath(), "test.pkg",
+                values);
+        writer.addSymbolsToWrite(values);
+        try {
+            writer.writeClasses();
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // expected.
+        }
+    }
 }
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.compiler;
+
+import com.android.annotations.NonNull;
+import com.android.ide.common.process.JavaProcessInfo;
+import com.android.ide.common.process.ProcessException;
+import com.android.ide.common.process.ProcessInfoBuilder;
+import com.android.ide.common.process.ProcessOutput;
+import com.android.ide.common.process.ProcessOutputHandler;
+import com.android.ide.common.process.ProcessResult;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+public class DexWorkerPoolTest extends TestCase {
+
+    /**
+     * A minimal stand-in for dx, with the same entry points as the real dexer.
+     */
+    private static final String FAKE_DEXER =
+            "package com.android.dx.command.dexer;\n"
+            + "public class Main {\n"
+            + "    private static int sRuns = 0;\n"
+            + "    public static class Arguments {\n"
+            + "        String output;\n"
+            + "        void parse(String[] args) {\n"
+            + "            for (String arg : args) {\n"
+            + "                if (arg.startsWith(\"--output=\")) output = arg.substring(9);\n"
+            + "            }\n"
+            + "        }\n"
+            + "    }\n"
+            + "    public static int run(Arguments args) {\n"
+            + "        if (args.output == null) throw new IllegalArgumentException(\"no output\");\n"
+            + "        sRuns++;\n"
+            + "        com.android.dx.command.DxConsole.out.println(\"run \" + sRuns);\n"
+            + "        return 0;\n"
+            + "    }\n"
+            + "}\n";
+
+    private static final String FAKE_CONSOLE =
+            "package com.android.dx.command;\n"
+            + "public class DxConsole {\n"
+            + "    public static java.io.PrintStream out = System.out;\n"
+            + "    public static java.io.PrintStream err = System.err;\n"
+            + "}\n";
+
+    public void testParseHeapSize() {
+        assertEquals(1024L, DexWorkerPool.parseHeapSize("1024"));
+        assertEquals(512L * 1024, DexWorkerPool.parseHeapSize("512k"));
+        assertEquals(1024L * 1024 * 1024, DexWorkerPool.parseHeapSize("1024M"));
+        assertEquals(2L * 1024 * 1024 * 1024, DexWorkerPool.parseHeapSize("2g"));
+    }
+
+    public void testComputeMaxWorkers() {
+        long gig = 1024L * 1024 * 1024;
+        // bounded by the cores.
+        assertEquals(4, DexWorkerPool.computeMaxWorkers(16 * gig, gig, 4));
+        // bounded by the heap.
+        assertEquals(2, DexWorkerPool.computeMaxWorkers(3 * gig, gig, 8));
+        // not enough heap for a single worker.
+        assertEquals(0, DexWorkerPool.computeMaxWorkers(gig / 2, gig, 8));
+    }
+
+    public void testRejectsOtherProcesses() throws Exception {
+        DexWorkerPool pool = new DexWorkerPool(new File("dx.jar"), 1);
+        JavaProcessInfo info = new ProcessInfoBuilder()
+                .setClasspath("dx.jar")
+                .setMain("com.example.Main")
+                .createJavaProcess();
+
+        ProcessResult result = pool.execute(info, new CapturingOutputHandler());
+        try {
+            result.rethrowFailure();
+            fail("Expected a failure");
+        } catch (ProcessException expected) {
+            assertTrue(expected.getCause() instanceof IllegalArgumentException);
+        }
+    }
+
+    public void testWorkersAreReused() throws Exception {
+        File dxJar = createFakeDxJar();
+        if (dxJar == null) {
+            // no compiler in this JRE.
+            return;
+        }
+
+        DexWorkerPool pool = new DexWorkerPool(dxJar, 1);
+        for (int i = 1; i <= 3; i++) {
+            CapturingOutputHandler handler = new CapturingOutputHandler();
+            pool.execute(createDexInfo(dxJar, "--output=out.dex"), handler)
+                    .rethrowFailure()
+                    .assertNormalExitValue();
+            // the only worker keeps its static state from one run to the next.
+            assertEquals("run " + i, handler.getStandardOutput().trim());
+        }
+    }
+
+    public void testDexErrorIsReported() throws Exception {
+        File dxJar = createFakeDxJar();
+        if (dxJar == null) {
+            return;
+        }
+
+        DexWorkerPool pool = new DexWorkerPool(dxJar, 1);
+        CapturingOutputHandler handler = new CapturingOutputHandler();
+        ProcessResult result = pool.execute(createDexInfo(dxJar), handler).rethrowFailure();
+        assertEquals(1, result.getExitValue());
+        assertTrue(handler.getErrorOutput().contains("no output"));
+
+        try {
+            result.assertNormalExitValue();
+            fail("Expected a failure");
+        } catch (ProcessException expected) {
+            // expected.
+        }
+    }
+
+    public void testFailedWorkerIsDiscarded() throws Exception {
+        File dxJar = createFakeDxJar();
+        if (dxJar == null) {
+            return;
+        }
+
+        DexWorkerPool pool = new DexWorkerPool(dxJar, 1);
+        CapturingOutputHandler handler = new CapturingOutputHandler();
+        pool.execute(createDexInfo(dxJar, "--output=out.dex"), handler).rethrowFailure();
+        assertEquals("run 1", handler.getStandardOutput().trim());
+
+        assertEquals(1, pool.execute(createDexInfo(dxJar), new CapturingOutputHandler())
+                .rethrowFailure().getExitValue());
+
+        // a fresh worker, with a fresh static state, replaces the failed one.
+        handler = new CapturingOutputHandler();
+        pool.execute(createDexInfo(dxJar, "--output=out.dex"), handler)
+                .rethrowFailure()
+                .assertNormalExitValue();
+        assertEquals("run 1", handler.getStandardOutput().trim());
+    }
+
+    @NonNull
+    private static JavaProcessInfo createDexInfo(@NonNull File dxJar, @NonNull String... args) {
+        ProcessInfoBuilder builder = new ProcessInfoBuilder();
+        builder.setClasspath(dxJar.getAbsolutePath());
+        builder.setMain("com.android.dx.command.Main");
+        builder.addArgs("--dex");
+        for (String arg : args) {
+            builder.addArgs(arg);
+        }
+        return builder.createJavaProcess();
+    }
+
+    private static File createFakeDxJar() throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            return null;
+        }
+
+        File tempDir = Files.createTempDir();
+        tempDir.deleteOnExit();
+        File sourceDir = new File(tempDir, "src/com/android/dx/command");
+        File classesDir = new File(tempDir, "classes");
+        assertTrue(new File(sourceDir, "dexer").mkdirs());
+        assertTrue(classesDir.mkdirs());
+        File dexer = new File(sourceDir, "dexer/Main.java");
+        Files.write(FAKE_DEXER, dexer, Charsets.UTF_8);
+        File console = new File(sourceDir, "DxConsole.java");
+        Files.write(FAKE_CONSOLE, console, Charsets.UTF_8);
+
+        assertEquals(0, compiler.run(null, null, null,
+                "-d", classesDir.getPath(), dexer.getPath(), console.getPath()));
+
+        File dxJar = new File(tempDir, "dx.jar");
+        JarOutputStream jar = new JarOutputStream(new FileOutputStream(dxJar));
+        try {
+            for (String pkg : new String[] { "com/android/dx/command/",
+                    "com/android/dx/command/dexer/" }) {
+                File[] files = new File(classesDir, pkg).listFiles();
+                assertNotNull(files);
+                for (File classFile : files) {
+                    if (classFile.isFile()) {
+                        jar.putNextEntry(new JarEntry(pkg + classFile.getName()));
+                        jar.write(Files.toByteArray(classFile));
+                        jar.closeEntry();
+                    }
+                }
+            }
+        } finally {
+            jar.close();
+        }
+        return dxJar;
+    }
+
+    private static final class CapturingOutputHandler implements ProcessOutputHandler {
+
+        private final List<CapturingOutput> mOutputs = Lists.newArrayList();
+
+        @NonNull
+        @Override
+        public ProcessOutput createOutput() {
+            CapturingOutput output = new CapturingOutput();
+            mOutputs.add(output);
+            return output;
+        }
+
+        @Override
+        public void handleOutput(@NonNull ProcessOutput processOutput) throws ProcessException {
+        }
+
+        String getStandardOutput() {
+            StringBuilder sb = new StringBuilder();
+            for (CapturingOutput output : mOutputs) {
+                sb.append(output.mOut.toString());
+            }
+            return sb.toString();
+        }
+
+        String getErrorOutput() {
+            StringBuilder sb = new StringBuilder();
+            for (CapturingOutput output : mOutputs) {
+                sb.append(output.mErr.toString());
+            }
+            return sb.toString();
+        }
+    }
+
+    private static final class CapturingOutput implements ProcessOutput {
+
+        private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream mErr = new ByteArrayOutputStream();
+
+        @NonNull
+        @Override
+        public OutputStream getStandardOutput() {
+            return mOut;
+        }
+
+        @NonNull
+        @Override
+        public OutputStream getErrorOutput() {
+            return mErr;
+        }
+    }
+}
@@ -0,0 +1,427 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.compiler;
+
+import static com.android.SdkConstants.FN_AAPT;
+import static com.android.SdkConstants.FN_AIDL;
+import static com.android.SdkConstants.FN_BCC_COMPAT;
+import static com.android.SdkConstants.FN_DX;
+import static com.android.SdkConstants.FN_DX_JAR;
+import static com.android.SdkConstants.FN_RENDERSCRIPT;
+import static com.android.SdkConstants.FN_ZIPALIGN;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.builder.core.DexOptions;
+import com.android.ide.common.process.JavaProcessExecutor;
+import com.android.ide.common.process.JavaProcessInfo;
+import com.android.ide.common.process.ProcessException;
+import com.android.ide.common.process.ProcessOutput;
+import com.android.ide.common.process.ProcessOutputHandler;
+import com.android.ide.common.process.ProcessResult;
+import com.android.sdklib.BuildToolInfo;
+import com.android.sdklib.repository.FullRevision;
+import com.android.utils.FileUtils;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+public class IncrementalDexerTest extends TestCase {
+
+    /**
+     * Fake dx: a dex file is a 0x70 byte header, with one method per class, followed by the
+     * sorted names of its classes. Dexing a folder lists its classes, merging dex files
+     * concatenates their classes.
+     */
+    private static class FakeDx implements JavaProcessExecutor {
+
+        final AtomicInteger mDexRuns = new AtomicInteger();
+        final AtomicInteger mMergeRuns = new AtomicInteger();
+
+        @NonNull
+        @Override
+        public ProcessResult execute(
+                @NonNull JavaProcessInfo javaProcessInfo,
+                @NonNull ProcessOutputHandler processOutputHandler) {
+            ProcessException failure = null;
+            try {
+                List<String> args = javaProcessInfo.getArgs();
+                int outputIndex = args.indexOf("--output");
+                File output = new File(args.get(outputIndex + 1));
+                Set<String> classes = new TreeSet<String>();
+                boolean merge = false;
+                for (String input : args.subList(outputIndex + 2, args.size())) {
+                    File inputFile = new File(input);
+                    if (inputFile.isDirectory()) {
+                        listClasses(inputFile, "", classes);
+                    } else {
+                        merge = true;
+                        classes.addAll(readDex(readDexFromJar(inputFile)));
+                    }
+                }
+                (merge ? mMergeRuns : mDexRuns).incrementAndGet();
+
+                byte[] dex = writeDex(classes);
+                if (output.getName().endsWith(".jar")) {
+                    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(output));
+                    try {
+                        out.putNextEntry(new ZipEntry("classes.dex"));
+                        out.write(dex);
+                        out.closeEntry();
+                    } finally {
+                        out.close();
+                    }
+                } else {
+                    Files.write(dex, output);
+                }
+            } catch (Exception e) {
+                failure = new ProcessException(e);
+            }
+
+            final ProcessException rethrow = failure;
+            return new ProcessResult() {
+                @Override
+                public ProcessResult assertNormalExitValue() throws ProcessException {
+                    return this;
+                }
+
+                @Override
+                public int getExitValue() {
+                    return 0;
+                }
+
+                @Override
+                public ProcessResult rethrowFailure() throws ProcessException {
+                    if (rethrow != null) {
+                        throw rethrow;
+                    }
+                    return this;
+                }
+            };
+        }
+
+        private static void listClasses(File folder, String prefix, Set<String> classes) {
+            File[] files = folder.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (file.isDirectory()) {
+                        listClasses(file, prefix + file.getName() + "/", classes);
+                    } else {
+                        classes.add(prefix + file.getName());
+                    }
+                }
+            }
+        }
+    }
+
+    private static class FakeProcessOutputHandler implements ProcessOutputHandler {
+        @NonNull
+        @Override
+        public ProcessOutput createOutput() {
+            return null;
+        }
+
+        @Override
+        public void handleOutput(@NonNull ProcessOutput processOutput) {
+        }
+    }
+
+    private static class FakeDexOptions implements DexOptions {
+        @Override
+        public boolean getIncremental() {
+            return false;
+        }
+
+        @Override
+        public boolean getPreDexLibraries() {
+            return false;
+        }
+
+        @Override
+        public boolean getJumboMode() {
+            return false;
+        }
+
+        @Nullable
+        @Override
+        public String getJavaMaxHeapSize() {
+            return null;
+        }
+
+        @Nullable
+        @Override
+        public Integer getThreadCount() {
+            return null;
+        }
+
+        @Override
+        public boolean getDexInProcess() {
+            return false;
+        }
+
+        @Override
+        public boolean getIncrementalClasses() {
+            return true;
+        }
+    }
+
+    private File mTmpDir;
+    private File mClassesDir;
+    private File mOutDir;
+    private File mStateDir;
+    private FakeDx mDx;
+    private IncrementalDexer mDexer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTmpDir = Files.createTempDir();
+        mClassesDir = new File(mTmpDir, "classes");
+        mOutDir = new File(mTmpDir, "dex");
+        mStateDir = new File(mTmpDir, "state");
+        assertTrue(mOutDir.mkdirs());
+
+        File toolDir = new File(mTmpDir, "build-tools");
+        assertTrue(toolDir.mkdirs());
+        File dx = new File(toolDir, FN_DX_JAR);
+        Files.write("dx!", dx, Charsets.UTF_8);
+        BuildToolInfo buildToolInfo = new BuildToolInfo(
+                new FullRevision(22, 0, 1),
+                toolDir,
+                new File(toolDir, FN_AAPT),
+                new File(toolDir, FN_AIDL),
+                new File(toolDir, FN_DX),
+                dx,
+                new File(toolDir, FN_RENDERSCRIPT),
+                new File(toolDir, "include"),
+                new File(toolDir, "clang-include"),
+                new File(toolDir, FN_BCC_COMPAT),
+                new File(toolDir, "arm-linux-androideabi-ld"),
+                new File(toolDir, "i686-linux-android-ld"),
+                new File(toolDir, "mipsel-linux-android-ld"),
+                new File(toolDir, FN_ZIPALIGN));
+
+        mDx = new FakeDx();
+        mDexer = new IncrementalDexer(mStateDir, buildToolInfo, new FakeDexOptions(), mDx,
+                new FakeProcessOutputHandler());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteFolder(mTmpDir);
+        super.tearDown();
+    }
+
+    public void testSingleDex() throws Exception {
+        writeClass("com/foo/A.class", "a");
+        writeClass("com/foo/A$1.class", "a1");
+        writeClass("com/foo/B.class", "b");
+        writeClass("com/bar/C.class", "c");
+
+        IncrementalDexer.Stats stats = dex(false, null);
+        assertEquals(4, stats.getRedexedClasses());
+        assertEquals(0, stats.getReusedClasses());
+        assertEquals(2, stats.getRedexedSlices());
+        assertEquals(ImmutableList.of("com/bar/C.class", "com/foo/A$1.class", "com/foo/A.class",
+                "com/foo/B.class"), readDex(new File(mOutDir, "classes.dex")));
+
+        // nothing changed.
+        stats = dex(false, null);
+        assertEquals(0, stats.getRedexedClasses());
+        assertEquals(4, stats.getReusedClasses());
+        assertEquals(0, stats.getMergedDexFiles());
+        assertEquals(1, stats.getReusedDexFiles());
+
+        // change one class, only its package is dexed again.
+        int dexRuns = mDx.mDexRuns.get();
+        writeClass("com/bar/C.class", "c2");
+        stats = dex(false, null);
+        assertEquals(1, stats.getRedexedClasses());
+        assertEquals(3, stats.getReusedClasses());
+        assertEquals(1, stats.getMergedDexFiles());
+        assertEquals(dexRuns + 1, mDx.mDexRuns.get());
+
+        // remove a class.
+        assertTrue(new File(mClassesDir, "com/foo/A$1.class").delete());
+        dex(false, null);
+        assertEquals(ImmutableList.of("com/bar/C.class", "com/foo/A.class", "com/foo/B.class"),
+                readDex(new File(mOutDir, "classes.dex")));
+    }
+
+    public void testMultiDexWithMainDexList() throws Exception {
+        writeClass("com/foo/Main.class", "main");
+        writeClass("com/foo/Other.class", "other");
+        writeClass("com/bar/C.class", "c");
+        File mainDexList = new File(mTmpDir, "maindexlist.txt");
+        Files.write("com/foo/Main.class\n", mainDexList, Charsets.UTF_8);
+
+        // room for two classes per dex file.
+        IncrementalDexer.Stats stats = mDexer.dex(ImmutableList.of(mClassesDir),
+                Collections.<File>emptyList(), mOutDir, true, mainDexList,
+                ImmutableList.of("--set-max-idx-number=2", "--minimal-main-dex"), true);
+        assertEquals(3, stats.getRedexedClasses());
+
+        assertEquals(ImmutableList.of("com/foo/Main.class"),
+                readDex(new File(mOutDir, "classes.dex")));
+        assertEquals(ImmutableList.of("com/bar/C.class", "com/foo/Other.class"),
+                readDex(new File(mOutDir, "classes2.dex")));
+
+        // a new class does not fit in classes2.dex, the other dex files are kept.
+        writeClass("com/baz/D.class", "d");
+        stats = mDexer.dex(ImmutableList.of(mClassesDir), Collections.<File>emptyList(),
+                mOutDir, true, mainDexList,
+                ImmutableList.of("--set-max-idx-number=2", "--minimal-main-dex"), true);
+        assertEquals(1, stats.getRedexedClasses());
+        assertEquals(1, stats.getMergedDexFiles());
+        assertEquals(2, stats.getReusedDexFiles());
+        assertEquals(ImmutableList.of("com/baz/D.class"),
+                readDex(new File(mOutDir, "classes3.dex")));
+    }
+
+    public void testPreDexedLibraries() throws Exception {
+        writeClass("com/foo/A.class", "a");
+        File library = new File(mTmpDir, "lib.jar");
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(library));
+        try {
+            out.putNextEntry(new ZipEntry("classes.dex"));
+            out.write(writeDex(Sets.newTreeSet(ImmutableList.of("lib/L.class"))));
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+
+        mDexer.dex(ImmutableList.of(mClassesDir), ImmutableList.of(library), mOutDir, false,
+                null, null, true);
+        assertEquals(ImmutableList.of("com/foo/A.class", "lib/L.class"),
+                readDex(new File(mOutDir, "classes.dex")));
+    }
+
+    public void testSlicesAreStable() throws Exception {
+        List<IncrementalDexer.ClassFile> classes = Lists.newArrayList();
+        for (int i = 0; i < 200; i++) {
+            classes.add(new IncrementalDexer.ClassFile("com/foo/C" + i + ".class", mClassesDir,
+                    HashCode.fromInt(i)));
+            classes.add(new IncrementalDexer.ClassFile("com/foo/C" + i + "$Inner.class",
+                    mClassesDir, HashCode.fromInt(i)));
+        }
+
+        List<IncrementalDexer.Slice> slices = IncrementalDexer.createSlices(classes,
+                Collections.<String>emptySet(), mStateDir);
+        // 200 top-level classes split in 4 slices of about 50 classes.
+        assertEquals(4, slices.size());
+        for (IncrementalDexer.Slice slice : slices) {
+            // inner classes are in the same slice as their outer class.
+            Set<String> paths = Sets.newHashSet();
+            for (IncrementalDexer.ClassFile classFile : slice.classes) {
+                paths.add(classFile.path);
+            }
+            for (String path : paths) {
+                if (path.contains("$")) {
+                    assertTrue(paths.contains(path.substring(0, path.indexOf('$')) + ".class"));
+                }
+            }
+        }
+
+        // changing a class only changes one slice.
+        classes.set(0, new IncrementalDexer.ClassFile("com/foo/C0.class", mClassesDir,
+                HashCode.fromInt(1000)));
+        List<IncrementalDexer.Slice> newSlices = IncrementalDexer.createSlices(classes,
+                Collections.<String>emptySet(), mStateDir);
+        int changed = 0;
+        for (int i = 0; i < slices.size(); i++) {
+            assertEquals(slices.get(i).name, newSlices.get(i).name);
+            if (!slices.get(i).hash.equals(newSlices.get(i).hash)) {
+                changed++;
+            }
+        }
+        assertEquals(1, changed);
+    }
+
+    private IncrementalDexer.Stats dex(boolean multiDex, @Nullable File mainDexList)
+            throws Exception {
+        return mDexer.dex(ImmutableList.of(mClassesDir), Collections.<File>emptyList(), mOutDir,
+                multiDex, mainDexList, null, true);
+    }
+
+    private void writeClass(String path, String content) throws IOException {
+        File file = new File(mClassesDir, path);
+        file.getParentFile().mkdirs();
+        Files.write(content, file, Charsets.UTF_8);
+    }
+
+    private static byte[] writeDex(Set<String> classes) {
+        StringBuilder sb = new StringBuilder();
+        for (String name : classes) {
+            sb.append(name).append('\n');
+        }
+        byte[] names = sb.toString().getBytes(Charsets.UTF_8);
+        byte[] dex = new byte[0x70 + names.length];
+        // method_ids_size
+        dex[0x58] = (byte) classes.size();
+        dex[0x59] = (byte) (classes.size() >> 8);
+        System.arraycopy(names, 0, dex, 0x70, names.length);
+        return dex;
+    }
+
+    private static List<String> readDex(File dex) throws IOException {
+        return readDex(Files.toByteArray(dex));
+    }
+
+    private static List<String> readDex(byte[] dex) {
+        String names = new String(dex, 0x70, dex.length - 0x70, Charsets.UTF_8);
+        List<String> classes = Lists.newArrayList();
+        for (String name : names.split("\n")) {
+            if (!name.isEmpty()) {
+                classes.add(name);
+            }
+        }
+        return classes;
+    }
+
+    private static byte[] readDexFromJar(File jar) throws IOException {
+        ZipFile zipFile = new ZipFile(jar);
+        try {
+            InputStream in = zipFile.getInputStream(zipFile.getEntry("classes.dex"));
+            try {
+                return ByteStreams.toByteArray(in);
+            } finally {
+                in.close();
+            }
+        } finally {
+            zipFile.close();
+        }
+    }
+}
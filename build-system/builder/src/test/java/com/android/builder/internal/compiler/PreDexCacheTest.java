@@ -214,6 +214,16 @@ public class PreDexCacheTest extends TestCase {
         public Integer getThreadCount() {
             return null;
         }
+
+        @Override
+        public boolean getDexInProcess() {
+            return false;
+        }
+
+        @Override
+        public boolean getIncrementalClasses() {
+            return false;
+        }
     }
 
     private BuildToolInfo mBuildToolInfo;
@@ -414,6 +424,118 @@ public class PreDexCacheTest extends TestCase {
         assertEquals(1, cache.getHits());
     }
 
+    public void testSharedCache() throws IOException, ProcessException, InterruptedException {
+        final JavaProcessExecutor javaProcessExecutor = new FakeJavaProcessExecutor();
+        final DexOptions dexOptions = new FakeDexOptions();
+
+        File sharedRoot = Files.createTempDir();
+        SharedPreDexCache sharedCache =
+                new SharedPreDexCache(sharedRoot, Long.MAX_VALUE, Long.MAX_VALUE);
+
+        // convert one file.
+        String content = "Some Content";
+        File input = createInputFile(content);
+
+        File output = File.createTempFile("predex", ".jar");
+        output.deleteOnExit();
+
+        PreDexCache.getCache().preDexLibrary(
+                input,
+                output,
+                false /*multidex*/,
+                dexOptions,
+                mBuildToolInfo,
+                false /*verbose*/,
+                javaProcessExecutor,
+                new FakeProcessOutputHandler(),
+                sharedCache);
+
+        checkOutputFile(content, output);
+        assertEquals(1, PreDexCache.getCache().getMisses());
+
+        // end the build.
+        PreDexCache.getCache().clear(null, null);
+
+        // the same jar at another location, in another project.
+        File input2 = File.createTempFile("predex", ".jar");
+        input2.deleteOnExit();
+        Files.copy(input, input2);
+        File output2 = File.createTempFile("predex", ".jar");
+        output2.deleteOnExit();
+
+        PreDexCache.getCache().preDexLibrary(
+                input2,
+                output2,
+                false /*multidex*/,
+                dexOptions,
+                mBuildToolInfo,
+                false /*verbose*/,
+                new FailingExecutor(),
+                new FakeProcessOutputHandler(),
+                sharedCache);
+
+        checkOutputFile(content, output2);
+
+        PreDexCache cache = PreDexCache.getCache();
+        assertEquals(0, cache.getMisses());
+        assertEquals(1, cache.getHits());
+
+        deleteFolder(sharedRoot);
+    }
+
+    public void testSharedCacheOnlyUsedByItsProject()
+            throws IOException, ProcessException, InterruptedException {
+        final JavaProcessExecutor javaProcessExecutor = new FakeJavaProcessExecutor();
+        final DexOptions dexOptions = new FakeDexOptions();
+
+        File sharedRoot = Files.createTempDir();
+        SharedPreDexCache sharedCache =
+                new SharedPreDexCache(sharedRoot, Long.MAX_VALUE, Long.MAX_VALUE);
+
+        String content = "Some Content";
+        File input = createInputFile(content);
+        File output = File.createTempFile("predex", ".jar");
+        output.deleteOnExit();
+
+        // a project using the store.
+        PreDexCache.getCache().preDexLibrary(
+                input,
+                output,
+                false /*multidex*/,
+                dexOptions,
+                mBuildToolInfo,
+                false /*verbose*/,
+                javaProcessExecutor,
+                new FakeProcessOutputHandler(),
+                sharedCache);
+        PreDexCache.getCache().clear(null, null);
+
+        // a project without a store pre-dexes the same jar again.
+        File input2 = File.createTempFile("predex", ".jar");
+        input2.deleteOnExit();
+        Files.copy(input, input2);
+        File output2 = File.createTempFile("predex", ".jar");
+        output2.deleteOnExit();
+
+        PreDexCache.getCache().preDexLibrary(
+                input2,
+                output2,
+                false /*multidex*/,
+                dexOptions,
+                mBuildToolInfo,
+                false /*verbose*/,
+                javaProcessExecutor,
+                new FakeProcessOutputHandler());
+
+        checkOutputFile(content, output2);
+
+        PreDexCache cache = PreDexCache.getCache();
+        assertEquals(1, cache.getMisses());
+        assertEquals(0, cache.getHits());
+
+        deleteFolder(sharedRoot);
+    }
+
     private static File createInputFile(String content) throws IOException {
         File input = File.createTempFile("predex", ".jar");
         input.deleteOnExit();
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.compiler;
+
+import com.android.sdklib.repository.FullRevision;
+import com.android.utils.FileUtils;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.hash.HashCode;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+public class SharedPreDexCacheTest extends TestCase {
+
+    private static final FullRevision REVISION = new FullRevision(22, 0, 1);
+
+    private File mRoot;
+    private File mWorkDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mRoot = Files.createTempDir();
+        mWorkDir = Files.createTempDir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteFolder(mRoot);
+        FileUtils.deleteFolder(mWorkDir);
+        super.tearDown();
+    }
+
+    public void testComputeKey() throws IOException {
+        File jar1 = createFile("lib1.jar", "content");
+        File jar2 = createFile("lib2.jar", "content");
+        File jar3 = createFile("lib3.jar", "other content");
+
+        HashCode key = SharedPreDexCache.computeKey(jar1, REVISION, false, false);
+        // content addressed.
+        assertEquals(key, SharedPreDexCache.computeKey(jar2, REVISION, false, false));
+        assertFalse(key.equals(SharedPreDexCache.computeKey(jar3, REVISION, false, false)));
+        // depends on the options changing the output.
+        assertFalse(key.equals(SharedPreDexCache.computeKey(
+                jar1, new FullRevision(23), false, false)));
+        assertFalse(key.equals(SharedPreDexCache.computeKey(jar1, REVISION, true, false)));
+        assertFalse(key.equals(SharedPreDexCache.computeKey(jar1, REVISION, false, true)));
+    }
+
+    public void testPublishAndRestore() throws IOException {
+        SharedPreDexCache cache = new SharedPreDexCache(mRoot, Long.MAX_VALUE, Long.MAX_VALUE);
+        HashCode key = SharedPreDexCache.computeKey(
+                createFile("lib.jar", "content"), REVISION, false, false);
+
+        File output = new File(mWorkDir, "out.dex");
+        assertNull(cache.restore(key, output, false));
+
+        cache.publish(key, ImmutableList.of(createFile("lib.dex", "dex")), false);
+        List<File> files = cache.restore(key, output, false);
+        assertEquals(ImmutableList.of(output), files);
+        assertEquals("dex", Files.toString(output, Charsets.UTF_8));
+
+        // publishing again keeps the first entry.
+        cache.publish(key, ImmutableList.of(createFile("lib2.dex", "dex2")), false);
+        cache.restore(key, output, false);
+        assertEquals("dex", Files.toString(output, Charsets.UTF_8));
+    }
+
+    public void testPublishAndRestoreMultiDex() throws IOException {
+        SharedPreDexCache cache = new SharedPreDexCache(mRoot, Long.MAX_VALUE, Long.MAX_VALUE);
+        HashCode key = SharedPreDexCache.computeKey(
+                createFile("lib.jar", "content"), REVISION, false, true);
+
+        File dexFolder = new File(mWorkDir, "dex");
+        assertTrue(dexFolder.mkdirs());
+        File dex1 = new File(dexFolder, "classes.dex");
+        File dex2 = new File(dexFolder, "classes2.dex");
+        Files.write("dex1", dex1, Charsets.UTF_8);
+        Files.write("dex2", dex2, Charsets.UTF_8);
+        cache.publish(key, ImmutableList.of(dex1, dex2), true);
+
+        File output = new File(mWorkDir, "out");
+        assertTrue(output.mkdirs());
+        List<File> files = cache.restore(key, output, true);
+        assertNotNull(files);
+        assertEquals(2, files.size());
+        assertEquals("dex1", Files.toString(new File(output, "classes.dex"), Charsets.UTF_8));
+        assertEquals("dex2", Files.toString(new File(output, "classes2.dex"), Charsets.UTF_8));
+    }
+
+    public void testTrimEvictsLeastRecentlyUsed() throws Exception {
+        // room for two entries of 10 bytes.
+        SharedPreDexCache cache = new SharedPreDexCache(mRoot, 25, Long.MAX_VALUE);
+        HashCode key1 = publish(cache, "lib1", "0123456789");
+        Thread.sleep(10);
+        HashCode key2 = publish(cache, "lib2", "0123456789");
+        Thread.sleep(10);
+        HashCode key3 = publish(cache, "lib3", "0123456789");
+
+        // use the first entry, making the second one the least recently used.
+        Thread.sleep(10);
+        File output = new File(mWorkDir, "out.dex");
+        assertNotNull(cache.restore(key1, output, false));
+
+        cache.trim();
+
+        // the index is compacted to the remaining entries.
+        assertEquals(8 + 2 * 36, new File(mRoot, "index").length());
+
+        assertNotNull(cache.restore(key1, output, false));
+        assertNull(cache.restore(key2, output, false));
+        assertNotNull(cache.restore(key3, output, false));
+    }
+
+    public void testTrimEvictsOldEntries() throws Exception {
+        SharedPreDexCache cache = new SharedPreDexCache(mRoot, Long.MAX_VALUE, 0);
+        HashCode key = publish(cache, "lib", "0123456789");
+
+        Thread.sleep(10);
+        cache.trim();
+
+        assertNull(cache.restore(key, new File(mWorkDir, "out.dex"), false));
+    }
+
+    public void testTrimWithLostIndex() throws Exception {
+        SharedPreDexCache cache = new SharedPreDexCache(mRoot, Long.MAX_VALUE, Long.MAX_VALUE);
+        HashCode key = publish(cache, "lib", "0123456789");
+        assertTrue(new File(mRoot, "index").delete());
+
+        cache.trim();
+
+        // the entry is re-indexed and kept.
+        assertNotNull(cache.restore(key, new File(mWorkDir, "out.dex"), false));
+        assertTrue(new File(mRoot, "index").length() >= 8 + 36);
+    }
+
+    public void testConcurrentPublishWritesOneHeader() throws Exception {
+        final SharedPreDexCache cache =
+                new SharedPreDexCache(mRoot, Long.MAX_VALUE, Long.MAX_VALUE);
+        final int count = 8;
+        final List<HashCode> keys = Collections.synchronizedList(Lists.<HashCode>newArrayList());
+        final List<Throwable> errors = Collections.synchronizedList(Lists.<Throwable>newArrayList());
+
+        List<Thread> threads = Lists.newArrayList();
+        for (int i = 0; i < count; i++) {
+            final String name = "lib" + i;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        keys.add(publish(cache, name, "0123456789"));
+                    } catch (Throwable t) {
+                        errors.add(t);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+
+        // a single header followed by one record per entry.
+        assertEquals(8 + count * 36, new File(mRoot, "index").length());
+
+        // the index is readable, so trimming keeps all the entries.
+        cache.trim();
+        for (HashCode key : keys) {
+            assertNotNull(cache.restore(key, new File(mWorkDir, "out.dex"), false));
+        }
+    }
+
+    private HashCode publish(SharedPreDexCache cache, String name, String dex)
+            throws IOException {
+        HashCode key = SharedPreDexCache.computeKey(
+                createFile(name + ".jar", name), REVISION, false, false);
+        cache.publish(key, ImmutableList.of(createFile(name + ".dex", dex)), false);
+        return key;
+    }
+
+    private File createFile(String name, String content) throws IOException {
+        File file = new File(mWorkDir, name);
+        Files.write(content, file, Charsets.UTF_8);
+        return file;
+    }
+}
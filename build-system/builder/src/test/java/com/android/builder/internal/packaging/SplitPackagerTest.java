@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.packaging;
+
+import com.android.annotations.NonNull;
+import com.android.builder.packaging.DuplicateFileException;
+import com.android.utils.FileUtils;
+import com.android.utils.NullLogger;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+public class SplitPackagerTest extends TestCase {
+
+    private File mTmpDir;
+    private File mJniFolder;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTmpDir = Files.createTempDir();
+        mJniFolder = new File(mTmpDir, "jni");
+        createFile(mJniFolder, "x86/libfoo.so", "x86 foo");
+        createFile(mJniFolder, "x86/gdbserver", "x86 gdbserver");
+        createFile(mJniFolder, "armeabi/libfoo.so", "armeabi foo");
+        createFile(mJniFolder, "armeabi/readme.txt", "not a library");
+        createFile(mJniFolder, "mips/libfoo.so", "mips foo");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteFolder(mTmpDir);
+        super.tearDown();
+    }
+
+    public void testAbiSplits() throws Exception {
+        File x86 = new File(mTmpDir, "x86.apk");
+        File armeabi = new File(mTmpDir, "armeabi.apk");
+        SplitPackager packager = new SplitPackager(null, null, null, new NullLogger());
+        packager.addNativeLibraries(mJniFolder);
+        packager.addSplit(createResources("x86"), ImmutableSet.of("x86"), x86, null);
+        packager.addSplit(createResources("armeabi"), ImmutableSet.of("armeabi"), armeabi,
+                null);
+        packager.sealApks();
+
+        Map<String, String> entries = readEntries(x86);
+        assertEquals(2, entries.size());
+        assertEquals("x86", entries.get("AndroidManifest.xml"));
+        assertEquals("x86 foo", entries.get("lib/x86/libfoo.so"));
+
+        entries = readEntries(armeabi);
+        assertEquals(2, entries.size());
+        assertEquals("armeabi", entries.get("AndroidManifest.xml"));
+        assertEquals("armeabi foo", entries.get("lib/armeabi/libfoo.so"));
+    }
+
+    public void testSharedLibraries() throws Exception {
+        File all = new File(mTmpDir, "all.apk");
+        File some = new File(mTmpDir, "some.apk");
+        SplitPackager packager = new SplitPackager(null, null, null, new NullLogger());
+        packager.setJniDebugMode(true);
+        packager.addNativeLibraries(mJniFolder);
+        packager.addSplit(createResources("all"), null, all, null);
+        packager.addSplit(createResources("some"), ImmutableSet.of("x86", "mips"), some, null);
+        packager.sealApks();
+
+        Map<String, String> entries = readEntries(all);
+        assertEquals(5, entries.size());
+        assertEquals("x86 gdbserver", entries.get("lib/x86/gdbserver"));
+        assertEquals("armeabi foo", entries.get("lib/armeabi/libfoo.so"));
+
+        entries = readEntries(some);
+        assertEquals(4, entries.size());
+        assertEquals("x86 foo", entries.get("lib/x86/libfoo.so"));
+        assertEquals("mips foo", entries.get("lib/mips/libfoo.so"));
+        assertFalse(entries.containsKey("lib/armeabi/libfoo.so"));
+    }
+
+    public void testIncrementalSplits() throws Exception {
+        File x86 = new File(mTmpDir, "x86.apk");
+        File state = new File(mTmpDir, "state");
+        for (int i = 0; i < 2; i++) {
+            SplitPackager packager = new SplitPackager(null, null, null, new NullLogger());
+            packager.addNativeLibraries(mJniFolder);
+            packager.addSplit(createResources("x86"), ImmutableSet.of("x86"), x86, state);
+            packager.sealApks();
+        }
+
+        Map<String, String> entries = readEntries(x86);
+        assertEquals(2, entries.size());
+        assertEquals("x86 foo", entries.get("lib/x86/libfoo.so"));
+        assertTrue(new File(state, "package-state.bin").isFile());
+    }
+
+    public void testUnchangedLibrariesAreNotRead() throws Exception {
+        File all = new File(mTmpDir, "all.apk");
+        File x86 = new File(mTmpDir, "x86.apk");
+        File allState = new File(mTmpDir, "allState");
+        File x86State = new File(mTmpDir, "x86State");
+        sealSplits(all, allState, x86, x86State);
+
+        // same size and timestamp: the previous copy is reused without reading the file.
+        File foo = new File(mJniFolder, "x86/libfoo.so");
+        long lastModified = foo.lastModified();
+        Files.write("x86 bar", foo, Charsets.UTF_8);
+        assertTrue(foo.setLastModified(lastModified));
+        // changed: this is compressed again for both splits.
+        File mips = new File(mJniFolder, "mips/libfoo.so");
+        Files.write("new mips foo", mips, Charsets.UTF_8);
+        sealSplits(all, allState, x86, x86State);
+
+        Map<String, String> entries = readEntries(all);
+        assertEquals("x86 foo", entries.get("lib/x86/libfoo.so"));
+        assertEquals("new mips foo", entries.get("lib/mips/libfoo.so"));
+        assertEquals("armeabi foo", entries.get("lib/armeabi/libfoo.so"));
+        entries = readEntries(x86);
+        assertEquals(2, entries.size());
+        assertEquals("x86 foo", entries.get("lib/x86/libfoo.so"));
+    }
+
+    public void testDuplicateLibrary() throws Exception {
+        File otherJniFolder = new File(mTmpDir, "otherJni");
+        createFile(otherJniFolder, "x86/libfoo.so", "other foo");
+
+        SplitPackager packager = new SplitPackager(null, null, null, new NullLogger());
+        packager.addNativeLibraries(mJniFolder);
+        packager.addNativeLibraries(otherJniFolder);
+        packager.addSplit(createResources("x86"), ImmutableSet.of("x86"),
+                new File(mTmpDir, "x86.apk"), null);
+        try {
+            packager.sealApks();
+            fail("Expected a duplicate library");
+        } catch (DuplicateFileException e) {
+            assertEquals("lib/x86/libfoo.so", e.getArchivePath());
+        }
+    }
+
+    private void sealSplits(@NonNull File all, @NonNull File allState, @NonNull File x86,
+            @NonNull File x86State) throws Exception {
+        SplitPackager packager = new SplitPackager(null, null, null, new NullLogger());
+        packager.addNativeLibraries(mJniFolder);
+        packager.addSplit(createResources("all"), null, all, allState);
+        packager.addSplit(createResources("x86"), ImmutableSet.of("x86"), x86, x86State);
+        packager.sealApks();
+    }
+
+    @NonNull
+    private File createResources(@NonNull String name) throws IOException {
+        File file = new File(mTmpDir, "resources-" + name + ".ap_");
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            out.putNextEntry(new ZipEntry("AndroidManifest.xml"));
+            out.write(name.getBytes(Charsets.UTF_8));
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static void createFile(@NonNull File folder, @NonNull String path,
+            @NonNull String content) throws IOException {
+        File file = new File(folder, path);
+        Files.createParentDirs(file);
+        Files.write(content, file, Charsets.UTF_8);
+    }
+
+    @NonNull
+    private static Map<String, String> readEntries(@NonNull File zip) throws IOException {
+        Map<String, String> entries = Maps.newLinkedHashMap();
+        InputStream in = new FileInputStream(zip);
+        try {
+            ZipInputStream zis = new ZipInputStream(in);
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                entries.put(entry.getName(),
+                        new String(ByteStreams.toByteArray(zis), Charsets.UTF_8));
+            }
+        } finally {
+            in.close();
+        }
+        return entries;
+    }
+}
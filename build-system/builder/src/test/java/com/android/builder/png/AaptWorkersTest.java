@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.png;
+
+import com.android.annotations.NonNull;
+import com.android.builder.tasks.Job;
+import com.android.builder.tasks.JobContext;
+import com.android.builder.tasks.Task;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class AaptWorkersTest extends TestCase {
+
+    public void testCompletedJob() throws Exception {
+        AaptWorkers workers = new AaptWorkers(2);
+        Job<String> job = new Job<String>("job", new Task<String>() {
+            @Override
+            public void run(@NonNull Job<String> job, @NonNull JobContext<String> context) {
+                assertEquals("payload", context.getPayload());
+                job.finished();
+            }
+        });
+
+        assertTrue(workers.runJob(job, new JobContext<String>("payload"), 1, TimeUnit.SECONDS));
+        assertTrue(job.await());
+        assertEquals(2, workers.getAvailableWorkers());
+    }
+
+    public void testWorkerIsReleasedOnTimeout() throws Exception {
+        AaptWorkers workers = new AaptWorkers(1);
+        // the job is started but never completes.
+        Job<String> job = new Job<String>("job", new Task<String>() {
+            @Override
+            public void run(@NonNull Job<String> job, @NonNull JobContext<String> context) {
+            }
+        });
+
+        assertFalse(workers.runJob(job, new JobContext<String>(null), 10,
+                TimeUnit.MILLISECONDS));
+        // the job is notified, so its waiters do not wait forever.
+        assertFalse(job.await());
+        assertEquals(1, workers.getAvailableWorkers());
+    }
+
+    public void testWorkerIsReleasedOnFailure() throws Exception {
+        AaptWorkers workers = new AaptWorkers(1);
+        Job<String> job = new Job<String>("job", new Task<String>() {
+            @Override
+            public void run(@NonNull Job<String> job, @NonNull JobContext<String> context)
+                    throws IOException {
+                throw new IOException("cannot start");
+            }
+        });
+
+        try {
+            workers.runJob(job, new JobContext<String>(null), 1, TimeUnit.SECONDS);
+            fail("Expected the job to fail");
+        } catch (IOException expected) {
+            // expected.
+        }
+        assertFalse(job.await());
+        assertEquals(1, workers.getAvailableWorkers());
+    }
+
+    public void testWorkersAreLimited() throws Exception {
+        final AaptWorkers workers = new AaptWorkers(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch canFinish = new CountDownLatch(1);
+        final Job<String> first = new Job<String>("first", new Task<String>() {
+            @Override
+            public void run(@NonNull final Job<String> job, @NonNull JobContext<String> context) {
+                started.countDown();
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            canFinish.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        job.finished();
+                    }
+                }.start();
+            }
+        });
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    workers.runJob(first, new JobContext<String>(null), 10, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    first.error();
+                }
+            }
+        };
+        thread.start();
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        // the second job cannot start while the first one holds the only worker.
+        final AtomicBoolean secondStarted = new AtomicBoolean(false);
+        Job<String> second = new Job<String>("second", new Task<String>() {
+            @Override
+            public void run(@NonNull Job<String> job, @NonNull JobContext<String> context) {
+                secondStarted.set(true);
+                job.finished();
+            }
+        });
+        assertEquals(0, workers.getAvailableWorkers());
+        assertFalse(secondStarted.get());
+
+        canFinish.countDown();
+        assertTrue(workers.runJob(second, new JobContext<String>(null), 10, TimeUnit.SECONDS));
+        assertTrue(secondStarted.get());
+        assertTrue(first.await());
+        thread.join();
+        assertEquals(1, workers.getAvailableWorkers());
+    }
+}
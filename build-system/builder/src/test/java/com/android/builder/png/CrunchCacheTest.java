@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.png;
+
+import com.android.ide.common.internal.PngCruncher;
+import com.android.utils.FileUtils;
+import com.android.utils.NullLogger;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+
+public class CrunchCacheTest extends TestCase {
+
+    private File mTmpDir;
+    private File mAapt;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTmpDir = Files.createTempDir();
+        mAapt = new File(mTmpDir, "aapt");
+        Files.write("aapt", mAapt, Charsets.UTF_8);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteFolder(mTmpDir);
+        super.tearDown();
+    }
+
+    public void testStoreAndFetch() throws Exception {
+        CrunchCache cache = CrunchCache.get(new File(mTmpDir, "cache"));
+        File image = createFile("res/drawable/icon.png", "image");
+        String key = CrunchCache.getKey(CrunchCache.getAaptKey(mAapt), image);
+
+        File out = new File(mTmpDir, "out/icon.png");
+        assertFalse(cache.fetch(key, out));
+        assertFalse(out.exists());
+
+        cache.store(key, createFile("crunched.png", "crunched"));
+        assertTrue(cache.fetch(key, out));
+        assertEquals("crunched", Files.toString(out, Charsets.UTF_8));
+
+        // storing the same image again keeps the first one.
+        cache.store(key, createFile("other.png", "other"));
+        assertTrue(cache.fetch(key, out));
+        assertEquals("crunched", Files.toString(out, Charsets.UTF_8));
+    }
+
+    public void testKeys() throws Exception {
+        String aaptKey = CrunchCache.getAaptKey(mAapt);
+        File image = createFile("a/icon.png", "image");
+
+        // the same content in another module has the same key.
+        assertEquals(CrunchCache.getKey(aaptKey, image),
+                CrunchCache.getKey(aaptKey, createFile("b/other.png", "image")));
+        assertFalse(CrunchCache.getKey(aaptKey, image).equals(
+                CrunchCache.getKey(aaptKey, createFile("c/icon.png", "changed"))));
+
+        // nine patches are crunched differently.
+        assertFalse(CrunchCache.getKey(aaptKey, image).equals(
+                CrunchCache.getKey(aaptKey, createFile("d/icon.9.png", "image"))));
+
+        // another version of aapt crunches differently.
+        File otherAapt = new File(mTmpDir, "other/aapt");
+        Files.createParentDirs(otherAapt);
+        Files.write("aapt", otherAapt, Charsets.UTF_8);
+        assertFalse(CrunchCache.getKey(aaptKey, image).equals(
+                CrunchCache.getKey(CrunchCache.getAaptKey(otherAapt), image)));
+    }
+
+    public void testTrimRemovesLeastRecentlyUsedImages() throws Exception {
+        CrunchCache cache = CrunchCache.get(new File(mTmpDir, "cache"));
+        String aaptKey = CrunchCache.getAaptKey(mAapt);
+        String[] keys = new String[3];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = CrunchCache.getKey(aaptKey, createFile("image" + i + ".png", "image" + i));
+            cache.store(keys[i], createFile("crunched" + i + ".png", "crunched" + i));
+        }
+        // set the last use of the images, the oldest being the second one.
+        long now = System.currentTimeMillis();
+        setLastUse(new File(mTmpDir, "cache"), keys[0], now - 1000);
+        setLastUse(new File(mTmpDir, "cache"), keys[1], now - 3000);
+        setLastUse(new File(mTmpDir, "cache"), keys[2], now - 2000);
+        File out = new File(mTmpDir, "out.png");
+
+        // each image is 9 bytes.
+        cache.trim(20);
+        assertTrue(cache.fetch(keys[0], out));
+        assertFalse(cache.fetch(keys[1], out));
+        assertTrue(cache.fetch(keys[2], out));
+
+        cache.trim(0);
+        assertFalse(cache.fetch(keys[0], out));
+        assertFalse(cache.fetch(keys[2], out));
+    }
+
+    public void testTrimRemovesStaleTemporaryFiles() throws Exception {
+        File root = new File(mTmpDir, "cache");
+        CrunchCache cache = CrunchCache.get(root);
+        File stale = createFile("cache/tmp/stale.tmp", "stale");
+        assertTrue(stale.setLastModified(System.currentTimeMillis() - 2 * 60 * 60 * 1000));
+        File recent = createFile("cache/tmp/recent.tmp", "recent");
+
+        cache.trim(CrunchCache.MAX_SIZE);
+        assertFalse(stale.exists());
+        // another build may be adding this image.
+        assertTrue(recent.exists());
+    }
+
+    public void testStoreIsPerCruncher() throws Exception {
+        File root = new File(mTmpDir, "cache");
+        File image = createFile("res/drawable/icon.png", "image");
+        CrunchCache.get(root).store(CrunchCache.getKey(CrunchCache.getAaptKey(mAapt), image),
+                createFile("crunched.png", "crunched"));
+
+        PngCruncher cruncher = QueuedCruncher.Builder.INSTANCE.newCruncher(
+                mAapt.getAbsolutePath(), new NullLogger(), root);
+        // another build of the same aapt without a store does not disable the store of the first.
+        QueuedCruncher.Builder.INSTANCE.newCruncher(mAapt.getAbsolutePath(), new NullLogger(),
+                null);
+
+        int key = cruncher.start();
+        File out = new File(mTmpDir, "out/icon.png");
+        cruncher.crunchPng(key, image, out);
+        cruncher.end(key);
+        assertEquals("crunched", Files.toString(out, Charsets.UTF_8));
+    }
+
+    private static void setLastUse(File root, String key, long time) {
+        int hash = key.indexOf('-') + 1;
+        File file = new File(root, key.substring(hash, hash + 2) + File.separator + key);
+        assertTrue(file.setLastModified(time));
+    }
+
+    private File createFile(String path, String content) throws Exception {
+        File file = new File(mTmpDir, path);
+        Files.createParentDirs(file);
+        Files.write(content, file, Charsets.UTF_8);
+        return file;
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.signing;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ide.common.signing.CertificateInfo;
+import com.android.ide.common.signing.KeystoreHelper;
+import com.android.utils.FileUtils;
+import com.android.utils.StdLogger;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+public class IncrementalSignedJarBuilderTest extends TestCase {
+
+    private File mTmpDir;
+    private File mStateDir;
+    private File mOutFile;
+    private File mResources;
+    private File mFileA;
+    private File mFileB;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTmpDir = Files.createTempDir();
+        mStateDir = new File(mTmpDir, "state");
+        mOutFile = new File(mTmpDir, "out.apk");
+
+        mResources = new File(mTmpDir, "resources.ap_");
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(mResources));
+        try {
+            out.putNextEntry(new ZipEntry("AndroidManifest.xml"));
+            out.write("<manifest/>".getBytes(Charsets.UTF_8));
+            out.closeEntry();
+
+            byte[] arsc = "resources".getBytes(Charsets.UTF_8);
+            ZipEntry stored = new ZipEntry("resources.arsc");
+            stored.setMethod(ZipEntry.STORED);
+            stored.setSize(arsc.length);
+            CRC32 crc = new CRC32();
+            crc.update(arsc);
+            stored.setCrc(crc.getValue());
+            out.putNextEntry(stored);
+            out.write(arsc);
+            out.closeEntry();
+
+            out.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
+            out.write("Manifest-Version: 1.0\n".getBytes(Charsets.UTF_8));
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+
+        mFileA = new File(mTmpDir, "a.txt");
+        Files.write(Strings.repeat("a", 1000), mFileA, Charsets.UTF_8);
+        mFileB = new File(mTmpDir, "b.txt");
+        Files.write(Strings.repeat("b", 1000), mFileB, Charsets.UTF_8);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteFolder(mTmpDir);
+        super.tearDown();
+    }
+
+    public void testReusesUnchangedEntries() throws Exception {
+        IncrementalSignedJarBuilder builder = build();
+        assertEquals(4, builder.getEntryCount());
+        assertEquals(0, builder.getReusedEntryCount());
+
+        Map<String, String> entries = readEntries(mOutFile);
+        assertEquals(4, entries.size());
+        assertEquals("<manifest/>", entries.get("AndroidManifest.xml"));
+        assertEquals("resources", entries.get("resources.arsc"));
+        assertEquals(Strings.repeat("a", 1000), entries.get("a.txt"));
+        assertEquals(Strings.repeat("b", 1000), entries.get("lib/b.txt"));
+
+        // nothing changed.
+        builder = build();
+        assertEquals(4, builder.getReusedEntryCount());
+        assertEquals(entries, readEntries(mOutFile));
+
+        // one file changed.
+        Files.write(Strings.repeat("c", 1000), mFileB, Charsets.UTF_8);
+        assertTrue(mFileB.setLastModified(mFileB.lastModified() + 2000));
+        builder = build();
+        assertEquals(3, builder.getReusedEntryCount());
+        entries = readEntries(mOutFile);
+        assertEquals(Strings.repeat("c", 1000), entries.get("lib/b.txt"));
+        assertEquals(Strings.repeat("a", 1000), entries.get("a.txt"));
+    }
+
+    public void testEntriesKeepTheirCompression() throws Exception {
+        build();
+
+        List<ZipUtils.ZipRecord> records = readRecords(mOutFile);
+        assertEquals(4, records.size());
+        for (ZipUtils.ZipRecord record : records) {
+            if (record.name.equals("resources.arsc")) {
+                assertEquals(ZipEntry.STORED, record.method);
+            } else {
+                assertEquals(ZipEntry.DEFLATED, record.method);
+            }
+        }
+
+        // the reused entries are identical.
+        build();
+        List<ZipUtils.ZipRecord> newRecords = readRecords(mOutFile);
+        for (int i = 0; i < records.size(); i++) {
+            assertEquals(records.get(i).name, newRecords.get(i).name);
+            assertEquals(records.get(i).crc, newRecords.get(i).crc);
+            assertEquals(records.get(i).compressedSize, newRecords.get(i).compressedSize);
+            assertEquals(records.get(i).localHeaderOffset, newRecords.get(i).localHeaderOffset);
+        }
+    }
+
+    public void testInvalidStateIsIgnored() throws Exception {
+        build();
+        Files.write("garbage", new File(mStateDir, "package-state.bin"), Charsets.UTF_8);
+
+        IncrementalSignedJarBuilder builder = build();
+        assertEquals(0, builder.getReusedEntryCount());
+        assertEquals(4, readEntries(mOutFile).size());
+    }
+
+    public void testDuplicateEntry() throws Exception {
+        IncrementalSignedJarBuilder builder = new IncrementalSignedJarBuilder(
+                mOutFile, mStateDir, null, null, null, null);
+        builder.writeFile(mFileA, "a.txt");
+        try {
+            builder.writeFile(mFileB, "a.txt");
+            fail("Expected a duplicate entry");
+        } catch (ZipException expected) {
+            // expected.
+        } finally {
+            builder.cleanUp();
+        }
+    }
+
+    public void testSignedArchive() throws Exception {
+        CertificateInfo certificateInfo = createCertificateInfo();
+        IncrementalSignedJarBuilder builder = build(certificateInfo);
+        assertEquals(0, builder.getReusedEntryCount());
+
+        Map<String, String> entries = readEntries(mOutFile);
+        assertTrue(entries.containsKey("META-INF/CERT.SF"));
+        assertTrue(entries.containsKey("META-INF/CERT.RSA"));
+        Manifest manifest = readManifest(entries);
+        assertEquals(4, manifest.getEntries().size());
+        verifySignature(mOutFile, certificateInfo.getCertificate());
+
+        // the digests of the reused entries are copied from the previous archive.
+        builder = build(certificateInfo);
+        assertEquals(4, builder.getReusedEntryCount());
+        Map<String, String> newEntries = readEntries(mOutFile);
+        assertEquals(entries.get("META-INF/MANIFEST.MF"), newEntries.get("META-INF/MANIFEST.MF"));
+        assertEquals(entries.get("META-INF/CERT.SF"), newEntries.get("META-INF/CERT.SF"));
+        verifySignature(mOutFile, certificateInfo.getCertificate());
+
+        // only the digest of the changed file changes.
+        Files.write(Strings.repeat("c", 1000), mFileB, Charsets.UTF_8);
+        assertTrue(mFileB.setLastModified(mFileB.lastModified() + 2000));
+        builder = build(certificateInfo);
+        assertEquals(3, builder.getReusedEntryCount());
+        Manifest newManifest = readManifest(readEntries(mOutFile));
+        for (String name : manifest.getEntries().keySet()) {
+            String digest = manifest.getAttributes(name).getValue("SHA1-Digest");
+            String newDigest = newManifest.getAttributes(name).getValue("SHA1-Digest");
+            assertNotNull(newDigest);
+            assertEquals(name, !name.equals("lib/b.txt"), digest.equals(newDigest));
+        }
+        verifySignature(mOutFile, certificateInfo.getCertificate());
+    }
+
+    @NonNull
+    private IncrementalSignedJarBuilder build() throws Exception {
+        return build(null);
+    }
+
+    @NonNull
+    private IncrementalSignedJarBuilder build(@Nullable CertificateInfo certificateInfo)
+            throws Exception {
+        IncrementalSignedJarBuilder builder = new IncrementalSignedJarBuilder(
+                mOutFile, mStateDir,
+                certificateInfo != null ? certificateInfo.getKey() : null,
+                certificateInfo != null ? certificateInfo.getCertificate() : null,
+                null, null);
+        builder.writeZip(mResources, null, null);
+        builder.writeFile(mFileA, "a.txt");
+        builder.writeFile(mFileB, "lib/b.txt");
+        builder.close();
+        return builder;
+    }
+
+    @NonNull
+    private CertificateInfo createCertificateInfo() throws Exception {
+        File keystore = new File(mTmpDir, "debug.keystore");
+        assertTrue(KeystoreHelper.createDebugStore(null, keystore, "android", "android",
+                "AndroidDebugKey", new StdLogger(StdLogger.Level.ERROR)));
+        CertificateInfo certificateInfo = KeystoreHelper.getCertificateInfo(
+                null, keystore, "android", "android", "AndroidDebugKey");
+        assertNotNull(certificateInfo);
+        return certificateInfo;
+    }
+
+    @NonNull
+    private static Manifest readManifest(@NonNull Map<String, String> entries)
+            throws IOException {
+        String manifest = entries.get("META-INF/MANIFEST.MF");
+        assertNotNull(manifest);
+        return new Manifest(new ByteArrayInputStream(manifest.getBytes(Charsets.UTF_8)));
+    }
+
+    /**
+     * Checks that all the entries of an archive are signed by a certificate.
+     */
+    private static void verifySignature(@NonNull File file, @NonNull X509Certificate certificate)
+            throws IOException {
+        JarFile jarFile = new JarFile(file, true /* verify */);
+        try {
+            Enumeration<JarEntry> entries = jarFile.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                // the certificates are only known once the entry is read.
+                ByteStreams.toByteArray(jarFile.getInputStream(entry));
+                if (entry.getName().startsWith("META-INF/")) {
+                    continue;
+                }
+                Certificate[] certificates = entry.getCertificates();
+                assertNotNull(entry.getName(), certificates);
+                assertEquals(certificate, certificates[0]);
+            }
+        } finally {
+            jarFile.close();
+        }
+    }
+
+    @NonNull
+    private static List<ZipUtils.ZipRecord> readRecords(@NonNull File zip)
+            throws IOException {
+        RandomAccessFile file = new RandomAccessFile(zip, "r");
+        try {
+            return ZipUtils.readCentralDirectory(file);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Reads the entries sequentially, to check the local headers as well.
+     */
+    @NonNull
+    private static Map<String, String> readEntries(@NonNull File zip) throws IOException {
+        Map<String, String> entries = Maps.newLinkedHashMap();
+        InputStream in = new FileInputStream(zip);
+        try {
+            ZipInputStream zis = new ZipInputStream(in);
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                entries.put(entry.getName(),
+                        new String(ByteStreams.toByteArray(zis), Charsets.UTF_8));
+            }
+        } finally {
+            in.close();
+        }
+        return entries;
+    }
+}
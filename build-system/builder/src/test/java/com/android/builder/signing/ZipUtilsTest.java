@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.signing;
+
+import com.android.annotations.NonNull;
+import com.android.builder.signing.SignedJarBuilder.IZipEntryFilter;
+import com.android.utils.FileUtils;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+public class ZipUtilsTest extends TestCase {
+
+    private File mTmpDir;
+    private File mSource;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTmpDir = Files.createTempDir();
+        mSource = new File(mTmpDir, "source.zip");
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(mSource));
+        try {
+            out.putNextEntry(new ZipEntry("deflated.txt"));
+            out.write(Strings.repeat("deflated", 100).getBytes(Charsets.UTF_8));
+            out.closeEntry();
+
+            byte[] content = "stored".getBytes(Charsets.UTF_8);
+            ZipEntry stored = new ZipEntry("stored.txt");
+            stored.setMethod(ZipEntry.STORED);
+            stored.setSize(content.length);
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            stored.setCrc(crc.getValue());
+            out.putNextEntry(stored);
+            out.write(content);
+            out.closeEntry();
+
+            out.putNextEntry(new ZipEntry("removed.txt"));
+            out.write("removed".getBytes(Charsets.UTF_8));
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteFolder(mTmpDir);
+        super.tearDown();
+    }
+
+    public void testCopyZip() throws Exception {
+        File dest = new File(mTmpDir, "dest.zip");
+        ZipUtils.copyZip(mSource, dest, new RemovingFilter());
+        checkCopy(dest);
+    }
+
+    public void testCopyZipInPlace() throws Exception {
+        ZipUtils.copyZip(mSource, mSource, new RemovingFilter());
+        checkCopy(mSource);
+        assertEquals(1, mTmpDir.listFiles().length);
+    }
+
+    public void testReadCentralDirectory() throws Exception {
+        File zip = new File(mTmpDir, "comment.zip");
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip));
+        try {
+            out.setComment("a comment");
+            out.putNextEntry(new ZipEntry("foo/"));
+            out.closeEntry();
+            out.putNextEntry(new ZipEntry("foo/bar.txt"));
+            out.write(Strings.repeat("bar", 100).getBytes(Charsets.UTF_8));
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+
+        RandomAccessFile file = new RandomAccessFile(zip, "r");
+        List<ZipUtils.ZipRecord> records;
+        try {
+            records = ZipUtils.readCentralDirectory(file);
+        } finally {
+            file.close();
+        }
+        assertEquals(2, records.size());
+        assertEquals("foo/", records.get(0).name);
+        assertEquals("foo/bar.txt", records.get(1).name);
+        assertEquals(300, records.get(1).size);
+        assertEquals(ZipEntry.DEFLATED, records.get(1).method);
+    }
+
+    private static void checkCopy(@NonNull File zip) throws IOException {
+        ZipFile zipFile = new ZipFile(zip);
+        try {
+            assertEquals(2, zipFile.size());
+            assertNull(zipFile.getEntry("removed.txt"));
+
+            ZipEntry deflated = zipFile.getEntry("deflated.txt");
+            assertEquals(ZipEntry.DEFLATED, deflated.getMethod());
+            assertEquals(Strings.repeat("deflated", 100), readEntry(zipFile, deflated));
+
+            ZipEntry stored = zipFile.getEntry("stored.txt");
+            assertEquals(ZipEntry.STORED, stored.getMethod());
+            assertEquals("stored", readEntry(zipFile, stored));
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    @NonNull
+    private static String readEntry(@NonNull ZipFile zipFile, @NonNull ZipEntry entry)
+            throws IOException {
+        return new String(ByteStreams.toByteArray(zipFile.getInputStream(entry)),
+                Charsets.UTF_8);
+    }
+
+    private static final class RemovingFilter implements IZipEntryFilter {
+        @Override
+        public boolean checkEntry(String archivePath) {
+            return !archivePath.equals("removed.txt");
+        }
+    }
+}
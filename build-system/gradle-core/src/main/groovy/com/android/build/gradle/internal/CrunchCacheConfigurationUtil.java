@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.gradle.internal;
+
+import com.android.annotations.Nullable;
+import com.android.prefs.AndroidLocation;
+
+import org.gradle.api.Project;
+
+import java.io.File;
+
+/**
+ * Configures the store of crunched images shared by all the projects of the machine, from the
+ * com.android.build.sharedCrunchCache property: <code>true</code> to use the store in
+ * ~/.android/build-cache/png, or the path of the folder of the store.
+ */
+public class CrunchCacheConfigurationUtil {
+
+    private static final String SHARED_CACHE_PROPERTY = "com.android.build.sharedCrunchCache";
+
+    private static final String FD_SHARED_CACHE = "build-cache" + File.separator + "png";
+
+    /**
+     * Returns the folder of the store of crunched images, or null if the images are not shared.
+     */
+    @Nullable
+    public static File getCacheFolder(Project project) {
+        if (!project.hasProperty(SHARED_CACHE_PROPERTY)) {
+            return null;
+        }
+
+        String value = project.property(SHARED_CACHE_PROPERTY).toString();
+        if (Boolean.FALSE.toString().equals(value)) {
+            return null;
+        }
+
+        if (Boolean.TRUE.toString().equals(value)) {
+            try {
+                return new File(AndroidLocation.getFolder(), FD_SHARED_CACHE);
+            } catch (AndroidLocation.AndroidLocationException e) {
+                project.getLogger().error(
+                        "Unable to locate the shared crunched image cache: " + e.getMessage());
+                return null;
+            }
+        }
+        return project.file(value);
+    }
+}
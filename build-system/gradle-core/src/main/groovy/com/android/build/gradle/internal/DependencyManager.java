@@ -25,6 +25,7 @@ import static com.android.builder.model.AndroidProject.FD_INTERMEDIATES;
 
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
 import com.android.build.gradle.internal.dependency.JarInfo;
 import com.android.build.gradle.internal.dependency.LibInfo;
 import com.android.build.gradle.internal.dependency.LibraryDependencyImpl;
@@ -42,6 +43,10 @@ import com.android.builder.model.MavenCoordinates;
 import com.android.builder.model.SyncIssue;
 import com.android.utils.ILogger;
 import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
@@ -87,6 +92,15 @@ public class DependencyManager {
 
     final Map<LibraryDependencyImpl, PrepareLibraryTask> prepareTaskMap = Maps.newHashMap();
 
+    /**
+     * The dependency graphs of the variants of the project, by key, so that the variants with
+     * the same resolved dependencies share the same graph.
+     */
+    private final Map<String, ResolvedGraph> resolvedGraphs = Maps.newHashMap();
+
+    /** The library nodes of all the graphs, so that identical nodes are shared. */
+    private final Interner<LibraryDependencyImpl> libraryInterner = Interners.newStrongInterner();
+
     public DependencyManager(Project project, ExtraModelInfo extraModelInfo) {
         this.project = project;
         this.extraModelInfo = extraModelInfo;
@@ -243,13 +257,140 @@ public class DependencyManager {
                             packageClasspath.getName());
         }
 
-        Set<String> currentUnresolvedDependencies = Sets.newHashSet();
-
         // TODO - defer downloading until required -- This is hard to do as we need the info to build the variant config.
         Map<ModuleVersionIdentifier, List<ResolvedArtifact>> artifacts = Maps.newHashMap();
         collectArtifacts(compileClasspath, artifacts);
         collectArtifacts(packageClasspath, artifacts);
 
+        // variants with the same resolved dependencies share the same graph.
+        String graphKey = computeGraphKey(
+                variantDeps, testedVariantDeps, testedProjectPath, artifacts);
+        ResolvedGraph graph = resolvedGraphs.get(graphKey);
+        if (graph == null) {
+            graph = computeGraph(
+                    variantDeps, testedVariantDeps, testedProjectPath, artifacts, reverseMap);
+            resolvedGraphs.put(graphKey, graph);
+        } else {
+            graph.addTo(variantDeps, reverseMap);
+        }
+
+        // --- Handle the local jar dependencies ---
+
+        // also need to process local jar files, as they are not processed by the
+        // resolvedConfiguration result. This only includes the local jar files for this project.
+        Set<File> localCompiledJars = Sets.newHashSet();
+        for (Dependency dependency : compileClasspath.getAllDependencies()) {
+            if (dependency instanceof SelfResolvingDependency &&
+                    !(dependency instanceof ProjectDependency)) {
+                Set<File> files = ((SelfResolvingDependency) dependency).resolve();
+                for (File f : files) {
+                    if (DEBUG_DEPENDENCY) {
+                        System.out.println("LOCAL compile: " + f.getName());
+                    }
+                    // only accept local jar, no other types.
+                    if (!f.getName().toLowerCase(Locale.getDefault()).endsWith(DOT_JAR)) {
+                        variantDeps.getChecker().addSyncIssue(extraModelInfo.handleSyncError(
+                                f.getAbsolutePath(),
+                                SyncIssue.TYPE_NON_JAR_LOCAL_DEP,
+                                String.format(
+                                        "Project %s: Only Jar-type local dependencies are supported. Cannot handle: %s",
+                                        project.getName(), f.getAbsolutePath())));
+                    } else {
+                        localCompiledJars.add(f);
+                    }
+                }
+            }
+        }
+
+        Set<File> localPackagedJars = Sets.newHashSet();
+        for (Dependency dependency : packageClasspath.getAllDependencies()) {
+            if (dependency instanceof SelfResolvingDependency &&
+                    !(dependency instanceof ProjectDependency)) {
+                Set<File> files = ((SelfResolvingDependency) dependency).resolve();
+                for (File f : files) {
+                    if (DEBUG_DEPENDENCY) {
+                        System.out.println("LOCAL package: " + f.getName());
+                    }
+                    // only accept local jar, no other types.
+                    if (!f.getName().toLowerCase(Locale.getDefault()).endsWith(DOT_JAR)) {
+                        variantDeps.getChecker().addSyncIssue(extraModelInfo.handleSyncError(
+                                f.getAbsolutePath(),
+                                SyncIssue.TYPE_NON_JAR_LOCAL_DEP,
+                                String.format(
+                                        "Project %s: Only Jar-type local dependencies are supported. Cannot handle: %s",
+                                        project.getName(), f.getAbsolutePath())));
+                    } else {
+                        localPackagedJars.add(f);
+                    }
+                }
+            }
+        }
+
+        // loop through both the compiled and packaged jar to compute the list
+        // of jars that are: compile-only, package-only, or both.
+        Map<File, JarDependency> localJars = Maps.newHashMap();
+        for (File file : localCompiledJars) {
+            localJars.put(file, new JarDependency(
+                    file,
+                    true /*compiled*/,
+                    localPackagedJars.contains(file) /*packaged*/,
+                    null /*resolvedCoordinates*/,
+                    null /*projectPath*/));
+        }
+
+        for (File file : localPackagedJars) {
+            if (!localCompiledJars.contains(file)) {
+                localJars.put(file, new JarDependency(
+                        file,
+                        false /*compiled*/,
+                        true /*packaged*/,
+                        null /*resolvedCoordinates*/,
+                        null /*projectPath*/));
+            }
+        }
+
+        if (DEBUG_DEPENDENCY) {
+            for (LibraryDependency lib : graph.libraries) {
+                System.out.println("LIB: " + lib);
+            }
+            for (JarDependency jar : graph.jars) {
+                System.out.println("JAR: " + jar);
+            }
+            for (JarDependency jar : localJars.values()) {
+                System.out.println("LOCAL-JAR: " + jar);
+            }
+        }
+
+        variantDeps.addLibraries(graph.libraries);
+        variantDeps.addJars(graph.jars);
+        variantDeps.addLocalJars(localJars.values());
+
+        configureBuild(variantDeps);
+
+        if (DEBUG_DEPENDENCY) {
+            System.out.println(project.getName() + ":" + compileClasspath.getName() + "/" +packageClasspath.getName());
+            System.out.println("<<<<<<<<<<");
+        }
+
+    }
+
+    /**
+     * Walks the resolved dependencies of a variant, and converts them into a graph of libraries
+     * and jars.
+     */
+    @NonNull
+    private ResolvedGraph computeGraph(
+            @NonNull VariantDependencies variantDeps,
+            @Nullable VariantDependencies testedVariantDeps,
+            @Nullable String testedProjectPath,
+            @NonNull Map<ModuleVersionIdentifier, List<ResolvedArtifact>> artifacts,
+            @NonNull Multimap<LibraryDependency, VariantDependencies> reverseMap) {
+        Configuration compileClasspath = variantDeps.getCompileConfiguration();
+        Configuration packageClasspath = variantDeps.getPackageConfiguration();
+        int syncIssueCount = variantDeps.getChecker().getSyncIssues().size();
+
+        Set<String> currentUnresolvedDependencies = Sets.newHashSet();
+
         // --- Handle the external/module dependencies ---
         // keep a map of modules already processed so that we don't go through sections of the
         // graph that have been seen elsewhere.
@@ -446,81 +587,6 @@ public class DependencyManager {
             }
         }
 
-        // --- Handle the local jar dependencies ---
-
-        // also need to process local jar files, as they are not processed by the
-        // resolvedConfiguration result. This only includes the local jar files for this project.
-        Set<File> localCompiledJars = Sets.newHashSet();
-        for (Dependency dependency : compileClasspath.getAllDependencies()) {
-            if (dependency instanceof SelfResolvingDependency &&
-                    !(dependency instanceof ProjectDependency)) {
-                Set<File> files = ((SelfResolvingDependency) dependency).resolve();
-                for (File f : files) {
-                    if (DEBUG_DEPENDENCY) {
-                        System.out.println("LOCAL compile: " + f.getName());
-                    }
-                    // only accept local jar, no other types.
-                    if (!f.getName().toLowerCase(Locale.getDefault()).endsWith(DOT_JAR)) {
-                        variantDeps.getChecker().addSyncIssue(extraModelInfo.handleSyncError(
-                                f.getAbsolutePath(),
-                                SyncIssue.TYPE_NON_JAR_LOCAL_DEP,
-                                String.format(
-                                        "Project %s: Only Jar-type local dependencies are supported. Cannot handle: %s",
-                                        project.getName(), f.getAbsolutePath())));
-                    } else {
-                        localCompiledJars.add(f);
-                    }
-                }
-            }
-        }
-
-        Set<File> localPackagedJars = Sets.newHashSet();
-        for (Dependency dependency : packageClasspath.getAllDependencies()) {
-            if (dependency instanceof SelfResolvingDependency &&
-                    !(dependency instanceof ProjectDependency)) {
-                Set<File> files = ((SelfResolvingDependency) dependency).resolve();
-                for (File f : files) {
-                    if (DEBUG_DEPENDENCY) {
-                        System.out.println("LOCAL package: " + f.getName());
-                    }
-                    // only accept local jar, no other types.
-                    if (!f.getName().toLowerCase(Locale.getDefault()).endsWith(DOT_JAR)) {
-                        variantDeps.getChecker().addSyncIssue(extraModelInfo.handleSyncError(
-                                f.getAbsolutePath(),
-                                SyncIssue.TYPE_NON_JAR_LOCAL_DEP,
-                                String.format(
-                                        "Project %s: Only Jar-type local dependencies are supported. Cannot handle: %s",
-                                        project.getName(), f.getAbsolutePath())));
-                    } else {
-                        localPackagedJars.add(f);
-                    }
-                }
-            }
-        }
-
-        // loop through both the compiled and packaged jar to compute the list
-        // of jars that are: compile-only, package-only, or both.
-        Map<File, JarDependency> localJars = Maps.newHashMap();
-        for (File file : localCompiledJars) {
-            localJars.put(file, new JarDependency(
-                    file,
-                    true /*compiled*/,
-                    localPackagedJars.contains(file) /*packaged*/,
-                    null /*resolvedCoordinates*/,
-                    null /*projectPath*/));
-        }
-
-        for (File file : localPackagedJars) {
-            if (!localCompiledJars.contains(file)) {
-                localJars.put(file, new JarDependency(
-                        file,
-                        false /*compiled*/,
-                        true /*packaged*/,
-                        null /*resolvedCoordinates*/,
-                        null /*projectPath*/));
-            }
-        }
-
         if (extraModelInfo.getMode() != STANDARD &&
                 compileClasspath.getResolvedConfiguration().hasError()) {
             for (String dependency : currentUnresolvedDependencies) {
@@ -536,36 +602,22 @@ public class DependencyManager {
         // convert the LibInfo in LibraryDependencyImpl and update the reverseMap
         // with the converted keys
         List<LibraryDependencyImpl> libList = convertLibraryInfoIntoDependency(
-                compiledAndroidLibraries, reverseMap);
-
-        if (DEBUG_DEPENDENCY) {
-            for (LibraryDependency lib : libList) {
-                System.out.println("LIB: " + lib);
-            }
-            for (JarDependency jar : jars) {
-                System.out.println("JAR: " + jar);
-            }
-            for (JarDependency jar : localJars.values()) {
-                System.out.println("LOCAL-JAR: " + jar);
-            }
-        }
-
-        variantDeps.addLibraries(libList);
-        variantDeps.addJars(jars);
-        variantDeps.addLocalJars(localJars.values());
-
-        configureBuild(variantDeps);
-
-        if (DEBUG_DEPENDENCY) {
-            System.out.println(project.getName() + ":" + compileClasspath.getName() + "/" +packageClasspath.getName());
-            System.out.println("<<<<<<<<<<");
-        }
-
+                compiledAndroidLibraries, reverseMap, libraryInterner);
+
+        List<SyncIssue> syncIssues = variantDeps.getChecker().getSyncIssues();
+        return new ResolvedGraph(
+                libList,
+                jars,
+                Lists.newArrayList(syncIssues.subList(syncIssueCount, syncIssues.size())),
+                variantDeps.getChecker().getLegacyApiLevels(),
+                variantDeps.isAnnotationsPresent());
     }
 
-    private static List<LibraryDependencyImpl> convertLibraryInfoIntoDependency(
+    @VisibleForTesting
+    static List<LibraryDependencyImpl> convertLibraryInfoIntoDependency(
             @NonNull List<LibInfo> libInfos,
-            @NonNull Multimap<LibraryDependency, VariantDependencies> reverseMap) {
+            @NonNull Multimap<LibraryDependency, VariantDependencies> reverseMap,
+            @NonNull Interner<LibraryDependencyImpl> interner) {
         List<LibraryDependencyImpl> list = Lists.newArrayListWithCapacity(libInfos.size());
 
         // since the LibInfos is a graph and the previous "foundLibraries" map ensure we reuse
@@ -574,7 +626,7 @@ public class DependencyManager {
         Map<LibInfo, LibraryDependencyImpl> convertedMap = Maps.newIdentityHashMap();
 
         for (LibInfo libInfo : libInfos) {
-            list.add(convertLibInfo(libInfo, reverseMap, convertedMap));
+            list.add(convertLibInfo(libInfo, reverseMap, convertedMap, interner));
         }
 
         return list;
@@ -583,7 +635,8 @@ public class DependencyManager {
     private static LibraryDependencyImpl convertLibInfo(
             @NonNull LibInfo libInfo,
             @NonNull Multimap<LibraryDependency, VariantDependencies> reverseMap,
-            @NonNull Map<LibInfo, LibraryDependencyImpl> convertedMap) {
+            @NonNull Map<LibInfo, LibraryDependencyImpl> convertedMap,
+            @NonNull Interner<LibraryDependencyImpl> interner) {
         LibraryDependencyImpl convertedLib = convertedMap.get(libInfo);
         if (convertedLib == null) {
             // first, convert the children.
@@ -592,11 +645,11 @@ public class DependencyManager {
             List<LibraryDependency> convertedChildren = Lists.newArrayListWithCapacity(children.size());
 
             for (LibInfo child : children) {
-                convertedChildren.add(convertLibInfo(child, reverseMap, convertedMap));
+                convertedChildren.add(convertLibInfo(child, reverseMap, convertedMap, interner));
             }
 
-            // now convert the libInfo
-            convertedLib = new LibraryDependencyImpl(
+            // now convert the libInfo, reusing the identical node of another graph if any.
+            convertedLib = interner.intern(new LibraryDependencyImpl(
                     libInfo.getBundle(),
                     libInfo.getFolder(),
                     convertedChildren,
@@ -605,7 +658,7 @@ public class DependencyManager {
                     libInfo.getProject(),
                     libInfo.getRequestedCoordinates(),
                     libInfo.getResolvedCoordinates(),
-                    libInfo.isOptional());
+                    libInfo.isOptional()));
 
             // add it to the map
             convertedMap.put(libInfo, convertedLib);
@@ -621,6 +674,77 @@ public class DependencyManager {
         return convertedLib;
     }
 
+    /**
+     * Computes the key of the dependency graph of a variant, from the resolved dependencies of
+     * its configurations with their artifacts, and from the other inputs of the graph.
+     */
+    @VisibleForTesting
+    @NonNull
+    static String computeGraphKey(
+            @NonNull VariantDependencies variantDeps,
+            @Nullable VariantDependencies testedVariantDeps,
+            @Nullable String testedProjectPath,
+            @NonNull Map<ModuleVersionIdentifier, List<ResolvedArtifact>> artifacts) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(variantDeps.getChecker().isSkipLibrariesInThePlatform())
+                .append('|').append(testedProjectPath).append('|');
+        if (testedVariantDeps != null) {
+            for (JarDependency jar : testedVariantDeps.getJarDependencies()) {
+                if (jar.isPackaged()) {
+                    sb.append(jar.getResolvedCoordinates()).append(',');
+                }
+            }
+        }
+
+        // the compile and package graphs share the modules they have in common.
+        Set<ModuleVersionIdentifier> visitedModules = Sets.newHashSet();
+        sb.append('|');
+        appendGraphKey(sb,
+                variantDeps.getCompileConfiguration().getIncoming().getResolutionResult()
+                        .getRoot(),
+                artifacts,
+                visitedModules);
+        sb.append('|');
+        appendGraphKey(sb,
+                variantDeps.getPackageConfiguration().getIncoming().getResolutionResult()
+                        .getRoot(),
+                artifacts,
+                visitedModules);
+        return sb.toString();
+    }
+
+    private static void appendGraphKey(
+            @NonNull StringBuilder sb,
+            @NonNull ResolvedComponentResult component,
+            @NonNull Map<ModuleVersionIdentifier, List<ResolvedArtifact>> artifacts,
+            @NonNull Set<ModuleVersionIdentifier> visitedModules) {
+        sb.append('[');
+        for (DependencyResult dependencyResult : component.getDependencies()) {
+            if (dependencyResult instanceof ResolvedDependencyResult) {
+                ResolvedComponentResult selected =
+                        ((ResolvedDependencyResult) dependencyResult).getSelected();
+                ModuleVersionIdentifier moduleVersion = selected.getModuleVersion();
+                sb.append(moduleVersion);
+                if (visitedModules.add(moduleVersion)) {
+                    List<ResolvedArtifact> moduleArtifacts = artifacts.get(moduleVersion);
+                    if (moduleArtifacts != null) {
+                        for (ResolvedArtifact artifact : moduleArtifacts) {
+                            sb.append('@').append(artifact.getFile().getPath())
+                                    .append(':').append(artifact.getExtension())
+                                    .append(':').append(artifact.getClassifier());
+                        }
+                    }
+                    appendGraphKey(sb, selected, artifacts, visitedModules);
+                }
+            } else if (dependencyResult instanceof UnresolvedDependencyResult) {
+                sb.append('!').append(
+                        ((UnresolvedDependencyResult) dependencyResult).getAttempted());
+            }
+            sb.append(',');
+        }
+        sb.append(']');
+    }
+
     private static void gatherJarDependencies(
             Set<JarInfo> outJarInfos,
             Collection<JarInfo> inJarInfos,
@@ -1059,4 +1183,65 @@ public class DependencyManager {
         }
         return sb.toString();
     }
+
+    /**
+     * The dependency graph of a variant, shared by the variants with the same resolved
+     * dependencies, and what the computation of the graph recorded in the variant.
+     */
+    @VisibleForTesting
+    static final class ResolvedGraph {
+
+        @NonNull
+        final List<LibraryDependencyImpl> libraries;
+
+        @NonNull
+        final List<JarDependency> jars;
+
+        @NonNull
+        private final List<SyncIssue> syncIssues;
+
+        @NonNull
+        private final Map<ModuleVersionIdentifier, Integer> legacyApiLevels;
+
+        private final boolean annotationsPresent;
+
+        ResolvedGraph(
+                @NonNull List<LibraryDependencyImpl> libraries,
+                @NonNull List<JarDependency> jars,
+                @NonNull List<SyncIssue> syncIssues,
+                @NonNull Map<ModuleVersionIdentifier, Integer> legacyApiLevels,
+                boolean annotationsPresent) {
+            this.libraries = ImmutableList.copyOf(libraries);
+            this.jars = ImmutableList.copyOf(jars);
+            this.syncIssues = ImmutableList.copyOf(syncIssues);
+            this.legacyApiLevels = ImmutableMap.copyOf(legacyApiLevels);
+            this.annotationsPresent = annotationsPresent;
+        }
+
+        /**
+         * Records in another variant what the computation of the graph recorded in its variant.
+         */
+        void addTo(
+                @NonNull VariantDependencies variantDeps,
+                @NonNull Multimap<LibraryDependency, VariantDependencies> reverseMap) {
+            for (SyncIssue syncIssue : syncIssues) {
+                variantDeps.getChecker().addSyncIssue(syncIssue);
+            }
+            variantDeps.getChecker().getLegacyApiLevels().putAll(legacyApiLevels);
+            if (annotationsPresent) {
+                variantDeps.setAnnotationsPresent(true);
+            }
+            addToReverseMap(libraries, variantDeps, reverseMap);
+        }
+
+        private static void addToReverseMap(
+                @NonNull List<? extends LibraryDependency> libraries,
+                @NonNull VariantDependencies variantDeps,
+                @NonNull Multimap<LibraryDependency, VariantDependencies> reverseMap) {
+            for (LibraryDependency library : libraries) {
+                reverseMap.put(library, variantDeps);
+                addToReverseMap(library.getDependencies(), variantDeps, reverseMap);
+            }
+        }
+    }
 }
@@ -17,26 +17,32 @@
 package com.android.build.gradle.internal
 
 import com.android.annotations.NonNull
-import com.android.annotations.concurrency.GuardedBy
-import com.google.common.collect.Maps
+import com.android.builder.dependency.AarCache
+import com.android.manifmerger.ParsedManifestCache
+import com.android.prefs.AndroidLocation
+import com.android.utils.FileUtils
 import org.gradle.api.Project
-import org.gradle.api.file.FileCopyDetails
-import org.gradle.api.file.RelativePath
 
-import java.util.concurrent.CountDownLatch
-
-import static com.android.SdkConstants.FD_JARS
+import static com.android.builder.model.AndroidProject.FD_INTERMEDIATES
 /**
  * Cache to library prepareTask.
  *
  * Each project creates its own version of LibraryDependencyImpl, but they all represent the
- * same library. This creates a single task that will unarchive the aar so that this is done only
- * once even for multi-module projects where 2+ modules depend on the same library.
+ * same library. The aar is exploded once in an {@link AarCache} shared by all the projects of the
+ * build, and the exploded folder of each project is copied from there.
  *
- * The prepareTask is created in the root project always.
+ * The cache is in the build folder of the root project, unless the
+ * com.android.build.sharedAarCache property is set: <code>true</code> to use the cache in
+ * ~/.android/build-cache/aar, shared by all the builds of the machine, or the path of the folder
+ * of the cache. The least recently used aar files are removed from the cache when it grows
+ * over {@link AarCache#MAX_SIZE}.
  */
 public class LibraryCache {
 
+    private static final String SHARED_CACHE_PROPERTY = "com.android.build.sharedAarCache"
+
+    private static final String FD_SHARED_CACHE = "build-cache" + File.separator + "aar"
+
     @NonNull
     private static final LibraryCache sCache = new LibraryCache()
 
@@ -45,59 +51,56 @@ public class LibraryCache {
         return sCache
     }
 
-    public synchronized unload() {
-        bundleLatches.clear();
-    }
-
-    @GuardedBy("this")
-    private final Map<String, CountDownLatch> bundleLatches = Maps.newHashMap()
-
-    public void unzipLibrary(
-            @NonNull String taskName,
-            @NonNull Project project,
-            @NonNull File bundle,
-            @NonNull File folderOut) {
-
-        // only synchronize access to the latch so that unzipping 2+ different
-        // libraries in parallel will work.
-        boolean newItem = false;
-        CountDownLatch latch;
-        synchronized (this) {
-            String path = bundle.getCanonicalPath()
-            latch = bundleLatches.get(path)
-            if (latch == null) {
-                latch = new CountDownLatch(1)
-                bundleLatches.put(path, latch)
-                newItem = true
-            }
-        }
-
-        if (newItem) {
-            try {
-                project.logger.debug("$taskName: ERASE ${folderOut.getPath()}")
+    /** The parsed manifest files, shared by the manifest merges of the build. */
+    @NonNull
+    private final ParsedManifestCache mManifestCache = new ParsedManifestCache()
 
-                unzipAar(bundle, folderOut, project)
+    @NonNull
+    public ParsedManifestCache getManifestCache() {
+        return mManifestCache
+    }
 
-                project.logger.debug("$taskName: UNZIP ${bundle.getPath()} -> ${folderOut.getPath()}")
-            } finally {
-                latch.countDown()
-            }
-        } else {
-            latch.await()
-        }
+    /**
+     * Forgets the exploded aar files and the parsed manifests.
+     */
+    public synchronized unload() {
+        AarCache.unload()
+        mManifestCache.unload()
     }
 
     public static void unzipAar(File bundle, File folderOut, Project project) {
-        folderOut.deleteDir()
-        folderOut.mkdirs()
+        File explodedFolder = AarCache.get(getCacheFolder(project)).getExplodedFolder(bundle)
+        try {
+            AarCache.copyFolder(explodedFolder, folderOut)
+        } catch (IOException e) {
+            // the exploded folder was removed meanwhile, e.g. trimmed by another build sharing
+            // the cache, so explode the aar directly.
+            project.logger.info("Failed to copy ${explodedFolder}: ${e.message}")
+            FileUtils.deleteFolder(folderOut)
+            AarCache.explode(bundle, folderOut)
+        }
+    }
 
-        project.copy {
-            from project.zipTree(bundle)
-            into folderOut
-            filesMatching('**/*.jar') { FileCopyDetails details ->
-                details.relativePath = new RelativePath(false, FD_JARS).plus(details.relativePath)
+    /**
+     * Returns the folder of the cache of exploded aar files used by the given project.
+     */
+    @NonNull
+    public static File getCacheFolder(@NonNull Project project) {
+        if (project.hasProperty(SHARED_CACHE_PROPERTY)) {
+            String value = project.property(SHARED_CACHE_PROPERTY).toString()
+            if (Boolean.TRUE.toString().equals(value)) {
+                try {
+                    return new File(AndroidLocation.getFolder(), FD_SHARED_CACHE)
+                } catch (AndroidLocation.AndroidLocationException e) {
+                    project.logger.error(
+                            "Unable to locate the shared aar cache: " + e.getMessage())
+                }
+            } else if (!Boolean.FALSE.toString().equals(value)) {
+                return project.file(value)
             }
         }
-    }
 
+        return project.rootProject.file(
+                "${project.rootProject.buildDir}/${FD_INTERMEDIATES}/exploded-aar-cache")
+    }
 }
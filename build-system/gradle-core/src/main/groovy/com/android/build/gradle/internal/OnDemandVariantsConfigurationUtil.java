@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.gradle.internal;
+
+import static com.android.builder.model.AndroidProject.PROPERTY_BUILD_MODEL_ONLY;
+import static com.android.builder.model.AndroidProject.PROPERTY_BUILD_MODEL_ONLY_ADVANCED;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.utils.StringHelper;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import org.gradle.api.Project;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Configures which variants of a project are created, from the
+ * com.android.build.onDemandVariants property: <code>true</code> to only create the variants
+ * used by the tasks requested on the command line, e.g. only the freeDebug variant and its tests
+ * for <code>gradle assembleFreeDebug</code>.
+ * <p/>
+ * All the variants are created when one of the requested tasks does not belong to a variant
+ * (assemble, lint, an abbreviated name...), when no task of the project is requested, when the
+ * model is built for the IDE, and when the project publishes all its variants. The default
+ * published variant is always created, for the projects depending on it. Projects used as the
+ * target of a test project must not enable it.
+ */
+public class OnDemandVariantsConfigurationUtil {
+
+    private static final String ON_DEMAND_PROPERTY = "com.android.build.onDemandVariants";
+
+    /**
+     * Returns the names of the variants to create, or null if all the variants must be created.
+     *
+     * @param project the project.
+     * @param variantNames the names of all the variants of the project.
+     * @param defaultPublishedVariant the name of the variant published by default.
+     * @param publishAllVariants whether all the variants are published.
+     */
+    @Nullable
+    public static Set<String> getRequestedVariants(
+            @NonNull Project project,
+            @NonNull Collection<String> variantNames,
+            @NonNull String defaultPublishedVariant,
+            boolean publishAllVariants) {
+        if (publishAllVariants
+                || !isPropertyTrue(project, ON_DEMAND_PROPERTY)
+                || isPropertyTrue(project, PROPERTY_BUILD_MODEL_ONLY)
+                || isPropertyTrue(project, PROPERTY_BUILD_MODEL_ONLY_ADVANCED)) {
+            return null;
+        }
+
+        List<String> taskNames = getTaskNames(
+                project.getPath(), project.getGradle().getStartParameter().getTaskNames());
+        Set<String> variants = selectVariants(variantNames, taskNames);
+        if (variants != null && variantNames.contains(defaultPublishedVariant)) {
+            variants.add(defaultPublishedVariant);
+        }
+        return variants;
+    }
+
+    /**
+     * Returns the names of the requested tasks which belong to a project, without their path.
+     *
+     * @param projectPath the path of the project.
+     * @param requestedTaskNames the names or paths of the requested tasks.
+     */
+    @NonNull
+    static List<String> getTaskNames(
+            @NonNull String projectPath,
+            @NonNull Collection<String> requestedTaskNames) {
+        List<String> taskNames = Lists.newArrayListWithCapacity(requestedTaskNames.size());
+        for (String requestedTaskName : requestedTaskNames) {
+            int index = requestedTaskName.lastIndexOf(':');
+            if (index < 0) {
+                // tasks without a path run in all the projects.
+                taskNames.add(requestedTaskName);
+                continue;
+            }
+
+            String path = requestedTaskName.substring(0, index);
+            if (!path.startsWith(":")) {
+                path = ":" + path;
+            }
+            if (path.equals(projectPath)) {
+                taskNames.add(requestedTaskName.substring(index + 1));
+            }
+        }
+        return taskNames;
+    }
+
+    /**
+     * Returns the variants used by a list of tasks, or null if all the variants must be created
+     * because one of the tasks does not belong to a variant, or because there are no tasks.
+     *
+     * @param variantNames the names of all the variants.
+     * @param taskNames the names of the tasks.
+     */
+    @Nullable
+    static Set<String> selectVariants(
+            @NonNull Collection<String> variantNames,
+            @NonNull Collection<String> taskNames) {
+        if (taskNames.isEmpty()) {
+            return null;
+        }
+
+        Set<String> variants = Sets.newHashSet();
+        for (String taskName : taskNames) {
+            boolean found = false;
+            for (String variantName : variantNames) {
+                // this also selects the tested variant of a test task, and the variants whose
+                // name is included in the name of another variant, which is harmless.
+                if (taskName.contains(StringHelper.capitalize(variantName))) {
+                    variants.add(variantName);
+                    found = true;
+                }
+            }
+            if (!found) {
+                return null;
+            }
+        }
+        return variants;
+    }
+
+    private static boolean isPropertyTrue(@NonNull Project project, @NonNull String name) {
+        return project.hasProperty(name)
+                && Boolean.TRUE.toString().equals(project.property(name).toString());
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.gradle.internal;
+
+import com.android.annotations.NonNull;
+import com.android.builder.core.AndroidBuilder;
+import com.android.builder.internal.compiler.SharedPreDexCache;
+import com.android.prefs.AndroidLocation;
+
+import org.gradle.api.Project;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Configures the pre-dex store shared by all the projects of the machine, from the following
+ * properties:
+ * <ul>
+ *     <li>com.android.build.sharedPreDexCache: <code>true</code> to use the store in
+ *     ~/.android/build-cache/predex, or the path of the folder of the store.</li>
+ *     <li>com.android.build.sharedPreDexCache.maxSizeMb: the size above which the least
+ *     recently used entries are evicted, 2048 by default.</li>
+ *     <li>com.android.build.sharedPreDexCache.maxAgeDays: the number of days after which unused
+ *     entries are evicted, 30 by default.</li>
+ * </ul>
+ * The store is only given to the {@link AndroidBuilder} of the project defining the properties,
+ * so projects of the same build can use different stores, or none.
+ */
+public class PreDexCacheConfigurationUtil {
+
+    private static final String SHARED_CACHE_PROPERTY = "com.android.build.sharedPreDexCache";
+    private static final String MAX_SIZE_PROPERTY = SHARED_CACHE_PROPERTY + ".maxSizeMb";
+    private static final String MAX_AGE_PROPERTY = SHARED_CACHE_PROPERTY + ".maxAgeDays";
+
+    private static final long DEFAULT_MAX_SIZE_MB = 2048;
+    private static final long DEFAULT_MAX_AGE_DAYS = 30;
+
+    private static final String FD_SHARED_CACHE = "build-cache" + File.separator + "predex";
+
+    public static void setSharedCache(
+            @NonNull Project project,
+            @NonNull AndroidBuilder androidBuilder) {
+        if (!project.hasProperty(SHARED_CACHE_PROPERTY)) {
+            androidBuilder.setSharedPreDexCache(null);
+            return;
+        }
+
+        String value = project.property(SHARED_CACHE_PROPERTY).toString();
+        if (Boolean.FALSE.toString().equals(value)) {
+            androidBuilder.setSharedPreDexCache(null);
+            return;
+        }
+
+        File root;
+        if (Boolean.TRUE.toString().equals(value)) {
+            try {
+                root = new File(AndroidLocation.getFolder(), FD_SHARED_CACHE);
+            } catch (AndroidLocation.AndroidLocationException e) {
+                project.getLogger().error(
+                        "Unable to locate the shared pre-dex cache: " + e.getMessage());
+                androidBuilder.setSharedPreDexCache(null);
+                return;
+            }
+        } else {
+            root = project.file(value);
+        }
+
+        long maxSizeMb = getLongProperty(project, MAX_SIZE_PROPERTY, DEFAULT_MAX_SIZE_MB);
+        long maxAgeDays = getLongProperty(project, MAX_AGE_PROPERTY, DEFAULT_MAX_AGE_DAYS);
+
+        androidBuilder.setSharedPreDexCache(SharedPreDexCache.get(
+                root,
+                maxSizeMb * 1024 * 1024,
+                TimeUnit.DAYS.toMillis(maxAgeDays)));
+    }
+
+    private static long getLongProperty(Project project, String name, long defaultValue) {
+        if (!project.hasProperty(name)) {
+            return defaultValue;
+        }
+
+        try {
+            return Long.parseLong(project.property(name).toString());
+        } catch (NumberFormatException e) {
+            project.getLogger().error(name + " should be an integer.");
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.gradle.internal;
+
+import org.gradle.api.Project;
+
+/**
+ * Configures how the R classes of the libraries are generated, from the
+ * com.android.build.rClassBytecode property: <code>true</code> to generate them directly as
+ * bytecode, so that javac does not have to compile them.
+ */
+public class RClassConfigurationUtil {
+
+    private static final String BYTECODE_PROPERTY = "com.android.build.rClassBytecode";
+
+    public static boolean isBytecodeEnabled(Project project) {
+        return project.hasProperty(BYTECODE_PROPERTY)
+                && Boolean.TRUE.toString().equals(project.property(BYTECODE_PROPERTY).toString());
+    }
+}
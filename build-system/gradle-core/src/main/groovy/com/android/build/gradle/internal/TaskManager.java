@@ -811,6 +811,9 @@ public abstract class TaskManager {
         variantOutputData.packageSplitAbiTask.setMergingFolder(
                 new File(scope.getGlobalScope().getIntermediatesDir(),
                         "package-merge/" + variantOutputData.getDirName()));
+        variantOutputData.packageSplitAbiTask.setIncrementalFolder(
+                new File(scope.getGlobalScope().getIntermediatesDir(),
+                        "incremental/package-splits/" + variantOutputData.getDirName()));
         variantOutputData.packageSplitAbiTask.setAndroidBuilder(androidBuilder);
         variantOutputData.packageSplitAbiTask.dependsOn(generateSplitAbiRes);
         variantOutputData.packageSplitAbiTask.dependsOn(scope.getNdkBuildable());
@@ -936,6 +939,10 @@ public abstract class TaskManager {
 
                     // add the class files (whether they are instrumented or not.
                     jar.from(scope.getJavaOutputDir());
+                    File rClassOutputDir = scope.getRClassOutputDir();
+                    if (rClassOutputDir != null) {
+                        jar.from(rClassOutputDir);
+                    }
 
                     jar.setDestinationDir(new File(
                             scope.getGlobalScope().getIntermediatesDir(),
@@ -1726,6 +1733,10 @@ public abstract class TaskManager {
                                 scope.getGlobalScope().getIntermediatesDir(),
                                 "packaged/" + config.getDirName() + "/"));
                         jarTask.from(scope.getJavaOutputDir());
+                        File rClassOutputDir = scope.getRClassOutputDir();
+                        if (rClassOutputDir != null) {
+                            jarTask.from(rClassOutputDir);
+                        }
                         jarTask.dependsOn(scope.getJavacTask().getName());
                         variantData.binayFileProviderTask = jarTask;
                     }
@@ -1756,8 +1767,10 @@ public abstract class TaskManager {
         pcData.setInputFilesCallable(new Callable<List<File>>() {
             @Override
             public List<File> call() {
-                return new ArrayList<File>(
+                List<File> files = new ArrayList<File>(
                         variantData.javacTask.getOutputs().getFiles().getFiles());
+                addRClassOutputDir(scope, files);
+                return files;
             }
 
         });
@@ -1891,6 +1904,17 @@ public abstract class TaskManager {
                 retraceTask);
     }
 
+    /**
+     * Adds the folder of the R classes of the libraries to the given class inputs, if they
+     * are generated as bytecode instead of being compiled with the sources of the variant.
+     */
+    private static void addRClassOutputDir(@NonNull VariantScope scope, @NonNull List<File> files) {
+        File rClassOutputDir = scope.getRClassOutputDir();
+        if (rClassOutputDir != null) {
+            files.add(rClassOutputDir);
+        }
+    }
+
     public PostCompilationData createJacocoTask(
             @NonNull TaskFactory tasks,
             @NonNull final VariantScope scope,
@@ -1913,9 +1937,12 @@ public abstract class TaskManager {
         pcData2.setInputFilesCallable(new Callable<List<File>>() {
             @Override
             public List<File> call() {
-                return new ArrayList<File>(
+                List<File> files = new ArrayList<File>(
                         project.files(scope.getVariantData().jacocoInstrumentTask.getOutputDir())
                                 .getFiles());
+                // the R classes of the libraries are not instrumented.
+                addRClassOutputDir(scope, files);
+                return files;
             }
 
         });
@@ -67,6 +67,7 @@ import java.io.File;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import groovy.lang.Closure;
 
@@ -109,6 +110,10 @@ public class VariantManager implements VariantModel {
     @Nullable
     private SigningConfig signingOverride;
 
+    /** The names of the variants to create, or null to create all the variants. */
+    @Nullable
+    private Set<String> requestedVariants;
+
     public VariantManager(
             @NonNull Project project,
             @NonNull AndroidBuilder androidBuilder,
@@ -438,7 +443,13 @@ public class VariantManager implements VariantModel {
      * Create all variants.
      */
     public void populateVariantDataList() {
+        long startTime = System.currentTimeMillis();
+        int variantCount;
         if (productFlavors.isEmpty()) {
+            variantCount = buildTypes.size();
+            requestedVariants = OnDemandVariantsConfigurationUtil.getRequestedVariants(
+                    project, buildTypes.keySet(), extension.getDefaultPublishConfig(),
+                    isVariantPublished());
             createVariantDataForProductFlavors(Collections.<ProductFlavor>emptyList());
         } else {
             List<String> flavorDimensionList = extension.getFlavorDimensionList();
@@ -461,12 +472,47 @@ public class VariantManager implements VariantModel {
                             flavorDimensionList,
                             flavorDsl);
 
+            List<String> variantNames = Lists.newArrayListWithCapacity(
+                    flavorComboList.size() * buildTypes.size());
+            for (ProductFlavorCombo<CoreProductFlavor>  flavorCombo : flavorComboList) {
+                for (String buildTypeName : buildTypes.keySet()) {
+                    variantNames.add(
+                            computeVariantName(flavorCombo.getFlavorList(), buildTypeName));
+                }
+            }
+            variantCount = variantNames.size();
+            requestedVariants = OnDemandVariantsConfigurationUtil.getRequestedVariants(
+                    project, variantNames, extension.getDefaultPublishConfig(),
+                    isVariantPublished());
+
             for (ProductFlavorCombo<CoreProductFlavor>  flavorCombo : flavorComboList) {
                 //noinspection unchecked
                 createVariantDataForProductFlavors(
                         (List<ProductFlavor>) (List) flavorCombo.getFlavorList());
             }
         }
+
+        project.getLogger().info(String.format(
+                "Created the data of %1$d variants out of %2$d in %3$d ms",
+                variantDataList.size(), variantCount, System.currentTimeMillis() - startTime));
+    }
+
+    /**
+     * Returns the name of the variant of a build type and a list of product flavors, before the
+     * variant is created.
+     */
+    @NonNull
+    private static String computeVariantName(
+            @NonNull List<? extends ProductFlavor> productFlavorList,
+            @NonNull String buildTypeName) {
+        if (productFlavorList.isEmpty()) {
+            return buildTypeName;
+        }
+        StringBuilder sb = new StringBuilder(productFlavorList.get(0).getName());
+        for (int i = 1; i < productFlavorList.size(); i++) {
+            sb.append(StringHelper.capitalize(productFlavorList.get(i).getName()));
+        }
+        return sb.append(StringHelper.capitalize(buildTypeName)).toString();
     }
 
     /**
@@ -691,7 +737,7 @@ public class VariantManager implements VariantModel {
      * @param productFlavorList the flavor(s) to build.
      */
     private void createVariantDataForProductFlavors(
-            @NonNull List<ProductFlavor> productFlavorList) {
+            @NonNull final List<ProductFlavor> productFlavorList) {
 
         BuildTypeData testBuildTypeData = null;
         if (extension instanceof TestedAndroidConfig) {
@@ -718,27 +764,44 @@ public class VariantManager implements VariantModel {
                 ignore = variantFilter.isIgnore();
             }
 
+            if (!ignore && requestedVariants != null) {
+                ignore = !requestedVariants.contains(computeVariantName(
+                        productFlavorList, buildTypeData.getBuildType().getName()));
+            }
+
             if (!ignore) {
-                BaseVariantData<?> variantData = createVariantData(
-                        buildTypeData.getBuildType(),
-                        productFlavorList);
-                variantDataList.add(variantData);
-
-                if (variantFactory.hasTestScope()) {
-                    TestVariantData unitTestVariantData = createTestVariantData(
-                            variantData,
-                            UNIT_TEST);
-                    variantDataList.add(unitTestVariantData);
-
-                    if (buildTypeData == testBuildTypeData) {
-                        GradleVariantConfiguration variantConfig = variantData
-                                .getVariantConfiguration();
-                        if (variantConfig.isMinifyEnabled() && variantConfig.getUseJack()) {
-                            throw new RuntimeException(
-                                    "Cannot test obfuscated variants when compiling with jack.");
-                        }
-                        variantForAndroidTest = variantData;
+                final CoreBuildType buildType = buildTypeData.getBuildType();
+                BaseVariantData<?> variantData = ThreadRecorder.get().record(
+                        ExecutionType.VARIANT_MANAGER_CREATE_VARIANT_DATA,
+                        new Recorder.Block<BaseVariantData<?>>() {
+                            @Override
+                            public BaseVariantData<?> call() throws Exception {
+                                BaseVariantData<?> variantData =
+                                        createVariantData(buildType, productFlavorList);
+                                variantDataList.add(variantData);
+
+                                if (variantFactory.hasTestScope()) {
+                                    TestVariantData unitTestVariantData = createTestVariantData(
+                                            variantData,
+                                            UNIT_TEST);
+                                    variantDataList.add(unitTestVariantData);
+                                }
+                                return variantData;
+                            }
+                        },
+                        new Recorder.Property(SpanRecorders.PROJECT, project.getName()),
+                        new Recorder.Property(SpanRecorders.VARIANT,
+                                computeVariantName(productFlavorList, buildType.getName())));
+
+                if (variantData != null && variantFactory.hasTestScope()
+                        && buildTypeData == testBuildTypeData) {
+                    GradleVariantConfiguration variantConfig = variantData
+                            .getVariantConfiguration();
+                    if (variantConfig.isMinifyEnabled() && variantConfig.getUseJack()) {
+                        throw new RuntimeException(
+                                "Cannot test obfuscated variants when compiling with jack.");
                     }
+                    variantForAndroidTest = variantData;
                 }
             }
         }
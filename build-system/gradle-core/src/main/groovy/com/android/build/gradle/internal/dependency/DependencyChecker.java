@@ -68,6 +68,10 @@ public class DependencyChecker {
         return configurationDependencies;
     }
 
+    public boolean isSkipLibrariesInThePlatform() {
+        return skipLibrariesInThePlatform;
+    }
+
     public void addSyncIssue(SyncIssue syncIssue) {
         if (syncIssue != null) {
             syncIssues.add(syncIssue);
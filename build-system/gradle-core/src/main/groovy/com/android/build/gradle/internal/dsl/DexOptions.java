@@ -35,6 +35,10 @@ public class DexOptions implements com.android.builder.core.DexOptions {
 
     private String javaMaxHeapSize;
 
+    private boolean isDexInProcessFlag = false;
+
+    private boolean isIncrementalClassesFlag = false;
+
     public void setIncremental(boolean isIncremental) {
         isIncrementalFlag = isIncremental;
     }
@@ -107,4 +111,33 @@ public class DexOptions implements com.android.builder.core.DexOptions {
     public Integer getThreadCount() {
         return threadCount;
     }
+
+    public void setDexInProcess(boolean flag) {
+        isDexInProcessFlag = flag;
+    }
+
+    /**
+     * Whether to run dx inside the Gradle JVM, in a pool of warm workers, instead of starting a
+     * new JVM for each dx invocation. Each worker needs {@link #getJavaMaxHeapSize()} (1024M by
+     * default) of the Gradle heap; dx runs in separate processes if the heap is too small.
+     */
+    @Override
+    public boolean getDexInProcess() {
+        return isDexInProcessFlag;
+    }
+
+    public void setIncrementalClasses(boolean flag) {
+        isIncrementalClassesFlag = flag;
+    }
+
+    /**
+     * Whether to dex classes incrementally: the dex output of the classes is kept across builds,
+     * and only the classes that changed are dexed again before being merged with the others.
+     * Unlike {@link #getIncremental()}, this also works when jars change.
+     */
+    @Override
+    @Input
+    public boolean getIncrementalClasses() {
+        return isIncrementalClassesFlag;
+    }
 }
@@ -31,6 +31,7 @@ public class PackagingOptions implements com.android.builder.model.PackagingOpti
     private Set<String> excludes = Sets.newHashSet("LICENSE.txt", "LICENSE");
     private Set<String> pickFirsts = Sets.newHashSet();
     private Set<String> merges = Sets.newHashSet();
+    private boolean incremental = false;
 
     /**
      * Returns the list of excluded paths.
@@ -101,4 +102,19 @@ public class PackagingOptions implements com.android.builder.model.PackagingOpti
     public void merge(String path) {
         merges.add(path);
     }
+
+    /**
+     * Returns whether the APK is packaged incrementally.
+     *
+     * <p>When enabled, the entries of the APK created by the previous build are reused as they
+     * are, without being compressed and digested again, if their origin did not change.
+     */
+    @Input
+    public boolean getIncremental() {
+        return incremental;
+    }
+
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
 }
@@ -31,6 +31,7 @@ import com.android.builder.model.AndroidLibrary;
 import com.android.builder.model.Dependencies;
 import com.android.builder.model.JavaLibrary;
 import com.android.ide.common.caching.CreatingCache;
+import com.google.common.base.Objects;
 import com.google.common.collect.Lists;
 
 import java.io.File;
@@ -46,6 +47,11 @@ import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
 /**
+ * Implementation of the {@link Dependencies} model.
+ * <p/>
+ * The library models, and the dependencies themselves, are shared by all the artifacts and
+ * the variants which have the same dependencies, so that they are only serialized once in the
+ * model sent to the IDE.
  */
 public class DependenciesImpl implements Dependencies, Serializable {
     private static final long serialVersionUID = 1L;
@@ -60,6 +66,12 @@ public class DependenciesImpl implements Dependencies, Serializable {
                 }
             });
 
+    private static final CreatingCache<JavaLibrary, JavaLibrary> sJavaLibraryCache =
+            newInterningCache();
+
+    private static final CreatingCache<DependenciesImpl, DependenciesImpl> sDependenciesCache =
+            newInterningCache();
+
     @NonNull
     private final List<AndroidLibrary> libraries;
     @NonNull
@@ -69,6 +81,8 @@ public class DependenciesImpl implements Dependencies, Serializable {
 
     public static void clearCaches() {
         sCache.clear();
+        sJavaLibraryCache.clear();
+        sDependenciesCache.clear();
     }
 
     @NonNull
@@ -115,8 +129,8 @@ public class DependenciesImpl implements Dependencies, Serializable {
                 if (!customArtifact && jarDep.getProjectPath() != null) {
                     projects.add(jarDep.getProjectPath());
                 } else {
-                    javaLibraries.add(
-                            new JavaLibraryImpl(jarFile, null, jarDep.getResolvedCoordinates()));
+                    javaLibraries.add(intern(sJavaLibraryCache,
+                            new JavaLibraryImpl(jarFile, null, jarDep.getResolvedCoordinates())));
                 }
             }
         }
@@ -124,11 +138,11 @@ public class DependenciesImpl implements Dependencies, Serializable {
         for (JarDependency jarDep : localDeps) {
             // don't include package-only dependencies
             if (jarDep.isCompiled()) {
-                javaLibraries.add(
+                javaLibraries.add(intern(sJavaLibraryCache,
                         new JavaLibraryImpl(
                                 jarDep.getJarFile(),
                                 null,
-                                jarDep.getResolvedCoordinates()));
+                                jarDep.getResolvedCoordinates())));
             }
         }
 
@@ -137,11 +151,13 @@ public class DependenciesImpl implements Dependencies, Serializable {
         if (variantConfig.getRenderscriptSupportModeEnabled()) {
             File supportJar = androidBuilder.getRenderScriptSupportJar();
             if (supportJar != null) {
-                javaLibraries.add(new JavaLibraryImpl(supportJar, null, null));
+                javaLibraries.add(intern(sJavaLibraryCache,
+                        new JavaLibraryImpl(supportJar, null, null)));
             }
         }
 
-        return new DependenciesImpl(libraries, javaLibraries, projects);
+        return intern(sDependenciesCache,
+                new DependenciesImpl(libraries, javaLibraries, projects));
     }
 
     public DependenciesImpl(@NonNull Set<JavaLibrary> javaLibraries) {
@@ -176,6 +192,45 @@ public class DependenciesImpl implements Dependencies, Serializable {
         return projects;
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        DependenciesImpl that = (DependenciesImpl) o;
+        return libraries.equals(that.libraries)
+                && javaLibraries.equals(that.javaLibraries)
+                && projects.equals(that.projects);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(libraries, javaLibraries, projects);
+    }
+
+    /**
+     * Returns the shared instance equal to a value, the value itself if it is the first one.
+     */
+    @NonNull
+    private static <T> T intern(@NonNull CreatingCache<T, T> cache, @NonNull T value) {
+        T sharedValue = cache.get(value);
+        return sharedValue != null ? sharedValue : value;
+    }
+
+    @NonNull
+    private static <T> CreatingCache<T, T> newInterningCache() {
+        return new CreatingCache<T, T>(new CreatingCache.ValueFactory<T, T>() {
+            @Override
+            @NonNull
+            public T create(@NonNull T key) {
+                return key;
+            }
+        });
+    }
+
     @NonNull
     private static AndroidLibrary convertAndroidLibrary(
             @NonNull LibraryDependency libraryDependency) {
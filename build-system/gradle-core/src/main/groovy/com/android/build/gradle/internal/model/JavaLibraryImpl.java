@@ -20,6 +20,7 @@ import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.builder.model.JavaLibrary;
 import com.android.builder.model.MavenCoordinates;
+import com.google.common.base.Objects;
 
 import java.io.File;
 import java.io.Serializable;
@@ -49,6 +50,25 @@ public class JavaLibraryImpl extends LibraryImpl implements JavaLibrary, Seriali
         return Collections.emptyList();
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        JavaLibraryImpl that = (JavaLibraryImpl) o;
+        return jarFile.equals(that.jarFile)
+                && Objects.equal(getRequestedCoordinates(), that.getRequestedCoordinates())
+                && Objects.equal(getResolvedCoordinates(), that.getResolvedCoordinates());
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(jarFile, getRequestedCoordinates(), getResolvedCoordinates());
+    }
+
     @Override
     public String toString() {
         final StringBuffer sb = new StringBuffer("JavaLibraryImpl{");
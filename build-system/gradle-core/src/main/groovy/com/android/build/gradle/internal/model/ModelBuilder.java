@@ -33,6 +33,7 @@ import com.android.build.gradle.internal.core.Abi;
 import com.android.build.gradle.internal.dsl.CoreNdkOptions;
 import com.android.build.gradle.internal.core.GradleVariantConfiguration;
 import com.android.build.gradle.internal.dsl.CoreProductFlavor;
+import com.android.build.gradle.internal.profile.SpanRecorders;
 import com.android.build.gradle.internal.scope.VariantScope;
 import com.android.build.gradle.internal.variant.ApkVariantOutputData;
 import com.android.build.gradle.internal.variant.BaseVariantData;
@@ -57,30 +58,48 @@ import com.android.builder.model.SigningConfig;
 import com.android.builder.model.SourceProvider;
 import com.android.builder.model.SourceProviderContainer;
 import com.android.builder.model.SyncIssue;
+import com.android.builder.profile.ExecutionType;
+import com.android.builder.profile.Recorder;
+import com.android.builder.profile.ThreadRecorder;
 import com.android.sdklib.AndroidVersion;
 import com.android.sdklib.IAndroidTarget;
 import com.google.common.base.Optional;
+import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
 
 import org.gradle.api.Project;
 import org.gradle.tooling.provider.model.ToolingModelBuilder;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Builder for the custom Android model.
+ * <p/>
+ * The model of large projects can be fetched one variant at a time, with the
+ * com.android.build.model.variants property: a comma separated list of the names of the variants
+ * to include in the model, e.g. only the selected variant, then each other variant when it is
+ * selected. The other parts of the model (build types, flavors...) are always included, an empty
+ * list only returns them. The names which match no variant are logged as a warning.
  */
 public class ModelBuilder implements ToolingModelBuilder {
 
+    private static final String MODEL_VARIANTS_PROPERTY = "com.android.build.model.variants";
+
     @NonNull
     private final AndroidBuilder androidBuilder;
     @NonNull
@@ -130,7 +149,19 @@ public class ModelBuilder implements ToolingModelBuilder {
     }
 
     @Override
-    public Object buildAll(String modelName, Project project) {
+    public Object buildAll(String modelName, final Project project) {
+        return ThreadRecorder.get().record(ExecutionType.MODEL_BUILDER_BUILD_ALL,
+                new Recorder.Block<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        return buildAndroidProject(project);
+                    }
+                },
+                new Recorder.Property(SpanRecorders.PROJECT, project.getName()));
+    }
+
+    @NonNull
+    private DefaultAndroidProject buildAndroidProject(@NonNull Project project) {
         Collection<? extends SigningConfig> signingConfigs = config.getSigningConfigs();
 
         // Get the boot classpath. This will ensure the target is configured.
@@ -197,15 +228,67 @@ public class ModelBuilder implements ToolingModelBuilder {
                     extraModelInfo.getExtraFlavorSourceProviders(pfData.getProductFlavor().getName())));
         }
 
+        Set<String> modelVariants = getModelVariants(project);
         for (BaseVariantData<? extends BaseVariantOutputData> variantData : variantManager.getVariantDataList()) {
-            if (!variantData.getType().isForTesting()) {
+            if (!variantData.getType().isForTesting()
+                    && (modelVariants == null || modelVariants.remove(
+                            variantData.getVariantConfiguration().getFullName()))) {
                 androidProject.addVariant(createVariant(variantData));
             }
         }
+        if (modelVariants != null && !modelVariants.isEmpty()) {
+            project.getLogger().warn(String.format(
+                    "Project %s: unknown variants in %s: %s",
+                    project.getName(), MODEL_VARIANTS_PROPERTY, modelVariants));
+        }
 
+        logModelSize(project, androidProject);
         return androidProject;
     }
 
+    /**
+     * Returns the names of the variants to include in the model, or null to include all of them.
+     */
+    @Nullable
+    private static Set<String> getModelVariants(@NonNull Project project) {
+        if (!project.hasProperty(MODEL_VARIANTS_PROPERTY)) {
+            return null;
+        }
+
+        return Sets.newHashSet(Splitter.on(',').trimResults().omitEmptyStrings().split(
+                project.property(MODEL_VARIANTS_PROPERTY).toString()));
+    }
+
+    /**
+     * Logs the size of the serialized model sent to the IDE, with info logging.
+     */
+    private static void logModelSize(
+            @NonNull Project project,
+            @NonNull DefaultAndroidProject androidProject) {
+        if (project.getLogger().isInfoEnabled()) {
+            // serializing the model again is only worth it to measure it.
+            project.getLogger().info(String.format(
+                    "Built the model of project %s with %d variants: %d bytes",
+                    project.getName(), androidProject.getVariants().size(),
+                    getSerializedSize(androidProject)));
+        }
+    }
+
+    /**
+     * Returns the size of the serialized form of a model, or -1 if it cannot be serialized.
+     */
+    static long getSerializedSize(@NonNull Serializable model) {
+        CountingOutputStream counter = new CountingOutputStream(ByteStreams.nullOutputStream());
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(counter);
+            out.writeObject(model);
+            out.close();
+            return counter.getCount();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
     /**
      * Create a map of ABI to NativeToolchain
      */
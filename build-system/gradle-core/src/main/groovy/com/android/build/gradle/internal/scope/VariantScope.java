@@ -21,6 +21,7 @@ import static com.android.builder.model.AndroidProject.FD_OUTPUTS;
 
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
+import com.android.build.gradle.internal.RClassConfigurationUtil;
 import com.android.build.gradle.internal.TaskManager;
 import com.android.build.gradle.internal.core.Abi;
 import com.android.build.gradle.internal.core.GradleVariantConfiguration;
@@ -412,6 +413,21 @@ public class VariantScope {
                 "source/r/" + getVariantConfiguration().getDirName());
     }
 
+    /**
+     * Returns the folder where the R classes of the libraries are generated as bytecode, or null
+     * if they are generated as sources with the R class of the variant.
+     */
+    @Nullable
+    public File getRClassOutputDir() {
+        if (getVariantConfiguration().getType() == VariantType.LIBRARY
+                || getVariantConfiguration().getUseJack()
+                || !RClassConfigurationUtil.isBytecodeEnabled(globalScope.getProject())) {
+            return null;
+        }
+        return new File(globalScope.getIntermediatesDir(),
+                "r-classes/" + getVariantConfiguration().getDirName());
+    }
+
     @NonNull
     public File getAidlSourceOutputDir() {
         return new File(globalScope.getGeneratedDir(),
@@ -31,7 +31,9 @@ import com.android.builder.testing.ConnectedDeviceProvider
 import com.android.builder.testing.api.DeviceConfigProviderImpl
 import com.android.builder.testing.api.DeviceConnector
 import com.android.builder.testing.api.DeviceProvider
+import com.android.ddmlib.ApkContents
 import com.android.ide.common.build.SplitOutputMatcher
+import com.android.ide.common.internal.WaitableExecutor
 import com.android.ide.common.process.ProcessExecutor
 import com.android.utils.ILogger
 import com.google.common.base.Joiner
@@ -89,9 +91,13 @@ public class InstallVariantTask extends BaseTask {
         VariantConfiguration variantConfig = variantData.variantConfiguration
         String variantName = variantConfig.fullName
 
-        int successfulInstallCount = 0;
+        // the installs on all the devices run in parallel, and share the content of the APKs
+        // so that each APK is only read once.
+        List<? extends DeviceConnector> devices = deviceProvider.getDevices()
+        WaitableExecutor<Void> executor = new WaitableExecutor<Void>(devices.size())
+        ApkContents apkContents = new ApkContents()
 
-        for (DeviceConnector device : deviceProvider.getDevices()) {
+        for (DeviceConnector device : devices) {
             if (InstallUtils.checkDeviceApiLevel(
                     device, variantConfig.minSdkVersion, iLogger, projectName, variantName)) {
                 // When InstallUtils.checkDeviceApiLevel returns false, it logs the reason.
@@ -113,20 +119,28 @@ public class InstallVariantTask extends BaseTask {
                             "Installing APK '${Joiner.on(", ").join(apkFiles*.getName())}'" +
                                     " on '${device.getName()}'")
 
-                    List<String> extraArgs = installOptions == null ? ImmutableList.of() :
-                            installOptions;
-                    if (apkFiles.size() > 1 || device.getApiLevel() >= 21) {
-                        device.installPackages(apkFiles, extraArgs, getTimeOutInMs(), getILogger());
-                        successfulInstallCount++
-                    } else {
-                        device.installPackage(apkFiles.get(0), extraArgs, getTimeOutInMs(),
-                                getILogger())
-                        successfulInstallCount++
-                    }
+                    executor.execute(createInstallAction(device, apkFiles, apkContents))
                 }
             }
         }
 
+        int successfulInstallCount = 0;
+        try {
+            Throwable failure = null
+            for (WaitableExecutor.TaskResult<Void> result : executor.waitForAllTasks()) {
+                if (result.exception == null) {
+                    successfulInstallCount++
+                } else if (failure == null) {
+                    failure = result.exception
+                }
+            }
+            if (failure != null) {
+                throw failure
+            }
+        } finally {
+            apkContents.clear()
+        }
+
         if (successfulInstallCount == 0) {
             throw new GradleException("Failed to install on any devices.")
         } else {
@@ -135,6 +149,27 @@ public class InstallVariantTask extends BaseTask {
         }
     }
 
+    private Callable<Void> createInstallAction(
+            final DeviceConnector device,
+            final List<File> apkFiles,
+            final ApkContents apkContents) {
+        return new Callable<Void>() {
+            @Override
+            Void call() throws Exception {
+                List<String> extraArgs = installOptions == null ? ImmutableList.of() :
+                        installOptions;
+                if (apkFiles.size() > 1 || device.getApiLevel() >= 21) {
+                    device.installPackages(apkFiles, apkContents, extraArgs, getTimeOutInMs(),
+                            getILogger())
+                } else {
+                    device.installPackage(apkFiles.get(0), extraArgs, getTimeOutInMs(),
+                            getILogger())
+                }
+                return null
+            }
+        }
+    }
+
     public static class ConfigAction implements TaskConfigAction<InstallVariantTask> {
 
         private final VariantScope scope;
@@ -30,7 +30,6 @@ public class PrepareLibraryTask extends DefaultAndroidTask {
 
     @TaskAction
     public void prepare() {
-        //LibraryCache.getCache().unzipLibrary(this.name, project, getBundle(), getExplodedDir())
         LibraryCache.unzipAar(getBundle(), getExplodedDir(), getProject());
     }
 
@@ -95,6 +95,11 @@ public class Dex extends BaseTask {
             throw new RuntimeException("Dex task '${getName()}: inputDir and inputFiles cannot both be null");
         }
 
+        if (dexOptions.incrementalClasses) {
+            doIncrementalClassesTaskAction(_inputFiles, _inputDir)
+            return
+        }
+
         if (!dexOptions.incremental || !enableIncremental) {
             doTaskAction(_inputFiles, _inputDir, false /*incremental*/)
             return
@@ -142,15 +147,7 @@ public class Dex extends BaseTask {
         File tmpFolder = getTmpFolder()
         tmpFolder.mkdirs()
 
-        // if some of our .jar input files exist, just reset the inputDir to null
-        for (File inputFile : inputFiles) {
-            if (inputFile.exists()) {
-                inputDir = null;
-            }
-        }
-        if (inputDir != null) {
-            inputFiles = project.files(inputDir).files
-        }
+        inputFiles = getActualInputFiles(inputFiles, inputDir)
 
         getBuilder().convertByteCode(
                 inputFiles,
@@ -167,6 +164,43 @@ public class Dex extends BaseTask {
     }
 
 
+    /**
+     * Dexes only the classes that changed since the previous build, whether the inputs changed
+     * or not, and merges them with the dex output of the other classes kept in the tmp folder.
+     */
+    private void doIncrementalClassesTaskAction(
+            @Nullable Collection<File> inputFiles,
+            @Nullable File inputDir) {
+        File outFolder = getOutputFolder()
+        outFolder.mkdirs()
+
+        getBuilder().convertByteCodeIncrementally(
+                getActualInputFiles(inputFiles, inputDir),
+                getLibraries(),
+                outFolder,
+                getMultiDexEnabled(),
+                getMainDexListFile(),
+                getDexOptions(),
+                getAdditionalParameters(),
+                new File(getTmpFolder(), "incremental-classes"),
+                getOptimize())
+    }
+
+    private Collection<File> getActualInputFiles(
+            @Nullable Collection<File> inputFiles,
+            @Nullable File inputDir) {
+        // if some of our .jar input files exist, just reset the inputDir to null
+        for (File inputFile : inputFiles) {
+            if (inputFile.exists()) {
+                inputDir = null;
+            }
+        }
+        if (inputDir != null) {
+            return project.files(inputDir).files
+        }
+        return inputFiles
+    }
+
     public static class ConfigAction implements TaskConfigAction<Dex> {
 
         private final VariantScope scope;
@@ -16,6 +16,7 @@
 package com.android.build.gradle.tasks
 
 import com.android.annotations.NonNull
+import com.android.build.gradle.internal.LibraryCache
 import com.android.build.gradle.internal.dependency.ManifestDependencyImpl
 import com.android.build.gradle.internal.scope.ConventionMappingHelper
 import com.android.build.gradle.internal.scope.TaskConfigAction
@@ -29,6 +30,7 @@ import com.android.builder.core.VariantConfiguration
 import com.android.builder.dependency.LibraryDependency
 import com.android.builder.model.AndroidProject
 import com.android.manifmerger.ManifestMerger2
+import com.android.manifmerger.MergingReport
 import com.google.common.collect.Lists
 import org.gradle.api.tasks.Input
 import org.gradle.api.tasks.InputFile
@@ -125,8 +127,20 @@ public class MergeManifests extends ManifestProcessorTask {
 
     @Override
     protected void doFullTaskAction() {
+        MergingReport mergingReport = createManifestMergerInvoker().merge()
 
-        getBuilder().mergeManifests(
+        getBuilder().saveMergedManifest(
+                mergingReport,
+                getManifestOutputFile().absolutePath,
+                // no appt friendly merged manifest file necessary for applications.
+                null /* aaptFriendlyManifestOutputFile */)
+    }
+
+    /**
+     * Returns the invoker of the manifest merger merging the manifests of this task.
+     */
+    ManifestMerger2.Invoker createManifestMergerInvoker() {
+        return getBuilder().createManifestMergerInvoker(
                 getMainManifest(),
                 getManifestOverlays(),
                 getLibraries(),
@@ -136,12 +150,10 @@ public class MergeManifests extends ManifestProcessorTask {
                 getMinSdkVersion(),
                 getTargetSdkVersion(),
                 getMaxSdkVersion(),
-                getManifestOutputFile().absolutePath,
-                // no appt friendly merged manifest file necessary for applications.
-                null /* aaptFriendlyManifestOutputFile */ ,
                 ManifestMerger2.MergeType.APPLICATION,
                 variantConfiguration.getManifestPlaceholders(),
                 getReportFile())
+                .setParsedManifestCache(LibraryCache.getCache().getManifestCache())
     }
 
     // ----- ConfigAction -----
@@ -17,6 +17,7 @@ package com.android.build.gradle.tasks;
 
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
+import com.android.build.gradle.internal.CrunchCacheConfigurationUtil;
 import com.android.build.gradle.internal.scope.ConventionMappingHelper;
 import com.android.build.gradle.internal.scope.TaskConfigAction;
 import com.android.build.gradle.internal.scope.VariantScope;
@@ -109,7 +110,8 @@ public class MergeResources extends IncrementalTask {
             if (getBuilder().getTargetInfo().getBuildTools().getRevision().getMajor() >= 22) {
                 return QueuedCruncher.Builder.INSTANCE.newCruncher(
                         getBuilder().getTargetInfo().getBuildTools().getPath(
-                                BuildToolInfo.PathId.AAPT), getILogger());
+                                BuildToolInfo.PathId.AAPT), getILogger(),
+                        CrunchCacheConfigurationUtil.getCacheFolder(getProject()));
             }
             getLogger().info("New PNG cruncher will be enabled with build tools 22 and above.");
         }
@@ -130,8 +132,10 @@ public class MergeResources extends IncrementalTask {
         try {
             for (ResourceSet resourceSet : resourceSets) {
                 resourceSet.setNormalizeResources(normalizeResources);
-                // set needs to be loaded.
-                resourceSet.loadFromFiles(getILogger());
+            }
+            // sets need to be loaded. Their files are parsed in parallel.
+            ResourceSet.loadFromFiles(resourceSets, getILogger());
+            for (ResourceSet resourceSet : resourceSets) {
                 merger.addDataSet(resourceSet);
             }
 
@@ -101,6 +101,14 @@ public class PackageApplication extends IncrementalTask implements FileSupplier
         this.mergingFolder = mergingFolder;
     }
 
+    public File getIncrementalFolder() {
+        return incrementalFolder;
+    }
+
+    public void setIncrementalFolder(File incrementalFolder) {
+        this.incrementalFolder = incrementalFolder;
+    }
+
     @OutputFile
     public File getOutputFile() {
         return outputFile;
@@ -134,6 +142,8 @@ public class PackageApplication extends IncrementalTask implements FileSupplier
 
     private File mergingFolder;
 
+    private File incrementalFolder;
+
     @ApkFile
     private File outputFile;
 
@@ -203,11 +213,13 @@ public class PackageApplication extends IncrementalTask implements FileSupplier
     protected void doFullTaskAction() {
         try {
             final File dir = getJavaResourceDir();
+            final File incrementalFolder =
+                    getPackagingOptions().getIncremental() ? getIncrementalFolder() : null;
             getBuilder().packageApk(getResourceFile().getAbsolutePath(), getDexFolder(),
                     getDexedLibraries(), getPackagedJars(),
                     (dir == null ? null : dir.getAbsolutePath()), getJniFolders(),
-                    getMergingFolder(), getAbiFilters(), getJniDebugBuild(), getSigningConfig(),
-                    getPackagingOptions(), getOutputFile().getAbsolutePath());
+                    getMergingFolder(), incrementalFolder, getAbiFilters(), getJniDebugBuild(),
+                    getSigningConfig(), getPackagingOptions(), getOutputFile().getAbsolutePath());
         } catch (DuplicateFileException e) {
             Logger logger = getLogger();
             logger.error("Error: duplicate files during packaging of APK " + getOutputFile()
@@ -322,6 +334,8 @@ public class PackageApplication extends IncrementalTask implements FileSupplier
 
             packageApp.setMergingFolder(new File(scope.getGlobalScope().getIntermediatesDir(),
                     variantOutputData.getFullName() + "/merging"));
+            packageApp.setIncrementalFolder(new File(scope.getGlobalScope().getIntermediatesDir(),
+                    "incremental/package/" + variantOutputData.getFullName()));
 
             // when we use minification, the javaResources are given to the obfuscation task
             // so it has a chance to rename java resources in sync with packages renaming,
@@ -27,6 +27,7 @@ import com.android.builder.model.SigningConfig
 import com.google.common.base.Joiner
 import com.google.common.collect.ImmutableList
 import com.google.common.collect.ImmutableSet
+import com.google.common.collect.Maps
 import com.google.common.util.concurrent.Callables
 import org.gradle.api.tasks.Input
 import org.gradle.api.tasks.InputFiles
@@ -72,6 +73,8 @@ class PackageSplitAbi extends SplitRelatedTask {
 
     File mergingFolder
 
+    File incrementalFolder
+
     @OutputFiles
     public List<File> getOutputFiles() {
         return getOutputSplitFiles()*.getOutputFile();
@@ -118,25 +121,16 @@ class PackageSplitAbi extends SplitRelatedTask {
         final Pattern pattern = Pattern.compile(
                 "resources-${getOutputBaseName()}-(.*).ap_")
         List<String> unprocessedSplits = new ArrayList(splits);
+        Map<File, File> splitFiles = Maps.newLinkedHashMap()
+        Map<File, Set<String>> splitAbis = Maps.newHashMap()
         for (File file : inputFiles) {
             Matcher matcher = pattern.matcher(file.getName());
             if (matcher.matches() && isAbiSplit(file.getName())) {
                 String apkName = getApkName(matcher.group(1))
 
                 File outFile = new File(getOutputDirectory(), apkName);
-                getBuilder().packageApk(
-                        file.absolutePath,
-                        null, /* dexFolder */
-                        null, /* dexedLibraries */
-                        ImmutableList.of(),
-                        null, /* getJavaResourceDir */
-                        getJniFolders(),
-                        getMergingFolder(),
-                        ImmutableSet.of(matcher.group(1)),
-                        getJniDebuggable(),
-                        getSigningConfig(),
-                        getPackagingOptions(),
-                        outFile.absolutePath)
+                splitFiles.put(outFile, file)
+                splitAbis.put(outFile, ImmutableSet.of(matcher.group(1)))
                 unprocessedSplits.remove(matcher.group(1));
             }
         }
@@ -146,6 +140,17 @@ class PackageSplitAbi extends SplitRelatedTask {
             logger.error(message);
             throw new IllegalStateException(message);
         }
+
+        // all the splits are packaged at once, so the native libraries are only looked up
+        // and compressed once.
+        getBuilder().packageSplitApks(
+                splitFiles,
+                splitAbis,
+                getJniFolders(),
+                getPackagingOptions().getIncremental() ? getIncrementalFolder() : null,
+                getJniDebuggable(),
+                getSigningConfig(),
+                getPackagingOptions())
     }
 
     @Override
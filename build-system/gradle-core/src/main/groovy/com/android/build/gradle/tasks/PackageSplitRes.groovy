@@ -23,6 +23,8 @@ import com.android.build.gradle.api.ApkOutputFile
 import com.android.build.gradle.internal.model.FilterDataImpl
 import com.android.builder.model.SigningConfig
 import com.google.common.collect.ImmutableList
+import com.google.common.collect.ImmutableMap
+import com.google.common.collect.Maps
 import com.google.common.util.concurrent.Callables
 import org.gradle.api.tasks.Input
 import org.gradle.api.tasks.InputFiles
@@ -111,10 +113,20 @@ class PackageSplitRes extends SplitRelatedTask {
     @TaskAction
     protected void doFullTaskAction() {
 
+        // the splits are signed in parallel, copying the resources without recompressing them.
+        Map<File, File> splitFiles = Maps.newLinkedHashMap()
         forEachInputFile { String split, File file ->
             File outFile = new File(outputDirectory, this.getOutputFileNameForSplit(split));
-            getBuilder().signApk(file, signingConfig, outFile)
+            splitFiles.put(outFile, file)
         }
+        getBuilder().packageSplitApks(
+                splitFiles,
+                ImmutableMap.<File, Set<String>>of(),
+                null, /* jniLibsFolders */
+                null, /* incrementalFolder */
+                false, /* jniDebugBuild */
+                signingConfig,
+                null /* packagingOptions */)
     }
 
     /**
@@ -60,6 +60,9 @@ public class ProcessAndroidResources extends IncrementalTask {
     @OutputDirectory @Optional
     File sourceOutputDir
 
+    @OutputDirectory @Optional
+    File classOutputDir
+
     @OutputDirectory @Optional
     File textSymbolOutputDir
 
@@ -123,6 +126,10 @@ public class ProcessAndroidResources extends IncrementalTask {
         if (srcOut != null) {
             emptyFolder(srcOut)
         }
+        File classOut = getClassOutputDir()
+        if (classOut != null) {
+            emptyFolder(classOut)
+        }
 
         File resOutBaseNameFile = getPackageOutputFile()
 
@@ -144,6 +151,7 @@ public class ProcessAndroidResources extends IncrementalTask {
                     .setLibraries(getLibraries())
                     .setPackageForR(getPackageForR())
                     .setSourceOutputDir(srcOut?.absolutePath)
+                    .setClassOutputDir(classOut?.absolutePath)
                     .setSymbolOutputDir(getTextSymbolOutputDir()?.absolutePath)
                     .setResPackageOutput(resOutBaseNameFile?.absolutePath)
                     .setProguardOutput(getProguardOutputFile()?.absolutePath)
@@ -218,6 +226,11 @@ public class ProcessAndroidResources extends IncrementalTask {
                     scope.getVariantScope().getRClassSourceOutputDir();
                 }
 
+                // the R classes of the libraries may be generated as bytecode instead.
+                ConventionMappingHelper.map(processResources, "classOutputDir") {
+                    scope.getVariantScope().getRClassOutputDir();
+                }
+
                 ConventionMappingHelper.map(processResources, "textSymbolOutputDir") {
                     symbolLocation
                 }
@@ -44,6 +44,9 @@ import com.android.SdkConstants;
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.annotations.VisibleForTesting;
+import com.android.builder.signing.SignedJarBuilder.IZipEntryFilter;
+import com.android.builder.signing.ZipUtils;
+import com.android.ide.common.internal.WaitableExecutor;
 import com.android.ide.common.resources.ResourceUrl;
 import com.android.ide.common.resources.configuration.DensityQualifier;
 import com.android.ide.common.resources.configuration.FolderConfiguration;
@@ -58,6 +61,7 @@ import com.android.tools.lint.detector.api.LintUtils;
 import com.android.utils.XmlUtils;
 import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
@@ -81,18 +85,21 @@ import org.xml.sax.SAXException;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
-import java.util.jar.JarEntry;
-import java.util.jar.JarInputStream;
-import java.util.jar.JarOutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
@@ -243,6 +250,14 @@ public class ResourceUsageAnalyzer {
      */
     private boolean mGuessKeep = true;
 
+    /**
+     * The resource files, in the order they are scanned in. When several files set the shrink
+     * mode, the last one in this order wins, whatever the order the scans complete in.
+     */
+    private final List<File> mResourceFiles = Lists.newArrayList();
+    /** The shrink mode set by each resource file, recorded concurrently */
+    private final Map<File, String> mShrinkModes = new ConcurrentHashMap<File, String>();
+
     public ResourceUsageAnalyzer(
             @NonNull File rDir,
             @NonNull File classesJar,
@@ -259,9 +274,29 @@ public class ResourceUsageAnalyzer {
     public void analyze() throws IOException, ParserConfigurationException, SAXException {
         gatherResourceValues(mResourceClassDir);
         recordMapping(mProguardMapping);
-        recordUsages(mClassesJar);
-        recordManifestUsages(mMergedManifest);
-        recordResources(mMergedResourceDir);
+
+        // The resource tables are only read from here on, so the classes, the manifest and
+        // each resource file are scanned concurrently, all feeding the same reference graph.
+        WaitableExecutor<Void> executor = new WaitableExecutor<Void>();
+        boolean submitted = false;
+        try {
+            recordUsages(mClassesJar, executor);
+            recordManifestUsages(mMergedManifest, executor);
+            recordResources(mMergedResourceDir, executor);
+            submitted = true;
+        } finally {
+            if (!submitted) {
+                executor.cancelAllTasks();
+            }
+        }
+        waitForTasks(executor);
+        applyShrinkModes();
+
+        // Discarding is applied once everything else has been marked, so that it wins over
+        // the references found in code whatever the order the files were scanned in.
+        for (String discard : mDiscards) {
+            handleRemoveAttribute(discard);
+        }
         keepPossiblyReferencedResources();
         dumpReferences();
         findUnused();
@@ -292,84 +327,60 @@ public class ResourceUsageAnalyzer {
         mDebug = verbose;
     }
 
+    private static void waitForTasks(@NonNull WaitableExecutor<Void> executor)
+            throws IOException, ParserConfigurationException, SAXException {
+        List<WaitableExecutor.TaskResult<Void>> results;
+        try {
+            results = executor.waitForAllTasks();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while analyzing resource usages");
+        }
+
+        for (WaitableExecutor.TaskResult<Void> result : results) {
+            Throwable exception = result.exception;
+            if (exception != null) {
+                Throwables.propagateIfPossible(exception, IOException.class);
+                Throwables.propagateIfPossible(exception, ParserConfigurationException.class,
+                        SAXException.class);
+                throw new RuntimeException(exception);
+            }
+        }
+    }
+
     /**
      * "Removes" resources from an .ap_ file by writing it out while filtering out
      * unused resources. This won't touch the values XML data (resources.arsc) but
      * will remove the individual file-based resources, which is where most of
      * the data is anyway (usually in drawable bitmaps)
+     * <p>
+     * The kept entries are copied without being inflated and deflated again, which also
+     * preserves the files stored uncompressed in the source .ap_ file (for example RAW files
+     * need to remain uncompressed in the APK such that they can be mmap'ed at runtime).
      *
      * @param source the .ap_ file created by aapt
-     * @param dest a new .ap_ file with unused file-based resources removed
+     * @param dest a new .ap_ file with unused file-based resources removed, which can be
+     *             the source file itself
      */
     public void rewriteResourceZip(@NonNull File source, @NonNull File dest)
             throws IOException {
-        if (dest.exists()) {
-            boolean deleted = dest.delete();
-            if (!deleted) {
-                throw new IOException("Could not delete " + dest);
-            }
-        }
-
-        JarInputStream zis = null;
         try {
-            FileInputStream fis = new FileInputStream(source);
-            try {
-                FileOutputStream fos = new FileOutputStream(dest);
-                zis = new JarInputStream(fis);
-                JarOutputStream zos = new JarOutputStream(fos);
-                try {
-                    // Rather than using Deflater.DEFAULT_COMPRESSION we use 9 here,
-                    // since that seems to match the compressed sizes we observe in source
-                    // .ap_ files encountered by the resource shrinker:
-                    zos.setLevel(9);
-
-                    ZipEntry entry = zis.getNextEntry();
-                    while (entry != null) {
-                        String name = entry.getName();
-                        boolean directory = entry.isDirectory();
-                        Resource resource = getResourceByJarPath(name);
-                        if (resource == null || resource.reachable) {
-                            // We can't just compress all files; files that are not
-                            // compressed in the source .ap_ file must be left uncompressed
-                            // here, since for example RAW files need to remain uncompressed in
-                            // the APK such that they can be mmap'ed at runtime.
-                            // Preserve the STORED method of the input entry.
-                            JarEntry outEntry;
-                            if (entry.getMethod() == JarEntry.STORED) {
-                                outEntry = new JarEntry(entry);
-                            } else {
-                                // Create a new entry so that the compressed len is recomputed.
-                                outEntry = new JarEntry(name);
-                                if (entry.getTime() != -1L) {
-                                    outEntry.setTime(entry.getTime());
-                                }
-                            }
-
-                            zos.putNextEntry(outEntry);
-
-                            if (!directory) {
-                                byte[] bytes = ByteStreams.toByteArray(zis);
-                                if (bytes != null) {
-                                    zos.write(bytes);
-                                }
-                            }
-
-                            zos.closeEntry();
-                        } else if (isVerbose()) {
-                            System.out.println("Skipped unused resource " + name + ": "
-                                    + entry.getSize() + " bytes");
-                        }
-                        entry = zis.getNextEntry();
+            ZipUtils.copyZip(source, dest, new IZipEntryFilter() {
+                @Override
+                public boolean checkEntry(String name) {
+                    Resource resource = getResourceByJarPath(name);
+                    if (resource == null || resource.reachable) {
+                        return true;
+                    }
+                    if (isVerbose()) {
+                        System.out.println("Skipped unused resource " + name);
                     }
-                    zos.flush();
-                } finally {
-                    Closeables.close(zos, false);
+                    return false;
                 }
-            } finally {
-                Closeables.close(fis, true);
-            }
-        } finally {
-            Closeables.close(zis, false);
+            });
+        } catch (IZipEntryFilter.ZipAbortException e) {
+            // The filter never aborts
+            throw new IOException(e);
         }
     }
 
@@ -748,7 +759,7 @@ public class ResourceUsageAnalyzer {
     }
 
     private void keepPossiblyReferencedResources() {
-        if ((!mFoundGetIdentifier && !mFoundWebContent) || mStrings == null) {
+        if ((!mFoundGetIdentifier && !mFoundWebContent) || mStrings.isEmpty()) {
             // No calls to android.content.res.Resources#getIdentifier; no need
             // to worry about string references to resources
             return;
@@ -778,17 +789,8 @@ public class ResourceUsageAnalyzer {
             }
         }
 
-        int shortest = Integer.MAX_VALUE;
-        Set<String> names = Sets.newHashSetWithExpectedSize(50);
-        for (Map<String, Resource> map : mTypeToName.values()) {
-            for (String name : map.keySet()) {
-                names.add(name);
-                int length = name.length();
-                if (length < shortest) {
-                    shortest = length;
-                }
-            }
-        }
+        ResourceNameIndex index = new ResourceNameIndex(mResources);
+        int shortest = index.getShortestNameLength();
 
         for (String string : mStrings) {
             if (string.length() < shortest) {
@@ -820,15 +822,12 @@ public class ResourceUsageAnalyzer {
                     }
                     int dot = string.indexOf('.', start);
                     String name = string.substring(start, dot != -1 ? dot : string.length());
-                    if (names.contains(name)) {
-                        for (Map<String, Resource> map : mTypeToName.values()) {
-                            resource = map.get(name);
-                            if (mDebug && resource != null) {
-                                System.out.println("Marking " + resource + " used because it "
-                                        + "matches string pool constant " + string);
-                            }
-                            markReachable(resource);
+                    for (Resource r : index.getResources(name)) {
+                        if (mDebug) {
+                            System.out.println("Marking " + r + " used because it "
+                                    + "matches string pool constant " + string);
                         }
+                        markReachable(r);
                     }
                 }
             }
@@ -863,16 +862,12 @@ public class ResourceUsageAnalyzer {
 
                 // Check for a simple prefix match, e.g. as in
                 // getResources().getIdentifier("ic_video_codec_" + codecName, "drawable", ...)
-                for (Map<String, Resource> map : mTypeToName.values()) {
-                    for (Resource resource : map.values()) {
-                        if (resource.name.startsWith(name)) {
-                            if (mDebug) {
-                                System.out.println("Marking " + resource + " used because its "
-                                        + "prefix matches string pool constant " + string);
-                            }
-                            markReachable(resource);
-                        }
+                for (Resource resource : index.getResourcesWithPrefix(name)) {
+                    if (mDebug) {
+                        System.out.println("Marking " + resource + " used because its "
+                                + "prefix matches string pool constant " + string);
                     }
+                    markReachable(resource);
                 }
             } else if (!haveSlash) {
                 if (formatting) {
@@ -882,16 +877,17 @@ public class ResourceUsageAnalyzer {
 
                     try {
                         Pattern pattern = Pattern.compile(convertFormatStringToRegexp(string));
-                        for (Map<String, Resource> map : mTypeToName.values()) {
-                            for (Resource resource : map.values()) {
-                                if (pattern.matcher(resource.name).matches()) {
-                                    if (mDebug) {
-                                        System.out.println("Marking " + resource + " used because "
-                                                + "it format-string matches string pool constant "
-                                                + string);
-                                    }
-                                    markReachable(resource);
+                        // Only the names starting with the text before the first formatting
+                        // character can match
+                        String prefix = string.substring(0, string.indexOf('%'));
+                        for (Resource resource : index.getResourcesWithPrefix(prefix)) {
+                            if (pattern.matcher(resource.name).matches()) {
+                                if (mDebug) {
+                                    System.out.println("Marking " + resource + " used because "
+                                            + "it format-string matches string pool constant "
+                                            + string);
                                 }
+                                markReachable(resource);
                             }
                         }
                     } catch (PatternSyntaxException ignored) {
@@ -908,7 +904,7 @@ public class ResourceUsageAnalyzer {
                 int slash = string.indexOf('/');
                 assert slash != -1; // checked with haveSlash above
                 name = string.substring(slash + 1);
-                if (name.isEmpty() || !names.contains(name)) {
+                if (name.isEmpty() || !index.contains(name)) {
                     continue;
                 }
                 // See if have a known specific resource type
@@ -931,10 +927,9 @@ public class ResourceUsageAnalyzer {
                 // fall through and check the name
             }
 
-            if (names.contains(name)) {
-                for (Map<String, Resource> map : mTypeToName.values()) {
-                    Resource resource = map.get(name);
-                    if (mDebug && resource != null) {
+            if (index.contains(name)) {
+                for (Resource resource : index.getResources(name)) {
+                    if (mDebug) {
                         System.out.println("Marking " + resource + " used because it "
                                 + "matches string pool constant " + string);
                     }
@@ -1021,21 +1016,22 @@ public class ResourceUsageAnalyzer {
         return false;
     }
 
-    private void recordResources(File resDir)
-            throws IOException, SAXException, ParserConfigurationException {
+    private void recordResources(File resDir, @NonNull WaitableExecutor<Void> executor) {
         File[] resourceFolders = resDir.listFiles();
         if (resourceFolders != null) {
+            // sorted so that the order of the files does not depend on the file system.
+            Arrays.sort(resourceFolders);
             for (File folder : resourceFolders) {
                 ResourceFolderType folderType = ResourceFolderType.getFolderType(folder.getName());
                 if (folderType != null) {
-                    recordResources(folderType, folder);
+                    recordResources(folderType, folder, executor);
                 }
             }
         }
     }
 
-    private void recordResources(@NonNull ResourceFolderType folderType, File folder)
-            throws ParserConfigurationException, SAXException, IOException {
+    private void recordResources(@NonNull final ResourceFolderType folderType, File folder,
+            @NonNull WaitableExecutor<Void> executor) {
         File[] files = folder.listFiles();
         FolderConfiguration config = FolderConfiguration.getConfigForFolder(folder.getName());
         boolean isDefaultFolder = false;
@@ -1053,54 +1049,69 @@ public class ResourceUsageAnalyzer {
         }
 
         if (files != null) {
-            for (File file : files) {
-                String path = file.getPath();
-                boolean isXml = endsWithIgnoreCase(path, DOT_XML);
-
-                Resource from = null;
-                // Record resource for the whole file
-                if (folderType != ResourceFolderType.VALUES
-                        && (isXml
-                            || endsWith(path, DOT_PNG) //also true for endsWith(name, DOT_9PNG)
-                            || endsWith(path, DOT_JPG)
-                            || endsWith(path, DOT_GIF)
-                            || endsWith(path, DOT_JPEG))) {
-                    List<ResourceType> types = FolderTypeRelationship.getRelatedResourceTypes(
-                            folderType);
-                    ResourceType type = types.get(0);
-                    assert type != ResourceType.ID : folderType;
-                    String name = file.getName();
-                    name = name.substring(0, name.indexOf('.'));
-                    Resource resource = getResource(type, name);
-                    if (resource != null) {
-                        resource.addLocation(file);
-                        if (isDefaultFolder) {
-                            resource.hasDefault = true;
-                        }
-                        from = resource;
+            Arrays.sort(files);
+            final boolean isDefault = isDefaultFolder;
+            for (final File file : files) {
+                mResourceFiles.add(file);
+                executor.execute(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        recordResource(folderType, file, isDefault);
+                        return null;
                     }
-                }
+                });
+            }
+        }
+    }
 
-                if (isXml) {
-                    // For value files, and drawables and colors etc also pull in resource
-                    // references inside the file
-                    recordXmlResourcesUsages(file, isDefaultFolder, from);
-                    if (folderType == ResourceFolderType.XML) {
-                        tokenizeUnknownText(Files.toString(file, UTF_8));
-                    }
-                } else if (folderType == ResourceFolderType.RAW) {
-                    // Is this an HTML, CSS or JavaScript document bundled with the app?
-                    // If so tokenize and look for resource references.
-                    if (endsWithIgnoreCase(path, ".html") || endsWithIgnoreCase(path, ".htm")) {
-                        tokenizeHtml(from, Files.toString(file, UTF_8));
-                    } else if (endsWithIgnoreCase(path, ".css")) {
-                        tokenizeCss(from, Files.toString(file, UTF_8));
-                    } else if (endsWithIgnoreCase(path, ".js")) {
-                        tokenizeJs(from, Files.toString(file, UTF_8));
-                    } else if (file.isFile() && !LintUtils.isBitmapFile(file)) {
-                        tokenizeUnknownBinary(file);
-                    }
+    private void recordResource(@NonNull ResourceFolderType folderType, @NonNull File file,
+            boolean isDefaultFolder)
+            throws ParserConfigurationException, SAXException, IOException {
+        String path = file.getPath();
+        boolean isXml = endsWithIgnoreCase(path, DOT_XML);
+
+        Resource from = null;
+        // Record resource for the whole file
+        if (folderType != ResourceFolderType.VALUES
+                && (isXml
+                    || endsWith(path, DOT_PNG) //also true for endsWith(name, DOT_9PNG)
+                    || endsWith(path, DOT_JPG)
+                    || endsWith(path, DOT_GIF)
+                    || endsWith(path, DOT_JPEG))) {
+            List<ResourceType> types = FolderTypeRelationship.getRelatedResourceTypes(
+                    folderType);
+            ResourceType type = types.get(0);
+            assert type != ResourceType.ID : folderType;
+            String name = file.getName();
+            name = name.substring(0, name.indexOf('.'));
+            Resource resource = getResource(type, name);
+            if (resource != null) {
+                resource.addLocation(file);
+                if (isDefaultFolder) {
+                    resource.hasDefault = true;
                 }
+                from = resource;
+            }
+        }
+
+        if (isXml) {
+            // For value files, and drawables and colors etc also pull in resource
+            // references inside the file
+            recordXmlResourcesUsages(file, isDefaultFolder, from);
+            if (folderType == ResourceFolderType.XML) {
+                tokenizeUnknownText(Files.toString(file, UTF_8));
+            }
+        } else if (folderType == ResourceFolderType.RAW) {
+            // Is this an HTML, CSS or JavaScript document bundled with the app?
+            // If so tokenize and look for resource references.
+            if (endsWithIgnoreCase(path, ".html") || endsWithIgnoreCase(path, ".htm")) {
+                tokenizeHtml(from, Files.toString(file, UTF_8));
+            } else if (endsWithIgnoreCase(path, ".css")) {
+                tokenizeCss(from, Files.toString(file, UTF_8));
+            } else if (endsWithIgnoreCase(path, ".js")) {
+                tokenizeJs(from, Files.toString(file, UTF_8));
+            } else if (file.isFile() && !LintUtils.isBitmapFile(file)) {
+                tokenizeUnknownBinary(file);
             }
         }
     }
@@ -1138,11 +1149,17 @@ public class ResourceUsageAnalyzer {
         }
     }
 
-    private void recordManifestUsages(File manifest)
-            throws IOException, ParserConfigurationException, SAXException {
-        String xml = Files.toString(manifest, UTF_8);
-        Document document = XmlUtils.parseDocument(xml, true);
-        recordManifestUsages(document.getDocumentElement());
+    private void recordManifestUsages(final File manifest,
+            @NonNull WaitableExecutor<Void> executor) {
+        executor.execute(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                String xml = Files.toString(manifest, UTF_8);
+                Document document = XmlUtils.parseDocument(xml, true);
+                recordManifestUsages(document.getDocumentElement());
+                return null;
+            }
+        });
     }
 
     private void recordXmlResourcesUsages(@NonNull File file, boolean isDefaultFolder,
@@ -1579,14 +1596,11 @@ public class ResourceUsageAnalyzer {
         }
     }
 
-    private static byte[] sAndroidResBytes;
+    private static final byte[] sAndroidResBytes = ANDROID_RES.getBytes(UTF_8);
 
     /** Look through binary/unknown files looking for resource URLs */
     private void tokenizeUnknownBinary(@NonNull File file) {
         try {
-            if (sAndroidResBytes == null) {
-                sAndroidResBytes = ANDROID_RES.getBytes(SdkConstants.UTF_8);
-            }
             byte[] bytes = Files.toByteArray(file);
             int index = 0;
             while (index != -1) {
@@ -1801,7 +1815,7 @@ public class ResourceUsageAnalyzer {
                     // Ignore tools: namespace attributes, unless it's
                     // a keep attribute
                     if (TOOLS_URI.equals(attr.getNamespaceURI())) {
-                        handleToolsAttribute(attr);
+                        handleToolsAttribute(file, attr);
                         // Skip all other tools: attributes
                         continue;
                     }
@@ -1836,9 +1850,12 @@ public class ResourceUsageAnalyzer {
                 }
             } else {
                 // Look for keep attributes everywhere else since they don't require a source
-                handleToolsAttribute(element.getAttributeNodeNS(TOOLS_URI, ATTR_KEEP));
-                handleToolsAttribute(element.getAttributeNodeNS(TOOLS_URI, ATTR_DISCARD));
-                handleToolsAttribute(element.getAttributeNodeNS(TOOLS_URI, ATTR_SHRINK_MODE));
+                handleToolsAttribute(file,
+                        element.getAttributeNodeNS(TOOLS_URI, ATTR_KEEP));
+                handleToolsAttribute(file,
+                        element.getAttributeNodeNS(TOOLS_URI, ATTR_DISCARD));
+                handleToolsAttribute(file,
+                        element.getAttributeNodeNS(TOOLS_URI, ATTR_SHRINK_MODE));
             }
 
             Resource definition = getResource(element);
@@ -1917,7 +1934,7 @@ public class ResourceUsageAnalyzer {
         }
     }
 
-    private void handleToolsAttribute(@Nullable Attr attr) {
+    private void handleToolsAttribute(@NonNull File file, @Nullable Attr attr) {
         if (attr == null) {
             return;
         }
@@ -1926,8 +1943,22 @@ public class ResourceUsageAnalyzer {
         if (ATTR_KEEP.equals(localName)) {
             handleKeepAttribute(value);
         } else if (ATTR_DISCARD.equals(localName)) {
-            handleRemoveAttribute(value);
+            mDiscards.add(value);
         } else if (ATTR_SHRINK_MODE.equals(localName)) {
+            // the elements of a file are visited in order, so the last value of the file wins.
+            mShrinkModes.put(file, value);
+        }
+    }
+
+    /**
+     * Applies the shrink modes set by the resource files, in the order of the files.
+     */
+    private void applyShrinkModes() {
+        for (File file : mResourceFiles) {
+            String value = mShrinkModes.get(file);
+            if (value == null) {
+                continue;
+            }
             if (VALUE_STRICT.equals(value)) {
                 mGuessKeep = false;
             } else if (VALUE_SAFE.equals(value)) {
@@ -2067,9 +2098,13 @@ public class ResourceUsageAnalyzer {
         }
     }
 
-    private Set<String> mStrings;
-    private boolean mFoundGetIdentifier;
-    private boolean mFoundWebContent;
+    /** The strings found in code and web content, recorded concurrently */
+    private final Set<String> mStrings =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile boolean mFoundGetIdentifier;
+    private volatile boolean mFoundWebContent;
+    /** The tools:discard values, applied once all the references are known */
+    private final Queue<String> mDiscards = new ConcurrentLinkedQueue<String>();
 
     private void referencedString(@NonNull String string) {
         // See if the string is at all eligible; ignore strings that aren't
@@ -2094,9 +2129,6 @@ public class ResourceUsageAnalyzer {
             return;
         }
 
-        if (mStrings == null) {
-            mStrings = Sets.newHashSetWithExpectedSize(300);
-        }
         mStrings.add(string);
 
         if (!mFoundWebContent && string.contains(ANDROID_RES)) {
@@ -2104,7 +2136,8 @@ public class ResourceUsageAnalyzer {
         }
     }
 
-    private void recordUsages(File jarFile) throws IOException {
+    private void recordUsages(final File jarFile, @NonNull WaitableExecutor<Void> executor)
+            throws IOException {
         if (!jarFile.exists()) {
             return;
         }
@@ -2115,19 +2148,25 @@ public class ResourceUsageAnalyzer {
                 zis = new ZipInputStream(fis);
                 ZipEntry entry = zis.getNextEntry();
                 while (entry != null) {
-                    String name = entry.getName();
+                    final String name = entry.getName();
                     if (name.endsWith(DOT_CLASS) &&
                             // Skip resource type classes like R$drawable; they will
                             // reference the integer id's we're looking for, but these aren't
                             // actual usages we need to track; if somebody references the
                             // field elsewhere, we'll catch that
                             !isResourceClass(name)) {
-                        byte[] bytes = ByteStreams.toByteArray(zis);
-                        if (bytes != null) {
-                            ClassReader classReader = new ClassReader(bytes);
-                            classReader.accept(new UsageVisitor(jarFile, name),
-                                    SKIP_DEBUG | SKIP_FRAMES);
-                        }
+                        // The jar is read sequentially, and each class is visited as soon as
+                        // it is read while the next ones are being read.
+                        final byte[] bytes = ByteStreams.toByteArray(zis);
+                        executor.execute(new Callable<Void>() {
+                            @Override
+                            public Void call() throws Exception {
+                                ClassReader classReader = new ClassReader(bytes);
+                                classReader.accept(new UsageVisitor(jarFile, name),
+                                        SKIP_DEBUG | SKIP_FRAMES);
+                                return null;
+                            }
+                        });
                     }
 
                     entry = zis.getNextEntry();
@@ -2334,7 +2373,8 @@ public class ResourceUsageAnalyzer {
         public List<Resource> references;
         public final List<File> declarations = Lists.newArrayList();
 
-        private Resource(ResourceType type, String name, int value) {
+        @VisibleForTesting
+        Resource(ResourceType type, String name, int value) {
             this.type = type;
             this.name = name;
             this.value = value;
@@ -2374,11 +2414,11 @@ public class ResourceUsageAnalyzer {
             return result;
         }
 
-        public void addLocation(@NonNull File file) {
+        public synchronized void addLocation(@NonNull File file) {
             declarations.add(file);
         }
 
-        public void addReference(@Nullable Resource resource) {
+        public synchronized void addReference(@Nullable Resource resource) {
             if (resource != null) {
                 if (references == null) {
                     references = Lists.newArrayList();
@@ -2398,6 +2438,83 @@ public class ResourceUsageAnalyzer {
         }
     }
 
+    /**
+     * Index of the names of all the resources, whatever their type. The names are sorted, so
+     * the resources with a given name, or with names starting with a given prefix, are found
+     * with a binary search instead of a scan of all the resources for each string of the
+     * string pool.
+     */
+    @VisibleForTesting
+    static class ResourceNameIndex {
+        private final String[] mNames;
+        private final Resource[] mResources;
+
+        ResourceNameIndex(@NonNull Collection<Resource> resources) {
+            mResources = resources.toArray(new Resource[resources.size()]);
+            Arrays.sort(mResources, new Comparator<Resource>() {
+                @Override
+                public int compare(Resource resource1, Resource resource2) {
+                    return resource1.name.compareTo(resource2.name);
+                }
+            });
+            mNames = new String[mResources.length];
+            for (int i = 0; i < mResources.length; i++) {
+                mNames[i] = mResources[i].name;
+            }
+        }
+
+        /** Returns the length of the shortest resource name */
+        int getShortestNameLength() {
+            int shortest = Integer.MAX_VALUE;
+            for (String name : mNames) {
+                shortest = Math.min(shortest, name.length());
+            }
+            return shortest;
+        }
+
+        boolean contains(@NonNull String name) {
+            int index = Arrays.binarySearch(mNames, name);
+            return index >= 0;
+        }
+
+        /** Returns the resources of any type named with the given name */
+        @NonNull
+        List<Resource> getResources(@NonNull String name) {
+            int from = lowerBound(name);
+            int to = from;
+            while (to < mNames.length && mNames[to].equals(name)) {
+                to++;
+            }
+            return Arrays.asList(mResources).subList(from, to);
+        }
+
+        /** Returns the resources of any type whose name starts with the given prefix */
+        @NonNull
+        List<Resource> getResourcesWithPrefix(@NonNull String prefix) {
+            int from = lowerBound(prefix);
+            int to = from;
+            while (to < mNames.length && mNames[to].startsWith(prefix)) {
+                to++;
+            }
+            return Arrays.asList(mResources).subList(from, to);
+        }
+
+        /** Returns the index of the first name which is not smaller than the given string */
+        private int lowerBound(@NonNull String string) {
+            int low = 0;
+            int high = mNames.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (mNames[middle].compareTo(string) < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+
     /**
      * Class visitor responsible for looking for resource references in code.
      * It looks for R.type.name references (as well as inlined constants for these,
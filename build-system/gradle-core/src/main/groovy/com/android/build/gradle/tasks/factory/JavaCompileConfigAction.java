@@ -52,6 +52,12 @@ public class JavaCompileConfigAction implements TaskConfigAction<JavaCompile> {
                 FileCollection classpath = scope.getJavaClasspath();
                 Project project = scope.getGlobalScope().getProject();
 
+                // the R classes of the libraries may be generated as bytecode.
+                File rClassOutputDir = scope.getRClassOutputDir();
+                if (rClassOutputDir != null) {
+                    classpath = classpath.plus(project.files(rClassOutputDir));
+                }
+
                 if (testedVariantData != null) {
                     // For libraries, the classpath from androidBuilder includes the library
                     // output (bundle/classes.jar) as a normal dependency. In unit tests we
@@ -63,6 +69,11 @@ public class JavaCompileConfigAction implements TaskConfigAction<JavaCompile> {
                                         testedVariantData.getScope().getJavaClasspath(),
                                         testedVariantData.getScope().getJavaOutputDir(),
                                         testedVariantData.getScope().getJavaDependencyCache()));
+                        File testedRClassOutputDir =
+                                testedVariantData.getScope().getRClassOutputDir();
+                        if (testedRClassOutputDir != null) {
+                            classpath = classpath.plus(project.files(testedRClassOutputDir));
+                        }
                     }
 
                     if (scope.getVariantData().getType().equals(UNIT_TEST)
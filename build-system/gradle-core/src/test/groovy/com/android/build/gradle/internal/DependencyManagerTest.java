@@ -18,12 +18,41 @@ package com.android.build.gradle.internal;
 
 import static org.junit.Assert.*;
 
+import com.android.annotations.NonNull;
+import com.android.build.gradle.internal.dependency.DependencyChecker;
+import com.android.build.gradle.internal.dependency.JarInfo;
+import com.android.build.gradle.internal.dependency.LibInfo;
+import com.android.build.gradle.internal.dependency.LibraryDependencyImpl;
+import com.android.build.gradle.internal.dependency.VariantDependencies;
+import com.android.build.gradle.internal.model.SyncIssueImpl;
+import com.android.builder.dependency.JarDependency;
+import com.android.builder.dependency.LibraryDependency;
+import com.android.builder.model.SyncIssue;
 import com.android.utils.ILogger;
 import com.android.utils.StdLogger;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
 
+import org.gradle.api.artifacts.Configuration;
 import org.gradle.api.artifacts.ModuleVersionIdentifier;
+import org.gradle.api.artifacts.ResolvedArtifact;
+import org.gradle.api.artifacts.result.DependencyResult;
+import org.gradle.api.artifacts.result.ResolvedComponentResult;
+import org.gradle.api.artifacts.result.ResolvedDependencyResult;
 import org.gradle.api.internal.artifacts.DefaultModuleVersionIdentifier;
 import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 public class DependencyManagerTest {
 
@@ -55,4 +84,163 @@ public class DependencyManagerTest {
         assertEquals("..", DependencyManager.normalize(logger, moduleVersionIdentifier, ".."));
         assertEquals("...", DependencyManager.normalize(logger, moduleVersionIdentifier, "..."));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testGraphKey() throws Exception {
+        Map<ModuleVersionIdentifier, List<ResolvedArtifact>> artifacts = Maps.newHashMap();
+        addArtifact(artifacts, "lib", "1.0", "aar");
+        addArtifact(artifacts, "lib", "1.1", "aar");
+        addArtifact(artifacts, "dep", "1.0", "jar");
+
+        // variants with the same resolved dependencies have the same key.
+        String key = DependencyManager.computeGraphKey(
+                mockVariantDeps(createGraph("1.0"), false), null, null, artifacts);
+        assertEquals(key, DependencyManager.computeGraphKey(
+                mockVariantDeps(createGraph("1.0"), false), null, null, artifacts));
+
+        // the resolved versions, the artifacts and the other inputs of the graph are part of
+        // the key.
+        assertFalse(key.equals(DependencyManager.computeGraphKey(
+                mockVariantDeps(createGraph("1.1"), false), null, null, artifacts)));
+        Map<ModuleVersionIdentifier, List<ResolvedArtifact>> otherArtifacts =
+                Maps.newHashMap(artifacts);
+        addArtifact(otherArtifacts, "dep", "1.0", "aar");
+        assertFalse(key.equals(DependencyManager.computeGraphKey(
+                mockVariantDeps(createGraph("1.0"), false), null, null, otherArtifacts)));
+        assertFalse(key.equals(DependencyManager.computeGraphKey(
+                mockVariantDeps(createGraph("1.0"), true), null, null, artifacts)));
+        assertFalse(key.equals(DependencyManager.computeGraphKey(
+                mockVariantDeps(createGraph("1.0"), false), null, ":app", artifacts)));
+    }
+
+    @Test
+    public void testResolvedGraphAddTo() throws Exception {
+        LibraryDependencyImpl child = createLibrary("child", ImmutableList.<LibraryDependency>of());
+        LibraryDependencyImpl library = createLibrary("lib",
+                ImmutableList.<LibraryDependency>of(child));
+        SyncIssue syncIssue = new SyncIssueImpl(
+                SyncIssue.TYPE_UNRESOLVED_DEPENDENCY, SyncIssue.SEVERITY_ERROR, "missing", "");
+        ModuleVersionIdentifier android =
+                new DefaultModuleVersionIdentifier("com.google.android", "android", "4.1");
+        DependencyManager.ResolvedGraph graph = new DependencyManager.ResolvedGraph(
+                ImmutableList.of(library),
+                ImmutableList.<JarDependency>of(),
+                ImmutableList.of(syncIssue),
+                ImmutableMap.of(android, 16),
+                true /*annotationsPresent*/);
+
+        // a variant sharing the graph gets what was recorded while computing it.
+        VariantDependencies variantDeps = mockVariantDeps(createGraph("1.0"), false);
+        Multimap<LibraryDependency, VariantDependencies> reverseMap = ArrayListMultimap.create();
+        graph.addTo(variantDeps, reverseMap);
+
+        assertEquals(ImmutableList.of(syncIssue), variantDeps.getChecker().getSyncIssues());
+        assertEquals(ImmutableMap.of(android, 16), variantDeps.getChecker().getLegacyApiLevels());
+        Mockito.verify(variantDeps).setAnnotationsPresent(true);
+        assertEquals(ImmutableList.of(variantDeps), reverseMap.get(library));
+        assertEquals(ImmutableList.of(variantDeps), reverseMap.get(child));
+    }
+
+    @Test
+    public void testLibrariesAreInterned() throws Exception {
+        Interner<LibraryDependencyImpl> interner = Interners.newStrongInterner();
+        Multimap<LibraryDependency, VariantDependencies> reverseMap = ArrayListMultimap.create();
+        VariantDependencies variantDeps = mockVariantDeps(createGraph("1.0"), false);
+
+        LibInfo child = createLibInfo("child", ImmutableList.<LibraryDependency>of());
+        LibInfo library = createLibInfo("lib", ImmutableList.<LibraryDependency>of(child));
+        reverseMap.put(library, variantDeps);
+        List<LibraryDependencyImpl> first = DependencyManager.convertLibraryInfoIntoDependency(
+                ImmutableList.of(library), reverseMap, interner);
+
+        // the same libraries, from the graph of another variant.
+        LibInfo otherChild = createLibInfo("child", ImmutableList.<LibraryDependency>of());
+        LibInfo otherLibrary = createLibInfo("lib",
+                ImmutableList.<LibraryDependency>of(otherChild));
+        List<LibraryDependencyImpl> second = DependencyManager.convertLibraryInfoIntoDependency(
+                ImmutableList.of(otherLibrary), reverseMap, interner);
+        assertSame(first.get(0), second.get(0));
+        assertSame(first.get(0).getDependencies().get(0),
+                second.get(0).getDependencies().get(0));
+
+        // a different library only shares the identical dependencies.
+        LibInfo thirdChild = createLibInfo("child", ImmutableList.<LibraryDependency>of());
+        LibInfo thirdLibrary = createLibInfo("other",
+                ImmutableList.<LibraryDependency>of(thirdChild));
+        List<LibraryDependencyImpl> third = DependencyManager.convertLibraryInfoIntoDependency(
+                ImmutableList.of(thirdLibrary), reverseMap, interner);
+        assertNotSame(first.get(0), third.get(0));
+        assertSame(first.get(0).getDependencies().get(0),
+                third.get(0).getDependencies().get(0));
+
+        // the reverse map refers to the converted libraries.
+        assertFalse(reverseMap.containsKey(library));
+        assertEquals(ImmutableList.of(variantDeps), reverseMap.get(first.get(0)));
+    }
+
+    /**
+     * Returns the resolved graph of a variant depending on lib, which depends on dep.
+     */
+    @NonNull
+    private static ResolvedComponentResult createGraph(@NonNull String libVersion) {
+        ResolvedComponentResult dep = mockComponent("dep", "1.0");
+        ResolvedComponentResult lib = mockComponent("lib", libVersion, dep);
+        return mockComponent("app", "unspecified", lib);
+    }
+
+    @NonNull
+    private static ResolvedComponentResult mockComponent(@NonNull String name,
+            @NonNull String version, @NonNull ResolvedComponentResult... dependencies) {
+        ResolvedComponentResult component = Mockito.mock(ResolvedComponentResult.class);
+        Mockito.when(component.getModuleVersion()).thenReturn(
+                new DefaultModuleVersionIdentifier("com.example", name, version));
+        ImmutableSet.Builder<DependencyResult> results = ImmutableSet.builder();
+        for (ResolvedComponentResult dependency : dependencies) {
+            ResolvedDependencyResult result = Mockito.mock(ResolvedDependencyResult.class);
+            Mockito.when(result.getSelected()).thenReturn(dependency);
+            results.add(result);
+        }
+        Mockito.doReturn(results.build()).when(component).getDependencies();
+        return component;
+    }
+
+    @NonNull
+    private static VariantDependencies mockVariantDeps(@NonNull ResolvedComponentResult root,
+            boolean skipLibrariesInThePlatform) {
+        VariantDependencies variantDeps = Mockito.mock(VariantDependencies.class);
+        Mockito.when(variantDeps.getChecker()).thenReturn(
+                new DependencyChecker(variantDeps, skipLibrariesInThePlatform));
+        Configuration compile = Mockito.mock(Configuration.class, Mockito.RETURNS_DEEP_STUBS);
+        Mockito.when(compile.getIncoming().getResolutionResult().getRoot()).thenReturn(root);
+        Configuration packaged = Mockito.mock(Configuration.class, Mockito.RETURNS_DEEP_STUBS);
+        Mockito.when(packaged.getIncoming().getResolutionResult().getRoot()).thenReturn(root);
+        Mockito.when(variantDeps.getCompileConfiguration()).thenReturn(compile);
+        Mockito.when(variantDeps.getPackageConfiguration()).thenReturn(packaged);
+        return variantDeps;
+    }
+
+    private static void addArtifact(
+            @NonNull Map<ModuleVersionIdentifier, List<ResolvedArtifact>> artifacts,
+            @NonNull String name, @NonNull String version, @NonNull String extension) {
+        ResolvedArtifact artifact = Mockito.mock(ResolvedArtifact.class);
+        Mockito.when(artifact.getFile()).thenReturn(
+                new File(name + "-" + version + "." + extension));
+        Mockito.when(artifact.getExtension()).thenReturn(extension);
+        artifacts.put(new DefaultModuleVersionIdentifier("com.example", name, version),
+                ImmutableList.of(artifact));
+    }
+
+    @NonNull
+    private static LibraryDependencyImpl createLibrary(@NonNull String name,
+            @NonNull List<LibraryDependency> dependencies) {
+        return new LibraryDependencyImpl(new File(name + ".aar"), new File(name), dependencies,
+                name, null, null, null, null, false);
+    }
+
+    @NonNull
+    private static LibInfo createLibInfo(@NonNull String name,
+            @NonNull List<LibraryDependency> dependencies) {
+        return new LibInfo(new File(name + ".aar"), new File(name), dependencies,
+                Collections.<JarInfo>emptyList(), name, null, null, null, null);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.gradle.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+public class OnDemandVariantsConfigurationUtilTest {
+
+    private static final List<String> VARIANTS = ImmutableList.of(
+            "freeDebug", "freeRelease", "paidDebug", "paidRelease");
+
+    @Test
+    public void getTaskNames() {
+        assertEquals(
+                ImmutableList.of("assembleFreeDebug", "lint", "installPaidDebug"),
+                OnDemandVariantsConfigurationUtil.getTaskNames(":app", ImmutableList.of(
+                        "assembleFreeDebug",
+                        ":app:lint",
+                        "app:installPaidDebug",
+                        ":lib:assembleRelease",
+                        ":assembleDebug")));
+        assertEquals(
+                ImmutableList.of("assembleDebug"),
+                OnDemandVariantsConfigurationUtil.getTaskNames(":", ImmutableList.of(
+                        ":app:lint",
+                        ":assembleDebug")));
+    }
+
+    @Test
+    public void selectVariants() {
+        assertEquals(ImmutableSet.of("freeDebug"),
+                OnDemandVariantsConfigurationUtil.selectVariants(VARIANTS,
+                        ImmutableList.of("assembleFreeDebug")));
+        assertEquals(ImmutableSet.of("freeDebug", "paidRelease"),
+                OnDemandVariantsConfigurationUtil.selectVariants(VARIANTS,
+                        ImmutableList.of("testFreeDebugUnitTest", "installPaidRelease")));
+    }
+
+    @Test
+    public void selectAllVariants() {
+        // no tasks.
+        assertNull(OnDemandVariantsConfigurationUtil.selectVariants(VARIANTS,
+                Collections.<String>emptyList()));
+        // a task which does not belong to a variant.
+        assertNull(OnDemandVariantsConfigurationUtil.selectVariants(VARIANTS,
+                ImmutableList.of("assembleFreeDebug", "assemble")));
+        // an abbreviated task name.
+        assertNull(OnDemandVariantsConfigurationUtil.selectVariants(VARIANTS,
+                ImmutableList.of("aFD")));
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.gradle.internal.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.android.annotations.NonNull;
+import com.android.build.gradle.internal.core.GradleVariantConfiguration;
+import com.android.build.gradle.internal.dependency.LibraryDependencyImpl;
+import com.android.build.gradle.internal.dependency.VariantDependencies;
+import com.android.build.gradle.internal.variant.BaseVariantData;
+import com.android.builder.core.AndroidBuilder;
+import com.android.builder.dependency.JarDependency;
+import com.android.builder.model.JavaLibrary;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+public class ModelBuilderTest {
+
+    @After
+    public void tearDown() {
+        DependenciesImpl.clearCaches();
+    }
+
+    @Test
+    public void javaLibraryEquality() {
+        MavenCoordinatesImpl coordinates = new MavenCoordinatesImpl("com.example", "lib", "1.0");
+        JavaLibraryImpl library = new JavaLibraryImpl(new File("lib.jar"), null, coordinates);
+        assertEquals(library, new JavaLibraryImpl(new File("lib.jar"), null, coordinates));
+        assertEquals(library.hashCode(),
+                new JavaLibraryImpl(new File("lib.jar"), null, coordinates).hashCode());
+        assertTrue(!library.equals(new JavaLibraryImpl(new File("lib.jar"), null, null)));
+        assertTrue(!library.equals(new JavaLibraryImpl(new File("other.jar"), null, coordinates)));
+    }
+
+    @Test
+    public void sharedLibrariesSize() {
+        int variants = 20;
+        int libraries = 200;
+
+        // each variant has its own copy of the libraries, as before they were shared.
+        ArrayList<DependenciesImpl> copies = Lists.newArrayList();
+        for (int i = 0; i < variants; i++) {
+            copies.add(new DependenciesImpl(createLibraries(libraries)));
+        }
+
+        // the variants share the same libraries.
+        Set<JavaLibrary> sharedLibraries = createLibraries(libraries);
+        ArrayList<DependenciesImpl> shared = Lists.newArrayList();
+        for (int i = 0; i < variants; i++) {
+            shared.add(new DependenciesImpl(sharedLibraries));
+        }
+
+        long copiesSize = ModelBuilder.getSerializedSize(copies);
+        long sharedSize = ModelBuilder.getSerializedSize(shared);
+        assertTrue(sharedSize > 0);
+        assertTrue(sharedSize * 5 < copiesSize);
+    }
+
+    @Test
+    public void sharedDependencies() {
+        AndroidBuilder androidBuilder = Mockito.mock(AndroidBuilder.class);
+        JarDependency lib = createJarDependency("lib");
+        JarDependency other = createJarDependency("other");
+
+        // variants with equal dependencies share the same instances.
+        DependenciesImpl first = DependenciesImpl.cloneDependencies(
+                mockVariantData(createJarDependency("lib")), androidBuilder);
+        DependenciesImpl second = DependenciesImpl.cloneDependencies(
+                mockVariantData(lib), androidBuilder);
+        assertSame(first, second);
+
+        // different dependencies only share the equal libraries.
+        DependenciesImpl third = DependenciesImpl.cloneDependencies(
+                mockVariantData(lib, other), androidBuilder);
+        assertNotSame(first, third);
+        List<JavaLibrary> firstLibraries = Lists.newArrayList(first.getJavaLibraries());
+        List<JavaLibrary> thirdLibraries = Lists.newArrayList(third.getJavaLibraries());
+        assertEquals(2, thirdLibraries.size());
+        assertSame(firstLibraries.get(0), thirdLibraries.get(0));
+        assertEquals(new File("other.jar"), thirdLibraries.get(1).getJarFile());
+    }
+
+    @NonNull
+    private static BaseVariantData mockVariantData(@NonNull JarDependency... jars) {
+        VariantDependencies variantDependencies = Mockito.mock(VariantDependencies.class);
+        Mockito.when(variantDependencies.getLibraries())
+                .thenReturn(Collections.<LibraryDependencyImpl>emptyList());
+        Mockito.when(variantDependencies.getJarDependencies())
+                .thenReturn(ImmutableList.copyOf(jars));
+        Mockito.when(variantDependencies.getLocalDependencies())
+                .thenReturn(Collections.<JarDependency>emptyList());
+
+        BaseVariantData variantData = Mockito.mock(BaseVariantData.class);
+        Mockito.when(variantData.getVariantDependency()).thenReturn(variantDependencies);
+        Mockito.when(variantData.getVariantConfiguration())
+                .thenReturn(Mockito.mock(GradleVariantConfiguration.class));
+        return variantData;
+    }
+
+    @NonNull
+    private static JarDependency createJarDependency(@NonNull String name) {
+        return new JarDependency(new File(name + ".jar"), true /*compiled*/, true /*packaged*/,
+                new MavenCoordinatesImpl("com.example", name, "1.0"), null /*projectPath*/);
+    }
+
+    private static Set<JavaLibrary> createLibraries(int count) {
+        Set<JavaLibrary> libraries = Sets.newLinkedHashSet();
+        for (int i = 0; i < count; i++) {
+            libraries.add(new JavaLibraryImpl(
+                    new File("/libs/lib" + i + ".jar"),
+                    null,
+                    new MavenCoordinatesImpl("com.example", "lib" + i, "1.0")));
+        }
+        return libraries;
+    }
+}
@@ -22,8 +22,11 @@ import static com.android.build.gradle.tasks.ResourceUsageAnalyzer.convertFormat
 import static java.io.File.separatorChar;
 
 import com.android.annotations.NonNull;
+import com.android.resources.ResourceType;
 import com.google.common.base.Charsets;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
 
 import junit.framework.TestCase;
@@ -32,10 +35,14 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.jar.JarOutputStream;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
@@ -245,6 +252,10 @@ public class ResourceUsageAnalyzerTest extends TestCase {
                     + "res/xml/android_wear_micro_apk.xml\n",
                     dumpZipContents(compressedFile));
 
+            // Rewriting in place gives the same archive
+            analyzer.rewriteResourceZip(uncompressedFile, uncompressedFile);
+            assertEquals(dumpZipContents(compressedFile), dumpZipContents(uncompressedFile));
+
             uncompressedFile.delete();
             compressedFile.delete();
         }
@@ -252,6 +263,56 @@ public class ResourceUsageAnalyzerTest extends TestCase {
         deleteDir(dir);
     }
 
+    public void testRewriteResourceZipKeepsCompression() throws Exception {
+        File dir = Files.createTempDir();
+        try {
+            byte[] raw = "raw content".getBytes(Charsets.UTF_8);
+            CRC32 crc = new CRC32();
+            crc.update(raw);
+            File source = new File(dir, "resources.ap_");
+            ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(source));
+            try {
+                ZipEntry stored = new ZipEntry("res/raw/my_raw.dat");
+                stored.setMethod(ZipEntry.STORED);
+                stored.setSize(raw.length);
+                stored.setCrc(crc.getValue());
+                zos.putNextEntry(stored);
+                zos.write(raw);
+                zos.closeEntry();
+                zos.putNextEntry(new ZipEntry("res/layout/main.xml"));
+                zos.write("<LinearLayout/>".getBytes(Charsets.UTF_8));
+                zos.closeEntry();
+            } finally {
+                zos.close();
+            }
+
+            // Without an analysis no resource is known to be unused, so every entry is kept.
+            File dest = new File(dir, "out.ap_");
+            ResourceUsageAnalyzer analyzer = new ResourceUsageAnalyzer(dir, dest, dest, null,
+                    dir);
+            analyzer.rewriteResourceZip(source, dest);
+
+            ZipFile zipFile = new ZipFile(dest);
+            try {
+                assertEquals(2, zipFile.size());
+                ZipEntry stored = zipFile.getEntry("res/raw/my_raw.dat");
+                assertEquals(ZipEntry.STORED, stored.getMethod());
+                assertEquals(raw.length, stored.getCompressedSize());
+                assertTrue(Arrays.equals(raw,
+                        ByteStreams.toByteArray(zipFile.getInputStream(stored))));
+                ZipEntry deflated = zipFile.getEntry("res/layout/main.xml");
+                assertEquals(ZipEntry.DEFLATED, deflated.getMethod());
+                assertEquals("<LinearLayout/>", new String(
+                        ByteStreams.toByteArray(zipFile.getInputStream(deflated)),
+                        Charsets.UTF_8));
+            } finally {
+                zipFile.close();
+            }
+        } finally {
+            deleteDir(dir);
+        }
+    }
+
     private static String dumpZipContents(File zipFile) throws IOException {
         StringBuilder sb = new StringBuilder();
 
@@ -910,6 +971,84 @@ public class ResourceUsageAnalyzerTest extends TestCase {
                 + "    boolean onOptionsItemSelected(android.view.MenuItem) -> onOptionsItemSelected");
     }
 
+    public void testShrinkModeFollowsFileOrder() throws Exception {
+        // the last file setting the mode wins, whatever the order the files are scanned in.
+        assertTrue(isDynamicNameKept("strict", "safe"));
+        assertFalse(isDynamicNameKept("safe", "strict"));
+    }
+
+    /**
+     * Analyzes resources where the only reference to @string/dynamic_name is a string of web
+     * content, with the shrink mode of the first and second values files, and returns whether
+     * the string was guessed to be referenced.
+     */
+    private static boolean isDynamicNameKept(String firstMode, String secondMode)
+            throws Exception {
+        File dir = Files.createTempDir();
+        try {
+            File rDir = new File(dir, "r");
+            createFile(rDir, "com/example/R.java", ""
+                    + "package com.example;\n"
+                    + "\n"
+                    + "public final class R {\n"
+                    + "    public static final class string {\n"
+                    + "        public static final int dynamic_name=0x7f050000;\n"
+                    + "    }\n"
+                    + "}\n");
+            File classesJar = new File(dir, "classes.jar");
+            new JarOutputStream(new FileOutputStream(classesJar)).close();
+            File manifest = createFile(dir, "AndroidManifest.xml",
+                    "<manifest package=\"com.example\"/>");
+            File resources = new File(dir, "res");
+            createFile(resources, "values/a.xml", ""
+                    + "<resources xmlns:tools=\"http://schemas.android.com/tools\"\n"
+                    + "    tools:shrinkMode=\"" + firstMode + "\">\n"
+                    + "    <string name=\"dynamic_name\">Dynamic</string>\n"
+                    + "</resources>");
+            createFile(resources, "values/b.xml", ""
+                    + "<resources xmlns:tools=\"http://schemas.android.com/tools\"\n"
+                    + "    tools:shrinkMode=\"" + secondMode + "\"/>");
+            createFile(resources, "raw/script.js", ""
+                    + "var base = \"file:///android_res/raw/\";\n"
+                    + "var name = \"dynamic_name\";\n");
+
+            ResourceUsageAnalyzer analyzer = new ResourceUsageAnalyzer(rDir, classesJar,
+                    manifest, null, resources);
+            analyzer.analyze();
+            String model = analyzer.dumpResourceModel();
+            assertTrue(model, model.contains("@string/dynamic_name : reachable="));
+            return model.contains("@string/dynamic_name : reachable=true");
+        } finally {
+            deleteDir(dir);
+        }
+    }
+
+    public void testResourceNameIndex() {
+        Resource layout = new Resource(ResourceType.LAYOUT, "main", 1);
+        Resource string = new Resource(ResourceType.STRING, "main", 2);
+        Resource prefixed = new Resource(ResourceType.DRAWABLE, "main_icon", 3);
+        Resource other = new Resource(ResourceType.STRING, "title", 4);
+        ResourceUsageAnalyzer.ResourceNameIndex index = new ResourceUsageAnalyzer
+                .ResourceNameIndex(Arrays.asList(other, prefixed, string, layout));
+
+        assertEquals(4, index.getShortestNameLength());
+        assertTrue(index.contains("main"));
+        assertTrue(index.contains("title"));
+        assertFalse(index.contains("mai"));
+        assertFalse(index.contains("zzz"));
+
+        assertEquals(Sets.newHashSet(layout, string), Sets.newHashSet(index.getResources("main")));
+        assertEquals(Collections.singletonList(other), index.getResources("title"));
+        assertTrue(index.getResources("icon").isEmpty());
+
+        assertEquals(Sets.newHashSet(layout, string, prefixed),
+                Sets.newHashSet(index.getResourcesWithPrefix("main")));
+        assertEquals(Collections.singletonList(prefixed),
+                index.getResourcesWithPrefix("main_"));
+        assertEquals(4, index.getResourcesWithPrefix("").size());
+        assertTrue(index.getResourcesWithPrefix("z").isEmpty());
+    }
+
     public void testFormatStringRegexp() {
         assertEquals(NO_MATCH, convertFormatStringToRegexp(""));
         assertEquals("\\Qfoo_\\E", convertFormatStringToRegexp("foo_"));
@@ -30,6 +30,7 @@ import com.android.build.gradle.internal.ExtraModelInfo;
 import com.android.build.gradle.internal.LibraryCache;
 import com.android.build.gradle.internal.LoggerWrapper;
 import com.android.build.gradle.internal.NdkOptionsHelper;
+import com.android.build.gradle.internal.PreDexCacheConfigurationUtil;
 import com.android.build.gradle.internal.SdkHandler;
 import com.android.build.gradle.internal.TaskManager;
 import com.android.build.gradle.internal.VariantManager;
@@ -282,11 +283,13 @@ public class BaseComponentModelPlugin implements Plugin<Project> {
             String creator = "Android Gradle";
             ILogger logger = new LoggerWrapper(project.getLogger());
 
-            return new AndroidBuilder(project.equals(project.getRootProject()) ? project.getName()
+            AndroidBuilder androidBuilder = new AndroidBuilder(
+                    project.equals(project.getRootProject()) ? project.getName()
                     : project.getPath(), creator, new GradleProcessExecutor(project),
                     new GradleJavaProcessExecutor(project), new LoggedProcessOutputHandler(logger),
                     extraModelInfo, logger, project.getLogger().isEnabled(LogLevel.INFO));
-
+            PreDexCacheConfigurationUtil.setSharedCache(project, androidBuilder);
+            return androidBuilder;
         }
 
         @Mutate
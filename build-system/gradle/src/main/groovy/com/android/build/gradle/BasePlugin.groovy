@@ -25,6 +25,7 @@ import com.android.build.gradle.internal.ExecutionConfigurationUtil
 import com.android.build.gradle.internal.ExtraModelInfo
 import com.android.build.gradle.internal.LibraryCache
 import com.android.build.gradle.internal.LoggerWrapper
+import com.android.build.gradle.internal.PreDexCacheConfigurationUtil
 import com.android.build.gradle.internal.SdkHandler
 import com.android.build.gradle.internal.TaskContainerAdaptor
 import com.android.build.gradle.internal.TaskManager
@@ -308,6 +309,7 @@ public abstract class BasePlugin {
         project.gradle.taskGraph.whenReady { TaskExecutionGraph taskGraph ->
             for (Task task : taskGraph.allTasks) {
                 if (task instanceof PreDex) {
+                    PreDexCacheConfigurationUtil.setSharedCache(project, androidBuilder)
                     PreDexCache.getCache().load(
                             project.rootProject.file(
                                     "${project.rootProject.buildDir}/${FD_INTERMEDIATES}/dex-cache/cache.xml"))
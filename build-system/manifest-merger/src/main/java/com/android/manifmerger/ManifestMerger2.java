@@ -40,6 +40,7 @@ import com.google.common.collect.ImmutableMap;
 import org.w3c.dom.Attr;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
 
 import java.io.File;
 import java.io.FileWriter;
@@ -48,6 +49,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import javax.xml.parsers.ParserConfigurationException;
+
 /**
  * merges android manifest files, idempotent.
  */
@@ -69,6 +72,8 @@ public class ManifestMerger2 {
     private final ImmutableList<Invoker.Feature> mOptionalFeatures;
     private final MergeType mMergeType;
     private final Optional<File> mReportFile;
+    @Nullable
+    private final ParsedManifestCache mParsedManifestCache;
 
     private ManifestMerger2(
             @NonNull ILogger logger,
@@ -79,7 +84,8 @@ public class ManifestMerger2 {
             @NonNull Map<String, Object> placeHolderValues,
             @NonNull KeyBasedValueResolver<SystemProperty> systemPropertiesResolver,
             @NonNull MergeType mergeType,
-            @NonNull Optional<File> reportFile) {
+            @NonNull Optional<File> reportFile,
+            @Nullable ParsedManifestCache parsedManifestCache) {
         this.mSystemPropertyResolver = systemPropertiesResolver;
         this.mPlaceHolderValues = placeHolderValues;
         this.mManifestFile = mainManifestFile;
@@ -89,6 +95,7 @@ public class ManifestMerger2 {
         this.mOptionalFeatures = optionalFeatures;
         this.mMergeType = mergeType;
         this.mReportFile = reportFile;
+        this.mParsedManifestCache = parsedManifestCache;
     }
 
     /**
@@ -379,8 +386,7 @@ public class ManifestMerger2 {
 
         XmlDocument xmlDocument;
         try {
-            xmlDocument = XmlLoader.load(selectors,
-                    mSystemPropertyResolver,
+            xmlDocument = loadXml(selectors,
                     manifestInfo.mName,
                     manifestInfo.mLocation,
                     manifestInfo.getType(),
@@ -478,6 +484,24 @@ public class ManifestMerger2 {
         return result;
     }
 
+    /**
+     * Loads a manifest file, through the cache of parsed manifest files if there is one.
+     */
+    private XmlDocument loadXml(
+            KeyResolver<String> selectors,
+            String displayName,
+            File xmlFile,
+            XmlDocument.Type type,
+            Optional<String> mainManifestPackageName)
+            throws IOException, SAXException, ParserConfigurationException {
+        if (mParsedManifestCache != null) {
+            return XmlLoader.load(mParsedManifestCache, selectors, mSystemPropertyResolver,
+                    displayName, xmlFile, type, mainManifestPackageName);
+        }
+        return XmlLoader.load(selectors, mSystemPropertyResolver, displayName, xmlFile, type,
+                mainManifestPackageName);
+    }
+
     private List<LoadedManifestInfo> loadLibraries(SelectorResolver selectors,
             MergingReport.Builder mergingReportBuilder) throws MergeFailureException {
 
@@ -489,8 +513,7 @@ public class ManifestMerger2 {
                     XmlDocument.Type.LIBRARY, Optional.<String>absent());
             XmlDocument libraryDocument;
             try {
-                libraryDocument = XmlLoader.load(selectors,
-                        mSystemPropertyResolver,
+                libraryDocument = loadXml(selectors,
                         manifestInfo.mName, manifestInfo.mLocation,
                         XmlDocument.Type.LIBRARY,
                         Optional.<String>absent()  /* mainManifestPackageName */);
@@ -806,6 +829,7 @@ public class ManifestMerger2 {
                 new ImmutableList.Builder<Feature>();
         private final MergeType mMergeType;
         @Nullable private File mReportFile;
+        @Nullable private ParsedManifestCache mParsedManifestCache;
 
         /**
          * Sets a value for a {@link com.android.manifmerger.ManifestMerger2.SystemProperty}
@@ -895,6 +919,17 @@ public class ManifestMerger2 {
             return this;
         }
 
+        /**
+         * Sets the cache of parsed manifest files to load the manifests through. If not called,
+         * the merging process parses each manifest file it loads.
+         * @param cache the cache, which can be shared with other merges.
+         * @return itself.
+         */
+        public Invoker setParsedManifestCache(@Nullable ParsedManifestCache cache) {
+            mParsedManifestCache = cache;
+            return thisAsT();
+        }
+
         /**
          * Add one library file manifest, will be added last in the list of library files which will
          * make the parameter the lowest priority library manifest file.
@@ -1001,7 +1036,8 @@ public class ManifestMerger2 {
                             mPlaceholders.build(),
                             new MapBasedKeyBasedValueResolver<SystemProperty>(systemProperties),
                             mMergeType,
-                            Optional.fromNullable(mReportFile));
+                            Optional.fromNullable(mReportFile),
+                            mParsedManifestCache);
             return manifestMerger.merge();
         }
 
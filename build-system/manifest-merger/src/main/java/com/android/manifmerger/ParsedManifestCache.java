@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.manifmerger;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.utils.PositionXmlParser;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+/**
+ * Cache of parsed manifest files, which can be shared by several merges, whatever their variant
+ * and their thread. A merge uses the cache when it is set on its
+ * {@link ManifestMerger2.Invoker#setParsedManifestCache(ParsedManifestCache)}.
+ * <p/>
+ * Each manifest is parsed once, then each merge gets its own copy of the parsed
+ * document, since the merge modifies the documents it loads (placeholders substitution, package
+ * names...). Copying a parsed document is much faster than parsing it again.
+ * <p/>
+ * The documents are stored by the sha1 of their file content, so the same manifest copied in
+ * several modules is only parsed once. The cache holds at most {@link #MAX_SIZE} documents, the
+ * least recently used ones being removed first.
+ */
+public class ParsedManifestCache {
+
+    /** maximum number of parsed documents kept by default. */
+    public static final int MAX_SIZE = 500;
+
+    /**
+     * The keys of the files loaded by this cache, by path, with the length and the time
+     * stamp of the files when they were hashed.
+     */
+    @NonNull
+    private final Cache<File, String> mKeys;
+
+    /** The parsed documents, by key. These documents are never modified. */
+    @NonNull
+    private final Cache<String, Document> mDocuments;
+
+    public ParsedManifestCache() {
+        this(MAX_SIZE);
+    }
+
+    /**
+     * Creates a cache keeping at most <var>maxSize</var> parsed documents.
+     */
+    public ParsedManifestCache(int maxSize) {
+        mKeys = CacheBuilder.newBuilder().maximumSize(maxSize).build();
+        mDocuments = CacheBuilder.newBuilder().maximumSize(maxSize).recordStats().build();
+    }
+
+    /**
+     * Returns a copy of the parsed content of a manifest file, parsing it if it is
+     * not in the cache yet.
+     *
+     * @param xmlFile the manifest file.
+     * @return the parsed document, or null if the file cannot be parsed.
+     */
+    @Nullable
+    public Document load(@NonNull File xmlFile)
+            throws IOException, SAXException, ParserConfigurationException {
+        String stamp = xmlFile.length() + ":" + xmlFile.lastModified() + ":";
+        String key = mKeys.getIfPresent(xmlFile);
+        if (key == null || !key.startsWith(stamp)) {
+            key = stamp + Files.hash(xmlFile, Hashing.sha1()).toString();
+            mKeys.put(xmlFile, key);
+        }
+        String hash = key.substring(stamp.length());
+
+        Document document = mDocuments.getIfPresent(hash);
+        if (document == null) {
+            // parse outside of any lock, so that different files are parsed in parallel. The
+            // same file parsed twice at the same time yields identical documents anyway.
+            document = PositionXmlParser.parse(Files.toByteArray(xmlFile));
+            if (document == null) {
+                return null;
+            }
+            Document previous = mDocuments.asMap().putIfAbsent(hash, document);
+            if (previous != null) {
+                document = previous;
+            }
+        }
+
+        // the DOM is not thread safe, even for reading.
+        synchronized (document) {
+            return PositionXmlParser.cloneDocument(document);
+        }
+    }
+
+    /**
+     * Returns the number of loads which found the parsed document in this cache.
+     */
+    public long getHits() {
+        return mDocuments.stats().hitCount();
+    }
+
+    /**
+     * Returns the number of loads which had to parse the manifest file.
+     */
+    public long getMisses() {
+        return mDocuments.stats().missCount();
+    }
+
+    /**
+     * Forgets all the parsed documents.
+     */
+    public void unload() {
+        mKeys.invalidateAll();
+        mDocuments.invalidateAll();
+    }
+}
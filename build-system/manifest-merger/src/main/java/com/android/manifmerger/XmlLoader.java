@@ -75,6 +75,36 @@ public final class XmlLoader {
     }
 
 
+    /**
+     * Loads a manifest file through a cache of parsed manifest files, without doing xml
+     * validation and return a {@link XmlDocument}
+     *
+     * @param cache the cache of parsed manifest files.
+     * @param displayName the xml file display name.
+     * @param xmlFile the xml file.
+     * @return the initialized {@link com.android.manifmerger.XmlDocument}
+     */
+    public static XmlDocument load(
+            @NonNull ParsedManifestCache cache,
+            KeyResolver<String> selectors,
+            KeyBasedValueResolver<SystemProperty> systemPropertyResolver,
+            String displayName,
+            File xmlFile,
+            XmlDocument.Type type,
+            Optional<String> mainManifestPackageName)
+            throws IOException, SAXException, ParserConfigurationException {
+        Document domDocument = cache.load(xmlFile);
+        return domDocument != null ? new XmlDocument(
+                new SourceFile(xmlFile, displayName),
+                selectors,
+                systemPropertyResolver,
+                domDocument.getDocumentElement(),
+                type,
+                mainManifestPackageName)
+                : null;
+    }
+
+
     /**
      * Loads a xml document from its {@link String} representation without doing xml validation and
      * return a {@link com.android.manifmerger.XmlDocument}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.manifmerger;
+
+import com.android.sdklib.mock.MockLog;
+import com.android.utils.FileUtils;
+import com.android.utils.PositionXmlParser;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import java.io.File;
+
+/**
+ * Tests for the {@link ParsedManifestCache} class
+ */
+public class ParsedManifestCacheTest extends TestCase {
+
+    private File mTmpDir;
+    private ParsedManifestCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTmpDir = Files.createTempDir();
+        mCache = new ParsedManifestCache();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteFolder(mTmpDir);
+        super.tearDown();
+    }
+
+    public void testLoad() throws Exception {
+        File manifest = createLibraryManifest("a/AndroidManifest.xml", "com.example.lib", 1);
+
+        Document first = mCache.load(manifest);
+        Document second = mCache.load(manifest);
+        assertNotNull(first);
+        assertNotNull(second);
+        assertEquals(1, mCache.getMisses());
+
+        // each load returns its own copy.
+        assertNotSame(first, second);
+        first.getDocumentElement().setAttribute("package", "changed");
+        assertEquals("com.example.lib", second.getDocumentElement().getAttribute("package"));
+        assertEquals("com.example.lib",
+                mCache.load(manifest).getDocumentElement().getAttribute("package"));
+
+        // positions are kept.
+        Element activity = (Element) second.getElementsByTagName("activity").item(0);
+        assertEquals(5, PositionXmlParser.getPosition(activity).getStartLine());
+    }
+
+    public void testSharedContent() throws Exception {
+        File manifest = createLibraryManifest("a/AndroidManifest.xml", "com.example.lib", 1);
+        File copy = createLibraryManifest("b/AndroidManifest.xml", "com.example.lib", 1);
+
+        mCache.load(manifest);
+        mCache.load(copy);
+        assertEquals(1, mCache.getMisses());
+
+        // a changed file is parsed again.
+        createLibraryManifest("a/AndroidManifest.xml", "com.example.changed", 1);
+        assertEquals("com.example.changed",
+                mCache.load(manifest).getDocumentElement().getAttribute("package"));
+        assertEquals(2, mCache.getMisses());
+    }
+
+    public void testMergeWithCache() throws Exception {
+        File main = createMainManifest();
+        File[] libraries = new File[3];
+        for (int i = 0; i < libraries.length; i++) {
+            libraries[i] = createLibraryManifest(
+                    "lib" + i + "/AndroidManifest.xml", "com.example.lib" + i, 3);
+        }
+
+        // the libraries and the main manifest.
+        MergingReport first = merge(main, libraries, "com.example.app");
+        assertEquals(4, mCache.getMisses());
+        MergingReport second = merge(main, libraries, "com.example.app");
+        assertEquals(4, mCache.getMisses());
+
+        assertEquals(MergingReport.Result.SUCCESS, second.getResult());
+        String firstDocument = first.getMergedDocument().get().prettyPrint();
+        String secondDocument = second.getMergedDocument().get().prettyPrint();
+        assertEquals(firstDocument, secondDocument);
+        assertTrue(secondDocument.contains("com.example.lib2.Activity2"));
+
+        // the blame of the library elements is kept.
+        assertEquals(first.getActions().blame(first.getMergedDocument().get()),
+                second.getActions().blame(second.getMergedDocument().get()));
+
+        // placeholders are substituted in each merge.
+        MergingReport other = merge(main, libraries, "com.example.other");
+        assertEquals(4, mCache.getMisses());
+        String otherDocument = other.getMergedDocument().get().prettyPrint();
+        assertTrue(secondDocument.contains("com.example.app.provider"));
+        assertFalse(secondDocument.contains("com.example.other.provider"));
+        assertTrue(otherDocument.contains("com.example.other.provider"));
+        assertFalse(otherDocument.contains("com.example.app.provider"));
+    }
+
+    public void testHitsAndMisses() throws Exception {
+        File main = createMainManifest();
+        File[] libraries = new File[3];
+        for (int i = 0; i < libraries.length; i++) {
+            libraries[i] = createLibraryManifest(
+                    "lib" + i + "/AndroidManifest.xml", "com.example.lib" + i, 3);
+        }
+
+        // the first merge parses the main manifest and the libraries.
+        merge(main, libraries, "com.example.app");
+        assertEquals(0, mCache.getHits());
+        assertEquals(4, mCache.getMisses());
+
+        // the next merges only copy them.
+        for (int i = 0; i < 3; i++) {
+            merge(main, libraries, "com.example.app" + i);
+        }
+        assertEquals(12, mCache.getHits());
+        assertEquals(4, mCache.getMisses());
+
+        // a merge without the cache does not use it.
+        assertTrue(ManifestMerger2.newMerger(main, new MockLog(),
+                ManifestMerger2.MergeType.APPLICATION)
+                .addLibraryManifests(libraries)
+                .merge().getMergedDocument().isPresent());
+        assertEquals(12, mCache.getHits());
+        assertEquals(4, mCache.getMisses());
+
+        mCache.unload();
+        merge(main, libraries, "com.example.app");
+        assertEquals(12, mCache.getHits());
+        assertEquals(8, mCache.getMisses());
+    }
+
+    public void testMaxSize() throws Exception {
+        ParsedManifestCache cache = new ParsedManifestCache(1);
+        File first = createLibraryManifest("a/AndroidManifest.xml", "com.example.a", 1);
+        File second = createLibraryManifest("b/AndroidManifest.xml", "com.example.b", 1);
+
+        cache.load(first);
+        cache.load(first);
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        // the least recently used document is removed.
+        cache.load(second);
+        assertEquals("com.example.a",
+                cache.load(first).getDocumentElement().getAttribute("package"));
+        assertEquals(1, cache.getHits());
+        assertEquals(3, cache.getMisses());
+    }
+
+    private MergingReport merge(File main, File[] libraries, String applicationId)
+            throws Exception {
+        MergingReport report = newInvoker(main, libraries, applicationId).merge();
+        assertTrue(report.getMergedDocument().isPresent());
+        return report;
+    }
+
+    private ManifestMerger2.Invoker newInvoker(
+            File main, File[] libraries, String applicationId) {
+        return ManifestMerger2.newMerger(main, new MockLog(),
+                ManifestMerger2.MergeType.APPLICATION)
+                .setPlaceHolderValue(PlaceholderHandler.APPLICATION_ID, applicationId)
+                .addLibraryManifests(libraries)
+                .setParsedManifestCache(mCache);
+    }
+
+    private File createMainManifest() throws Exception {
+        return createFile("main/AndroidManifest.xml", ""
+                + "<manifest\n"
+                + "    xmlns:android=\"http://schemas.android.com/apk/res/android\"\n"
+                + "    package=\"com.example.app\">\n"
+                + "\n"
+                + "    <application android:label=\"@string/app_name\">\n"
+                + "        <activity android:name=\".Main\" />\n"
+                + "    </application>\n"
+                + "\n"
+                + "</manifest>");
+    }
+
+    private File createLibraryManifest(String path, String packageName, int activities)
+            throws Exception {
+        StringBuilder content = new StringBuilder();
+        content.append("<manifest\n"
+                + "    xmlns:android=\"http://schemas.android.com/apk/res/android\"\n"
+                + "    package=\"").append(packageName).append("\">\n"
+                + "\n"
+                + "    <application>\n");
+        for (int i = 0; i < activities; i++) {
+            content.append("        <activity android:name=\"").append(packageName)
+                    .append(".Activity").append(i).append("\" />\n");
+        }
+        content.append("        <provider android:name=\"").append(packageName)
+                .append(".Provider\"\n"
+                + "            android:authorities=\"${applicationId}.provider\" />\n"
+                + "    </application>\n"
+                + "\n"
+                + "</manifest>");
+        return createFile(path, content.toString());
+    }
+
+    private File createFile(String path, String content) throws Exception {
+        File file = new File(mTmpDir, path);
+        Files.createParentDirs(file);
+        Files.write(content, file, Charsets.UTF_8);
+        return file;
+    }
+}
@@ -24,6 +24,7 @@ package com.android.builder.profile;
  * 1000-2000    application related task creation
  * 2000-3000    library related task creation
  * 3000-4000    Tasks related events.
+ * 4000-5000    Work items processed by tasks.
  */
 public enum ExecutionType {
 
@@ -39,6 +40,8 @@ public enum ExecutionType {
     VARIANT_MANAGER_CREATE_LINT_TASKS(10),
     VARIANT_MANAGER_CREATE_TESTS_TASKS(11),
     RESOLVE_DEPENDENCIES(12),
+    VARIANT_MANAGER_CREATE_VARIANT_DATA(13),
+    MODEL_BUILDER_BUILD_ALL(14),
     INITIAL_METADATA(100),
     FINAL_METADATA(101),
 
@@ -103,7 +106,10 @@ public enum ExecutionType {
     TASK_SPLIT_ZIP_ALIGN(3020),
     TASK_ZIP_ALIGN(3021),
     TASK_COPY(3022),
-    TASK_LINT(3023);
+    TASK_LINT(3023),
+
+    // Work items.
+    PNG_CRUNCH(4000);
 
 
     int getId() {
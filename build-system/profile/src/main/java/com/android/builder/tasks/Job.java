@@ -21,6 +21,7 @@ import com.android.annotations.Nullable;
 import com.google.common.base.Objects;
 
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -64,6 +65,15 @@ public class Job<T> {
         return mResult.get();
     }
 
+    /**
+     * Waits for the job to be finished or in error, for at most the given time.
+     * @return true if the job is finished or in error, false if the time elapsed before.
+     */
+    public boolean awaitCompletion(long timeout, @NonNull TimeUnit unit)
+            throws InterruptedException {
+        return mBooleanLatch.await(unit.toNanos(timeout));
+    }
+
     @Override
     public String toString() {
         return Objects.toStringHelper(this)
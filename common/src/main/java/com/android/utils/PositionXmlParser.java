@@ -338,6 +338,33 @@ public class PositionXmlParser {
         return p == null ? SourcePosition.UNKNOWN : p.toSourcePosition();
     }
 
+    /**
+     * Returns a deep copy of a document created by this parser, with the same position
+     * information. This is much faster than parsing the same content again.
+     *
+     * @param document the document to copy
+     * @return the copy of the document
+     */
+    @NonNull
+    public static Document cloneDocument(@NonNull Document document) {
+        Document copy = (Document) document.cloneNode(true);
+        copy.setUserData(CONTENT_KEY, document.getUserData(CONTENT_KEY), null);
+        copyPositions(document, copy);
+        return copy;
+    }
+
+    private static void copyPositions(@NonNull Node from, @NonNull Node to) {
+        Object position = from.getUserData(POS_KEY);
+        if (position != null) {
+            to.setUserData(POS_KEY, position, null);
+        }
+        for (Node fromChild = from.getFirstChild(), toChild = to.getFirstChild();
+                fromChild != null && toChild != null;
+                fromChild = fromChild.getNextSibling(), toChild = toChild.getNextSibling()) {
+            copyPositions(fromChild, toChild);
+        }
+    }
+
     @Nullable
     private static Position getPositionHelper(@NonNull Node node, int start, int end) {
         // Look up the position information stored while parsing for the given node.
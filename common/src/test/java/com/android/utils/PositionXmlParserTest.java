@@ -514,4 +514,38 @@ public class PositionXmlParserTest extends TestCase {
         assertEquals("Button", subTag.getAttributeNS(NAMESPACE_URL, "text"));
         assertEquals(NAMESPACE_URL, subTag.getNamespaceURI());
     }
+
+    public void testCloneDocument() throws Exception {
+        String xml =
+                "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n" +
+                "<manifest xmlns:android=\"http://schemas.android.com/apk/res/android\"\n" +
+                "    package=\"com.example.lib\">\n" +
+                "    <!-- the activity -->\n" +
+                "    <activity android:name=\".Main\" />\n" +
+                "</manifest>\n";
+        Document document = PositionXmlParser.parse(xml);
+        assertNotNull(document);
+
+        Document copy = PositionXmlParser.cloneDocument(document);
+        assertNotSame(document, copy);
+
+        Element activity = (Element) copy.getElementsByTagName("activity").item(0);
+        assertNotSame(document.getElementsByTagName("activity").item(0), activity);
+        SourcePosition position = PositionXmlParser.getPosition(activity);
+        assertEquals(4, position.getStartLine());
+        assertEquals("<activity android:name=\".Main\" />",
+                xml.substring(position.getStartOffset(), position.getEndOffset()));
+
+        // attribute positions are computed from the content of the document.
+        Attr attr = activity.getAttributeNodeNS("http://schemas.android.com/apk/res/android",
+                "name");
+        position = PositionXmlParser.getPosition(attr);
+        assertEquals("android:name=\".Main\"",
+                xml.substring(position.getStartOffset(), position.getEndOffset()));
+
+        // the copy is independent from the original document.
+        activity.setAttribute("package", "changed");
+        assertEquals("", ((Element) document.getElementsByTagName("activity").item(0))
+                .getAttribute("package"));
+    }
 }
@@ -16,6 +16,7 @@
 
 package com.android.ddmlib;
 
+import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.ddmlib.log.LogReceiver;
 
@@ -386,7 +387,7 @@ final class AdbHelper {
         ShellCommandUnresponsiveException, IOException {
 
         executeRemoteCommand(adbSockAddr, AdbService.SHELL, command, device, rcvr, maxTimeToOutputResponse,
-                maxTimeUnits, null /* inputStream */);
+                maxTimeUnits, null /* inputStream */, null /* input */);
     }
 
     /**
@@ -436,6 +437,35 @@ final class AdbHelper {
             TimeUnit maxTimeUnits,
             @Nullable InputStream is) throws TimeoutException, AdbCommandRejectedException,
             ShellCommandUnresponsiveException, IOException {
+        executeRemoteCommand(adbSockAddr, adbService, command, device, rcvr,
+                maxTimeToOutputResponse, maxTimeUnits, is, null);
+    }
+
+    /**
+     * Executes a remote command on the device and retrieve the output, streaming the content of
+     * a buffer to the command after invoking it. The buffer is written directly to the adb
+     * connection, without intermediate copies.
+     *
+     * @param input the content to stream up after invoking the command and before retrieving the
+     *              response. Its position is not modified.
+     *
+     * @see #executeRemoteCommand(InetSocketAddress, AdbService, String, IDevice,
+     * IShellOutputReceiver, long, TimeUnit, InputStream)
+     */
+    static void executeRemoteCommand(InetSocketAddress adbSockAddr, AdbService adbService,
+            String command, IDevice device, IShellOutputReceiver rcvr, long maxTimeToOutputResponse,
+            TimeUnit maxTimeUnits,
+            @NonNull ByteBuffer input) throws TimeoutException, AdbCommandRejectedException,
+            ShellCommandUnresponsiveException, IOException {
+        executeRemoteCommand(adbSockAddr, adbService, command, device, rcvr,
+                maxTimeToOutputResponse, maxTimeUnits, null, input.duplicate());
+    }
+
+    private static void executeRemoteCommand(InetSocketAddress adbSockAddr,
+            AdbService adbService, String command, IDevice device, IShellOutputReceiver rcvr,
+            long maxTimeToOutputResponse, TimeUnit maxTimeUnits, @Nullable InputStream is,
+            @Nullable ByteBuffer input) throws TimeoutException, AdbCommandRejectedException,
+            ShellCommandUnresponsiveException, IOException {
 
         long maxTimeToOutputMs = 0;
         if (maxTimeToOutputResponse > 0) {
@@ -468,6 +498,13 @@ final class AdbHelper {
 
             byte[] data = new byte[16384];
 
+            // stream the input buffer if present.
+            if (input != null) {
+                while (input.hasRemaining()) {
+                    adbChan.write(input);
+                }
+            }
+
             // stream the input file if present.
             if (is != null) {
                 int read;
@@ -16,73 +16,12 @@
 package com.android.ddmlib;
 
 import com.android.annotations.NonNull;
+import com.android.ddmlib.allocations.AllocationTable;
 
 import java.nio.ByteBuffer;
 
 public class AllocationsParser {
-  /**
-   * Converts a VM class descriptor string ("Landroid/os/Debug;") to
-   * a dot-notation class name ("android.os.Debug").
-   */
-  private static String descriptorToDot(String str) {
-    // count the number of arrays.
-    int array = 0;
-    while (str.startsWith("[")) {
-      str = str.substring(1);
-      array++;
-    }
-
-    int len = str.length();
-
-        /* strip off leading 'L' and trailing ';' if appropriate */
-    if (len >= 2 && str.charAt(0) == 'L' && str.charAt(len - 1) == ';') {
-      str = str.substring(1, len-1);
-      str = str.replace('/', '.');
-    } else {
-      // convert the basic types
-      if ("C".equals(str)) {
-        str = "char";
-      } else if ("B".equals(str)) {
-        str = "byte";
-      } else if ("Z".equals(str)) {
-        str = "boolean";
-      } else if ("S".equals(str)) {
-        str = "short";
-      } else if ("I".equals(str)) {
-        str = "int";
-      } else if ("J".equals(str)) {
-        str = "long";
-      } else if ("F".equals(str)) {
-        str = "float";
-      } else if ("D".equals(str)) {
-        str = "double";
-      }
-    }
-
-    // now add the array part
-    for (int a = 0 ; a < array; a++) {
-      str += "[]";
-    }
-
-    return str;
-  }
-
-  /**
-   * Reads a string table out of "data".
-   *
-   * This is just a serial collection of strings, each of which is a
-   * four-byte length followed by UTF-16 data.
-   */
-  private static void readStringTable(ByteBuffer data, String[] strings) {
-    int count = strings.length;
-    int i;
-
-    for (i = 0; i < count; i++) {
-      int nameLen = data.getInt();
-      String descriptor = ByteBufferUtil.getString(data, nameLen);
-      strings[i] = descriptorToDot(descriptor);
-    }
-  }
+  private static final StackTraceElement[] NO_FRAMES = new StackTraceElement[0];
 
   /*
    * Message format:
@@ -114,85 +53,48 @@ public class AllocationsParser {
   */
   @NonNull
   public static AllocationInfo[] parse(@NonNull ByteBuffer data) {
-    int messageHdrLen, entryHdrLen, stackFrameLen;
-    int numEntries, offsetToStrings;
-    int numClassNames, numMethodNames, numFileNames;
-
-    /*
-     * Read the header.
-     */
-    messageHdrLen = (data.get() & 0xff);
-    entryHdrLen = (data.get() & 0xff);
-    stackFrameLen = (data.get() & 0xff);
-    numEntries = (data.getShort() & 0xffff);
-    offsetToStrings = data.getInt();
-    numClassNames = (data.getShort() & 0xffff);
-    numMethodNames = (data.getShort() & 0xffff);
-    numFileNames = (data.getShort() & 0xffff);
-
-
-    /*
-     * Skip forward to the strings and read them.
-     */
-    data.position(offsetToStrings);
-
-    String[] classNames = new String[numClassNames];
-    String[] methodNames = new String[numMethodNames];
-    String[] fileNames = new String[numFileNames];
-
-    readStringTable(data, classNames);
-    readStringTable(data, methodNames);
-    readStringTable(data, fileNames);
+    return toAllocationInfos(AllocationTable.decode(data));
+  }
 
-    /*
-     * Skip back to a point just past the header and start reading
-     * entries.
-     */
-    data.position(messageHdrLen);
+  /**
+   * Expands an {@link AllocationTable} into {@link AllocationInfo} objects.
+   *
+   * Stack frames are shared between all the allocations that have the same stack trace, so the
+   * returned stack trace arrays must not be modified.
+   */
+  @NonNull
+  public static AllocationInfo[] toAllocationInfos(@NonNull AllocationTable table) {
+    StackTraceElement[] frames = new StackTraceElement[table.getFrameCount()];
+    StackTraceElement[][] stacks = new StackTraceElement[table.getStackCount()][];
 
+    int numEntries = table.getRecordCount();
     AllocationInfo[] allocations = new AllocationInfo[numEntries];
     for (int i = 0; i < numEntries; i++) {
-      int totalSize;
-      int threadId, classNameIndex, stackDepth;
-
-      totalSize = data.getInt();
-      threadId = (data.getShort() & 0xffff);
-      classNameIndex = (data.getShort() & 0xffff);
-      stackDepth = (data.get() & 0xff);
-      /* we've consumed 9 bytes; gobble up any extra */
-      for (int skip = 9; skip < entryHdrLen; skip++)
-        data.get();
-
-      StackTraceElement[] steArray = new StackTraceElement[stackDepth];
-
-      /*
-       * Pull out the stack trace.
-       */
-      for (int sti = 0; sti < stackDepth; sti++) {
-        int methodClassNameIndex, methodNameIndex;
-        int methodSourceFileIndex;
-        short lineNumber;
-        String methodClassName, methodName, methodSourceFile;
-
-        methodClassNameIndex = (data.getShort() & 0xffff);
-        methodNameIndex = (data.getShort() & 0xffff);
-        methodSourceFileIndex = (data.getShort() & 0xffff);
-        lineNumber = data.getShort();
-
-        methodClassName = classNames[methodClassNameIndex];
-        methodName = methodNames[methodNameIndex];
-        methodSourceFile = fileNames[methodSourceFileIndex];
-
-        steArray[sti] = new StackTraceElement(methodClassName,
-                                              methodName, methodSourceFile, lineNumber);
+      allocations[i] = new AllocationInfo(table.getAllocNumber(i), table.getAllocatedClass(i),
+              table.getSize(i), table.getThreadId(i), getStackTrace(table, table.getStack(i), frames, stacks));
+    }
+    return allocations;
+  }
 
-        /* we've consumed 8 bytes; gobble up any extra */
-        for (int skip = 8; skip < stackFrameLen; skip++)
-          data.get();
+  private static StackTraceElement[] getStackTrace(AllocationTable table, int stack, StackTraceElement[] frames,
+                                                   StackTraceElement[][] stacks) {
+    if (stack == AllocationTable.NO_STACK) {
+      return NO_FRAMES;
+    }
+    StackTraceElement[] steArray = stacks[stack];
+    if (steArray == null) {
+      steArray = new StackTraceElement[table.getStackDepth(stack)];
+      int s = stack;
+      for (int sti = 0; sti < steArray.length; sti++) {
+        int frame = table.getStackFrame(s);
+        if (frames[frame] == null) {
+          frames[frame] = table.createStackTraceElement(frame);
+        }
+        steArray[sti] = frames[frame];
+        s = table.getStackParent(s);
       }
-
-      allocations[i] = new AllocationInfo(numEntries - i, classNames[classNameIndex], totalSize, (short) threadId, steArray);
+      stacks[stack] = steArray;
     }
-    return allocations;
+    return steArray;
   }
 }
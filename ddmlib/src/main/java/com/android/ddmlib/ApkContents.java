@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.google.common.collect.Maps;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * Contents of the APK files to install, shared by the installs on several devices.
+ * <p/>
+ * Each file is read in memory the first time it is requested, so installing the same APKs on
+ * any number of devices reads each of them from disk once, and streams them to the devices
+ * without further copies. The files are closed once read rather than mapped, so that they are
+ * not locked until the next garbage collection, and the next build can overwrite them.
+ * <p/>
+ * This class is thread-safe.
+ */
+public final class ApkContents {
+
+    private final Map<File, ByteBuffer> mContents = Maps.newHashMap();
+
+    /**
+     * Returns the contents of an APK file, as a read-only buffer positioned at the start of the
+     * file. Each call returns a new buffer that can be consumed independently.
+     * @throws IOException if the file is not a file or cannot be read.
+     */
+    @NonNull
+    public ByteBuffer get(@NonNull File apkFile) throws IOException {
+        ByteBuffer contents;
+        synchronized (mContents) {
+            contents = mContents.get(apkFile);
+            if (contents == null) {
+                if (!apkFile.isFile()) {
+                    throw new IOException(apkFile.getAbsolutePath() + " is not a file");
+                }
+                contents = ByteBuffer.wrap(read(apkFile)).asReadOnlyBuffer();
+                mContents.put(apkFile, contents);
+            }
+        }
+        return contents.duplicate();
+    }
+
+    /**
+     * Returns the size of an APK file.
+     * @throws IOException if the file is not a file or cannot be read.
+     */
+    public long getSize(@NonNull File apkFile) throws IOException {
+        return get(apkFile).remaining();
+    }
+
+    @NonNull
+    private static byte[] read(@NonNull File apkFile) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(apkFile, "r");
+        try {
+            long length = file.length();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException(apkFile.getAbsolutePath() + " is too large");
+            }
+            byte[] bytes = new byte[(int) length];
+            file.readFully(bytes);
+            return bytes;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Releases the contents of all the files, after all the installs are done.
+     */
+    public void clear() {
+        synchronized (mContents) {
+            mContents.clear();
+        }
+    }
+}
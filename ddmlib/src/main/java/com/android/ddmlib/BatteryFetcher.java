@@ -15,6 +15,7 @@
  */
 package com.android.ddmlib;
 
+import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.google.common.util.concurrent.SettableFuture;
 
@@ -134,11 +135,25 @@ class BatteryFetcher {
     private final IDevice mDevice;
     private long mLastSuccessTime = 0;
     private SettableFuture<Integer> mPendingRequest = null;
+    /**
+     * Whether the battery level could not be read from sysfs, in which case the device is only
+     * queried with 'dumpsys battery'.
+     */
+    private volatile boolean mSysFsUnsupported = false;
+    private final FetchMetrics mMetrics = new FetchMetrics(FetchMetrics.getBatteryTotals());
 
     public BatteryFetcher(IDevice device) {
         mDevice = device;
     }
 
+    /**
+     * Returns the metrics of the queries made by this fetcher.
+     */
+    @NonNull
+    public FetchMetrics getMetrics() {
+        return mMetrics;
+    }
+
     /**
      * Make a possibly asynchronous request for the device's battery level
      *
@@ -151,15 +166,18 @@ class BatteryFetcher {
         if (mBatteryLevel == null || isFetchRequired(freshness, timeUnit)) {
             if (mPendingRequest == null) {
                 // no request underway - start a new one
+                mMetrics.recordMiss();
                 mPendingRequest = SettableFuture.create();
                 initiateBatteryQuery();
             } else {
                 // fall through - return the already created future from the request already
                 // underway
+                mMetrics.recordCoalesced();
             }
             result = mPendingRequest;
         } else {
             // cache is populated within desired freshness
+            mMetrics.recordHit();
             result = SettableFuture.create();
             result.set(mBatteryLevel);
         }
@@ -176,20 +194,26 @@ class BatteryFetcher {
         Thread fetchThread = new Thread(threadName) {
             @Override
             public void run() {
+                long start = System.nanoTime();
                 Exception exception = null;
                 try {
-                    // first try to get it from sysfs
-                    SysFsBatteryLevelReceiver sysBattReceiver = new SysFsBatteryLevelReceiver();
-                    mDevice.executeShellCommand("cat /sys/class/power_supply/*/capacity",
-                            sysBattReceiver, BATTERY_TIMEOUT, TimeUnit.MILLISECONDS);
-                    if (!setBatteryLevel(sysBattReceiver.getBatteryLevel())) {
-                        // failed! try dumpsys
-                        BatteryReceiver receiver = new BatteryReceiver();
-                        mDevice.executeShellCommand("dumpsys battery", receiver, BATTERY_TIMEOUT,
-                                TimeUnit.MILLISECONDS);
-                        if (setBatteryLevel(receiver.getBatteryLevel())) {
+                    // first try to get it from sysfs, unless it already failed on this device
+                    if (!mSysFsUnsupported) {
+                        SysFsBatteryLevelReceiver sysBattReceiver =
+                                new SysFsBatteryLevelReceiver();
+                        mDevice.executeShellCommand("cat /sys/class/power_supply/*/capacity",
+                                sysBattReceiver, BATTERY_TIMEOUT, TimeUnit.MILLISECONDS);
+                        if (setBatteryLevel(sysBattReceiver.getBatteryLevel(), start)) {
                             return;
                         }
+                        mSysFsUnsupported = true;
+                    }
+                    // failed! try dumpsys
+                    BatteryReceiver receiver = new BatteryReceiver();
+                    mDevice.executeShellCommand("dumpsys battery", receiver, BATTERY_TIMEOUT,
+                            TimeUnit.MILLISECONDS);
+                    if (setBatteryLevel(receiver.getBatteryLevel(), start)) {
+                        return;
                     }
                     exception = new IOException("Unrecognized response to battery level queries");
                 } catch (TimeoutException e) {
@@ -201,17 +225,18 @@ class BatteryFetcher {
                 } catch (IOException e) {
                     exception = e;
                 }
-                handleBatteryLevelFailure(exception);
+                handleBatteryLevelFailure(exception, start);
             }
         };
         fetchThread.setDaemon(true);
         fetchThread.start();
     }
 
-    private synchronized boolean setBatteryLevel(Integer batteryLevel) {
+    private synchronized boolean setBatteryLevel(Integer batteryLevel, long start) {
         if (batteryLevel == null) {
             return false;
         }
+        mMetrics.recordFetch(System.nanoTime() - start, true);
         mLastSuccessTime = System.currentTimeMillis();
         mBatteryLevel = batteryLevel;
         if (mPendingRequest != null) {
@@ -221,7 +246,8 @@ class BatteryFetcher {
         return true;
     }
 
-    private synchronized void handleBatteryLevelFailure(Exception e) {
+    private synchronized void handleBatteryLevelFailure(Exception e, long start) {
+        mMetrics.recordFetch(System.nanoTime() - start, false);
         Log.w(LOG_TAG, String.format(
                 "%s getting battery level for device %s: %s",
                 e.getClass().getSimpleName(), mDevice.getSerialNumber(), e.getMessage()));
@@ -47,6 +47,8 @@ public final class DdmPreferences {
     /** Default values for the use of the ADBHOST environment variable. */
     public static final boolean DEFAULT_USE_ADBHOST = false;
     public static final String DEFAULT_ADBHOST_VALUE = "127.0.0.1";
+    /** Default freshness of the cached device properties that are not read only (milliseconds) */
+    public static final long DEFAULT_PROPERTY_FRESHNESS = 0;
 
     private static boolean sThreadUpdate = DEFAULT_INITIAL_THREAD_UPDATE;
     private static boolean sInitialHeapUpdate = DEFAULT_INITIAL_HEAP_UPDATE;
@@ -60,6 +62,8 @@ public final class DdmPreferences {
     private static boolean sUseAdbHost = DEFAULT_USE_ADBHOST;
     private static String sAdbHostValue = DEFAULT_ADBHOST_VALUE;
 
+    private static volatile long sPropertyFreshness = DEFAULT_PROPERTY_FRESHNESS;
+
     /**
      * Returns the initial {@link Client} flag for thread updates.
      * @see #setInitialThreadUpdate(boolean)
@@ -211,6 +215,25 @@ public final class DdmPreferences {
         sAdbHostValue = adbHostValue;
     }
 
+    /**
+     * Returns how long cached device properties that are not read only are used before being
+     * fetched again (milliseconds).
+     */
+    public static long getPropertyFreshness() {
+        return sPropertyFreshness;
+    }
+
+    /**
+     * Sets how long cached device properties that are not read only are used before being
+     * fetched again.
+     * <p/>This change takes effect right away. The default value of 0 fetches them on every
+     * request.
+     * @param freshnessMs the freshness (milliseconds).
+     */
+    public static void setPropertyFreshness(long freshnessMs) {
+        sPropertyFreshness = freshnessMs;
+    }
+
     /**
      * Non accessible constructor.
      */
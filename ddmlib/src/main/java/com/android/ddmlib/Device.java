@@ -21,18 +21,16 @@ import com.android.annotations.Nullable;
 import com.android.annotations.VisibleForTesting;
 import com.android.annotations.concurrency.GuardedBy;
 import com.android.ddmlib.log.LogReceiver;
-import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -41,9 +39,12 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
@@ -87,6 +88,10 @@ final class Device implements IDevice {
     private static final long GET_PROP_TIMEOUT_MS = 100;
     private static final long INSTALL_TIMEOUT_MINUTES;
 
+    /** Executor uploading the split APKs of an install session concurrently. */
+    private static final ExecutorService sUploadExecutor = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("apk-upload-%d").setDaemon(true).build());
+
     static {
         String installTimeout = System.getenv("ADB_INSTALL_TIMEOUT");
         long time = 4;
@@ -353,6 +358,29 @@ final class Device implements IDevice {
         return mPropFetcher.getProperty(name);
     }
 
+    @NonNull
+    @Override
+    public Future<Map<String, String>> getSystemProperties(long freshnessTime,
+            @NonNull TimeUnit timeUnit) {
+        return mPropFetcher.getProperties(freshnessTime, timeUnit);
+    }
+
+    /**
+     * Returns the metrics of the 'getprop' queries made to this device.
+     */
+    @NonNull
+    public FetchMetrics getPropertyFetchMetrics() {
+        return mPropFetcher.getMetrics();
+    }
+
+    /**
+     * Returns the metrics of the battery level queries made to this device.
+     */
+    @NonNull
+    public FetchMetrics getBatteryFetchMetrics() {
+        return mBatteryFetcher.getMetrics();
+    }
+
     @Override
     public boolean supportsFeature(@NonNull Feature feature) {
         switch (feature) {
@@ -840,7 +868,29 @@ final class Device implements IDevice {
     public String installPackage(String packageFilePath, boolean reinstall,
             String... extraArgs)
             throws InstallException {
+        ApkContents apkContents = new ApkContents();
         try {
+            return installPackage(packageFilePath, apkContents, reinstall, extraArgs);
+        } finally {
+            apkContents.clear();
+        }
+    }
+
+    @Nullable
+    private String installPackage(String packageFilePath, @NonNull ApkContents apkContents,
+            boolean reinstall, String... extraArgs)
+            throws InstallException {
+        try {
+            if (getApiLevel() >= 21) {
+                try {
+                    return streamPackage(new File(packageFilePath), apkContents, reinstall,
+                            extraArgs);
+                } catch (AdbCommandRejectedException e) {
+                    // the exec service is not available, push the package instead.
+                    Log.d(LOG_TAG, String.format("Unable to stream %1$s onto device '%2$s': %3$s",
+                            packageFilePath, getSerialNumber(), e.getMessage()));
+                }
+            }
             String remoteFilePath = syncPackageToDevice(packageFilePath);
             String result = installRemotePackage(remoteFilePath, reinstall, extraArgs);
             removeRemotePackage(remoteFilePath);
@@ -853,32 +903,74 @@ final class Device implements IDevice {
             throw new InstallException(e);
         } catch (SyncException e) {
             throw new InstallException(e);
+        } catch (ShellCommandUnresponsiveException e) {
+            throw new InstallException(e);
+        }
+    }
+
+    /**
+     * Installs a package by streaming it to 'pm install -S', without pushing it to the device
+     * first.
+     * @return the error message, or <code>null</code> if success.
+     */
+    @Nullable
+    private String streamPackage(@NonNull File packageFile, @NonNull ApkContents apkContents,
+            boolean reinstall, @Nullable String[] extraArgs)
+            throws IOException, AdbCommandRejectedException, TimeoutException,
+            ShellCommandUnresponsiveException {
+        ByteBuffer contents = apkContents.get(packageFile);
+        StringBuilder optionString = new StringBuilder();
+        if (reinstall) {
+            optionString.append("-r ");
         }
+        if (extraArgs != null) {
+            optionString.append(Joiner.on(' ').join(extraArgs)).append(' ');
+        }
+        String command = String.format("pm install %1$s-S %2$d", optionString.toString(),
+                contents.remaining());
+        Log.d(packageFile.getName(), String.format("Streaming %1$s onto device '%2$s'",
+                packageFile.getName(), getSerialNumber()));
+        InstallReceiver receiver = new InstallReceiver();
+        AdbHelper.executeRemoteCommand(AndroidDebugBridge.getSocketAddress(),
+                AdbHelper.AdbService.EXEC, command, this, receiver, INSTALL_TIMEOUT_MINUTES,
+                TimeUnit.MINUTES, contents);
+        return receiver.getErrorMessage();
     }
 
     @Override
     public void installPackages(List<String> apkFilePaths, int timeOutInMs, boolean reinstall,
             String... extraArgs) throws InstallException {
+        List<File> apkFiles = Lists.newArrayListWithCapacity(apkFilePaths.size());
+        for (String apkFilePath : apkFilePaths) {
+            apkFiles.add(new File(apkFilePath));
+        }
+        installPackages(apkFiles, new ApkContents(), timeOutInMs, reinstall, extraArgs);
+    }
 
-        assert(!apkFilePaths.isEmpty());
+    @Override
+    public void installPackages(@NonNull List<File> apkFiles, @NonNull ApkContents apkContents,
+            int timeOutInMs, boolean reinstall, String... extraArgs) throws InstallException {
+
+        assert(!apkFiles.isEmpty());
         if (getApiLevel() < 21) {
             Log.w("Internal error : installPackages invoked with device < 21 for %s",
-                    Joiner.on(",").join(apkFilePaths));
+                    Joiner.on(",").join(apkFiles));
 
-            if (apkFilePaths.size() == 1) {
-                installPackage(apkFilePaths.get(0), reinstall, extraArgs);
+            if (apkFiles.size() == 1) {
+                installPackage(apkFiles.get(0).getAbsolutePath(), apkContents, reinstall,
+                        extraArgs);
                 return;
             }
             Log.e("Internal error : installPackages invoked with device < 21 for multiple APK : %s",
-                    Joiner.on(",").join(apkFilePaths));
+                    Joiner.on(",").join(apkFiles));
             throw new InstallException(
                     "Internal error : installPackages invoked with device < 21 for multiple APK : "
-                            + Joiner.on(",").join(apkFilePaths));
+                            + Joiner.on(",").join(apkFiles));
         }
-        String mainPackageFilePath = apkFilePaths.get(0);
+        String mainPackageFilePath = apkFiles.get(0).getAbsolutePath();
         Log.d(mainPackageFilePath,
                 String.format("Uploading main %1$s and %2$s split APKs onto device '%3$s'",
-                        mainPackageFilePath, Joiner.on(',').join(apkFilePaths),
+                        mainPackageFilePath, Joiner.on(',').join(apkFiles),
                         getSerialNumber()));
 
         try {
@@ -888,19 +980,16 @@ final class Device implements IDevice {
                     ? ImmutableList.copyOf(extraArgs)
                     : ImmutableList.<String>of();
 
-            String sessionId = createMultiInstallSession(apkFilePaths, extraArgsList, reinstall);
+            String sessionId = createMultiInstallSession(apkFiles, apkContents, extraArgsList,
+                    reinstall);
             if (sessionId == null) {
                 Log.d(mainPackageFilePath, "Failed to establish session, quit installation");
                 throw new InstallException("Failed to establish session");
             }
             Log.d(mainPackageFilePath, String.format("Established session id=%1$s", sessionId));
 
-            // now upload each APK in turn.
-            int index = 0;
-            boolean allUploadSucceeded = true;
-            while (allUploadSucceeded && index < apkFilePaths.size()) {
-                allUploadSucceeded = uploadAPK(sessionId, apkFilePaths.get(index), index++);
-            }
+            // now upload all the APKs concurrently.
+            boolean allUploadSucceeded = uploadAPKs(sessionId, apkFiles, apkContents);
 
             // if all files were upload successfully, commit otherwise abandon the installation.
             String command = allUploadSucceeded
@@ -968,22 +1057,16 @@ final class Device implements IDevice {
     }
 
     @Nullable
-    private String createMultiInstallSession(List<String> apkFileNames,
-            @NonNull Collection<String> extraArgs, boolean reinstall)
+    private String createMultiInstallSession(List<File> apkFiles,
+            @NonNull ApkContents apkContents, @NonNull Collection<String> extraArgs,
+            boolean reinstall)
             throws TimeoutException, AdbCommandRejectedException, ShellCommandUnresponsiveException,
             IOException {
 
-        List<File> apkFiles = Lists.transform(apkFileNames, new Function<String, File>() {
-            @Override
-            public File apply(String input) {
-                return new File(input);
-            }
-        });
-
         long totalFileSize = 0L;
         for (File apkFile : apkFiles) {
             if (apkFile.exists() && apkFile.isFile()) {
-                totalFileSize += apkFile.length();
+                totalFileSize += apkContents.getSize(apkFile);
             } else {
                 throw new IllegalArgumentException(apkFile.getAbsolutePath() + " is not a file");
             }
@@ -1001,33 +1084,69 @@ final class Device implements IDevice {
         return receiver.getSessionId();
     }
 
+    /**
+     * Uploads all the APKs of a session concurrently, each through its own adb connection.
+     * @return true if all the uploads succeeded.
+     */
+    private boolean uploadAPKs(final String sessionId, List<File> apkFiles,
+            final ApkContents apkContents) {
+        if (apkFiles.size() == 1) {
+            return uploadAPK(sessionId, apkFiles.get(0), apkContents, 0);
+        }
+
+        List<Future<Boolean>> uploads = Lists.newArrayListWithCapacity(apkFiles.size());
+        for (int i = 0; i < apkFiles.size(); i++) {
+            final File apkFile = apkFiles.get(i);
+            final int uniqueId = i;
+            uploads.add(sUploadExecutor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return uploadAPK(sessionId, apkFile, apkContents, uniqueId);
+                }
+            }));
+        }
+
+        boolean allUploadSucceeded = true;
+        for (Future<Boolean> upload : uploads) {
+            try {
+                allUploadSucceeded &= upload.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                allUploadSucceeded = false;
+            } catch (ExecutionException e) {
+                Log.e(sessionId, e.getCause());
+                allUploadSucceeded = false;
+            }
+        }
+        return allUploadSucceeded;
+    }
 
-    private boolean uploadAPK(final String sessionId, String apkFilePath, int uniqueId) {
-        Log.d(sessionId, String.format("Uploading APK %1$s ", apkFilePath));
-        File fileToUpload = new File(apkFilePath);
+    private boolean uploadAPK(final String sessionId, File fileToUpload,
+            ApkContents apkContents, int uniqueId) {
+        Log.d(sessionId, String.format("Uploading APK %1$s ", fileToUpload.getPath()));
         if (!fileToUpload.exists()) {
-            Log.e(sessionId, String.format("File not found: %1$s", apkFilePath));
+            Log.e(sessionId, String.format("File not found: %1$s", fileToUpload.getPath()));
             return false;
         }
         if (fileToUpload.isDirectory()) {
-            Log.e(sessionId, String.format("Directory upload not supported: %1$s", apkFilePath));
+            Log.e(sessionId, String.format("Directory upload not supported: %1$s",
+                    fileToUpload.getPath()));
             return false;
         }
         String baseName = fileToUpload.getName().lastIndexOf('.') != -1
                 ? fileToUpload.getName().substring(0, fileToUpload.getName().lastIndexOf('.'))
                 : fileToUpload.getName();
 
-        String command = String.format("pm install-write -S %d %s %d_%s -",
-                fileToUpload.length(), sessionId, uniqueId, baseName);
-
-        Log.d(sessionId, String.format("Executing : %1$s", command));
-        InputStream inputStream = null;
         try {
-            inputStream = new BufferedInputStream(new FileInputStream(fileToUpload));
+            ByteBuffer contents = apkContents.get(fileToUpload);
+            String command = String.format("pm install-write -S %d %s %d_%s -",
+                    contents.remaining(), sessionId, uniqueId, baseName);
+
+            Log.d(sessionId, String.format("Executing : %1$s", command));
             InstallReceiver receiver = new InstallReceiver();
             AdbHelper.executeRemoteCommand(AndroidDebugBridge.getSocketAddress(),
                     AdbHelper.AdbService.EXEC, command, this,
-                    receiver, DdmPreferences.getTimeOut(), TimeUnit.MILLISECONDS, inputStream);
+                    receiver, DdmPreferences.getTimeOut(), TimeUnit.MILLISECONDS, contents);
             if (receiver.getErrorMessage() != null) {
                 Log.e(sessionId, String.format("Error while uploading %1$s : %2$s", fileToUpload.getName(),
                         receiver.getErrorMessage()));
@@ -1038,15 +1157,6 @@ final class Device implements IDevice {
         } catch (Exception e) {
             Log.e(sessionId, e);
             return false;
-        } finally {
-            if (inputStream != null) {
-                try {
-                    inputStream.close();
-                } catch (IOException e) {
-                    Log.e(sessionId, e);
-                }
-            }
-
         }
     }
 
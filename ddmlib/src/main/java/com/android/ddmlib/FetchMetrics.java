@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib;
+
+import com.android.annotations.Nullable;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for the cached queries made to a device, such as the 'getprop' and battery level
+ * queries.
+ * <p/>
+ * Each request is either served from the cache (a hit), joins a query already underway for the
+ * same device (coalesced), or starts a new query (a miss). Each query made to the device is
+ * timed.
+ * <p/>
+ * Every device has its own metrics, and the metrics of all the devices are also summed up in
+ * {@link #getPropertyTotals()} and {@link #getBatteryTotals()}.
+ * <p/>
+ * This class is thread-safe.
+ */
+public final class FetchMetrics {
+
+    private static final FetchMetrics sPropertyTotals = new FetchMetrics(null);
+    private static final FetchMetrics sBatteryTotals = new FetchMetrics(null);
+
+    @Nullable
+    private final FetchMetrics mParent;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mCoalesced = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mFetches = new AtomicLong();
+    private final AtomicLong mFailures = new AtomicLong();
+    private final AtomicLong mTotalFetchNs = new AtomicLong();
+    private final AtomicLong mMaxFetchNs = new AtomicLong();
+
+    FetchMetrics(@Nullable FetchMetrics parent) {
+        mParent = parent;
+    }
+
+    /**
+     * Returns the 'getprop' metrics summed up over all devices.
+     */
+    public static FetchMetrics getPropertyTotals() {
+        return sPropertyTotals;
+    }
+
+    /**
+     * Returns the battery level metrics summed up over all devices.
+     */
+    public static FetchMetrics getBatteryTotals() {
+        return sBatteryTotals;
+    }
+
+    /**
+     * Returns the number of requests.
+     */
+    public long getRequestCount() {
+        return mHits.get() + mCoalesced.get() + mMisses.get();
+    }
+
+    /**
+     * Returns the number of requests served from the cache.
+     */
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    /**
+     * Returns the number of requests that joined a query already underway.
+     */
+    public long getCoalescedCount() {
+        return mCoalesced.get();
+    }
+
+    /**
+     * Returns the number of requests that started a new query.
+     */
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    /**
+     * Returns the ratio of requests served without starting a new query, or 0 if there was no
+     * request yet.
+     */
+    public double getHitRate() {
+        long requests = getRequestCount();
+        return requests == 0 ? 0 : (double) (requests - mMisses.get()) / requests;
+    }
+
+    /**
+     * Returns the number of completed queries, successful or not.
+     */
+    public long getFetchCount() {
+        return mFetches.get();
+    }
+
+    /**
+     * Returns the number of failed queries.
+     */
+    public long getFailureCount() {
+        return mFailures.get();
+    }
+
+    /**
+     * Returns the average duration of the completed queries, or 0 if there was no query yet.
+     */
+    public long getAverageFetchTime(TimeUnit unit) {
+        long fetches = mFetches.get();
+        return fetches == 0 ? 0 : unit.convert(mTotalFetchNs.get() / fetches,
+                TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the duration of the slowest completed query.
+     */
+    public long getMaxFetchTime(TimeUnit unit) {
+        return unit.convert(mMaxFetchNs.get(), TimeUnit.NANOSECONDS);
+    }
+
+    void recordHit() {
+        mHits.incrementAndGet();
+        if (mParent != null) {
+            mParent.recordHit();
+        }
+    }
+
+    void recordCoalesced() {
+        mCoalesced.incrementAndGet();
+        if (mParent != null) {
+            mParent.recordCoalesced();
+        }
+    }
+
+    void recordMiss() {
+        mMisses.incrementAndGet();
+        if (mParent != null) {
+            mParent.recordMiss();
+        }
+    }
+
+    void recordFetch(long durationNs, boolean success) {
+        mFetches.incrementAndGet();
+        if (!success) {
+            mFailures.incrementAndGet();
+        }
+        mTotalFetchNs.addAndGet(durationNs);
+        long max;
+        do {
+            max = mMaxFetchNs.get();
+        } while (durationNs > max && !mMaxFetchNs.compareAndSet(max, durationNs));
+        if (mParent != null) {
+            mParent.recordFetch(durationNs, success);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("requests=%1$d hits=%2$d coalesced=%3$d fetches=%4$d failures=%5$d "
+                + "avg=%6$dms max=%7$dms", getRequestCount(), getHitCount(), getCoalescedCount(),
+                getFetchCount(), getFailureCount(), getAverageFetchTime(TimeUnit.MILLISECONDS),
+                getMaxFetchTime(TimeUnit.MILLISECONDS));
+    }
+}
@@ -20,6 +20,7 @@ import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.ddmlib.log.LogReceiver;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
@@ -226,6 +227,22 @@ public interface IDevice extends IShellEnabledDevice {
     String getPropertyCacheOrSync(String name) throws TimeoutException,
             AdbCommandRejectedException, ShellCommandUnresponsiveException, IOException;
 
+    /**
+     * Do a potential asynchronous query for all the system properties, fetched with a single
+     * 'getprop' command.
+     * <p/>
+     * The properties may be cached. Only queries the device if <code>freshnessTime</code> has
+     * expired since the last successful query. Concurrent requests share the same query.
+     *
+     * @param freshnessTime the desired recency of the properties
+     * @param timeUnit the {@link TimeUnit} of freshnessTime
+     * @return a {@link Future} that can be used to retrieve an immutable map of the properties.
+     * The Future will return a {@link ExecutionException} if the properties could not be retrieved.
+     */
+    @NonNull
+    Future<Map<String, String>> getSystemProperties(long freshnessTime,
+            @NonNull TimeUnit timeUnit);
+
     /** Returns whether this device supports the given software feature. */
     boolean supportsFeature(@NonNull Feature feature);
 
@@ -497,6 +514,26 @@ public interface IDevice extends IShellEnabledDevice {
 
     void installPackages(List<String> apkFilePaths, int timeOutInMs,
             boolean reinstall, String... extraArgs) throws InstallException;
+
+    /**
+     * Installs an Android application made of several APK files (one main and 0..n split
+     * packages), reading their content from <var>apkContents</var>.
+     * <p/>
+     * On devices with API level 21+ the APKs are streamed directly to the package manager, all
+     * the split APKs being uploaded concurrently. Sharing the same {@link ApkContents} between
+     * the installs on several devices reads each APK file from disk only once.
+     *
+     * @param apkFiles the APK files to install, the main APK first
+     * @param apkContents the contents of the APK files
+     * @param timeOutInMs
+     * @param reinstall set to <code>true</code> if re-install of app should be performed
+     * @param extraArgs optional extra arguments to pass. See 'adb shell pm install --help' for
+     *            available options.
+     * @throws InstallException if the installation fails.
+     */
+    void installPackages(@NonNull List<File> apkFiles, @NonNull ApkContents apkContents,
+            int timeOutInMs, boolean reinstall, String... extraArgs) throws InstallException;
+
     /**
      * Pushes a file to device
      *
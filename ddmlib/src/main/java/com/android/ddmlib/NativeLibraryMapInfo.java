@@ -33,7 +33,7 @@ public final class NativeLibraryMapInfo {
      * @param endAddr The end address of the library.
      * @param library The name of the library.
      */
-    NativeLibraryMapInfo(long startAddr, long endAddr, String library) {
+    public NativeLibraryMapInfo(long startAddr, long endAddr, String library) {
         this.mStartAddr = startAddr;
         this.mEndAddr = endAddr;
         this.mLibrary = library;
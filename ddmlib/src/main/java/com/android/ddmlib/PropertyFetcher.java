@@ -17,9 +17,11 @@ package com.android.ddmlib;
 
 import com.android.annotations.NonNull;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.SettableFuture;
 
+import java.io.IOException;
 import java.util.Map;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
@@ -89,6 +91,12 @@ class PropertyFetcher {
     private CacheState mCacheState = CacheState.UNPOPULATED;
     private final Map<String, SettableFuture<String>> mPendingRequests =
             Maps.newHashMapWithExpectedSize(4);
+    /** Pending request for all the properties, or <code>null</code>. */
+    private SettableFuture<Map<String, String>> mPendingSnapshot = null;
+    /** Immutable copy of {@link #mProperties}, created on demand. */
+    private Map<String, String> mSnapshot = null;
+    private long mLastSuccessTime = 0;
+    private final FetchMetrics mMetrics = new FetchMetrics(FetchMetrics.getPropertyTotals());
 
     public PropertyFetcher(IDevice device) {
         mDevice = device;
@@ -101,30 +109,102 @@ class PropertyFetcher {
         return mProperties;
     }
 
+    /**
+     * Returns the metrics of the queries made by this fetcher.
+     */
+    @NonNull
+    public FetchMetrics getMetrics() {
+        return mMetrics;
+    }
+
     /**
      * Make a possibly asynchronous request for a system property value.
+     * <p/>
+     * Read only properties are cached once fetched, other properties are fetched again unless
+     * the cache is more recent than {@link DdmPreferences#getPropertyFreshness()}.
      *
      * @param name the property name to retrieve
      * @return a {@link Future} that can be used to retrieve the prop value
      */
     @NonNull
-    public synchronized Future<String> getProperty(@NonNull String name) {
+    public Future<String> getProperty(@NonNull String name) {
+        return getProperty(name, DdmPreferences.getPropertyFreshness(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Make a possibly asynchronous request for a system property value.
+     *
+     * @param name the property name to retrieve
+     * @param freshness the desired recentness of the value of a property that is not read only
+     * @param timeUnit the {@link TimeUnit} of freshness
+     * @return a {@link Future} that can be used to retrieve the prop value
+     */
+    @NonNull
+    public synchronized Future<String> getProperty(@NonNull String name, long freshness,
+            @NonNull TimeUnit timeUnit) {
         SettableFuture<String> result;
         if (mCacheState.equals(CacheState.FETCHING)) {
+            mMetrics.recordCoalesced();
             result = addPendingRequest(name);
-        } else if (mCacheState.equals(CacheState.UNPOPULATED) || !isRoProp(name)) {
+        } else if (mCacheState.equals(CacheState.UNPOPULATED)
+                || !(isRoProp(name) || isFresh(freshness, timeUnit))) {
             // cache is empty, or this is a volatile prop that requires a query
+            mMetrics.recordMiss();
             result = addPendingRequest(name);
-            mCacheState = CacheState.FETCHING;
             initiatePropertiesQuery();
         } else {
+            mMetrics.recordHit();
             result = SettableFuture.create();
-            // cache is populated and this is a ro prop
+            // cache is populated and this is a ro prop, or recent enough
             result.set(mProperties.get(name));
         }
         return result;
     }
 
+    /**
+     * Make a possibly asynchronous request for all the system properties, with a single
+     * 'getprop' query.
+     *
+     * @param freshness the desired recentness of the properties
+     * @param timeUnit the {@link TimeUnit} of freshness
+     * @return a {@link Future} that can be used to retrieve an immutable map of the properties,
+     *     which fails if the query does not return any property
+     */
+    @NonNull
+    public synchronized Future<Map<String, String>> getProperties(long freshness,
+            @NonNull TimeUnit timeUnit) {
+        if (mCacheState.equals(CacheState.FETCHING)) {
+            mMetrics.recordCoalesced();
+            if (mPendingSnapshot == null) {
+                mPendingSnapshot = SettableFuture.create();
+            }
+            return mPendingSnapshot;
+        }
+        if (mCacheState.equals(CacheState.POPULATED) && isFresh(freshness, timeUnit)) {
+            mMetrics.recordHit();
+            SettableFuture<Map<String, String>> result = SettableFuture.create();
+            result.set(getSnapshot());
+            return result;
+        }
+        mMetrics.recordMiss();
+        mPendingSnapshot = SettableFuture.create();
+        SettableFuture<Map<String, String>> result = mPendingSnapshot;
+        initiatePropertiesQuery();
+        return result;
+    }
+
+    private boolean isFresh(long freshness, TimeUnit timeUnit) {
+        return freshness > 0
+                && System.currentTimeMillis() - mLastSuccessTime <= timeUnit.toMillis(freshness);
+    }
+
+    private Map<String, String> getSnapshot() {
+        if (mSnapshot == null) {
+            mSnapshot = ImmutableMap.copyOf(mProperties);
+        }
+        return mSnapshot;
+    }
+
     private SettableFuture<String> addPendingRequest(String name) {
         SettableFuture<String> future = mPendingRequests.get(name);
         if (future == null) {
@@ -135,17 +215,20 @@ class PropertyFetcher {
     }
 
     private void initiatePropertiesQuery() {
+        mCacheState = CacheState.FETCHING;
         String threadName = String.format("query-prop-%s", mDevice.getSerialNumber());
         Thread propThread = new Thread(threadName) {
             @Override
             public void run() {
+                long start = System.nanoTime();
                 try {
                     GetPropReceiver propReceiver = new GetPropReceiver();
                     mDevice.executeShellCommand(GETPROP_COMMAND, propReceiver, GETPROP_TIMEOUT_SEC,
                             TimeUnit.SECONDS);
-                    populateCache(propReceiver.getCollectedProperties());
+                    populateCache(propReceiver.getCollectedProperties(),
+                            System.nanoTime() - start);
                 } catch (Exception e) {
-                    handleException(e);
+                    handleException(e, System.nanoTime() - start);
                 }
             }
         };
@@ -153,18 +236,33 @@ class PropertyFetcher {
         propThread.start();
     }
 
-    private synchronized void populateCache(@NonNull Map<String, String> props) {
+    private synchronized void populateCache(@NonNull Map<String, String> props,
+            long durationNs) {
+        mMetrics.recordFetch(durationNs, !props.isEmpty());
         mCacheState = props.isEmpty() ? CacheState.UNPOPULATED : CacheState.POPULATED;
         if (!props.isEmpty()) {
             mProperties.putAll(props);
+            mSnapshot = null;
+            mLastSuccessTime = System.currentTimeMillis();
         }
         for (Map.Entry<String, SettableFuture<String>> entry : mPendingRequests.entrySet()) {
             entry.getValue().set(mProperties.get(entry.getKey()));
         }
         mPendingRequests.clear();
+        if (mPendingSnapshot != null) {
+            if (props.isEmpty()) {
+                // the cache stays unpopulated, so the next request queries the device again.
+                mPendingSnapshot.setException(new IOException(String.format(
+                        "No properties returned for device %s", mDevice.getSerialNumber())));
+            } else {
+                mPendingSnapshot.set(getSnapshot());
+            }
+            mPendingSnapshot = null;
+        }
     }
 
-    private synchronized void handleException(Exception e) {
+    private synchronized void handleException(Exception e, long durationNs) {
+        mMetrics.recordFetch(durationNs, false);
         mCacheState = CacheState.UNPOPULATED;
         Log.w("PropertyFetcher",
                 String.format("%s getting properties for device %s: %s",
@@ -174,6 +272,10 @@ class PropertyFetcher {
             entry.getValue().setException(e);
         }
         mPendingRequests.clear();
+        if (mPendingSnapshot != null) {
+            mPendingSnapshot.setException(e);
+            mPendingSnapshot = null;
+        }
     }
 
     /**
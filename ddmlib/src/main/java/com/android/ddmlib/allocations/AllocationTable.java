@@ -0,0 +1,589 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.allocations;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.AllocationInfo.SortMode;
+import com.android.ddmlib.ByteBufferUtil;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Compact, column oriented representation of the allocation tracker data.
+ * <p/>
+ * Unlike {@link com.android.ddmlib.AllocationsParser#parse(ByteBuffer)}, records are not
+ * expanded into objects: each record is a row of primitive columns referring to shared string,
+ * frame and stack tables. Identical frames and identical stacks are interned while decoding,
+ * and allocations are aggregated by allocation site (top frame) and by allocated class in the
+ * same pass.
+ * <p/>
+ * Stacks are interned in a trie: a stack id refers to its top frame and to the id of the
+ * stack of its caller ({@link #NO_STACK} for the outermost frame).
+ */
+public final class AllocationTable {
+
+    /** Stack id of an empty stack. */
+    public static final int NO_STACK = -1;
+
+    // string tables, converted once.
+    private final String[] mClassNames;
+    private final String[] mMethodNames;
+    private final String[] mFileNames;
+
+    // frame table.
+    private int mFrameCount;
+    private short[] mFrameClass;
+    private short[] mFrameMethod;
+    private short[] mFrameFile;
+    private short[] mFrameLine;
+
+    // stack trie.
+    private int mStackCount;
+    private int[] mStackFrame;
+    private int[] mStackParent;
+    private int[] mStackDepth;
+
+    // records.
+    private final int mRecordCount;
+    private final int[] mSizes;
+    private final short[] mThreadIds;
+    private final short[] mClasses;
+    private final int[] mStacks;
+
+    // aggregates.
+    private int[] mSiteCounts;
+    private long[] mSiteSizes;
+    private final int[] mClassCounts;
+    private final long[] mClassSizes;
+
+    private AllocationTable(String[] classNames, String[] methodNames, String[] fileNames,
+            int recordCount) {
+        mClassNames = classNames;
+        mMethodNames = methodNames;
+        mFileNames = fileNames;
+        mRecordCount = recordCount;
+        mSizes = new int[recordCount];
+        mThreadIds = new short[recordCount];
+        mClasses = new short[recordCount];
+        mStacks = new int[recordCount];
+        mClassCounts = new int[classNames.length];
+        mClassSizes = new long[classNames.length];
+
+        int capacity = Math.max(16, recordCount / 4);
+        mFrameClass = new short[capacity];
+        mFrameMethod = new short[capacity];
+        mFrameFile = new short[capacity];
+        mFrameLine = new short[capacity];
+        mSiteCounts = new int[capacity];
+        mSiteSizes = new long[capacity];
+        mStackFrame = new int[capacity];
+        mStackParent = new int[capacity];
+        mStackDepth = new int[capacity];
+    }
+
+    /*
+     * See AllocationsParser#parse(ByteBuffer) for the message format.
+     */
+    @NonNull
+    public static AllocationTable decode(@NonNull ByteBuffer data) {
+        int messageHdrLen = (data.get() & 0xff);
+        int entryHdrLen = (data.get() & 0xff);
+        int stackFrameLen = (data.get() & 0xff);
+        int numEntries = (data.getShort() & 0xffff);
+        int offsetToStrings = data.getInt();
+        int numClassNames = (data.getShort() & 0xffff);
+        int numMethodNames = (data.getShort() & 0xffff);
+        int numFileNames = (data.getShort() & 0xffff);
+
+        data.position(offsetToStrings);
+        String[] classNames = readStringTable(data, numClassNames);
+        String[] methodNames = readStringTable(data, numMethodNames);
+        String[] fileNames = readStringTable(data, numFileNames);
+
+        AllocationTable table = new AllocationTable(classNames, methodNames, fileNames,
+                numEntries);
+        LongIntMap frames = new LongIntMap(numEntries);
+        LongIntMap stacks = new LongIntMap(numEntries);
+        // frames of the current record, read top first but interned outermost first.
+        int[] recordFrames = new int[256];
+
+        data.position(messageHdrLen);
+        for (int i = 0; i < numEntries; i++) {
+            int totalSize = data.getInt();
+            short threadId = data.getShort();
+            short classNameIndex = data.getShort();
+            int stackDepth = (data.get() & 0xff);
+            skip(data, entryHdrLen - 9);
+
+            for (int sti = 0; sti < stackDepth; sti++) {
+                long key = data.getLong();
+                skip(data, stackFrameLen - 8);
+                recordFrames[sti] = table.internFrame(frames, key);
+            }
+
+            int stack = NO_STACK;
+            for (int sti = stackDepth - 1; sti >= 0; sti--) {
+                stack = table.internStack(stacks, stack, recordFrames[sti]);
+            }
+
+            table.mSizes[i] = totalSize;
+            table.mThreadIds[i] = threadId;
+            table.mClasses[i] = classNameIndex;
+            table.mStacks[i] = stack;
+
+            int classIndex = classNameIndex & 0xffff;
+            table.mClassCounts[classIndex]++;
+            table.mClassSizes[classIndex] += totalSize;
+            if (stack != NO_STACK) {
+                int site = table.mStackFrame[stack];
+                table.mSiteCounts[site]++;
+                table.mSiteSizes[site] += totalSize;
+            }
+        }
+
+        return table;
+    }
+
+    private int internFrame(LongIntMap frames, long key) {
+        int frame = frames.get(key);
+        if (frame == LongIntMap.NOT_FOUND) {
+            frame = mFrameCount++;
+            if (frame == mFrameClass.length) {
+                int capacity = frame * 2;
+                mFrameClass = Arrays.copyOf(mFrameClass, capacity);
+                mFrameMethod = Arrays.copyOf(mFrameMethod, capacity);
+                mFrameFile = Arrays.copyOf(mFrameFile, capacity);
+                mFrameLine = Arrays.copyOf(mFrameLine, capacity);
+                mSiteCounts = Arrays.copyOf(mSiteCounts, capacity);
+                mSiteSizes = Arrays.copyOf(mSiteSizes, capacity);
+            }
+            // (2b) class, (2b) method, (2b) file, (2b) line, as read in one big-endian long.
+            mFrameClass[frame] = (short) (key >>> 48);
+            mFrameMethod[frame] = (short) (key >>> 32);
+            mFrameFile[frame] = (short) (key >>> 16);
+            mFrameLine[frame] = (short) key;
+            frames.put(key, frame);
+        }
+        return frame;
+    }
+
+    private int internStack(LongIntMap stacks, int parent, int frame) {
+        long key = ((long) parent << 32) | frame;
+        int stack = stacks.get(key);
+        if (stack == LongIntMap.NOT_FOUND) {
+            stack = mStackCount++;
+            if (stack == mStackFrame.length) {
+                int capacity = stack * 2;
+                mStackFrame = Arrays.copyOf(mStackFrame, capacity);
+                mStackParent = Arrays.copyOf(mStackParent, capacity);
+                mStackDepth = Arrays.copyOf(mStackDepth, capacity);
+            }
+            mStackFrame[stack] = frame;
+            mStackParent[stack] = parent;
+            mStackDepth[stack] = parent == NO_STACK ? 1 : mStackDepth[parent] + 1;
+            stacks.put(key, stack);
+        }
+        return stack;
+    }
+
+    private static void skip(ByteBuffer data, int count) {
+        if (count > 0) {
+            data.position(data.position() + count);
+        }
+    }
+
+    private static String[] readStringTable(ByteBuffer data, int count) {
+        String[] strings = new String[count];
+        for (int i = 0; i < count; i++) {
+            int nameLen = data.getInt();
+            strings[i] = descriptorToDot(ByteBufferUtil.getString(data, nameLen));
+        }
+        return strings;
+    }
+
+    /**
+     * Converts a VM class descriptor string ("Landroid/os/Debug;") to
+     * a dot-notation class name ("android.os.Debug").
+     */
+    @NonNull
+    public static String descriptorToDot(@NonNull String str) {
+        // count the number of arrays.
+        int array = 0;
+        while (array < str.length() && str.charAt(array) == '[') {
+            array++;
+        }
+        int len = str.length() - array;
+
+        String name;
+        if (len >= 2 && str.charAt(array) == 'L' && str.charAt(str.length() - 1) == ';') {
+            name = str.substring(array + 1, str.length() - 1).replace('/', '.');
+        } else if (len == 1) {
+            name = primitiveName(str.charAt(array));
+            if (name == null) {
+                name = str.substring(array);
+            }
+        } else {
+            name = array == 0 ? str : str.substring(array);
+        }
+
+        if (array == 0) {
+            return name;
+        }
+        StringBuilder sb = new StringBuilder(name.length() + 2 * array).append(name);
+        for (int a = 0; a < array; a++) {
+            sb.append("[]");
+        }
+        return sb.toString();
+    }
+
+    @Nullable
+    private static String primitiveName(char c) {
+        switch (c) {
+            case 'C': return "char";
+            case 'B': return "byte";
+            case 'Z': return "boolean";
+            case 'S': return "short";
+            case 'I': return "int";
+            case 'J': return "long";
+            case 'F': return "float";
+            case 'D': return "double";
+            default: return null;
+        }
+    }
+
+    // ---- records
+
+    public int getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * Returns the allocation number of a record, as {@link
+     * com.android.ddmlib.AllocationInfo#getAllocNumber()}: the most recent allocation has the
+     * highest number.
+     */
+    public int getAllocNumber(int record) {
+        return mRecordCount - record;
+    }
+
+    public int getSize(int record) {
+        return mSizes[record];
+    }
+
+    public short getThreadId(int record) {
+        return mThreadIds[record];
+    }
+
+    /**
+     * Returns the index of the allocated class in the class name table.
+     */
+    public int getClassIndex(int record) {
+        return mClasses[record] & 0xffff;
+    }
+
+    @NonNull
+    public String getAllocatedClass(int record) {
+        return mClassNames[getClassIndex(record)];
+    }
+
+    /**
+     * Returns the stack id of a record, or {@link #NO_STACK}.
+     */
+    public int getStack(int record) {
+        return mStacks[record];
+    }
+
+    // ---- string tables
+
+    @NonNull
+    public String getClassName(int index) {
+        return mClassNames[index];
+    }
+
+    public int getClassNameCount() {
+        return mClassNames.length;
+    }
+
+    // ---- frames
+
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    @NonNull
+    public String getFrameClassName(int frame) {
+        return mClassNames[mFrameClass[frame] & 0xffff];
+    }
+
+    @NonNull
+    public String getFrameMethodName(int frame) {
+        return mMethodNames[mFrameMethod[frame] & 0xffff];
+    }
+
+    @NonNull
+    public String getFrameFileName(int frame) {
+        return mFileNames[mFrameFile[frame] & 0xffff];
+    }
+
+    /**
+     * Returns the line number of a frame: -1 if there is no source information, -2 for native
+     * methods.
+     */
+    public int getFrameLineNumber(int frame) {
+        return mFrameLine[frame];
+    }
+
+    @NonNull
+    public StackTraceElement createStackTraceElement(int frame) {
+        return new StackTraceElement(getFrameClassName(frame), getFrameMethodName(frame),
+                getFrameFileName(frame), getFrameLineNumber(frame));
+    }
+
+    // ---- stacks
+
+    public int getStackCount() {
+        return mStackCount;
+    }
+
+    /**
+     * Returns the top frame of a stack, i.e. the allocation site.
+     */
+    public int getStackFrame(int stack) {
+        return mStackFrame[stack];
+    }
+
+    /**
+     * Returns the stack of the caller of the top frame, or {@link #NO_STACK}.
+     */
+    public int getStackParent(int stack) {
+        return mStackParent[stack];
+    }
+
+    public int getStackDepth(int stack) {
+        return stack == NO_STACK ? 0 : mStackDepth[stack];
+    }
+
+    // ---- aggregates
+
+    /**
+     * Returns the number of allocations whose top frame is the given frame.
+     */
+    public int getSiteAllocationCount(int frame) {
+        return mSiteCounts[frame];
+    }
+
+    /**
+     * Returns the total size of the allocations whose top frame is the given frame.
+     */
+    public long getSiteTotalSize(int frame) {
+        return mSiteSizes[frame];
+    }
+
+    public int getClassAllocationCount(int classIndex) {
+        return mClassCounts[classIndex];
+    }
+
+    public long getClassTotalSize(int classIndex) {
+        return mClassSizes[classIndex];
+    }
+
+    /**
+     * Returns the frames that are the allocation site of at least one allocation, sorted by
+     * decreasing total size.
+     */
+    @NonNull
+    public int[] getSitesBySize() {
+        int count = 0;
+        int[] sites = new int[mFrameCount];
+        for (int frame = 0; frame < mFrameCount; frame++) {
+            if (mSiteCounts[frame] > 0) {
+                sites[count++] = frame;
+            }
+        }
+        return sortByDecreasing(Arrays.copyOf(sites, count), mSiteSizes);
+    }
+
+    /**
+     * Returns the indices of the allocated classes, sorted by decreasing total size.
+     */
+    @NonNull
+    public int[] getClassesBySize() {
+        int count = 0;
+        int[] classes = new int[mClassNames.length];
+        for (int i = 0; i < mClassNames.length; i++) {
+            if (mClassCounts[i] > 0) {
+                classes[count++] = i;
+            }
+        }
+        return sortByDecreasing(Arrays.copyOf(classes, count), mClassSizes);
+    }
+
+    // ---- sorting
+
+    /**
+     * Returns the record indices sorted as {@link com.android.ddmlib.AllocationInfo.AllocationSorter}
+     * would sort the corresponding {@link com.android.ddmlib.AllocationInfo}s. The table itself
+     * is not modified, and string comparisons are replaced by comparisons of precomputed ranks.
+     */
+    @NonNull
+    public int[] sort(@NonNull SortMode mode, boolean descending) {
+        final int[] primary = new int[mRecordCount];
+        switch (mode) {
+            case NUMBER:
+                for (int i = 0; i < mRecordCount; i++) {
+                    primary[i] = getAllocNumber(i);
+                }
+                break;
+            case SIZE:
+                break;
+            case CLASS:
+                int[] classRanks = rank(mClassNames);
+                for (int i = 0; i < mRecordCount; i++) {
+                    primary[i] = classRanks[getClassIndex(i)];
+                }
+                break;
+            case THREAD:
+                for (int i = 0; i < mRecordCount; i++) {
+                    primary[i] = mThreadIds[i];
+                }
+                break;
+            case IN_CLASS:
+                fillTopFrameRanks(primary, rank(mClassNames), mFrameClass);
+                break;
+            case IN_METHOD:
+                fillTopFrameRanks(primary, rank(mMethodNames), mFrameMethod);
+                break;
+            case ALLOCATION_SITE:
+                String[] sites = new String[mFrameCount];
+                for (int frame = 0; frame < mFrameCount; frame++) {
+                    sites[frame] = createStackTraceElement(frame).toString();
+                }
+                int[] siteRanks = rank(sites);
+                for (int i = 0; i < mRecordCount; i++) {
+                    primary[i] = mStacks[i] == NO_STACK
+                            ? Integer.MAX_VALUE : siteRanks[mStackFrame[mStacks[i]]];
+                }
+                break;
+        }
+
+        int[] records = new int[mRecordCount];
+        for (int i = 0; i < mRecordCount; i++) {
+            records[i] = i;
+        }
+        final int sign = descending ? -1 : 1;
+        sortIndices(records, new IndexComparator() {
+            @Override
+            public int compare(int a, int b) {
+                int diff = compareInts(primary[a], primary[b]);
+                if (diff == 0) {
+                    diff = compareInts(mSizes[a], mSizes[b]);
+                }
+                return sign * diff;
+            }
+        });
+        return records;
+    }
+
+    /** Records without a stack sort after all others, as with a null string. */
+    private void fillTopFrameRanks(int[] primary, int[] ranks, short[] frameColumn) {
+        for (int i = 0; i < mRecordCount; i++) {
+            primary[i] = mStacks[i] == NO_STACK
+                    ? Integer.MAX_VALUE
+                    : ranks[frameColumn[mStackFrame[mStacks[i]]] & 0xffff];
+        }
+    }
+
+    /**
+     * Returns the rank of each string in the natural order of the strings. Equal strings have
+     * equal ranks.
+     */
+    private static int[] rank(final String[] strings) {
+        Integer[] order = new Integer[strings.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return strings[a].compareTo(strings[b]);
+            }
+        });
+        int[] ranks = new int[strings.length];
+        int rank = 0;
+        for (int i = 0; i < order.length; i++) {
+            if (i > 0 && !strings[order[i]].equals(strings[order[i - 1]])) {
+                rank = i;
+            }
+            ranks[order[i]] = rank;
+        }
+        return ranks;
+    }
+
+    private static int compareInts(int x, int y) {
+        return x < y ? -1 : (x == y ? 0 : 1);
+    }
+
+    private static int[] sortByDecreasing(int[] indices, final long[] values) {
+        sortIndices(indices, new IndexComparator() {
+            @Override
+            public int compare(int a, int b) {
+                return values[a] > values[b] ? -1 : (values[a] == values[b] ? a - b : 1);
+            }
+        });
+        return indices;
+    }
+
+    private interface IndexComparator {
+        int compare(int a, int b);
+    }
+
+    /**
+     * Stable merge sort of an int array with a primitive comparator.
+     */
+    private static void sortIndices(int[] indices, IndexComparator comparator) {
+        int[] buffer = new int[indices.length];
+        int[] src = indices;
+        int[] dst = buffer;
+        for (int width = 1; width < indices.length; width *= 2) {
+            for (int lo = 0; lo < indices.length; lo += 2 * width) {
+                int mid = Math.min(lo + width, indices.length);
+                int hi = Math.min(lo + 2 * width, indices.length);
+                int i = lo;
+                int j = mid;
+                int k = lo;
+                while (i < mid && j < hi) {
+                    dst[k++] = comparator.compare(src[j], src[i]) < 0 ? src[j++] : src[i++];
+                }
+                while (i < mid) {
+                    dst[k++] = src[i++];
+                }
+                while (j < hi) {
+                    dst[k++] = src[j++];
+                }
+            }
+            int[] tmp = src;
+            src = dst;
+            dst = tmp;
+        }
+        if (src != indices) {
+            System.arraycopy(src, 0, indices, 0, indices.length);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.allocations;
+
+import java.util.Arrays;
+
+/**
+ * Minimal open addressing map from long keys to non-negative int values, used to intern
+ * frames and stacks without boxing.
+ */
+final class LongIntMap {
+
+    static final int NOT_FOUND = -1;
+
+    private long[] mKeys;
+    private int[] mValues;
+    private int mSize;
+
+    LongIntMap(int expectedSize) {
+        int capacity = 16;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        mKeys = new long[capacity];
+        mValues = new int[capacity];
+        Arrays.fill(mValues, NOT_FOUND);
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the value for the key, or {@link #NOT_FOUND}.
+     */
+    int get(long key) {
+        int mask = mKeys.length - 1;
+        int slot = hash(key) & mask;
+        while (mValues[slot] != NOT_FOUND) {
+            if (mKeys[slot] == key) {
+                return mValues[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * Associates a value with a key which must not already be in the map.
+     */
+    void put(long key, int value) {
+        if ((mSize + 1) * 2 > mKeys.length) {
+            grow();
+        }
+        insert(mKeys, mValues, key, value);
+        mSize++;
+    }
+
+    private void grow() {
+        long[] keys = new long[mKeys.length * 2];
+        int[] values = new int[keys.length];
+        Arrays.fill(values, NOT_FOUND);
+        for (int i = 0; i < mKeys.length; i++) {
+            if (mValues[i] != NOT_FOUND) {
+                insert(keys, values, mKeys[i], mValues[i]);
+            }
+        }
+        mKeys = keys;
+        mValues = values;
+    }
+
+    private static void insert(long[] keys, int[] values, long key, int value) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (values[slot] != NOT_FOUND) {
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
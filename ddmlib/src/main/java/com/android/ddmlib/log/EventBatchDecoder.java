@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.log;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.log.LogReceiver.LogEntry;
+import com.android.ddmlib.utils.ArrayHelper;
+import com.google.common.base.Charsets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * High throughput decoder for binary event log entries.
+ * <p/>
+ * The decoder compiles the value descriptions known to an {@link EventLogParser} into one
+ * {@link EventSchema} per tag, and decodes events straight into per-tag {@link EventColumns}
+ * instead of creating an {@link EventContainer} per event. Events whose payload does not match
+ * the schema of their tag, and events of tags without a schema, are counted and skipped.
+ * <p/>
+ * This class is not thread-safe.
+ */
+public final class EventBatchDecoder {
+
+    /** Size of the header of an entry in a raw log buffer; see {@link LogEntry}. */
+    private static final int ENTRY_HEADER_SIZE = 20;
+
+    /** Sorted tags, and their schema/columns at the same index. */
+    private final int[] mTags;
+    private final EventSchema[] mSchemas;
+    private final EventColumns[] mColumns;
+
+    /** Scratch storage for the GC event values. */
+    private final long[] mGcValues = new long[GcEventContainer.VALUE_COUNT];
+
+    private int mDecodedCount;
+    private int mSkippedCount;
+
+    /**
+     * Creates a decoder for all the tags with a value description in the parser.
+     */
+    public EventBatchDecoder(@NonNull EventLogParser parser) {
+        this(parser, null);
+    }
+
+    /**
+     * Creates a decoder for a subset of the tags of the parser.
+     * @param tags the tags to decode, or <code>null</code> for all tags. Events of other tags are
+     *             skipped.
+     */
+    public EventBatchDecoder(@NonNull EventLogParser parser, @Nullable int[] tags) {
+        Map<Integer, String> names = parser.getTagMap();
+        List<EventSchema> schemas = new ArrayList<EventSchema>();
+        // the description map is a TreeMap, so schemas are sorted by tag.
+        for (Map.Entry<Integer, EventValueDescription[]> entry
+                : parser.getEventInfoMap().entrySet()) {
+            int tag = entry.getKey();
+            if (tags != null && !contains(tags, tag)) {
+                continue;
+            }
+            String name = names.get(tag);
+            EventSchema schema = EventSchema.compile(tag, name != null ? name : "",
+                    entry.getValue());
+            if (schema != null) {
+                schemas.add(schema);
+            }
+        }
+
+        mTags = new int[schemas.size()];
+        mSchemas = schemas.toArray(new EventSchema[schemas.size()]);
+        mColumns = new EventColumns[schemas.size()];
+        for (int i = 0; i < mSchemas.length; i++) {
+            mTags[i] = mSchemas[i].getTag();
+            mColumns[i] = new EventColumns(mSchemas[i]);
+        }
+    }
+
+    /**
+     * Returns the decoded events of a tag, or <code>null</code> if the tag is not decoded.
+     */
+    @Nullable
+    public EventColumns getColumns(int tag) {
+        int index = Arrays.binarySearch(mTags, tag);
+        return index >= 0 ? mColumns[index] : null;
+    }
+
+    /**
+     * Returns the decoded events of all tags, sorted by tag.
+     */
+    @NonNull
+    public List<EventColumns> getAllColumns() {
+        return Collections.unmodifiableList(Arrays.asList(mColumns));
+    }
+
+    /**
+     * Returns the number of events decoded since the last {@link #clear()}.
+     */
+    public int getDecodedCount() {
+        return mDecodedCount;
+    }
+
+    /**
+     * Returns the number of events skipped since the last {@link #clear()}, either because
+     * their tag is not decoded, or because they did not match the schema of their tag.
+     */
+    public int getSkippedCount() {
+        return mSkippedCount;
+    }
+
+    /**
+     * Clears all the decoded events.
+     */
+    public void clear() {
+        for (EventColumns columns : mColumns) {
+            columns.clear();
+        }
+        mDecodedCount = 0;
+        mSkippedCount = 0;
+    }
+
+    /**
+     * Decodes a single entry, as received through a {@link LogReceiver.ILogListener}.
+     * @return <code>true</code> if the event was decoded.
+     */
+    public boolean decode(@NonNull LogEntry entry) {
+        return decode(entry.data, 0, Math.min(entry.len, entry.data.length),
+                entry.pid, entry.tid, entry.sec, entry.nsec);
+    }
+
+    /**
+     * Decodes all the complete entries of a raw event log buffer, in the format read by
+     * {@link LogReceiver}, such as a capture of the binary <code>events</code> buffer.
+     * @return the number of bytes consumed. Any remaining bytes are the beginning of an
+     * incomplete entry.
+     */
+    public int decodeBuffer(@NonNull byte[] buffer, int offset, int length) {
+        int start = offset;
+        int end = offset + length;
+        while (end - offset >= ENTRY_HEADER_SIZE) {
+            int len = ArrayHelper.swapU16bitFromArray(buffer, offset);
+            if (end - offset - ENTRY_HEADER_SIZE < len) {
+                break;
+            }
+            int pid = ArrayHelper.swap32bitFromArray(buffer, offset + 4);
+            int tid = ArrayHelper.swap32bitFromArray(buffer, offset + 8);
+            int sec = ArrayHelper.swap32bitFromArray(buffer, offset + 12);
+            int nsec = ArrayHelper.swap32bitFromArray(buffer, offset + 16);
+            offset += ENTRY_HEADER_SIZE;
+            decode(buffer, offset, len, pid, tid, sec, nsec);
+            offset += len;
+        }
+        return offset - start;
+    }
+
+    private boolean decode(byte[] data, int offset, int len, int pid, int tid, int sec,
+            int nsec) {
+        if (len < 4) {
+            mSkippedCount++;
+            return false;
+        }
+        int index = Arrays.binarySearch(mTags, ArrayHelper.swap32bitFromArray(data, offset));
+        if (index < 0) {
+            mSkippedCount++;
+            return false;
+        }
+
+        EventSchema schema = mSchemas[index];
+        EventColumns columns = mColumns[index];
+        int row = columns.newRow(pid, tid, sec, nsec);
+        boolean decoded = schema.isGc()
+                ? decodeGc(data, offset + 4, offset + len, columns, row)
+                : decodeValues(schema, data, offset + 4, offset + len, columns, row);
+        if (decoded) {
+            columns.commit();
+            mDecodedCount++;
+        } else {
+            mSkippedCount++;
+        }
+        return decoded;
+    }
+
+    private static boolean decodeValues(EventSchema schema, byte[] data, int offset, int end,
+            EventColumns columns, int row) {
+        int count = schema.getColumnCount();
+        if (end - offset < 1) {
+            return false;
+        }
+        if (data[offset] == EventLogParser.EVENT_TYPE_LIST) {
+            if (end - offset < 2 || data[offset + 1] != count) {
+                return false;
+            }
+            offset += 2;
+        } else if (count != 1) {
+            return false;
+        }
+
+        for (int column = 0; column < count; column++) {
+            if (end - offset < 1 || data[offset] != schema.getWireType(column)) {
+                return false;
+            }
+            offset++;
+            switch (schema.getWireType(column)) {
+                case EventLogParser.EVENT_TYPE_INT:
+                    if (end - offset < 4) {
+                        return false;
+                    }
+                    columns.setLong(column, row, ArrayHelper.swap32bitFromArray(data, offset));
+                    offset += 4;
+                    break;
+                case EventLogParser.EVENT_TYPE_LONG:
+                    if (end - offset < 8) {
+                        return false;
+                    }
+                    columns.setLong(column, row, ArrayHelper.swap64bitFromArray(data, offset));
+                    offset += 8;
+                    break;
+                case EventLogParser.EVENT_TYPE_STRING:
+                    if (end - offset < 4) {
+                        return false;
+                    }
+                    int strLen = ArrayHelper.swap32bitFromArray(data, offset);
+                    offset += 4;
+                    if (strLen < 0 || end - offset < strLen) {
+                        return false;
+                    }
+                    columns.setString(column, row,
+                            new String(data, offset, strLen, Charsets.UTF_8));
+                    offset += strLen;
+                    break;
+                default:
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The GC event is a list of longs packing the actual values; see {@link GcEventContainer}.
+     */
+    private boolean decodeGc(byte[] data, int offset, int end, EventColumns columns,
+            int row) {
+        if (end - offset < 2 || data[offset] != EventLogParser.EVENT_TYPE_LIST) {
+            return false;
+        }
+        int count = data[offset + 1];
+        offset += 2;
+
+        long[] values = mGcValues;
+        Arrays.fill(values, 0);
+        String processId = null;
+        for (int i = 0; i < count; i++) {
+            if (end - offset < 9 || data[offset] != EventLogParser.EVENT_TYPE_LONG) {
+                return false;
+            }
+            String name = GcEventContainer.parseDvmHeapInfo(
+                    ArrayHelper.swap64bitFromArray(data, offset + 1), i, values);
+            if (name != null) {
+                processId = name;
+            }
+            offset += 9;
+        }
+        GcEventContainer.computeDerivedValues(values);
+
+        EventSchema schema = columns.getSchema();
+        if (schema.getColumnCount() != GcEventContainer.VALUE_COUNT || processId == null) {
+            return false;
+        }
+        columns.setString(0, row, processId);
+        for (int column = 1; column < GcEventContainer.VALUE_COUNT; column++) {
+            columns.setLong(column, row, values[column]);
+        }
+        return true;
+    }
+
+    private static boolean contains(int[] values, int value) {
+        for (int v : values) {
+            if (v == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
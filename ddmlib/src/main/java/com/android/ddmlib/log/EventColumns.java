@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.log;
+
+import com.android.annotations.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * Column oriented storage for the decoded events of a single tag.
+ * <p/>
+ * Numeric values (ints and longs) are stored in <code>long[]</code> columns and strings in
+ * <code>String[]</code> columns, so a batch of events costs a handful of arrays rather than one
+ * {@link EventContainer} and several boxed values per event.
+ */
+public final class EventColumns {
+
+    private final EventSchema mSchema;
+
+    private int mSize;
+    private int[] mPids;
+    private int[] mTids;
+    private int[] mSecs;
+    private int[] mNsecs;
+    private final long[][] mNumbers;
+    private final String[][] mStrings;
+
+    EventColumns(@NonNull EventSchema schema) {
+        mSchema = schema;
+        int capacity = 64;
+        mPids = new int[capacity];
+        mTids = new int[capacity];
+        mSecs = new int[capacity];
+        mNsecs = new int[capacity];
+        mNumbers = new long[schema.getColumnCount()][];
+        mStrings = new String[schema.getColumnCount()][];
+        for (int i = 0; i < schema.getColumnCount(); i++) {
+            if (schema.isStringColumn(i)) {
+                mStrings[i] = new String[capacity];
+            } else {
+                mNumbers[i] = new long[capacity];
+            }
+        }
+    }
+
+    @NonNull
+    public EventSchema getSchema() {
+        return mSchema;
+    }
+
+    /**
+     * Returns the number of events in the batch.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    public int getPid(int row) {
+        checkRow(row);
+        return mPids[row];
+    }
+
+    public int getTid(int row) {
+        checkRow(row);
+        return mTids[row];
+    }
+
+    /**
+     * Returns the time of the event, in seconds since epoch.
+     */
+    public int getSec(int row) {
+        checkRow(row);
+        return mSecs[row];
+    }
+
+    public int getNsec(int row) {
+        checkRow(row);
+        return mNsecs[row];
+    }
+
+    /**
+     * Returns a numeric value.
+     * @throws InvalidTypeException if the column holds strings.
+     */
+    public long getLong(int column, int row) throws InvalidTypeException {
+        checkRow(row);
+        long[] values = mNumbers[column];
+        if (values == null) {
+            throw new InvalidTypeException();
+        }
+        return values[row];
+    }
+
+    /**
+     * Returns a string value.
+     * @throws InvalidTypeException if the column holds numbers.
+     */
+    @NonNull
+    public String getString(int column, int row) throws InvalidTypeException {
+        checkRow(row);
+        String[] values = mStrings[column];
+        if (values == null) {
+            throw new InvalidTypeException();
+        }
+        return values[row];
+    }
+
+    /**
+     * Returns the backing array of a numeric column. Only the first {@link #size()} values are
+     * valid, and the array must not be modified.
+     * @throws InvalidTypeException if the column holds strings.
+     */
+    @NonNull
+    public long[] getLongColumn(int column) throws InvalidTypeException {
+        long[] values = mNumbers[column];
+        if (values == null) {
+            throw new InvalidTypeException();
+        }
+        return values;
+    }
+
+    /**
+     * Removes all the events from the batch, keeping the allocated storage.
+     */
+    public void clear() {
+        for (String[] strings : mStrings) {
+            if (strings != null) {
+                Arrays.fill(strings, 0, mSize, null);
+            }
+        }
+        mSize = 0;
+    }
+
+    /**
+     * Starts a new row and returns its index. The row is only committed by {@link #commit()}.
+     */
+    int newRow(int pid, int tid, int sec, int nsec) {
+        if (mSize == mPids.length) {
+            int capacity = mSize * 2;
+            mPids = Arrays.copyOf(mPids, capacity);
+            mTids = Arrays.copyOf(mTids, capacity);
+            mSecs = Arrays.copyOf(mSecs, capacity);
+            mNsecs = Arrays.copyOf(mNsecs, capacity);
+            for (int i = 0; i < mNumbers.length; i++) {
+                if (mNumbers[i] != null) {
+                    mNumbers[i] = Arrays.copyOf(mNumbers[i], capacity);
+                } else {
+                    mStrings[i] = Arrays.copyOf(mStrings[i], capacity);
+                }
+            }
+        }
+        mPids[mSize] = pid;
+        mTids[mSize] = tid;
+        mSecs[mSize] = sec;
+        mNsecs[mSize] = nsec;
+        return mSize;
+    }
+
+    void setLong(int column, int row, long value) {
+        mNumbers[column][row] = value;
+    }
+
+    void setString(int column, int row, String value) {
+        mStrings[column][row] = value;
+    }
+
+    void commit() {
+        mSize++;
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= mSize) {
+            throw new ArrayIndexOutOfBoundsException(row);
+        }
+    }
+}
@@ -32,9 +32,8 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Set;
 import java.util.TreeMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -51,10 +50,10 @@ public final class EventLogParser {
      * Event log entry types.  These must match up with the declarations in
      * java/android/android/util/EventLog.java.
      */
-    private static final int EVENT_TYPE_INT      = 0;
-    private static final int EVENT_TYPE_LONG     = 1;
-    private static final int EVENT_TYPE_STRING   = 2;
-    private static final int EVENT_TYPE_LIST     = 3;
+    static final int EVENT_TYPE_INT      = 0;
+    static final int EVENT_TYPE_LONG     = 1;
+    static final int EVENT_TYPE_STRING   = 2;
+    static final int EVENT_TYPE_LIST     = 3;
 
     private static final Pattern PATTERN_SIMPLE_TAG = Pattern.compile(
     "^(\\d+)\\s+([A-Za-z0-9_]+)\\s*$"); //$NON-NLS-1$
@@ -68,6 +67,9 @@ public final class EventLogParser {
 
     private final TreeMap<Integer, String> mTagMap = new TreeMap<Integer, String>();
 
+    /** Reverse of {@link #mTagMap}, used to find the tag of a text log line. */
+    private final Map<String, Integer> mTagValueMap = new HashMap<String, Integer>();
+
     private final TreeMap<Integer, EventValueDescription[]> mValueDescriptionMap =
         new TreeMap<Integer, EventValueDescription[]>();
 
@@ -161,10 +163,7 @@ public final class EventLogParser {
             if (m.matches()) {
                 try {
                     int value = Integer.parseInt(m.group(1));
-                    String name = m.group(2);
-                    if (name != null && mTagMap.get(value) == null) {
-                        mTagMap.put(value, name);
-                    }
+                    addTag(value, m.group(2));
 
                     // special case for the GC tag. We ignore what is in the file,
                     // and take what the custom GcEventContainer class tells us.
@@ -192,15 +191,28 @@ public final class EventLogParser {
                 m = PATTERN_SIMPLE_TAG.matcher(line);
                 if (m.matches()) {
                     int value = Integer.parseInt(m.group(1));
-                    String name = m.group(2);
-                    if (name != null && mTagMap.get(value) == null) {
-                        mTagMap.put(value, name);
-                    }
+                    addTag(value, m.group(2));
                 }
             }
         }
     }
 
+    /**
+     * Registers the name of a tag, unless the tag already has one.
+     * @param value the value of the tag
+     * @param name the name of the tag, or null
+     */
+    private void addTag(int value, String name) {
+        if (name != null && mTagMap.get(value) == null) {
+            mTagMap.put(value, name);
+            // as with a lookup in mTagMap, the lowest tag wins.
+            Integer existing = mTagValueMap.get(name);
+            if (existing == null || value < existing) {
+                mTagValueMap.put(name, value);
+            }
+        }
+    }
+
     private EventValueDescription[] processDescription(String description) {
         String[] descriptions = description.split("\\s*,\\s*"); //$NON-NLS-1$
 
@@ -321,18 +333,11 @@ public final class EventLogParser {
                 String tag = m.group(7);
 
                 // get the numerical tag value
-                int tagValue = -1;
-                Set<Entry<Integer, String>> tagSet = mTagMap.entrySet();
-                for (Entry<Integer, String> entry : tagSet) {
-                    if (tag.equals(entry.getValue())) {
-                        tagValue = entry.getKey();
-                        break;
-                    }
-                }
-
-                if (tagValue == -1) {
+                Integer tagValueObject = mTagValueMap.get(tag);
+                if (tagValueObject == null) {
                     return null;
                 }
+                int tagValue = tagValueObject;
 
                 int pid = Integer.parseInt(m.group(8));
 
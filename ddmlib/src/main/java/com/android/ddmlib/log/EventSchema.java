@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.log;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.log.EventContainer.EventValueType;
+
+/**
+ * Flat decode plan for the values of a single event tag, compiled once from its
+ * {@link EventValueDescription}s.
+ * <p/>
+ * Each column of the plan is the binary event type expected on the wire for the matching
+ * value, so decoding an event is a single pass over its payload without any map lookup.
+ * <p/>
+ * The GC event is special (see {@link GcEventContainer}): its payload is a list of longs that
+ * encode the values described by {@link GcEventContainer#getValueDescriptions()}.
+ */
+public final class EventSchema {
+
+    private final int mTag;
+    private final String mName;
+    private final EventValueDescription[] mDescriptions;
+    /** Expected wire type of each column, or <code>null</code> for the GC event. */
+    private final byte[] mWireTypes;
+
+    private EventSchema(int tag, @NonNull String name,
+            @NonNull EventValueDescription[] descriptions, @Nullable byte[] wireTypes) {
+        mTag = tag;
+        mName = name;
+        mDescriptions = descriptions;
+        mWireTypes = wireTypes;
+    }
+
+    /**
+     * Compiles the schema of a tag.
+     * @return the schema, or <code>null</code> if the descriptions contain values that cannot be
+     * decoded into columns (lists, trees or unknown types).
+     */
+    @Nullable
+    static EventSchema compile(int tag, @NonNull String name,
+            @NonNull EventValueDescription[] descriptions) {
+        if (tag == GcEventContainer.GC_EVENT_TAG) {
+            return new EventSchema(tag, name, descriptions, null);
+        }
+
+        byte[] wireTypes = new byte[descriptions.length];
+        for (int i = 0; i < descriptions.length; i++) {
+            EventValueType type = descriptions[i].getEventValueType();
+            if (type == null) {
+                return null;
+            }
+            switch (type) {
+                case INT:
+                    wireTypes[i] = EventLogParser.EVENT_TYPE_INT;
+                    break;
+                case LONG:
+                    wireTypes[i] = EventLogParser.EVENT_TYPE_LONG;
+                    break;
+                case STRING:
+                    wireTypes[i] = EventLogParser.EVENT_TYPE_STRING;
+                    break;
+                default:
+                    return null;
+            }
+        }
+        return new EventSchema(tag, name, descriptions, wireTypes);
+    }
+
+    public int getTag() {
+        return mTag;
+    }
+
+    @NonNull
+    public String getName() {
+        return mName;
+    }
+
+    public int getColumnCount() {
+        return mDescriptions.length;
+    }
+
+    @NonNull
+    public EventValueDescription getDescription(int column) {
+        return mDescriptions[column];
+    }
+
+    /**
+     * Returns whether the column holds strings rather than numbers.
+     */
+    public boolean isStringColumn(int column) {
+        return mDescriptions[column].getEventValueType() == EventValueType.STRING;
+    }
+
+    /**
+     * Returns the index of the column with the given name, or -1.
+     */
+    public int getColumnIndex(@NonNull String name) {
+        for (int i = 0; i < mDescriptions.length; i++) {
+            if (name.equals(mDescriptions[i].getName())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    boolean isGc() {
+        return mWireTypes == null;
+    }
+
+    int getWireType(int column) {
+        return mWireTypes[column];
+    }
+}
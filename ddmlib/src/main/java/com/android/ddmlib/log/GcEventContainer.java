@@ -30,23 +30,12 @@ final class GcEventContainer extends EventContainer {
     
     public static final int GC_EVENT_TAG = 20001;
 
+    /** Number of values described by {@link #getValueDescriptions()}. */
+    static final int VALUE_COUNT = 21;
+
     private String processId;
-    private long gcTime;
-    private long bytesFreed;
-    private long objectsFreed;
-    private long actualSize;
-    private long allowedSize;
-    private long softLimit;
-    private long objectsAllocated;
-    private long bytesAllocated;
-    private long zActualSize;
-    private long zAllowedSize;
-    private long zObjectsAllocated;
-    private long zBytesAllocated;
-    private long dlmallocFootprint;
-    private long mallinfoTotalAllocatedSpace;
-    private long externalLimit;
-    private long externalBytesAllocated;
+    /** Numerical values, at the index of their description. Index 0 is the process id. */
+    private final long[] mValues = new long[VALUE_COUNT];
 
     GcEventContainer(LogEntry entry, int tag, Object data) {
         super(entry, tag, data);
@@ -66,9 +55,13 @@ final class GcEventContainer extends EventContainer {
             Object[] values = (Object[])data;
             for (int i = 0; i < values.length; i++) {
                 if (values[i] instanceof Long) {
-                    parseDvmHeapInfo((Long)values[i], i);
+                    String name = parseDvmHeapInfo((Long)values[i], i, mValues);
+                    if (name != null) {
+                        processId = name;
+                    }
                 }
             }
+            computeDerivedValues(mValues);
         }
     }
     
@@ -202,7 +195,12 @@ final class GcEventContainer extends EventContainer {
         return null;
     }
 
-    private void parseDvmHeapInfo(long data, int index) {
+    /**
+     * Unpacks one of the longs of the event into <var>values</var>, at the index of the matching
+     * value descriptions.
+     * @return the process id for the first long, <code>null</code> otherwise.
+     */
+    static String parseDvmHeapInfo(long data, int index, long[] values) {
         switch (index) {
             case 0:
                 //    [63   ] Must be zero
@@ -210,8 +208,8 @@ final class GcEventContainer extends EventContainer {
                 //    [23-12] GC time in ms
                 //    [11- 0] Bytes freed
                 
-                gcTime = float12ToInt((int)((data >> 12) & 0xFFFL));
-                bytesFreed = float12ToInt((int)(data & 0xFFFL));
+                values[1] = float12ToInt((int)((data >> 12) & 0xFFFL));
+                values[3] = float12ToInt((int)(data & 0xFFFL));
                 
                 // convert the long into an array, in the proper order so that we can convert the
                 // first 5 char into a string.
@@ -219,8 +217,7 @@ final class GcEventContainer extends EventContainer {
                 put64bitsToArray(data, dataArray, 0);
                 
                 // get the name from the string
-                processId = new String(dataArray, 0, 5);
-                break;
+                return new String(dataArray, 0, 5);
             case 1:
                 //    [63-62] 10
                 //    [61-60] Reserved; must be zero
@@ -229,11 +226,11 @@ final class GcEventContainer extends EventContainer {
                 //    [35-24] Allowed size (current hard max)
                 //    [23-12] Objects allocated
                 //    [11- 0] Bytes allocated
-                objectsFreed = float12ToInt((int)((data >> 48) & 0xFFFL));
-                actualSize = float12ToInt((int)((data >> 36) & 0xFFFL));
-                allowedSize = float12ToInt((int)((data >> 24) & 0xFFFL));
-                objectsAllocated = float12ToInt((int)((data >> 12) & 0xFFFL));
-                bytesAllocated = float12ToInt((int)(data & 0xFFFL));
+                values[2] = float12ToInt((int)((data >> 48) & 0xFFFL));
+                values[5] = float12ToInt((int)((data >> 36) & 0xFFFL));
+                values[6] = float12ToInt((int)((data >> 24) & 0xFFFL));
+                values[7] = float12ToInt((int)((data >> 12) & 0xFFFL));
+                values[8] = float12ToInt((int)(data & 0xFFFL));
                 break;
             case 2:
                 //    [63-62] 11
@@ -243,11 +240,11 @@ final class GcEventContainer extends EventContainer {
                 //    [35-24] Allowed size (current hard max)
                 //    [23-12] Objects allocated
                 //    [11- 0] Bytes allocated
-                softLimit = float12ToInt((int)((data >> 48) & 0xFFFL));
-                zActualSize = float12ToInt((int)((data >> 36) & 0xFFFL));
-                zAllowedSize = float12ToInt((int)((data >> 24) & 0xFFFL));
-                zObjectsAllocated = float12ToInt((int)((data >> 12) & 0xFFFL));
-                zBytesAllocated = float12ToInt((int)(data & 0xFFFL));
+                values[4] = float12ToInt((int)((data >> 48) & 0xFFFL));
+                values[13] = float12ToInt((int)((data >> 36) & 0xFFFL));
+                values[14] = float12ToInt((int)((data >> 24) & 0xFFFL));
+                values[15] = float12ToInt((int)((data >> 12) & 0xFFFL));
+                values[16] = float12ToInt((int)(data & 0xFFFL));
                 break;
             case 3:
                 //    [63-48] Reserved; must be zero
@@ -255,16 +252,27 @@ final class GcEventContainer extends EventContainer {
                 //    [35-24] mallinfo: total allocated space
                 //    [23-12] External byte limit
                 //    [11- 0] External bytes allocated
-                dlmallocFootprint = float12ToInt((int)((data >> 36) & 0xFFFL));
-                mallinfoTotalAllocatedSpace = float12ToInt((int)((data >> 24) & 0xFFFL));
-                externalLimit = float12ToInt((int)((data >> 12) & 0xFFFL));
-                externalBytesAllocated = float12ToInt((int)(data & 0xFFFL));
+                values[19] = float12ToInt((int)((data >> 36) & 0xFFFL));
+                values[20] = float12ToInt((int)((data >> 24) & 0xFFFL));
+                values[17] = float12ToInt((int)((data >> 12) & 0xFFFL));
+                values[18] = float12ToInt((int)(data & 0xFFFL));
                 break;
             default:
                 break;
         }
+        return null;
     }
     
+    /**
+     * Computes the values that are not encoded in the event but derived from other values.
+     */
+    static void computeDerivedValues(long[] values) {
+        values[9] = values[5] - values[13];
+        values[10] = values[6] - values[14];
+        values[11] = values[7] - values[15];
+        values[12] = values[8] - values[16];
+    }
+
     /**
      * Converts a 12 bit float representation into an unsigned int (returned as a long)
      * @param f12
@@ -297,49 +305,11 @@ final class GcEventContainer extends EventContainer {
      * @throws InvalidTypeException if index is 0 as it is a string value.
      */
     private final long getValueAsLong(int valueIndex) throws InvalidTypeException {
-        switch (valueIndex) {
-            case 0:
-                throw new InvalidTypeException();
-            case 1:
-                return gcTime;
-            case 2:
-                return objectsFreed;
-            case 3:
-                return bytesFreed;
-            case 4:
-                return softLimit;
-            case 5:
-                return actualSize;
-            case 6:
-                return allowedSize;
-            case 7:
-                return objectsAllocated;
-            case 8:
-                return bytesAllocated;
-            case 9:
-                return actualSize - zActualSize;
-            case 10:
-                return allowedSize - zAllowedSize;
-            case 11:
-                return objectsAllocated - zObjectsAllocated;
-            case 12:
-                return bytesAllocated - zBytesAllocated;
-            case 13:
-               return zActualSize;
-            case 14:
-                return zAllowedSize;
-            case 15:
-                return zObjectsAllocated;
-            case 16:
-                return zBytesAllocated;
-            case 17:
-                return externalLimit;
-            case 18:
-                return externalBytesAllocated;
-            case 19:
-                return dlmallocFootprint;
-            case 20:
-                return mallinfoTotalAllocatedSpace;
+        if (valueIndex == 0) {
+            throw new InvalidTypeException();
+        }
+        if (valueIndex > 0 && valueIndex < VALUE_COUNT) {
+            return mValues[valueIndex];
         }
 
         throw new ArrayIndexOutOfBoundsException();
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.nativeheap;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.NativeLibraryMapInfo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Sorted interval index over a process' {@link NativeLibraryMapInfo} entries.
+ * <p/>
+ * Lookups are a binary search on the start addresses instead of a linear scan through
+ * {@link NativeLibraryMapInfo#isWithinLibrary(long)}.
+ */
+public final class LibraryMapIndex {
+
+    private final NativeLibraryMapInfo[] mMaps;
+    private final long[] mStarts;
+    /** Highest end address of all mappings up to and including each index. */
+    private final long[] mMaxEnds;
+
+    /**
+     * Builds an index over the given mappings, as returned by
+     * {@link com.android.ddmlib.ClientData#getMappedNativeLibraries()}.
+     */
+    public LibraryMapIndex(@NonNull List<NativeLibraryMapInfo> maps) {
+        List<NativeLibraryMapInfo> sorted = new ArrayList<NativeLibraryMapInfo>(maps);
+        Collections.sort(sorted, new Comparator<NativeLibraryMapInfo>() {
+            @Override
+            public int compare(NativeLibraryMapInfo a, NativeLibraryMapInfo b) {
+                return compareUnsigned(a.getStartAddress(), b.getStartAddress());
+            }
+        });
+
+        mMaps = sorted.toArray(new NativeLibraryMapInfo[sorted.size()]);
+        mStarts = new long[mMaps.length];
+        mMaxEnds = new long[mMaps.length];
+        for (int i = 0; i < mMaps.length; i++) {
+            mStarts[i] = mMaps[i].getStartAddress();
+            long end = mMaps[i].getEndAddress();
+            mMaxEnds[i] = i > 0 && compareUnsigned(mMaxEnds[i - 1], end) > 0 ? mMaxEnds[i - 1] : end;
+        }
+    }
+
+    /**
+     * Returns the number of mappings in the index.
+     */
+    public int size() {
+        return mMaps.length;
+    }
+
+    /**
+     * Returns the library mapped at the given address, or <code>null</code> if the address
+     * is not inside any known library.
+     */
+    @Nullable
+    public NativeLibraryMapInfo find(long address) {
+        // find the last mapping that starts at or before the address.
+        int low = 0;
+        int high = mStarts.length - 1;
+        int candidate = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (compareUnsigned(mStarts[mid], address) <= 0) {
+                candidate = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        // mappings may overlap (e.g. a library mapped several times), so walk back until one
+        // contains the address, or no earlier mapping can reach it.
+        for (int i = candidate; i >= 0 && compareUnsigned(mMaxEnds[i], address) >= 0; i--) {
+            if (compareUnsigned(mMaps[i].getEndAddress(), address) >= 0) {
+                return mMaps[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Compares two addresses as unsigned values, as 64 bit pointers may use the top bit.
+     */
+    private static int compareUnsigned(long a, long b) {
+        a += Long.MIN_VALUE;
+        b += Long.MIN_VALUE;
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.nativeheap;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.ClientData;
+import com.android.ddmlib.Log;
+import com.android.ddmlib.NativeAllocationInfo;
+import com.android.ddmlib.NativeLibraryMapInfo;
+import com.android.ddmlib.NativeStackCallInfo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Native heap analysis for a single process.
+ * <p/>
+ * The analyzer turns the {@link NativeAllocationInfo} lists received from the device into
+ * {@link NativeHeapSnapshot}s whose stacks are deduplicated through a shared
+ * {@link NativeStackTrie}, resolves stack addresses in per-library batches through a
+ * {@link NativeSymbolResolver} backed by an LRU {@link SymbolCache}, and diffs snapshots.
+ * <p/>
+ * Snapshots can only be diffed against snapshots created by the same analyzer.
+ */
+public final class NativeHeapAnalyzer {
+
+    private static final String LOG_TAG = "ddm-nativeheap"; //$NON-NLS-1$
+
+    /** Default number of resolved addresses kept in the symbol cache. */
+    public static final int DEFAULT_CACHE_SIZE = 64 * 1024;
+
+    /** Placeholder used by symbolizers for unknown methods and files. */
+    private static final String UNKNOWN = "??"; //$NON-NLS-1$
+
+    @NonNull
+    private final NativeSymbolResolver mResolver;
+    @NonNull
+    private final SymbolCache mCache;
+    @NonNull
+    private final NativeStackTrie mTrie = new NativeStackTrie();
+    @NonNull
+    private List<NativeLibraryMapInfo> mMaps = Collections.emptyList();
+    @NonNull
+    private LibraryMapIndex mIndex = new LibraryMapIndex(mMaps);
+
+    public NativeHeapAnalyzer(@NonNull NativeSymbolResolver resolver) {
+        this(resolver, DEFAULT_CACHE_SIZE);
+    }
+
+    public NativeHeapAnalyzer(@NonNull NativeSymbolResolver resolver, int cacheSize) {
+        mResolver = resolver;
+        mCache = new SymbolCache(cacheSize);
+    }
+
+    @NonNull
+    public NativeStackTrie getStackTrie() {
+        return mTrie;
+    }
+
+    @NonNull
+    public SymbolCache getSymbolCache() {
+        return mCache;
+    }
+
+    /**
+     * Sets the library mappings used to resolve addresses. The symbol cache is cleared if the
+     * mappings differ from the previous ones.
+     */
+    public synchronized void setLibraryMaps(@NonNull List<NativeLibraryMapInfo> maps) {
+        if (sameMaps(mMaps, maps)) {
+            return;
+        }
+        mMaps = new ArrayList<NativeLibraryMapInfo>(maps);
+        mIndex = new LibraryMapIndex(mMaps);
+        mCache.clear();
+    }
+
+    /**
+     * Creates a snapshot of the current native heap data of a client, updating the library
+     * mappings at the same time.
+     * @see com.android.ddmlib.Client#requestNativeHeapInformation()
+     */
+    @NonNull
+    public synchronized NativeHeapSnapshot createSnapshot(@NonNull ClientData clientData) {
+        setLibraryMaps(clientData.getMappedNativeLibraries());
+        return createSnapshot(clientData.getNativeAllocationList());
+    }
+
+    /**
+     * Creates a snapshot from a list of allocations.
+     */
+    @NonNull
+    public synchronized NativeHeapSnapshot createSnapshot(
+            @NonNull List<NativeAllocationInfo> allocations) {
+        int count = allocations.size();
+
+        // intern all the stacks, then sort (stack id, index) pairs packed in longs to fold
+        // allocations sharing a stack without boxing.
+        long[] keys = new long[count];
+        for (int i = 0; i < count; i++) {
+            int stackId = mTrie.intern(allocations.get(i).getStackCallAddresses());
+            keys[i] = ((long) stackId << 32) | i;
+        }
+        Arrays.sort(keys);
+
+        int[] stackIds = new int[count];
+        long[] sizes = new long[count];
+        int[] counts = new int[count];
+        int records = -1;
+        for (int i = 0; i < count; i++) {
+            int stackId = (int) (keys[i] >>> 32);
+            NativeAllocationInfo info = allocations.get((int) keys[i]);
+            if (records < 0 || stackIds[records] != stackId) {
+                records++;
+                stackIds[records] = stackId;
+            }
+            sizes[records] += (long) info.getSize() * info.getAllocationCount();
+            counts[records] += info.getAllocationCount();
+        }
+        records++;
+
+        return new NativeHeapSnapshot(this,
+                Arrays.copyOf(stackIds, records),
+                Arrays.copyOf(sizes, records),
+                Arrays.copyOf(counts, records));
+    }
+
+    /**
+     * Resolves all the addresses of all the stacks of a snapshot.
+     */
+    public void resolve(@NonNull NativeHeapSnapshot snapshot) {
+        checkOwner(snapshot);
+        int[] stackIds = new int[snapshot.getStackCount()];
+        for (int i = 0; i < stackIds.length; i++) {
+            stackIds[i] = snapshot.getStackId(i);
+        }
+        resolveStacks(stackIds);
+    }
+
+    /**
+     * Resolves all the addresses of the given stacks. Addresses already in the cache are not
+     * resolved again, and the remaining ones are sent to the resolver in one batch per library.
+     */
+    public synchronized void resolveStacks(@NonNull int[] stackIds) {
+        // stacks share their prefixes, so only visit each trie node once.
+        boolean[] visited = new boolean[mTrie.getNodeCount()];
+        long[] pending = new long[64];
+        int pendingCount = 0;
+        for (int stackId : stackIds) {
+            for (int node = stackId; node != NativeStackTrie.ROOT && !visited[node];
+                    node = mTrie.getParent(node)) {
+                visited[node] = true;
+                long address = mTrie.getAddress(node);
+                if (!mCache.contains(address)) {
+                    if (pendingCount == pending.length) {
+                        pending = Arrays.copyOf(pending, pendingCount * 2);
+                    }
+                    pending[pendingCount++] = address;
+                }
+            }
+        }
+
+        resolveAddresses(pending, pendingCount);
+    }
+
+    /**
+     * Returns the resolved frames of a stack, innermost first.
+     */
+    @NonNull
+    public synchronized List<NativeStackCallInfo> getResolvedStack(int stackId) {
+        long[] addresses = mTrie.getStack(stackId);
+        List<NativeStackCallInfo> frames = new ArrayList<NativeStackCallInfo>(addresses.length);
+        for (long address : addresses) {
+            NativeStackCallInfo info = mCache.get(address);
+            if (info == null) {
+                // not resolved yet, or evicted since.
+                resolveAddresses(new long[] { address }, 1);
+                info = mCache.get(address);
+            }
+            frames.add(info);
+        }
+        return frames;
+    }
+
+    /**
+     * Returns the frame of a stack that performed the allocation, skipping the allocator
+     * frames, or <code>null</code> for an empty stack.
+     * @see NativeAllocationInfo#getRelevantStackCallInfo()
+     */
+    @Nullable
+    public NativeStackCallInfo getCallSite(int stackId) {
+        NativeAllocationInfo info = new NativeAllocationInfo(0, 0);
+        info.setResolvedStackCall(getResolvedStack(stackId));
+        return info.getRelevantStackCallInfo();
+    }
+
+    /**
+     * Resolves the stacks of the given allocations and sets them through
+     * {@link NativeAllocationInfo#setResolvedStackCall(List)}, for clients displaying the
+     * allocations directly.
+     */
+    public void applyResolvedStacks(@NonNull List<NativeAllocationInfo> allocations) {
+        int[] stackIds = new int[allocations.size()];
+        synchronized (this) {
+            for (int i = 0; i < stackIds.length; i++) {
+                stackIds[i] = mTrie.intern(allocations.get(i).getStackCallAddresses());
+            }
+        }
+        resolveStacks(stackIds);
+        for (int i = 0; i < stackIds.length; i++) {
+            allocations.get(i).setResolvedStackCall(getResolvedStack(stackIds[i]));
+        }
+    }
+
+    /**
+     * Returns the changes between two snapshots created by this analyzer.
+     */
+    @NonNull
+    public NativeHeapDiff diff(@NonNull NativeHeapSnapshot before,
+            @NonNull NativeHeapSnapshot after) {
+        checkOwner(before);
+        checkOwner(after);
+        return new NativeHeapDiff(this, before, after);
+    }
+
+    private void resolveAddresses(long[] addresses, int count) {
+        if (count == 0) {
+            return;
+        }
+        long[] sorted = Arrays.copyOf(addresses, count);
+        Arrays.sort(sorted);
+
+        // libraries are disjoint intervals, so after sorting the addresses of each library are
+        // contiguous (modulo unsigned ordering, which only splits a batch in two).
+        int start = 0;
+        while (start < count) {
+            NativeLibraryMapInfo library = mIndex.find(sorted[start]);
+            int end = start + 1;
+            while (end < count && mIndex.find(sorted[end]) == library) {
+                end++;
+            }
+
+            long[] batch = dedupe(sorted, start, end);
+            if (library == null) {
+                for (long address : batch) {
+                    mCache.put(address, unknown(address, ""));
+                }
+            } else {
+                List<NativeStackCallInfo> resolved = null;
+                try {
+                    resolved = mResolver.resolve(library, batch);
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, e);
+                }
+                for (int i = 0; i < batch.length; i++) {
+                    NativeStackCallInfo info = resolved != null && i < resolved.size()
+                            ? resolved.get(i) : null;
+                    mCache.put(batch[i],
+                            info != null ? info : unknown(batch[i], library.getLibraryName()));
+                }
+            }
+            start = end;
+        }
+    }
+
+    private void checkOwner(@NonNull NativeHeapSnapshot snapshot) {
+        if (snapshot.getAnalyzer() != this) {
+            throw new IllegalArgumentException("Snapshot was created by another analyzer");
+        }
+    }
+
+    private static long[] dedupe(long[] sorted, int start, int end) {
+        long[] result = new long[end - start];
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            if (count == 0 || result[count - 1] != sorted[i]) {
+                result[count++] = sorted[i];
+            }
+        }
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+
+    private static NativeStackCallInfo unknown(long address, @NonNull String library) {
+        return new NativeStackCallInfo(address, library, UNKNOWN, UNKNOWN);
+    }
+
+    private static boolean sameMaps(List<NativeLibraryMapInfo> a, List<NativeLibraryMapInfo> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            NativeLibraryMapInfo ma = a.get(i);
+            NativeLibraryMapInfo mb = b.get(i);
+            if (ma.getStartAddress() != mb.getStartAddress()
+                    || ma.getEndAddress() != mb.getEndAddress()
+                    || !ma.getLibraryName().equals(mb.getLibraryName())) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
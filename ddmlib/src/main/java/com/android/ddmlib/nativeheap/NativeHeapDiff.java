@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.nativeheap;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.NativeStackCallInfo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Difference between two {@link NativeHeapSnapshot}s of the same process.
+ * <p/>
+ * Entries are sorted by decreasing size growth, so the first entries are the most likely
+ * leak candidates.
+ */
+public final class NativeHeapDiff {
+
+    /**
+     * The change in allocations made from a single stack, or from a single call site once
+     * grouped through {@link #groupByCallSite()}.
+     */
+    public static final class Entry {
+        private final long mKey;
+        private final NativeStackCallInfo mCallSite;
+        private long mSizeBefore;
+        private long mSizeAfter;
+        private long mCountBefore;
+        private long mCountAfter;
+
+        Entry(long key, @Nullable NativeStackCallInfo callSite) {
+            mKey = key;
+            mCallSite = callSite;
+        }
+
+        /**
+         * Returns the stack id for entries of {@link NativeHeapDiff#getEntries()}, or the address
+         * of the call site for entries of {@link NativeHeapDiff#groupByCallSite()}.
+         */
+        public long getKey() {
+            return mKey;
+        }
+
+        /**
+         * Returns the resolved call site, or <code>null</code> if the stack was not resolved.
+         */
+        @Nullable
+        public NativeStackCallInfo getCallSite() {
+            return mCallSite;
+        }
+
+        public long getSizeBefore() {
+            return mSizeBefore;
+        }
+
+        public long getSizeAfter() {
+            return mSizeAfter;
+        }
+
+        public long getSizeDelta() {
+            return mSizeAfter - mSizeBefore;
+        }
+
+        public long getCountBefore() {
+            return mCountBefore;
+        }
+
+        public long getCountAfter() {
+            return mCountAfter;
+        }
+
+        public long getCountDelta() {
+            return mCountAfter - mCountBefore;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%1$+d bytes, %2$+d allocations: %3$s", getSizeDelta(),
+                    getCountDelta(),
+                    mCallSite != null ? mCallSite.toString().trim() : Long.toHexString(mKey));
+        }
+    }
+
+    private static final Comparator<Entry> BY_GROWTH = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            long da = a.getSizeDelta();
+            long db = b.getSizeDelta();
+            if (da != db) {
+                return da > db ? -1 : 1;
+            }
+            long ca = a.getCountDelta();
+            long cb = b.getCountDelta();
+            if (ca != cb) {
+                return ca > cb ? -1 : 1;
+            }
+            return a.mKey < b.mKey ? -1 : (a.mKey == b.mKey ? 0 : 1);
+        }
+    };
+
+    private final NativeHeapAnalyzer mAnalyzer;
+    private final List<Entry> mEntries;
+
+    NativeHeapDiff(@NonNull NativeHeapAnalyzer analyzer, @NonNull NativeHeapSnapshot before,
+            @NonNull NativeHeapSnapshot after) {
+        mAnalyzer = analyzer;
+
+        // both snapshots are sorted by stack id, so this is a simple merge.
+        List<Entry> entries = new ArrayList<Entry>();
+        int i = 0;
+        int j = 0;
+        while (i < before.getStackCount() || j < after.getStackCount()) {
+            int idBefore = i < before.getStackCount() ? before.getStackId(i) : Integer.MAX_VALUE;
+            int idAfter = j < after.getStackCount() ? after.getStackId(j) : Integer.MAX_VALUE;
+            int id = Math.min(idBefore, idAfter);
+
+            Entry entry = new Entry(id, null);
+            if (idBefore == id) {
+                entry.mSizeBefore = before.getTotalSize(i);
+                entry.mCountBefore = before.getAllocationCount(i);
+                i++;
+            }
+            if (idAfter == id) {
+                entry.mSizeAfter = after.getTotalSize(j);
+                entry.mCountAfter = after.getAllocationCount(j);
+                j++;
+            }
+            if (entry.getSizeDelta() != 0 || entry.getCountDelta() != 0) {
+                entries.add(entry);
+            }
+        }
+
+        Collections.sort(entries, BY_GROWTH);
+        mEntries = Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Returns one entry per stack whose allocations changed, keyed by stack id.
+     */
+    @NonNull
+    public List<Entry> getEntries() {
+        return mEntries;
+    }
+
+    /**
+     * Groups the changes by call site, i.e. the first frame of each stack that is not part of
+     * the allocator itself (see
+     * {@link com.android.ddmlib.NativeAllocationInfo#getRelevantStackCallInfo()}).
+     * <p/>
+     * This resolves the stacks of all changed entries through the analyzer, in a single batch.
+     */
+    @NonNull
+    public List<Entry> groupByCallSite() {
+        int[] stackIds = new int[mEntries.size()];
+        for (int i = 0; i < stackIds.length; i++) {
+            stackIds[i] = (int) mEntries.get(i).getKey();
+        }
+        mAnalyzer.resolveStacks(stackIds);
+
+        Map<Long, Entry> sites = new LinkedHashMap<Long, Entry>();
+        for (Entry entry : mEntries) {
+            NativeStackCallInfo callSite = mAnalyzer.getCallSite((int) entry.getKey());
+            long address = callSite != null
+                    ? callSite.getAddress()
+                    : mAnalyzer.getStackTrie().getAddress((int) entry.getKey());
+            Entry site = sites.get(address);
+            if (site == null) {
+                site = new Entry(address, callSite);
+                sites.put(address, site);
+            }
+            site.mSizeBefore += entry.mSizeBefore;
+            site.mSizeAfter += entry.mSizeAfter;
+            site.mCountBefore += entry.mCountBefore;
+            site.mCountAfter += entry.mCountAfter;
+        }
+
+        List<Entry> grouped = new ArrayList<Entry>(sites.values());
+        Collections.sort(grouped, BY_GROWTH);
+        return grouped;
+    }
+}
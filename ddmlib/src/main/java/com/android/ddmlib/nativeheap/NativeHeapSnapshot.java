@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.nativeheap;
+
+import com.android.annotations.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * An immutable native heap snapshot, aggregated by stack.
+ * <p/>
+ * Allocations with the same call stack are folded into a single record holding the allocation
+ * count and the total size. Stacks are referred to by their id in the {@link NativeStackTrie}
+ * of the {@link NativeHeapAnalyzer} that created the snapshot.
+ */
+public final class NativeHeapSnapshot {
+
+    private final NativeHeapAnalyzer mAnalyzer;
+    private final int[] mStackIds;
+    private final long[] mTotalSizes;
+    private final int[] mAllocationCounts;
+    private final long mTotalSize;
+    private final long mTotalAllocationCount;
+
+    NativeHeapSnapshot(@NonNull NativeHeapAnalyzer analyzer, @NonNull int[] stackIds,
+            @NonNull long[] totalSizes, @NonNull int[] allocationCounts) {
+        mAnalyzer = analyzer;
+        mStackIds = stackIds;
+        mTotalSizes = totalSizes;
+        mAllocationCounts = allocationCounts;
+
+        long totalSize = 0;
+        long totalCount = 0;
+        for (int i = 0; i < stackIds.length; i++) {
+            totalSize += totalSizes[i];
+            totalCount += allocationCounts[i];
+        }
+        mTotalSize = totalSize;
+        mTotalAllocationCount = totalCount;
+    }
+
+    @NonNull
+    NativeHeapAnalyzer getAnalyzer() {
+        return mAnalyzer;
+    }
+
+    /**
+     * Returns the number of distinct stacks in the snapshot.
+     */
+    public int getStackCount() {
+        return mStackIds.length;
+    }
+
+    /**
+     * Returns the stack id of the record at the given index. Records are sorted by stack id.
+     */
+    public int getStackId(int index) {
+        return mStackIds[index];
+    }
+
+    /**
+     * Returns the total number of bytes allocated from the stack of the record at the given
+     * index.
+     */
+    public long getTotalSize(int index) {
+        return mTotalSizes[index];
+    }
+
+    /**
+     * Returns the number of allocations made from the stack of the record at the given index.
+     */
+    public int getAllocationCount(int index) {
+        return mAllocationCounts[index];
+    }
+
+    /**
+     * Returns the index of the record for the given stack id, or a negative value if the stack
+     * is not part of this snapshot.
+     */
+    public int indexOf(int stackId) {
+        return Arrays.binarySearch(mStackIds, stackId);
+    }
+
+    /**
+     * Returns the total number of bytes in the snapshot.
+     */
+    public long getTotalSize() {
+        return mTotalSize;
+    }
+
+    /**
+     * Returns the total number of allocations in the snapshot.
+     */
+    public long getTotalAllocationCount() {
+        return mTotalAllocationCount;
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.nativeheap;
+
+import com.android.annotations.NonNull;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Interns native call stacks into a trie so that each distinct stack is stored once and can be
+ * referred to by a single int id.
+ * <p/>
+ * Stacks are inserted from the outermost frame to the innermost one, so allocations made from
+ * the same callers share their common prefix. The id of a stack is the id of its innermost node.
+ * <p/>
+ * Nodes are stored in parallel primitive arrays and looked up through an open addressing table
+ * keyed on (parent id, address), which avoids boxing every frame address.
+ * <p/>
+ * This class is not thread-safe.
+ */
+public final class NativeStackTrie {
+
+    /** Id of the implicit root node, which represents the empty stack. */
+    public static final int ROOT = 0;
+
+    private static final int NO_NODE = -1;
+
+    private int[] mParents = new int[256];
+    private long[] mAddresses = new long[256];
+    private int[] mDepths = new int[256];
+    private int mSize = 1;
+
+    /** Open addressing table of node ids, sized to a power of two. */
+    private int[] mTable = newTable(512);
+
+    /**
+     * Returns the number of nodes in the trie, including the root.
+     */
+    public int getNodeCount() {
+        return mSize;
+    }
+
+    /**
+     * Interns a stack, as returned by
+     * {@link com.android.ddmlib.NativeAllocationInfo#getStackCallAddresses()}, where the first
+     * element is the innermost frame.
+     * @param addresses the frame addresses, innermost first.
+     * @return the id of the stack.
+     */
+    public int intern(@NonNull List<Long> addresses) {
+        int node = ROOT;
+        for (int i = addresses.size() - 1; i >= 0; i--) {
+            node = child(node, addresses.get(i));
+        }
+        return node;
+    }
+
+    /**
+     * Interns a stack where the first element is the innermost frame.
+     * @param addresses the frame addresses, innermost first.
+     * @return the id of the stack.
+     */
+    public int intern(@NonNull long[] addresses) {
+        int node = ROOT;
+        for (int i = addresses.length - 1; i >= 0; i--) {
+            node = child(node, addresses[i]);
+        }
+        return node;
+    }
+
+    /**
+     * Returns the id of the parent node, i.e. the stack without its innermost frame, or
+     * {@link #ROOT} for a stack of depth one.
+     */
+    public int getParent(int id) {
+        checkId(id);
+        return mParents[id];
+    }
+
+    /**
+     * Returns the address of the innermost frame of the given stack.
+     */
+    public long getAddress(int id) {
+        checkId(id);
+        return mAddresses[id];
+    }
+
+    /**
+     * Returns the number of frames in the given stack.
+     */
+    public int getDepth(int id) {
+        checkId(id);
+        return mDepths[id];
+    }
+
+    /**
+     * Returns the frame addresses of the given stack, innermost first.
+     */
+    @NonNull
+    public long[] getStack(int id) {
+        checkId(id);
+        long[] stack = new long[mDepths[id]];
+        int node = id;
+        for (int i = 0; i < stack.length; i++) {
+            stack[i] = mAddresses[node];
+            node = mParents[node];
+        }
+        return stack;
+    }
+
+    private int child(int parent, long address) {
+        int mask = mTable.length - 1;
+        int slot = hash(parent, address) & mask;
+        while (true) {
+            int node = mTable[slot];
+            if (node == NO_NODE) {
+                break;
+            }
+            if (mParents[node] == parent && mAddresses[node] == address) {
+                return node;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        int node = mSize++;
+        if (node == mParents.length) {
+            int capacity = mParents.length * 2;
+            mParents = Arrays.copyOf(mParents, capacity);
+            mAddresses = Arrays.copyOf(mAddresses, capacity);
+            mDepths = Arrays.copyOf(mDepths, capacity);
+        }
+        mParents[node] = parent;
+        mAddresses[node] = address;
+        mDepths[node] = mDepths[parent] + 1;
+        mTable[slot] = node;
+
+        // keep the load factor under 1/2.
+        if (mSize * 2 > mTable.length) {
+            rehash(mTable.length * 2);
+        }
+        return node;
+    }
+
+    private void rehash(int capacity) {
+        mTable = newTable(capacity);
+        int mask = capacity - 1;
+        for (int node = 1; node < mSize; node++) {
+            int slot = hash(mParents[node], mAddresses[node]) & mask;
+            while (mTable[slot] != NO_NODE) {
+                slot = (slot + 1) & mask;
+            }
+            mTable[slot] = node;
+        }
+    }
+
+    private void checkId(int id) {
+        if (id < 0 || id >= mSize) {
+            throw new IllegalArgumentException("Unknown stack id: " + id);
+        }
+    }
+
+    private static int[] newTable(int capacity) {
+        int[] table = new int[capacity];
+        Arrays.fill(table, NO_NODE);
+        return table;
+    }
+
+    private static int hash(int parent, long address) {
+        long h = address * 0x9E3779B97F4A7C15L + parent;
+        h ^= (h >>> 29);
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.nativeheap;
+
+import com.android.annotations.NonNull;
+import com.android.ddmlib.NativeLibraryMapInfo;
+import com.android.ddmlib.NativeStackCallInfo;
+
+import java.util.List;
+
+/**
+ * Resolves native addresses into {@link NativeStackCallInfo}.
+ * <p/>
+ * ddmlib does not ship a symbolizer; clients typically implement this on top of addr2line or a
+ * similar tool. Addresses are handed out in batches, one batch per library, so that an
+ * implementation can run a single symbolizer invocation per library.
+ */
+public interface NativeSymbolResolver {
+
+    /**
+     * Resolves a batch of addresses that all fall inside the same library.
+     * @param library the library containing the addresses.
+     * @param addresses the absolute addresses to resolve, sorted and without duplicates.
+     * @return one entry per address, in the same order. An entry may be <code>null</code> if
+     * the address could not be resolved.
+     */
+    @NonNull
+    List<NativeStackCallInfo> resolve(@NonNull NativeLibraryMapInfo library,
+            @NonNull long[] addresses);
+}
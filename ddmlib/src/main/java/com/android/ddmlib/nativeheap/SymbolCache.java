@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.nativeheap;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.NativeStackCallInfo;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of resolved addresses.
+ * <p/>
+ * Entries are only valid for a given set of library mappings; the cache must be cleared when
+ * the mappings change.
+ */
+public final class SymbolCache {
+
+    private final int mMaxSize;
+    private final LinkedHashMap<Long, NativeStackCallInfo> mEntries;
+
+    private long mHits;
+    private long mMisses;
+
+    /**
+     * Creates a cache holding at most <var>maxSize</var> resolved addresses.
+     */
+    public SymbolCache(final int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+        }
+        mMaxSize = maxSize;
+        mEntries = new LinkedHashMap<Long, NativeStackCallInfo>(16, 0.75f, true /*accessOrder*/) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, NativeStackCallInfo> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the resolved address, or <code>null</code> if it is not in the cache.
+     */
+    @Nullable
+    public synchronized NativeStackCallInfo get(long address) {
+        NativeStackCallInfo info = mEntries.get(address);
+        if (info != null) {
+            mHits++;
+        } else {
+            mMisses++;
+        }
+        return info;
+    }
+
+    /**
+     * Returns whether the address is in the cache, without updating its recency or the
+     * hit/miss counters.
+     */
+    public synchronized boolean contains(long address) {
+        return mEntries.containsKey(address);
+    }
+
+    public synchronized void put(long address, @NonNull NativeStackCallInfo info) {
+        mEntries.put(address, info);
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    public int getMaxSize() {
+        return mMaxSize;
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+}
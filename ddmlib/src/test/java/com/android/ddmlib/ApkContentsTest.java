@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib;
+
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class ApkContentsTest extends TestCase {
+
+    public void testGet() throws Exception {
+        File apk = File.createTempFile("ApkContentsTest", ".apk");
+        try {
+            Files.write(new byte[] { 1, 2, 3, 4 }, apk);
+            ApkContents contents = new ApkContents();
+            assertEquals(4, contents.getSize(apk));
+
+            // each buffer is consumed independently.
+            ByteBuffer first = contents.get(apk);
+            first.get();
+            ByteBuffer second = contents.get(apk);
+            assertEquals(0, second.position());
+            assertEquals(4, second.remaining());
+            assertEquals(1, second.get());
+            assertTrue(second.isReadOnly());
+        } finally {
+            apk.delete();
+        }
+    }
+
+    public void testGet_notAFile() {
+        try {
+            new ApkContents().get(new File("does/not/exist.apk"));
+            fail("IOException not thrown");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -87,4 +87,22 @@ public class BatteryFetcherTest extends TestCase {
             assertTrue(e.getCause() instanceof ShellCommandUnresponsiveException);
         }
     }
+
+    /**
+     * Test that 'dumpsys battery' is used directly once the sysfs query failed on a device.
+     */
+    public void testGetBattery_dumpsysFallback() throws Exception {
+        IDevice mockDevice = DeviceTest.createMockDevice();
+        DeviceTest.injectShellResponse(mockDevice, "blargh");
+        DeviceTest.injectShellResponse(mockDevice, "  level: 50\r\n  scale: 100\r\n");
+        DeviceTest.injectShellResponse(mockDevice, "  level: 40\r\n  scale: 100\r\n");
+        EasyMock.replay(mockDevice);
+
+        BatteryFetcher fetcher = new BatteryFetcher(mockDevice);
+        assertEquals(50, fetcher.getBattery(0, TimeUnit.MILLISECONDS).get().intValue());
+        Thread.sleep(10);
+        assertEquals(40, fetcher.getBattery(0, TimeUnit.MILLISECONDS).get().intValue());
+        EasyMock.verify(mockDevice);
+        assertEquals(2, fetcher.getMetrics().getFetchCount());
+    }
 }
@@ -21,6 +21,8 @@ import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
 
+import java.io.IOException;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
@@ -160,4 +162,67 @@ public class PropertyFetcherTest extends TestCase {
         assertNull(fetcher.getProperty("ro.sf.lcd_density").get(2, TimeUnit.SECONDS));
         assertEquals("480", fetcher.getProperty("ro.sf.lcd_density").get(2, TimeUnit.SECONDS));
     }
+
+    /**
+     * Test that getProperties fails on an empty response, and queries the device again on the
+     * next request.
+     */
+    public void testGetProperties_emptyResponse() throws Exception {
+        IDevice mockDevice = DeviceTest.createMockDevice();
+        DeviceTest.injectShellResponse(mockDevice, "");
+        DeviceTest.injectShellResponse(mockDevice, GETPROP_RESPONSE);
+        EasyMock.replay(mockDevice);
+
+        PropertyFetcher fetcher = new PropertyFetcher(mockDevice);
+        try {
+            fetcher.getProperties(1, TimeUnit.MINUTES).get(2, TimeUnit.SECONDS);
+            fail("ExecutionException not thrown");
+        } catch (ExecutionException e) {
+            // expected
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertFalse(fetcher.arePropertiesSet());
+
+        assertEquals("480", fetcher.getProperties(1, TimeUnit.MINUTES)
+                .get(2, TimeUnit.SECONDS).get("ro.sf.lcd_density"));
+        EasyMock.verify(mockDevice);
+        assertEquals(1, fetcher.getMetrics().getFailureCount());
+    }
+
+    /**
+     * Test that getProperties shares a single 'getprop' query between concurrent requests and
+     * serves later requests from the cache within the requested freshness.
+     */
+    public void testGetProperties() throws Exception {
+        IDevice mockDevice = DeviceTest.createMockDevice();
+        DeviceTest.injectShellResponse(mockDevice, GETPROP_RESPONSE);
+        EasyMock.replay(mockDevice);
+
+        PropertyFetcher fetcher = new PropertyFetcher(mockDevice);
+        // do query in unpopulated state
+        Future<Map<String, String>> unpopulatedFuture = fetcher.getProperties(1, TimeUnit.MINUTES);
+        // do queries in fetching state
+        Future<Map<String, String>> fetchingFuture = fetcher.getProperties(1, TimeUnit.MINUTES);
+        Future<String> fetchingPropFuture = fetcher.getProperty("ro.secure");
+
+        assertEquals("480", unpopulatedFuture.get().get("ro.sf.lcd_density"));
+        assertSame(unpopulatedFuture.get(), fetchingFuture.get(1, TimeUnit.MILLISECONDS));
+        assertEquals("1", fetchingPropFuture.get(1, TimeUnit.MILLISECONDS));
+
+        // served from the cache, without another 'getprop'
+        assertEquals("1", fetcher.getProperties(1, TimeUnit.MINUTES)
+                .get(1, TimeUnit.MILLISECONDS).get("ro.secure"));
+        assertNull(fetcher.getProperty("dev.bootcomplete", 1, TimeUnit.MINUTES)
+                .get(1, TimeUnit.MILLISECONDS));
+        EasyMock.verify(mockDevice);
+
+        FetchMetrics metrics = fetcher.getMetrics();
+        assertEquals(5, metrics.getRequestCount());
+        assertEquals(1, metrics.getMissCount());
+        assertEquals(2, metrics.getCoalescedCount());
+        assertEquals(2, metrics.getHitCount());
+        assertEquals(1, metrics.getFetchCount());
+        assertEquals(0, metrics.getFailureCount());
+        assertEquals(0.8, metrics.getHitRate(), 0.001);
+    }
 }
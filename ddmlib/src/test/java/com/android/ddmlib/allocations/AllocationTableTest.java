@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib.allocations;
+
+import com.android.ddmlib.AllocationInfo;
+import com.android.ddmlib.AllocationsParser;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class AllocationTableTest extends TestCase {
+
+  private static ByteBuffer createData() throws IOException {
+    return AllocationsParserTest.putAllocationInfo(
+            new String[]{"path.Red", "path.Green", "path.Blue", "[Lpath/Blue;"},
+            new String[]{"eatTiramisu", "failUnitTest", "watchCatVideos"},
+            new String[]{"Red.java", "Green.java"},
+            new int[][]{{128, 8, 0, 2}, {16, 8, 2, 2}, {42, 2, 1, 1}, {10, 3, 3, 0}, {7, 3, 0, 2}},
+            new short[][][]{
+                    {{1, 0, 1, 100}, {2, 2, 0, 12}},
+                    {{1, 0, 1, 100}, {2, 2, 0, 12}},
+                    {{1, 0, 1, 100}},
+                    {},
+                    {{1, 0, 1, 100}, {0, 1, 0, 5}}});
+  }
+
+  public void testInterning() throws IOException {
+    AllocationTable table = AllocationTable.decode(createData());
+    assertEquals(5, table.getRecordCount());
+    assertEquals(3, table.getFrameCount());
+    // stacks are interned from the outermost frame: [B, A], [A] and [C, A].
+    assertEquals(5, table.getStackCount());
+    assertEquals(table.getStack(0), table.getStack(1));
+    assertEquals(AllocationTable.NO_STACK, table.getStack(3));
+    assertEquals(2, table.getStackDepth(table.getStack(0)));
+    assertEquals("path.Blue[]", table.getAllocatedClass(3));
+  }
+
+  public void testAggregates() throws IOException {
+    AllocationTable table = AllocationTable.decode(createData());
+
+    int[] sites = table.getSitesBySize();
+    assertEquals(1, sites.length);
+    assertEquals("path.Green", table.getFrameClassName(sites[0]));
+    assertEquals("eatTiramisu", table.getFrameMethodName(sites[0]));
+    assertEquals(4, table.getSiteAllocationCount(sites[0]));
+    assertEquals(128 + 16 + 42 + 7, table.getSiteTotalSize(sites[0]));
+
+    int[] classes = table.getClassesBySize();
+    assertEquals(4, classes.length);
+    assertEquals("path.Red", table.getClassName(classes[0]));
+    assertEquals(2, table.getClassAllocationCount(classes[0]));
+    assertEquals(135, table.getClassTotalSize(classes[0]));
+  }
+
+  public void testMatchesParser() throws IOException {
+    AllocationTable table = AllocationTable.decode(createData());
+    AllocationInfo[] infos = AllocationsParser.toAllocationInfos(table);
+    AllocationInfo[] expected = AllocationsParser.parse(createData());
+    assertEquals(expected.length, infos.length);
+    for (int i = 0; i < infos.length; i++) {
+      assertEquals(expected[i].getAllocNumber(), infos[i].getAllocNumber());
+      assertEquals(expected[i].getAllocatedClass(), infos[i].getAllocatedClass());
+      assertTrue(Arrays.equals(expected[i].getStackTrace(), infos[i].getStackTrace()));
+    }
+    // identical stacks share their frames.
+    assertSame(infos[0].getStackTrace(), infos[1].getStackTrace());
+    assertSame(infos[0].getStackTrace()[0], infos[2].getStackTrace()[0]);
+  }
+
+  public void testSortMatchesAllocationSorter() throws IOException {
+    AllocationTable table = AllocationTable.decode(createData());
+    AllocationInfo[] infos = AllocationsParser.toAllocationInfos(table);
+
+    AllocationInfo.AllocationSorter sorter = new AllocationInfo.AllocationSorter();
+    for (AllocationInfo.SortMode mode : AllocationInfo.SortMode.values()) {
+      for (boolean descending : new boolean[]{true, false}) {
+        sorter.setSortMode(mode, descending);
+        AllocationInfo[] expected = infos.clone();
+        Arrays.sort(expected, sorter);
+
+        int[] order = table.sort(mode, descending);
+        for (int i = 0; i < order.length; i++) {
+          assertEquals(mode + " " + descending + " " + i, 0, sorter.compare(expected[i], infos[order[i]]));
+        }
+      }
+    }
+  }
+
+  public void testDescriptorToDot() {
+    assertEquals("android.os.Debug", AllocationTable.descriptorToDot("Landroid/os/Debug;"));
+    assertEquals("int[][]", AllocationTable.descriptorToDot("[[I"));
+    assertEquals("java.lang.String[]", AllocationTable.descriptorToDot("[Ljava/lang/String;"));
+    assertEquals("<init>", AllocationTable.descriptorToDot("<init>"));
+    assertEquals("Q", AllocationTable.descriptorToDot("Q"));
+  }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib.log;
+
+import com.android.ddmlib.log.LogReceiver.LogEntry;
+import com.google.common.base.Charsets;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class EventBatchDecoderTest extends TestCase {
+
+    private static final int TAG_BATTERY = 2722;
+    private static final int TAG_RESUME = 30009;
+    private static final int TAG_ANSWER = 42;
+    private static final int TAG_UNDESCRIBED = 50000;
+
+    private static final String[] TAGS = new String[] {
+            "# comment",
+            "42 answer (to life the universe etc|3)",
+            "2722 battery_level (level|1|6),(voltage|1|1),(temperature|1|1)",
+            "20001 dvm_gc_info (custom|2),(custom|2),(custom|2),(custom|2)",
+            "30009 am_resume_activity (User|1|5),(Token|1|5),(Task ID|1|5),(Component Name|3)",
+            "50000 undescribed",
+    };
+
+    private EventLogParser mParser;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mParser = new EventLogParser();
+        mParser.init(TAGS);
+    }
+
+    public void testDecodeEntries() throws Exception {
+        EventBatchDecoder decoder = new EventBatchDecoder(mParser);
+        assertTrue(decoder.decode(entry(100, TAG_BATTERY, 3, list(integer(95), integer(4100),
+                integer(310)))));
+        assertTrue(decoder.decode(entry(101, TAG_RESUME, 4, list(integer(0), integer(12345),
+                integer(7), string("com.foo/.Main")))));
+        assertTrue(decoder.decode(entry(102, TAG_ANSWER, 5, string("forty two"))));
+        // wrong shape for the schema.
+        assertFalse(decoder.decode(entry(103, TAG_BATTERY, 6, list(integer(95)))));
+        assertFalse(decoder.decode(entry(104, TAG_BATTERY, 6, list(integer(95), longValue(1),
+                integer(310)))));
+        // no description.
+        assertFalse(decoder.decode(entry(105, TAG_UNDESCRIBED, 7, integer(1))));
+
+        assertEquals(3, decoder.getDecodedCount());
+        assertEquals(3, decoder.getSkippedCount());
+
+        EventColumns battery = decoder.getColumns(TAG_BATTERY);
+        assertEquals(1, battery.size());
+        assertEquals("battery_level", battery.getSchema().getName());
+        assertEquals(100, battery.getPid(0));
+        assertEquals(3, battery.getSec(0));
+        assertEquals(4100, battery.getLong(battery.getSchema().getColumnIndex("voltage"), 0));
+
+        EventColumns resume = decoder.getColumns(TAG_RESUME);
+        assertEquals(12345, resume.getLong(1, 0));
+        assertEquals("com.foo/.Main", resume.getString(3, 0));
+        try {
+            resume.getString(0, 0);
+            fail("Expected InvalidTypeException");
+        } catch (InvalidTypeException e) {
+            // expected
+        }
+
+        assertEquals("forty two", decoder.getColumns(TAG_ANSWER).getString(0, 0));
+        assertNull(decoder.getColumns(TAG_UNDESCRIBED));
+
+        decoder.clear();
+        assertEquals(0, battery.size());
+        assertEquals(0, decoder.getDecodedCount());
+    }
+
+    public void testDecodeSubsetOfTags() {
+        EventBatchDecoder decoder = new EventBatchDecoder(mParser, new int[] { TAG_ANSWER });
+        assertNull(decoder.getColumns(TAG_BATTERY));
+        assertFalse(decoder.decode(entry(100, TAG_BATTERY, 3, list(integer(95), integer(4100),
+                integer(310)))));
+        assertTrue(decoder.decode(entry(102, TAG_ANSWER, 5, string("forty two"))));
+    }
+
+    public void testGcEventMatchesContainer() throws Exception {
+        byte[] payload = list(longValue(0x0061626364650123L), longValue(0x8123456789abcdefL));
+        LogEntry entry = entry(1, GcEventContainer.GC_EVENT_TAG, 2, payload);
+        EventContainer container = mParser.parse(entry);
+
+        EventBatchDecoder decoder = new EventBatchDecoder(mParser);
+        assertTrue(decoder.decode(entry));
+        EventColumns gc = decoder.getColumns(GcEventContainer.GC_EVENT_TAG);
+        assertEquals(container.getValueAsString(0), gc.getString(0, 0));
+        for (int i = 1; i < gc.getSchema().getColumnCount(); i++) {
+            assertEquals(container.getValue(i), gc.getLong(i, 0));
+        }
+    }
+
+    public void testDecodeBufferWithPartialEntry() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < 10; i++) {
+            writeEntry(out, entry(i, TAG_BATTERY, i, list(integer(i), integer(2 * i),
+                    integer(3 * i))));
+        }
+        byte[] buffer = out.toByteArray();
+
+        EventBatchDecoder decoder = new EventBatchDecoder(mParser);
+        int consumed = decoder.decodeBuffer(buffer, 0, buffer.length - 5);
+        assertEquals(9, decoder.getColumns(TAG_BATTERY).size());
+        consumed += decoder.decodeBuffer(buffer, consumed, buffer.length - consumed);
+        assertEquals(buffer.length, consumed);
+
+        EventColumns battery = decoder.getColumns(TAG_BATTERY);
+        assertEquals(10, battery.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, battery.getPid(i));
+            assertEquals(3 * i, battery.getLong(2, i));
+        }
+    }
+
+    /**
+     * Checks that the batch decoder returns the same events as
+     * {@link EventLogParser#parse(LogEntry)} on a large capture of the events buffer.
+     */
+    public void testDecodeBufferMatchesParser() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        List<LogEntry> entries = new ArrayList<LogEntry>();
+        for (int i = 0; i < 30000; i++) {
+            LogEntry entry;
+            switch (i % 3) {
+                case 0:
+                    entry = entry(i, TAG_BATTERY, i, list(integer(i % 100), integer(4000 + i),
+                            integer(-i)));
+                    break;
+                case 1:
+                    entry = entry(i, TAG_RESUME, i, list(integer(0), integer(i), integer(7),
+                            string("com.foo/.Main" + i)));
+                    break;
+                default:
+                    entry = entry(i, GcEventContainer.GC_EVENT_TAG, i,
+                            list(longValue(0x0061626364650123L), longValue(i * 0x10001L)));
+            }
+            entries.add(entry);
+            writeEntry(out, entry);
+        }
+        byte[] buffer = out.toByteArray();
+
+        EventBatchDecoder decoder = new EventBatchDecoder(mParser);
+        assertEquals(buffer.length, decoder.decodeBuffer(buffer, 0, buffer.length));
+        assertEquals(entries.size(), decoder.getDecodedCount());
+        assertEquals(0, decoder.getSkippedCount());
+
+        Map<Integer, Integer> rows = new HashMap<Integer, Integer>();
+        for (LogEntry entry : entries) {
+            EventContainer event = mParser.parse(entry);
+            EventColumns columns = decoder.getColumns(event.mTag);
+            Integer row = rows.get(event.mTag);
+            row = row == null ? 0 : row + 1;
+            rows.put(event.mTag, row);
+
+            assertEquals(event.pid, columns.getPid(row));
+            assertEquals(event.tid, columns.getTid(row));
+            assertEquals(event.sec, columns.getSec(row));
+            assertEquals(event.nsec, columns.getNsec(row));
+
+            EventSchema schema = columns.getSchema();
+            for (int column = 0; column < schema.getColumnCount(); column++) {
+                if (schema.isStringColumn(column)) {
+                    assertEquals(event.getValueAsString(column), columns.getString(column, row));
+                } else {
+                    assertEquals(((Number) event.getValue(column)).longValue(),
+                            columns.getLong(column, row));
+                }
+            }
+        }
+        for (Map.Entry<Integer, Integer> entry : rows.entrySet()) {
+            assertEquals(entry.getValue() + 1, decoder.getColumns(entry.getKey()).size());
+        }
+    }
+
+    private static LogEntry entry(int pid, int tag, int sec, byte[] payload) {
+        LogEntry entry = new LogEntry();
+        entry.pid = pid;
+        entry.tid = pid + 1;
+        entry.sec = sec;
+        entry.nsec = 0;
+        entry.len = payload.length + 4;
+        entry.data = new byte[entry.len];
+        putInt(entry.data, 0, tag);
+        System.arraycopy(payload, 0, entry.data, 4, payload.length);
+        return entry;
+    }
+
+    private static void writeEntry(ByteArrayOutputStream out, LogEntry entry) {
+        byte[] header = new byte[20];
+        header[0] = (byte) entry.len;
+        header[1] = (byte) (entry.len >> 8);
+        putInt(header, 4, entry.pid);
+        putInt(header, 8, entry.tid);
+        putInt(header, 12, entry.sec);
+        putInt(header, 16, entry.nsec);
+        out.write(header, 0, header.length);
+        out.write(entry.data, 0, entry.len);
+    }
+
+    private static byte[] integer(int value) {
+        byte[] data = new byte[5];
+        data[0] = EventLogParser.EVENT_TYPE_INT;
+        putInt(data, 1, value);
+        return data;
+    }
+
+    private static byte[] longValue(long value) {
+        byte[] data = new byte[9];
+        data[0] = EventLogParser.EVENT_TYPE_LONG;
+        for (int i = 0; i < 8; i++) {
+            data[1 + i] = (byte) (value >> (8 * i));
+        }
+        return data;
+    }
+
+    private static byte[] string(String value) {
+        byte[] bytes = value.getBytes(Charsets.UTF_8);
+        byte[] data = new byte[5 + bytes.length];
+        data[0] = EventLogParser.EVENT_TYPE_STRING;
+        putInt(data, 1, bytes.length);
+        System.arraycopy(bytes, 0, data, 5, bytes.length);
+        return data;
+    }
+
+    private static byte[] list(byte[]... values) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(EventLogParser.EVENT_TYPE_LIST);
+        out.write(values.length);
+        for (byte[] value : values) {
+            out.write(value, 0, value.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static void putInt(byte[] data, int offset, int value) {
+        for (int i = 0; i < 4; i++) {
+            data[offset + i] = (byte) (value >> (8 * i));
+        }
+    }
+}
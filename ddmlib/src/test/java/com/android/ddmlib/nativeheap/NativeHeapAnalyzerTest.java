@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib.nativeheap;
+
+import com.android.ddmlib.NativeAllocationInfo;
+import com.android.ddmlib.NativeLibraryMapInfo;
+import com.android.ddmlib.NativeStackCallInfo;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class NativeHeapAnalyzerTest extends TestCase {
+
+    private static final List<NativeLibraryMapInfo> MAPS = Arrays.asList(
+            new NativeLibraryMapInfo(0x3000, 0x3fff, "/system/lib/libfoo.so"),
+            new NativeLibraryMapInfo(0x1000, 0x1fff, "/system/lib/libc.so"));
+
+    /** Resolves every address to a method named after it, and records the batches. */
+    private static class FakeResolver implements NativeSymbolResolver {
+        final List<String> batches = new ArrayList<String>();
+
+        @Override
+        public List<NativeStackCallInfo> resolve(NativeLibraryMapInfo library, long[] addresses) {
+            batches.add(library.getLibraryName() + Arrays.toString(addresses));
+            List<NativeStackCallInfo> result = new ArrayList<NativeStackCallInfo>();
+            for (long address : addresses) {
+                String method = library.getLibraryName().endsWith("libc.so")
+                        ? "malloc" : "method_" + Long.toHexString(address);
+                result.add(new NativeStackCallInfo(address, library.getLibraryName(), method,
+                        "foo.cpp:" + address));
+            }
+            return result;
+        }
+    }
+
+    public void testStackTrie() {
+        NativeStackTrie trie = new NativeStackTrie();
+        int a = trie.intern(new long[] { 1, 2, 3 });
+        int b = trie.intern(new long[] { 4, 2, 3 });
+        int c = trie.intern(new long[] { 1, 2, 3 });
+
+        assertEquals(a, c);
+        assertTrue(a != b);
+        assertEquals(trie.getParent(a), trie.getParent(b));
+        assertEquals(3, trie.getDepth(a));
+        assertTrue(Arrays.equals(new long[] { 4, 2, 3 }, trie.getStack(b)));
+        // root + 3 + 3, with two shared nodes.
+        assertEquals(5, trie.getNodeCount());
+    }
+
+    public void testStackTrieGrows() {
+        NativeStackTrie trie = new NativeStackTrie();
+        int[] ids = new int[10000];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = trie.intern(new long[] { i, i % 7 });
+        }
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals(ids[i], trie.intern(new long[] { i, i % 7 }));
+            assertTrue(Arrays.equals(new long[] { i, i % 7 }, trie.getStack(ids[i])));
+        }
+    }
+
+    public void testLibraryMapIndex() {
+        LibraryMapIndex index = new LibraryMapIndex(MAPS);
+        assertNull(index.find(0x0fff));
+        assertEquals("/system/lib/libc.so", index.find(0x1000).getLibraryName());
+        assertEquals("/system/lib/libc.so", index.find(0x1fff).getLibraryName());
+        assertNull(index.find(0x2000));
+        assertEquals("/system/lib/libfoo.so", index.find(0x3abc).getLibraryName());
+        assertNull(index.find(0xffffffff00000000L));
+    }
+
+    public void testSymbolCacheEviction() {
+        SymbolCache cache = new SymbolCache(2);
+        cache.put(1, new NativeStackCallInfo(1, "lib", "a", "a.c"));
+        cache.put(2, new NativeStackCallInfo(2, "lib", "b", "b.c"));
+        assertNotNull(cache.get(1));
+        cache.put(3, new NativeStackCallInfo(3, "lib", "c", "c.c"));
+
+        // 2 was the least recently used.
+        assertNull(cache.get(2));
+        assertNotNull(cache.get(1));
+        assertNotNull(cache.get(3));
+        assertEquals(3, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    public void testSnapshotAggregatesStacks() {
+        NativeHeapAnalyzer analyzer = new NativeHeapAnalyzer(new FakeResolver());
+        NativeHeapSnapshot snapshot = analyzer.createSnapshot(Arrays.asList(
+                allocation(16, 2, 0x1010, 0x3010),
+                allocation(32, 1, 0x1010, 0x3010),
+                allocation(8, 4, 0x1010, 0x3020)));
+
+        assertEquals(2, snapshot.getStackCount());
+        assertEquals(64 + 32, snapshot.getTotalSize());
+        assertEquals(7, snapshot.getTotalAllocationCount());
+
+        int index = snapshot.indexOf(analyzer.getStackTrie().intern(new long[] { 0x1010, 0x3010 }));
+        assertEquals(64, snapshot.getTotalSize(index));
+        assertEquals(3, snapshot.getAllocationCount(index));
+    }
+
+    public void testResolveBatchesPerLibrary() {
+        FakeResolver resolver = new FakeResolver();
+        NativeHeapAnalyzer analyzer = new NativeHeapAnalyzer(resolver);
+        analyzer.setLibraryMaps(MAPS);
+        NativeHeapSnapshot snapshot = analyzer.createSnapshot(Arrays.asList(
+                allocation(16, 1, 0x1010, 0x3020, 0x3010),
+                allocation(16, 1, 0x1010, 0x3030, 0x3010),
+                allocation(16, 1, 0x5000)));
+        analyzer.resolve(snapshot);
+
+        assertEquals(Arrays.asList(
+                "/system/lib/libc.so[4112]",
+                "/system/lib/libfoo.so[12304, 12320, 12336]"), resolver.batches);
+
+        // everything is cached now.
+        analyzer.resolve(snapshot);
+        assertEquals(2, resolver.batches.size());
+
+        int stackId = analyzer.getStackTrie().intern(new long[] { 0x1010, 0x3020, 0x3010 });
+        List<NativeStackCallInfo> frames = analyzer.getResolvedStack(stackId);
+        assertEquals(3, frames.size());
+        assertEquals("malloc", frames.get(0).getMethodName());
+        assertEquals("method_3020", analyzer.getCallSite(stackId).getMethodName());
+
+        int unmapped = analyzer.getStackTrie().intern(new long[] { 0x5000 });
+        assertEquals("??", analyzer.getResolvedStack(unmapped).get(0).getMethodName());
+    }
+
+    public void testChangingMapsClearsCache() {
+        FakeResolver resolver = new FakeResolver();
+        NativeHeapAnalyzer analyzer = new NativeHeapAnalyzer(resolver);
+        analyzer.setLibraryMaps(MAPS);
+        analyzer.applyResolvedStacks(Arrays.asList(allocation(16, 1, 0x3010)));
+        assertEquals(1, analyzer.getSymbolCache().size());
+
+        analyzer.setLibraryMaps(new ArrayList<NativeLibraryMapInfo>(MAPS));
+        assertEquals(1, analyzer.getSymbolCache().size());
+
+        analyzer.setLibraryMaps(MAPS.subList(0, 1));
+        assertEquals(0, analyzer.getSymbolCache().size());
+    }
+
+    public void testDiff() {
+        NativeHeapAnalyzer analyzer = new NativeHeapAnalyzer(new FakeResolver());
+        analyzer.setLibraryMaps(MAPS);
+        NativeHeapSnapshot before = analyzer.createSnapshot(Arrays.asList(
+                allocation(16, 1, 0x1010, 0x3010, 0x3100),
+                allocation(16, 1, 0x1010, 0x3020)));
+        NativeHeapSnapshot after = analyzer.createSnapshot(Arrays.asList(
+                allocation(16, 5, 0x1010, 0x3010, 0x3100),
+                allocation(16, 2, 0x1010, 0x3010, 0x3200),
+                allocation(16, 1, 0x1010, 0x3020)));
+
+        NativeHeapDiff diff = analyzer.diff(before, after);
+        List<NativeHeapDiff.Entry> entries = diff.getEntries();
+        assertEquals(2, entries.size());
+        assertEquals(64, entries.get(0).getSizeDelta());
+        assertEquals(32, entries.get(1).getSizeDelta());
+
+        // both growing stacks allocate from the same call site.
+        List<NativeHeapDiff.Entry> sites = diff.groupByCallSite();
+        assertEquals(1, sites.size());
+        assertEquals(96, sites.get(0).getSizeDelta());
+        assertEquals(6, sites.get(0).getCountDelta());
+        assertEquals("method_3010", sites.get(0).getCallSite().getMethodName());
+    }
+
+    public void testDiffRejectsForeignSnapshots() {
+        NativeHeapAnalyzer a = new NativeHeapAnalyzer(new FakeResolver());
+        NativeHeapAnalyzer b = new NativeHeapAnalyzer(new FakeResolver());
+        try {
+            a.diff(a.createSnapshot(new ArrayList<NativeAllocationInfo>()),
+                    b.createSnapshot(new ArrayList<NativeAllocationInfo>()));
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static NativeAllocationInfo allocation(int size, int count, long... stack) {
+        NativeAllocationInfo info = new NativeAllocationInfo(size, count);
+        for (long address : stack) {
+            info.addStackCallAddress(address);
+        }
+        return info;
+    }
+}
@@ -19,11 +19,13 @@ package com.android.ide.common.res2;
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.annotations.VisibleForTesting;
+import com.android.ide.common.internal.WaitableExecutor;
 import com.android.utils.XmlUtils;
 import com.google.common.base.Charsets;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.io.Files;
 
@@ -42,6 +44,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -178,19 +181,36 @@ abstract class DataMerger<I extends DataItem<F>, F extends DataFile<I>, S extend
         consumer.start(mFactory);
 
         try {
-            // get all the items keys.
+            // get all the items keys, partitioned by the start of the key, which is the type
+            // and qualifiers of resources, or the folder of assets.
+            Map<String, Partition> partitions = Maps.newHashMap();
             Set<String> dataItemKeys = Sets.newHashSet();
 
             for (S dataSet : mDataSets) {
                 // quick check on duplicates in the resource set.
                 dataSet.checkItems();
                 ListMultimap<String, I> map = dataSet.getDataMap();
-                dataItemKeys.addAll(map.keySet());
+                for (String dataItemKey : map.keySet()) {
+                    if (!dataItemKeys.add(dataItemKey)) {
+                        continue;
+                    }
+                    int index = dataItemKey.indexOf('/');
+                    String partitionKey = index == -1 ? "" : dataItemKey.substring(0, index);
+                    Partition partition = partitions.get(partitionKey);
+                    if (partition == null) {
+                        partition = new Partition();
+                        partitions.put(partitionKey, partition);
+                    }
+                    partition.keys.add(dataItemKey);
+                }
             }
 
-            // loop on all the data items.
-            for (String dataItemKey : dataItemKeys) {
-                if (requiresMerge(dataItemKey)) {
+            // look for the items to write and to remove of each partition in parallel.
+            findItemsToWrite(partitions.values(), consumer);
+
+            // then feed the consumer, which does not need to be thread safe.
+            for (Partition partition : partitions.values()) {
+                for (String dataItemKey : partition.mergedKeys) {
                     // get all the available items, from the lower priority, to the higher
                     // priority
                     List<I> items = Lists.newArrayListWithExpectedSize(mDataSets.size());
@@ -204,104 +224,171 @@ abstract class DataMerger<I extends DataItem<F>, F extends DataFile<I>, S extend
                     }
 
                     mergeItems(dataItemKey, items, consumer);
-                    continue;
                 }
 
-                // for each items, look in the data sets, starting from the end of the list.
+                for (int i = 0, n = partition.toWrite.size(); i < n; i++) {
+                    I toWrite = partition.toWrite.get(i);
+                    I previouslyWritten = partition.previouslyWritten.get(i);
 
-                I previouslyWritten = null;
-                I toWrite = null;
+                    // now need to handle, the type of each (single res file, multi res file),
+                    // whether they are the same object or not, whether the previously written
+                    // object was deleted.
 
-                /*
-                 * We are looking for what to write/delete: the last non deleted item, and the
-                 * previously written one.
-                 */
+                    if (toWrite == null) {
+                        // nothing to write? delete only then.
+                        assert previouslyWritten.isRemoved();
 
-                boolean foundIgnoredItem = false;
+                        consumer.removeItem(previouslyWritten, null /*replacedBy*/);
 
-                setLoop: for (int i = mDataSets.size() - 1 ; i >= 0 ; i--) {
-                    S dataSet = mDataSets.get(i);
-
-                    // look for the resource key in the set
-                    ListMultimap<String, I> itemMap = dataSet.getDataMap();
+                    } else if (previouslyWritten == null || previouslyWritten == toWrite) {
+                        // easy one: new or updated res
+                        consumer.addItem(toWrite);
+                    } else {
+                        // replacement of a resource by another.
 
-                    List<I> items = itemMap.get(dataItemKey);
-                    if (items.isEmpty()) {
-                        continue;
+                        // force write the new value
+                        toWrite.setTouched();
+                        consumer.addItem(toWrite);
+                        // and remove the old one
+                        consumer.removeItem(previouslyWritten, toWrite);
                     }
+                }
+            }
+        } finally {
+            consumer.end();
+        }
+
+        if (doCleanUp) {
+            // reset all states. We can't just reset the toWrite and previouslyWritten objects
+            // since overlayed items might have been touched as well.
+            // Should also clean (remove) objects that are removed.
+            postMergeCleanUp();
+        }
+    }
+
+    /**
+     * The keys of the items of a partition of the data, and what the merge does with them.
+     */
+    private final class Partition {
+        /** The keys of the items of the partition. */
+        final List<String> keys = Lists.newArrayList();
+        /** The keys of the items that must be merged with {@link #mergeItems}. */
+        final List<String> mergedKeys = Lists.newArrayList();
+        /** The items to write, or null when an item is only removed. */
+        final List<I> toWrite = Lists.newArrayList();
+        /** The previously written items, matching {@link #toWrite}. */
+        final List<I> previouslyWritten = Lists.newArrayList();
+    }
 
-                    // The list can contain at max 2 items. One touched and one deleted.
-                    // More than one deleted means there was more than one which isn't possible
-                    // More than one touched means there is more than one and this isn't possible.
-                    for (int ii = items.size() - 1 ; ii >= 0 ; ii--) {
-                        I item = items.get(ii);
-
-                        if (consumer.ignoreItemInMerge(item)) {
-                            foundIgnoredItem = true;
-                            continue;
-                        }
-
-                        if (item.isWritten()) {
-                            assert previouslyWritten == null;
-                            previouslyWritten = item;
-                        }
-
-                        if (toWrite == null && !item.isRemoved()) {
-                            toWrite = item;
-                        }
-
-                        if (toWrite != null && previouslyWritten != null) {
-                            break setLoop;
-                        }
+    /**
+     * Looks for the items to write and the items to remove of each partition, in parallel.
+     * This only reads the data sets, so that the partitions can be processed concurrently.
+     */
+    private void findItemsToWrite(
+            @NonNull Collection<Partition> partitions,
+            @NonNull final MergeConsumer<I> consumer) throws MergingException {
+        WaitableExecutor<Void> executor = new WaitableExecutor<Void>();
+        for (final Partition partition : partitions) {
+            executor.execute(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (String dataItemKey : partition.keys) {
+                        findItemsToWrite(dataItemKey, consumer, partition);
                     }
+                    return null;
                 }
+            });
+        }
 
-                // done searching, we should at least have something, unless we only
-                // found items that are not meant to be written (attr inside declare styleable)
-                assert foundIgnoredItem || previouslyWritten != null || toWrite != null;
-
-                //noinspection ConstantConditions
-                if (previouslyWritten == null && toWrite == null) {
-                    continue;
+        try {
+            for (WaitableExecutor.TaskResult<Void> result : executor.waitForAllTasks()) {
+                if (result.exception != null) {
+                    throw MergingException.wrapException(result.exception).build();
                 }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw MergingException.wrapException(e).build();
+        }
+    }
+
+    private void findItemsToWrite(
+            @NonNull String dataItemKey,
+            @NonNull MergeConsumer<I> consumer,
+            @NonNull Partition partition) {
+        if (requiresMerge(dataItemKey)) {
+            partition.mergedKeys.add(dataItemKey);
+            return;
+        }
+
+        // for each items, look in the data sets, starting from the end of the list.
 
-                // now need to handle, the type of each (single res file, multi res file), whether
-                // they are the same object or not, whether the previously written object was deleted.
+        I previouslyWritten = null;
+        I toWrite = null;
 
-                if (toWrite == null) {
-                    // nothing to write? delete only then.
-                    assert previouslyWritten.isRemoved();
+        /*
+         * We are looking for what to write/delete: the last non deleted item, and the
+         * previously written one.
+         */
 
-                    consumer.removeItem(previouslyWritten, null /*replacedBy*/);
+        boolean foundIgnoredItem = false;
 
-                } else if (previouslyWritten == null || previouslyWritten == toWrite) {
-                    // easy one: new or updated res
-                    consumer.addItem(toWrite);
-                } else {
-                    // replacement of a resource by another.
+        setLoop: for (int i = mDataSets.size() - 1 ; i >= 0 ; i--) {
+            S dataSet = mDataSets.get(i);
 
-                    // force write the new value
-                    toWrite.setTouched();
-                    consumer.addItem(toWrite);
-                    // and remove the old one
-                    consumer.removeItem(previouslyWritten, toWrite);
+            // look for the resource key in the set
+            ListMultimap<String, I> itemMap = dataSet.getDataMap();
+
+            List<I> items = itemMap.get(dataItemKey);
+            if (items.isEmpty()) {
+                continue;
+            }
+
+            // The list can contain at max 2 items. One touched and one deleted.
+            // More than one deleted means there was more than one which isn't possible
+            // More than one touched means there is more than one and this isn't possible.
+            for (int ii = items.size() - 1 ; ii >= 0 ; ii--) {
+                I item = items.get(ii);
+
+                if (consumer.ignoreItemInMerge(item)) {
+                    foundIgnoredItem = true;
+                    continue;
+                }
+
+                if (item.isWritten()) {
+                    assert previouslyWritten == null;
+                    previouslyWritten = item;
+                }
+
+                if (toWrite == null && !item.isRemoved()) {
+                    toWrite = item;
+                }
+
+                if (toWrite != null && previouslyWritten != null) {
+                    break setLoop;
                 }
             }
-        } finally {
-            consumer.end();
         }
 
-        if (doCleanUp) {
-            // reset all states. We can't just reset the toWrite and previouslyWritten objects
-            // since overlayed items might have been touched as well.
-            // Should also clean (remove) objects that are removed.
-            postMergeCleanUp();
+        // done searching, we should at least have something, unless we only
+        // found items that are not meant to be written (attr inside declare styleable)
+        assert foundIgnoredItem || previouslyWritten != null || toWrite != null;
+
+        //noinspection ConstantConditions
+        if (previouslyWritten == null && toWrite == null) {
+            return;
         }
+
+        partition.toWrite.add(toWrite);
+        partition.previouslyWritten.add(previouslyWritten);
     }
 
     /**
      * Writes a single blob file to store all that the DataMerger knows about.
      *
+     * The blob is written in the binary form of {@link MergerBlob}. The sets that did not change
+     * since they were loaded from a blob are written back as they were loaded.
+     *
      * @param blobRootFolder the root folder where blobs are store.
      * @param consumer the merge consumer that was used by the merge.
      *
@@ -311,6 +398,70 @@ abstract class DataMerger<I extends DataItem<F>, F extends DataFile<I>, S extend
      */
     public void writeBlobTo(@NonNull File blobRootFolder, @NonNull MergeConsumer<I> consumer)
             throws MergingException {
+        try {
+            createDir(blobRootFolder);
+        } catch (IOException ioe) {
+            throw MergingException.wrapException(ioe).withFile(blobRootFolder).build();
+        }
+
+        File file = new File(blobRootFolder, MergerBlob.FN_MERGER_BLOB);
+        try {
+            // the nodes are still built in a document, as adopting nodes in the document
+            // requires its root node.
+            Document document = mFactory.newDocumentBuilder().newDocument();
+            Node rootNode = document.createElement(NODE_MERGER);
+            document.appendChild(rootNode);
+
+            List<MergerBlob.Section> sections =
+                    Lists.newArrayListWithCapacity(mDataSets.size() + 1);
+            for (S dataSet : mDataSets) {
+                byte[] data = dataSet.getBlobSection();
+                if (data == null) {
+                    Node dataSetNode = document.createElement(NODE_DATA_SET);
+                    rootNode.appendChild(dataSetNode);
+                    dataSet.appendToXml(dataSetNode, document, consumer);
+                    data = MergerBlob.encode(dataSetNode);
+                    rootNode.removeChild(dataSetNode);
+                }
+                sections.add(new MergerBlob.Section(MergerBlob.SECTION_DATA_SET, data));
+            }
+
+            // write merged items
+            writeAdditionalData(document, rootNode);
+            for (Node node = rootNode.getFirstChild(); node != null;
+                    node = node.getNextSibling()) {
+                if (node.getNodeType() == Node.ELEMENT_NODE) {
+                    sections.add(new MergerBlob.Section(
+                            MergerBlob.SECTION_ADDITIONAL_DATA, MergerBlob.encode(node)));
+                }
+            }
+
+            MergerBlob.write(file, MERGE_BLOB_VERSION, sections);
+        } catch (IOException ioe) {
+            throw MergingException.wrapException(ioe).withFile(file).build();
+        } catch (ParserConfigurationException e) {
+            throw MergingException.wrapException(e).build();
+        }
+
+        // the XML blob of a previous build is now out of date.
+        File xmlFile = new File(blobRootFolder, FN_MERGER_XML);
+        if (xmlFile.isFile()) {
+            xmlFile.delete();
+        }
+    }
+
+    /**
+     * Writes a single blob file to store all that the DataMerger knows about, in the XML form
+     * read by {@link #loadFromBlob(File, boolean)} when there is no binary blob.
+     *
+     * @param blobRootFolder the root folder where blobs are store.
+     * @param consumer the merge consumer that was used by the merge.
+     *
+     * @throws MergingException if something goes wrong
+     */
+    @VisibleForTesting
+    void writeXmlBlobTo(@NonNull File blobRootFolder, @NonNull MergeConsumer<I> consumer)
+            throws MergingException {
         // write "compact" blob
         DocumentBuilder builder;
 
@@ -365,6 +516,9 @@ abstract class DataMerger<I extends DataItem<F>, F extends DataFile<I>, S extend
      * If <code>false</code>, the items are marked as touched, and this can be used to feed a new
      * {@link ResourceRepository} object.
      *
+     * The binary blob written by {@link #writeBlobTo(File, MergeConsumer)} is loaded if there is
+     * one, otherwise this falls back to the XML blob written by previous versions.
+     *
      * @param blobRootFolder the folder containing the blob.
      * @param incrementalState whether to load into an incremental state or a new state.
      * @return true if the blob was loaded.
@@ -374,11 +528,58 @@ abstract class DataMerger<I extends DataItem<F>, F extends DataFile<I>, S extend
      */
     public boolean loadFromBlob(@NonNull File blobRootFolder, boolean incrementalState)
             throws MergingException {
-        File file = new File(blobRootFolder, FN_MERGER_XML);
+        File file = new File(blobRootFolder, MergerBlob.FN_MERGER_BLOB);
+        File xmlFile = new File(blobRootFolder, FN_MERGER_XML);
+        if (xmlFile.isFile() && (!file.isFile() || xmlFile.lastModified() > file.lastModified())) {
+            return loadFromXmlBlob(xmlFile, incrementalState);
+        }
         if (!file.isFile()) {
             return false;
         }
 
+        try {
+            List<MergerBlob.Section> sections = MergerBlob.read(file, MERGE_BLOB_VERSION);
+            if (sections == null) {
+                return false;
+            }
+
+            Document document = mFactory.newDocumentBuilder().newDocument();
+            Node rootNode = document.createElementNS(null, NODE_MERGER);
+            document.appendChild(rootNode);
+
+            for (MergerBlob.Section section : sections) {
+                if (section.kind == MergerBlob.SECTION_DATA_SET) {
+                    S dataSet = createFromXml(MergerBlob.decode(section.data, rootNode));
+                    if (dataSet != null) {
+                        dataSet.setBlobSection(section.data);
+                        addDataSet(dataSet);
+                    }
+                } else if (incrementalState
+                        && section.kind == MergerBlob.SECTION_ADDITIONAL_DATA) {
+                    // only decode the additional data when it is needed.
+                    Node node = MergerBlob.decode(section.data, rootNode);
+                    if (getAdditionalDataTagName().equals(node.getLocalName())) {
+                        loadAdditionalData(node, incrementalState);
+                    }
+                }
+            }
+
+            if (incrementalState) {
+                setPostBlobLoadStateToWritten();
+            } else {
+                setPostBlobLoadStateToTouched();
+            }
+
+            return true;
+        } catch (IOException e) {
+            throw MergingException.wrapException(e).withFile(file).build();
+        } catch (ParserConfigurationException e) {
+            throw MergingException.wrapException(e).withFile(file).build();
+        }
+    }
+
+    private boolean loadFromXmlBlob(@NonNull File file, boolean incrementalState)
+            throws MergingException {
         try {
             Document document = XmlUtils.parseUtfXmlFile(file, true /*namespaceAware*/);
 
@@ -453,9 +654,11 @@ abstract class DataMerger<I extends DataItem<F>, F extends DataFile<I>, S extend
     }
 
     public void cleanBlob(@NonNull File blobRootFolder) {
-        File file = new File(blobRootFolder, FN_MERGER_XML);
-        if (file.isFile()) {
-            file.delete();
+        for (String name : new String[] { MergerBlob.FN_MERGER_BLOB, FN_MERGER_XML }) {
+            File file = new File(blobRootFolder, name);
+            if (file.isFile()) {
+                file.delete();
+            }
         }
     }
 
@@ -89,6 +89,12 @@ abstract class DataSet<I extends DataItem<F>, F extends DataFile<I>> implements
      */
     private final Map<File, F> mDataFileMap = Maps.newHashMap();
 
+    /**
+     * The section of the merger blob this set was loaded from, as long as the set is unchanged.
+     */
+    @Nullable
+    private byte[] mBlobSection;
+
     /**
      * Creates a DataSet with a given configName. The name is used to identify the set
      * across sessions.
@@ -135,6 +141,7 @@ abstract class DataSet<I extends DataItem<F>, F extends DataFile<I>> implements
      * @param files the source files to add.
      */
     public void addSources(Collection<File> files) {
+        mBlobSection = null;
         mSourceFiles.addAll(files);
     }
 
@@ -143,6 +150,7 @@ abstract class DataSet<I extends DataItem<F>, F extends DataFile<I>> implements
      * @param file the source file.
      */
     public void addSource(File file) {
+        mBlobSection = null;
         mSourceFiles.add(file);
     }
 
@@ -307,6 +315,25 @@ abstract class DataSet<I extends DataItem<F>, F extends DataFile<I>> implements
         }
     }
 
+    /**
+     * Returns the section of the merger blob this set was loaded from, or null if the set
+     * changed since then.
+     *
+     * @see MergerBlob
+     */
+    @Nullable
+    byte[] getBlobSection() {
+        return mBlobSection;
+    }
+
+    /**
+     * Sets the section of the merger blob this set was loaded from, so that it can be written
+     * back as is if the set does not change.
+     */
+    void setBlobSection(@Nullable byte[] blobSection) {
+        mBlobSection = blobSection;
+    }
+
     /**
      * Creates and returns a new DataSet from an XML node that was created with
      * {@link #appendToXml(org.w3c.dom.Node, org.w3c.dom.Document, MergeConsumer)}
@@ -416,6 +443,7 @@ abstract class DataSet<I extends DataItem<F>, F extends DataFile<I>> implements
     public boolean updateWith(File sourceFolder, File changedFile, FileStatus fileStatus,
                               ILogger logger)
             throws MergingException {
+        mBlobSection = null;
         switch (fileStatus) {
             case NEW:
                 return handleNewFile(sourceFolder, changedFile, logger);
@@ -456,6 +484,7 @@ abstract class DataSet<I extends DataItem<F>, F extends DataFile<I>> implements
                                       boolean setTouched) throws MergingException {
         Collection<I> dataItems = dataFile.getItems();
 
+        mBlobSection = null;
         addDataFile(sourceFolder, dataFile);
 
         for (I dataItem : dataItems) {
@@ -480,6 +509,7 @@ abstract class DataSet<I extends DataItem<F>, F extends DataFile<I>> implements
             key = item.getKey();
         }
 
+        mBlobSection = null;
         mItems.put(key, item);
     }
 
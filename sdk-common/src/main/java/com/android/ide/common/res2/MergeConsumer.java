@@ -76,5 +76,11 @@ public interface MergeConsumer<I extends DataItem> {
      */
     void removeItem(@NonNull I removedItem, @Nullable I replacedBy) throws ConsumerException;
 
+    /**
+     * Returns whether an item must be ignored by the merge. This can be called from several
+     * threads at the same time.
+     *
+     * @param item the item.
+     */
     boolean ignoreItemInMerge(I item);
 }
@@ -51,6 +51,10 @@ public abstract class MergeWriter<I extends DataItem> implements MergeConsumer<I
         } catch (ConsumerException e) {
             throw e;
         } catch (Exception e) {
+            // the executor wraps the errors of the tasks.
+            if (e.getCause() instanceof ConsumerException) {
+                throw (ConsumerException) e.getCause();
+            }
             throw new ConsumerException(e);
         }
     }
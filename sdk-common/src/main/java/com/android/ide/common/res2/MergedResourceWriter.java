@@ -33,7 +33,6 @@ import com.android.ide.common.internal.PngException;
 import com.android.resources.ResourceFolderType;
 import com.android.resources.ResourceType;
 import com.android.utils.SdkUtils;
-import com.android.utils.XmlUtils;
 import com.google.common.base.Charsets;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ListMultimap;
@@ -41,18 +40,17 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.common.io.Files;
 
-import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Callable;
 
-import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 
 /**
@@ -68,8 +66,6 @@ public class MergedResourceWriter extends MergeWriter<ResourceItem> {
      */
     private final File mPublicFile;
 
-    private DocumentBuilderFactory mFactory;
-
     private boolean mInsertSourceMarkers = true;
 
     private final boolean mCrunchPng;
@@ -126,7 +122,6 @@ public class MergedResourceWriter extends MergeWriter<ResourceItem> {
         super.start(factory);
         mValuesResMap = ArrayListMultimap.create();
         mQualifierWithDeletedValues = Sets.newHashSet();
-        mFactory = factory;
     }
 
     @Override
@@ -140,7 +135,6 @@ public class MergedResourceWriter extends MergeWriter<ResourceItem> {
 
         mValuesResMap = null;
         mQualifierWithDeletedValues = null;
-        mFactory = null;
     }
 
     @Override
@@ -271,92 +265,45 @@ public class MergedResourceWriter extends MergeWriter<ResourceItem> {
                         ResourceFolderType.VALUES.getName() :
                         ResourceFolderType.VALUES.getName() + RES_QUALIFIER_SEP + key;
 
-                File valuesFolder = new File(getRootFolder(), folderName);
+                final File valuesFolder = new File(getRootFolder(), folderName);
                 // Name of the file is the same as the folder as AAPT gets confused with name
                 // collision when not normalizing folders name.
-                File outFile = new File(valuesFolder, folderName + DOT_XML);
-                ResourceFile currentFile = null;
-                try {
-                    createDir(valuesFolder);
-
-                    DocumentBuilder builder = mFactory.newDocumentBuilder();
-                    Document document = builder.newDocument();
-                    final String publicTag = ResourceType.PUBLIC.getName();
-                    List<Node> publicNodes = null;
-
-                    Node rootNode = document.createElement(TAG_RESOURCES);
-                    document.appendChild(rootNode);
-
-                    Collections.sort(items);
-
-                    for (ResourceItem item : items) {
-                        Node nodeValue = item.getValue();
-                        if (nodeValue != null && publicTag.equals(nodeValue.getNodeName())) {
-                            if (publicNodes == null) {
-                                publicNodes = Lists.newArrayList();
-                            }
-                            publicNodes.add(nodeValue);
-                            continue;
-                        }
+                final File outFile = new File(valuesFolder, folderName + DOT_XML);
 
-                        // add a carriage return so that the nodes are not all on the same line.
-                        // also add an indent of 4 spaces.
-                        rootNode.appendChild(document.createTextNode("\n    "));
-
-                        ResourceFile source = item.getSource();
-                        if (source != currentFile && source != null && mInsertSourceMarkers) {
-                            currentFile = source;
-                            File file = source.getFile();
-                            rootNode.appendChild(document.createComment(
-                                    createPathComment(file, true)));
-                            rootNode.appendChild(document.createTextNode("\n    "));
-                            // Add an <eat-comment> element to ensure that this comment won't
-                            // get merged into a potential comment from the next child (or
-                            // even added as the sole comment in the R class)
-                            rootNode.appendChild(document.createElement(TAG_EAT_COMMENT));
-                            rootNode.appendChild(document.createTextNode("\n    "));
+                final String publicTag = ResourceType.PUBLIC.getName();
+                List<Node> publicNodes = null;
+                final List<ResourceItem> valueItems = Lists.newArrayListWithCapacity(items.size());
+
+                // the items are copied as the values files are written in parallel.
+                List<ResourceItem> sortedItems = Lists.newArrayList(items);
+                Collections.sort(sortedItems);
+
+                for (ResourceItem item : sortedItems) {
+                    Node nodeValue = item.getValue();
+                    if (nodeValue != null && publicTag.equals(nodeValue.getNodeName())) {
+                        if (publicNodes == null) {
+                            publicNodes = Lists.newArrayList();
                         }
+                        publicNodes.add(nodeValue);
+                    } else {
+                        valueItems.add(item);
+                    }
+                }
 
-                        Node adoptedNode = NodeUtils.adoptNode(document, nodeValue);
-                        rootNode.appendChild(adoptedNode);
+                getExecutor().execute(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        writeValuesFile(valueItems, valuesFolder, outFile);
+                        return null;
                     }
+                });
 
-                    // finish with a carriage return
-                    rootNode.appendChild(document.createTextNode("\n"));
-
-                    currentFile = null;
-
-                    String content = XmlUtils.toXml(document, true /*preserveWhitespace*/);
-                    Files.write(content, outFile, Charsets.UTF_8);
-
-                    if (publicNodes != null && mPublicFile != null) {
-                        // Generate public.txt:
-                        int size = publicNodes.size();
-                        StringBuilder sb = new StringBuilder(size * 80);
-                        for (Node node : publicNodes) {
-                            if (node.getNodeType() == Node.ELEMENT_NODE) {
-                                Element element = (Element) node;
-                                String name = element.getAttribute(ATTR_NAME);
-                                String type = element.getAttribute(ATTR_TYPE);
-                                if (!name.isEmpty() && !type.isEmpty()) {
-                                    sb.append(type).append(' ').append(name).append('\n');
-                                }
-                            }
-                        }
-                        File parentFile = mPublicFile.getParentFile();
-                        if (!parentFile.exists()) {
-                            boolean mkdirs = parentFile.mkdirs();
-                            if (!mkdirs) {
-                                throw new IOException("Could not create " + parentFile);
-                            }
-                        }
-                        String text = sb.toString();
-                        Files.write(text, mPublicFile, Charsets.UTF_8);
+                if (publicNodes != null && mPublicFile != null) {
+                    try {
+                        writePublicFile(publicNodes);
+                    } catch (IOException e) {
+                        throw new ConsumerException(e, mPublicFile);
                     }
-                } catch (Throwable t) {
-                    ConsumerException exception = new ConsumerException(t,
-                            currentFile != null ? currentFile.getFile() : outFile);
-                    throw exception;
                 }
             }
         }
@@ -371,6 +318,98 @@ public class MergedResourceWriter extends MergeWriter<ResourceItem> {
         }
     }
 
+    /**
+     * Writes a values file, unless the file already has the same content.
+     *
+     * @param items the items of the file, sorted.
+     * @param valuesFolder the folder of the file.
+     * @param outFile the file.
+     */
+    private void writeValuesFile(
+            @NonNull List<ResourceItem> items,
+            @NonNull File valuesFolder,
+            @NonNull File outFile) throws ConsumerException {
+        ResourceFile currentFile = null;
+        try {
+            createDir(valuesFolder);
+
+            ValuesXmlWriter writer = new ValuesXmlWriter(TAG_RESOURCES);
+
+            for (ResourceItem item : items) {
+                Node nodeValue = item.getValue();
+                if (nodeValue == null) {
+                    continue;
+                }
+
+                // add a carriage return so that the nodes are not all on the same line.
+                // also add an indent of 4 spaces.
+                writer.appendText("\n    ");
+
+                ResourceFile source = item.getSource();
+                if (source != currentFile && source != null && mInsertSourceMarkers) {
+                    currentFile = source;
+                    File file = source.getFile();
+                    writer.appendComment(createPathComment(file, true));
+                    writer.appendText("\n    ");
+                    // Add an <eat-comment> element to ensure that this comment won't
+                    // get merged into a potential comment from the next child (or
+                    // even added as the sole comment in the R class)
+                    writer.appendElement(TAG_EAT_COMMENT);
+                    writer.appendText("\n    ");
+                }
+
+                // the items of several values files may share a document, like the items
+                // loaded from the merger blob, and reading a document is not thread safe.
+                synchronized (nodeValue.getOwnerDocument()) {
+                    writer.appendNode(nodeValue);
+                }
+            }
+
+            // finish with a carriage return
+            writer.appendText("\n");
+
+            currentFile = null;
+
+            byte[] content = writer.getContent().getBytes(Charsets.UTF_8);
+            if (outFile.length() == content.length && outFile.isFile()
+                    && Arrays.equals(Files.toByteArray(outFile), content)) {
+                // keep the file untouched when its content does not change.
+                return;
+            }
+            Files.write(content, outFile);
+        } catch (Throwable t) {
+            throw new ConsumerException(t,
+                    currentFile != null ? currentFile.getFile() : outFile);
+        }
+    }
+
+    /**
+     * Generates public.txt from the public nodes.
+     */
+    private void writePublicFile(@NonNull List<Node> publicNodes) throws IOException {
+        int size = publicNodes.size();
+        StringBuilder sb = new StringBuilder(size * 80);
+        for (Node node : publicNodes) {
+            if (node.getNodeType() == Node.ELEMENT_NODE) {
+                Element element = (Element) node;
+                String name = element.getAttribute(ATTR_NAME);
+                String type = element.getAttribute(ATTR_TYPE);
+                if (!name.isEmpty() && !type.isEmpty()) {
+                    sb.append(type).append(' ').append(name).append('\n');
+                }
+            }
+        }
+        File parentFile = mPublicFile.getParentFile();
+        if (!parentFile.exists()) {
+            boolean mkdirs = parentFile.mkdirs();
+            if (!mkdirs) {
+                throw new IOException("Could not create " + parentFile);
+            }
+        }
+        String text = sb.toString();
+        Files.write(text, mPublicFile, Charsets.UTF_8);
+    }
+
     /**
      * Removes a file that already exists in the out res folder. This has to be a non value file.
      *
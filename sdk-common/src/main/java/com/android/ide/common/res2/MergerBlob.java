@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ide.common.res2;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.DOMException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Binary form of the blob of a {@link DataMerger}, which is much faster to write and to load
+ * than the XML form (merger.xml).
+ * <p/>
+ * The blob holds the same nodes as the XML form, one section per node: a section for each
+ * {@link DataSet}, then a section for the additional data of the merger. Each section has its
+ * own string table and its own CRC32, so that:
+ * <ul>
+ * <li>the section of a set that did not change since it was loaded is written back as is,
+ * without building its nodes again.</li>
+ * <li>sections that are not needed, like the additional data when not loading an incremental
+ * state, are checked but not decoded.</li>
+ * </ul>
+ */
+final class MergerBlob {
+
+    static final String FN_MERGER_BLOB = "merger.bin";
+
+    static final byte SECTION_DATA_SET = 1;
+    static final byte SECTION_ADDITIONAL_DATA = 2;
+
+    private static final int MAGIC = 0x4d524742; // MRGB
+    private static final int VERSION = 1;
+
+    private static final int TAG_END = 0;
+    private static final int TAG_ELEMENT = 1;
+    private static final int TAG_TEXT = 2;
+    private static final int TAG_CDATA = 3;
+    private static final int TAG_COMMENT = 4;
+
+    /**
+     * A section of the blob.
+     */
+    static final class Section {
+        final byte kind;
+        @NonNull
+        final byte[] data;
+
+        Section(byte kind, @NonNull byte[] data) {
+            this.kind = kind;
+            this.data = data;
+        }
+    }
+
+    private MergerBlob() {
+    }
+
+    /**
+     * Writes the sections of a blob to a file.
+     *
+     * @param file the file to write.
+     * @param contentVersion the version of the content of the nodes of the sections.
+     * @param sections the sections.
+     */
+    static void write(
+            @NonNull File file,
+            @NonNull String contentVersion,
+            @NonNull List<Section> sections) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(contentVersion);
+        out.writeInt(sections.size());
+        CRC32 crc = new CRC32();
+        for (Section section : sections) {
+            crc.reset();
+            crc.update(section.data);
+            out.writeByte(section.kind);
+            out.writeInt(section.data.length);
+            out.writeInt((int) crc.getValue());
+            out.write(section.data);
+        }
+        out.flush();
+        Files.write(bytes.toByteArray(), file);
+    }
+
+    /**
+     * Reads the sections of a blob file, checking all of them.
+     *
+     * @param file the file to read.
+     * @param contentVersion the expected version of the content of the nodes of the sections.
+     * @return the sections, or null if the file is not a blob of the given version, or if it
+     *     is truncated or corrupted.
+     */
+    @Nullable
+    static List<Section> read(@NonNull File file, @NonNull String contentVersion)
+            throws IOException {
+        byte[] content = Files.toByteArray(file);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || !contentVersion.equals(in.readUTF())) {
+                return null;
+            }
+            int count = in.readInt();
+            List<Section> sections = Lists.newArrayListWithCapacity(Math.max(0, count));
+            CRC32 crc = new CRC32();
+            for (int i = 0; i < count; i++) {
+                byte kind = in.readByte();
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length < 0 || length > in.available()) {
+                    return null;
+                }
+                byte[] data = new byte[length];
+                in.readFully(data);
+                crc.reset();
+                crc.update(data);
+                if ((int) crc.getValue() != checksum) {
+                    return null;
+                }
+                sections.add(new Section(kind, data));
+            }
+            return in.available() == 0 ? sections : null;
+        } catch (EOFException e) {
+            return null;
+        } catch (UTFDataFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Encodes a node and its children.
+     */
+    @NonNull
+    static byte[] encode(@NonNull Node node) throws IOException {
+        Map<String, Integer> strings = Maps.newLinkedHashMap();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        encodeNode(node, body, strings);
+
+        ByteArrayOutputStream section = new ByteArrayOutputStream(body.size() + 1024);
+        writeVarInt(section, strings.size());
+        for (String string : strings.keySet()) {
+            byte[] utf8 = string.getBytes(Charsets.UTF_8);
+            writeVarInt(section, utf8.length);
+            section.write(utf8);
+        }
+        body.writeTo(section);
+        return section.toByteArray();
+    }
+
+    /**
+     * Decodes a node encoded with {@link #encode(Node)}, and appends it to the given parent.
+     *
+     * @return the decoded node.
+     * @throws IOException if the data is not an encoded element.
+     */
+    @NonNull
+    static Element decode(@NonNull byte[] data, @NonNull Node parent) throws IOException {
+        int[] position = new int[1];
+        int count = readVarInt(data, position);
+        String[] strings = new String[count];
+        for (int i = 0; i < count; i++) {
+            int length = readVarInt(data, position);
+            checkAvailable(data, position[0], length);
+            strings[i] = new String(data, position[0], length, Charsets.UTF_8);
+            position[0] += length;
+        }
+
+        Document document = parent.getNodeType() == Node.DOCUMENT_NODE
+                ? (Document) parent : parent.getOwnerDocument();
+        try {
+            if (readVarInt(data, position) != TAG_ELEMENT) {
+                throw new IOException("Blob section does not start with an element");
+            }
+            Element element = decodeElement(data, position, strings, document);
+            parent.appendChild(element);
+            return element;
+        } catch (DOMException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static void encodeNode(
+            @NonNull Node node,
+            @NonNull ByteArrayOutputStream out,
+            @NonNull Map<String, Integer> strings) {
+        switch (node.getNodeType()) {
+            case Node.ELEMENT_NODE:
+                writeVarInt(out, TAG_ELEMENT);
+                writeString(out, strings, node.getNamespaceURI());
+                writeString(out, strings, node.getNodeName());
+
+                NamedNodeMap attributes = node.getAttributes();
+                writeVarInt(out, attributes.getLength());
+                for (int i = 0, n = attributes.getLength(); i < n; i++) {
+                    Attr attr = (Attr) attributes.item(i);
+                    writeString(out, strings, attr.getNamespaceURI());
+                    writeString(out, strings, attr.getName());
+                    writeString(out, strings, attr.getValue());
+                }
+
+                for (Node child = node.getFirstChild(); child != null;
+                        child = child.getNextSibling()) {
+                    encodeNode(child, out, strings);
+                }
+                writeVarInt(out, TAG_END);
+                break;
+            case Node.TEXT_NODE:
+                writeVarInt(out, TAG_TEXT);
+                writeString(out, strings, node.getNodeValue());
+                break;
+            case Node.CDATA_SECTION_NODE:
+                writeVarInt(out, TAG_CDATA);
+                writeString(out, strings, node.getNodeValue());
+                break;
+            case Node.COMMENT_NODE:
+                writeVarInt(out, TAG_COMMENT);
+                writeString(out, strings, node.getNodeValue());
+                break;
+            default:
+                // like the XML form, drop the nodes that are not part of the data.
+                break;
+        }
+    }
+
+    @NonNull
+    private static Element decodeElement(
+            @NonNull byte[] data,
+            @NonNull int[] position,
+            @NonNull String[] strings,
+            @NonNull Document document) throws IOException {
+        Element element = document.createElementNS(
+                readString(data, position, strings),
+                readString(data, position, strings));
+
+        int attributeCount = readVarInt(data, position);
+        for (int i = 0; i < attributeCount; i++) {
+            String namespace = readString(data, position, strings);
+            String name = readString(data, position, strings);
+            element.setAttributeNS(namespace, name, readString(data, position, strings));
+        }
+
+        while (true) {
+            int tag = readVarInt(data, position);
+            switch (tag) {
+                case TAG_END:
+                    return element;
+                case TAG_ELEMENT:
+                    element.appendChild(decodeElement(data, position, strings, document));
+                    break;
+                case TAG_TEXT:
+                    element.appendChild(
+                            document.createTextNode(readString(data, position, strings)));
+                    break;
+                case TAG_CDATA:
+                    element.appendChild(
+                            document.createCDATASection(readString(data, position, strings)));
+                    break;
+                case TAG_COMMENT:
+                    element.appendChild(
+                            document.createComment(readString(data, position, strings)));
+                    break;
+                default:
+                    throw new IOException("Unknown node tag in blob: " + tag);
+            }
+        }
+    }
+
+    /**
+     * Writes the index of a string in the string table, 0 being null.
+     */
+    private static void writeString(
+            @NonNull ByteArrayOutputStream out,
+            @NonNull Map<String, Integer> strings,
+            @Nullable String string) {
+        if (string == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+        Integer index = strings.get(string);
+        if (index == null) {
+            index = strings.size();
+            strings.put(string, index);
+        }
+        writeVarInt(out, index + 1);
+    }
+
+    @Nullable
+    private static String readString(
+            @NonNull byte[] data,
+            @NonNull int[] position,
+            @NonNull String[] strings) throws IOException {
+        int index = readVarInt(data, position);
+        if (index == 0) {
+            return null;
+        }
+        if (index > strings.length) {
+            throw new IOException("Invalid string index in blob: " + index);
+        }
+        return strings[index - 1];
+    }
+
+    private static void writeVarInt(@NonNull ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarInt(@NonNull byte[] data, @NonNull int[] position)
+            throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            checkAvailable(data, position[0], 1);
+            int b = data[position[0]++];
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Invalid number in blob");
+    }
+
+    private static void checkAvailable(@NonNull byte[] data, int position, int length)
+            throws IOException {
+        if (length < 0 || position + length > data.length) {
+            throw new IOException("Truncated blob section");
+        }
+    }
+}
@@ -22,6 +22,7 @@ import com.android.SdkConstants;
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.ide.common.blame.Message;
+import com.android.ide.common.internal.WaitableExecutor;
 import com.android.ide.common.resources.configuration.FolderConfiguration;
 import com.android.resources.FolderTypeRelationship;
 import com.android.resources.ResourceConstants;
@@ -38,6 +39,7 @@ import org.w3c.dom.NodeList;
 import java.io.File;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 /**
  * Implementation of {@link DataSet} for {@link ResourceItem} and {@link ResourceFile}.
@@ -140,22 +142,53 @@ public class ResourceSet extends DataSet<ResourceItem, ResourceFile> {
     protected void readSourceFolder(File sourceFolder, ILogger logger)
             throws MergingException {
         List<Message> errors = Lists.newArrayList();
-        File[] folders = sourceFolder.listFiles();
-        if (folders != null) {
-            for (File folder : folders) {
-                if (folder.isDirectory() && !isIgnored(folder)) {
-                    FolderData folderData = getFolderData(folder);
-                    if (folderData != null) {
-                        try {
-                            parseFolder(sourceFolder, folder, folderData, logger);
-                        } catch (MergingException e) {
-                            errors.addAll(e.getMessages());
-                        }
-                    }
+        List<PendingFile> files = Lists.newArrayList();
+        listSourceFolder(sourceFolder, files, errors);
+        parseFiles(files);
+        processFiles(files, logger, errors);
+        MergingException.throwIfNonEmpty(errors);
+    }
+
+    /**
+     * Loads several ResourceSets from the files their source folders contain, like
+     * {@link #loadFromFiles(ILogger)} does for each set.
+     *
+     * The values files of all the sets are parsed in parallel, and the items are then added to
+     * each set in the order of the sets and of the files, so the result does not depend on the
+     * order the files are parsed in.
+     *
+     * @param resourceSets the sets to load.
+     * @param logger a logger object
+     *
+     * @throws MergingException if something goes wrong
+     */
+    public static void loadFromFiles(@NonNull List<ResourceSet> resourceSets,
+            @NonNull ILogger logger) throws MergingException {
+        List<List<PendingFile>> setFiles = Lists.newArrayListWithCapacity(resourceSets.size());
+        List<List<Message>> setErrors = Lists.newArrayListWithCapacity(resourceSets.size());
+        List<PendingFile> allFiles = Lists.newArrayList();
+        for (ResourceSet resourceSet : resourceSets) {
+            List<PendingFile> files = Lists.newArrayList();
+            List<Message> errors = Lists.newArrayList();
+            for (File sourceFolder : resourceSet.getSourceFiles()) {
+                if (sourceFolder.isDirectory()) {
+                    resourceSet.listSourceFolder(sourceFolder, files, errors);
                 }
             }
+            setFiles.add(files);
+            setErrors.add(errors);
+            allFiles.addAll(files);
+        }
+
+        parseFiles(allFiles);
+
+        for (int i = 0; i < resourceSets.size(); i++) {
+            ResourceSet resourceSet = resourceSets.get(i);
+            List<Message> errors = setErrors.get(i);
+            resourceSet.processFiles(setFiles.get(i), logger, errors);
+            MergingException.throwIfNonEmpty(errors);
+            resourceSet.checkItems();
         }
-        MergingException.throwIfNonEmpty(errors);
     }
 
     @Override
@@ -246,34 +279,110 @@ public class ResourceSet extends DataSet<ResourceItem, ResourceFile> {
     }
 
     /**
-     * Reads the content of a typed resource folder (sub folder to the root of res folder), and
-     * loads the resources from it.
-     *
+     * Lists the files of the typed resource folders (sub folders to the root of res folder) of
+     * a source folder.
      *
      * @param sourceFolder the main res folder
-     * @param folder the folder to read.
-     * @param folderData the folder Data
-     * @param logger a logger object
-     *
-     * @throws MergingException if something goes wrong
+     * @param files the list to add the files to.
+     * @param errors the list to add the errors to.
      */
-    private void parseFolder(File sourceFolder, File folder, FolderData folderData, ILogger logger)
-            throws MergingException {
-        File[] files = folder.listFiles();
-        if (files != null && files.length > 0) {
-            for (File file : files) {
-                if (!file.isFile() || isIgnored(file)) {
-                    continue;
+    private void listSourceFolder(@NonNull File sourceFolder, @NonNull List<PendingFile> files,
+            @NonNull List<Message> errors) {
+        File[] folders = sourceFolder.listFiles();
+        if (folders == null) {
+            return;
+        }
+        for (File folder : folders) {
+            if (!folder.isDirectory() || isIgnored(folder)) {
+                continue;
+            }
+
+            FolderData folderData;
+            try {
+                folderData = getFolderData(folder);
+            } catch (MergingException e) {
+                errors.addAll(e.getMessages());
+                continue;
+            }
+            if (folderData == null) {
+                continue;
+            }
+
+            File[] folderFiles = folder.listFiles();
+            if (folderFiles != null) {
+                for (File file : folderFiles) {
+                    if (file.isFile() && !isIgnored(file)) {
+                        files.add(new PendingFile(sourceFolder, file, folderData));
+                    }
                 }
+            }
+        }
+    }
 
-                ResourceFile resourceFile = createResourceFile(file, folderData, logger);
-                if (resourceFile != null) {
-                    processNewDataFile(sourceFolder, resourceFile, true /*setTouched*/);
+    /**
+     * Parses the values files of a list of files in parallel.
+     */
+    private static void parseFiles(@NonNull List<PendingFile> files) throws MergingException {
+        WaitableExecutor<Void> executor = new WaitableExecutor<Void>();
+        for (final PendingFile file : files) {
+            if (file.folderData.type != null) {
+                // single res file, nothing to parse.
+                continue;
+            }
+            executor.execute(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    try {
+                        file.items = new ValueResourceParser2(file.file).parseFile();
+                    } catch (MergingException e) {
+                        file.error = e;
+                    }
+                    return null;
                 }
+            });
+        }
+
+        try {
+            for (WaitableExecutor.TaskResult<Void> result : executor.waitForAllTasks()) {
+                if (result.exception != null) {
+                    throw MergingException.wrapException(result.exception).build();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw MergingException.wrapException(e).build();
+        }
+    }
+
+    /**
+     * Adds the resources of a list of files, in the order of the list.
+     */
+    private void processFiles(@NonNull List<PendingFile> files, @NonNull ILogger logger,
+            @NonNull List<Message> errors) {
+        for (PendingFile file : files) {
+            try {
+                ResourceFile resourceFile = createResourceFile(file, logger);
+                processNewDataFile(file.sourceFolder, resourceFile, true /*setTouched*/);
+            } catch (MergingException e) {
+                errors.addAll(e.getMessages());
             }
         }
     }
 
+    @NonNull
+    private static ResourceFile createResourceFile(@NonNull PendingFile file,
+            @NonNull ILogger logger) throws MergingException {
+        if (file.folderData.type != null) {
+            return createResourceFile(file.file, file.folderData, logger);
+        }
+        if (file.error != null) {
+            logger.error(file.error, "Failed to parse %s", file.file.getAbsolutePath());
+            throw file.error;
+        }
+        assert file.items != null;
+        return new ResourceFile(file.file, file.items, file.folderData.qualifiers);
+    }
+
     private static ResourceFile createResourceFile(@NonNull File file,
             @NonNull FolderData folderData, @NonNull ILogger logger) throws MergingException {
         if (folderData.type != null) {
@@ -301,6 +410,29 @@ public class ResourceSet extends DataSet<ResourceItem, ResourceFile> {
         }
     }
 
+    /**
+     * A file of a resource folder being loaded, with the result of its parsing.
+     */
+    private static final class PendingFile {
+        @NonNull
+        final File sourceFolder;
+        @NonNull
+        final File file;
+        @NonNull
+        final FolderData folderData;
+        @Nullable
+        List<ResourceItem> items;
+        @Nullable
+        MergingException error;
+
+        PendingFile(@NonNull File sourceFolder, @NonNull File file,
+                @NonNull FolderData folderData) {
+            this.sourceFolder = sourceFolder;
+            this.file = file;
+            this.folderData = folderData;
+        }
+    }
+
     /**
      * temp structure containing a qualifier string and a {@link com.android.resources.ResourceType}.
      */
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ide.common.res2;
+
+import static com.android.SdkConstants.XMLNS;
+import static com.android.SdkConstants.XMLNS_URI;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.utils.XmlUtils;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes a values file from the nodes of resource items, without building a new document.
+ * <p/>
+ * The output is the same as dumping a document with {@link XmlUtils#toXml(Node, boolean)}. The
+ * namespaces used by the nodes are all declared on the root element, keeping the prefixes of
+ * the nodes unless two namespaces use the same prefix.
+ * <p/>
+ * The nodes are only read, so that nodes of different documents can be written at the same
+ * time from several threads.
+ */
+final class ValuesXmlWriter {
+
+    @NonNull
+    private final String mRootTag;
+
+    @NonNull
+    private final StringBuilder mBody = new StringBuilder(4096);
+
+    /** The prefixes of the namespaces used by the nodes, by namespace. */
+    @NonNull
+    private final Map<String, String> mPrefixes = Maps.newLinkedHashMap();
+
+    @NonNull
+    private final Set<String> mUsedPrefixes = Sets.newHashSet();
+
+    ValuesXmlWriter(@NonNull String rootTag) {
+        mRootTag = rootTag;
+    }
+
+    /**
+     * Appends a text to the root element.
+     */
+    void appendText(@NonNull String text) {
+        XmlUtils.appendXmlTextValue(mBody, text);
+    }
+
+    /**
+     * Appends a comment to the root element.
+     */
+    void appendComment(@NonNull String comment) {
+        mBody.append(XmlUtils.XML_COMMENT_BEGIN).append(comment)
+                .append(XmlUtils.XML_COMMENT_END);
+    }
+
+    /**
+     * Appends an element with no attributes and no children to the root element.
+     */
+    void appendElement(@NonNull String tag) {
+        mBody.append('<').append(tag).append("/>");
+    }
+
+    /**
+     * Appends a node and its children to the root element.
+     */
+    void appendNode(@NonNull Node node) {
+        short nodeType = node.getNodeType();
+        switch (nodeType) {
+            case Node.COMMENT_NODE:
+                appendComment(node.getNodeValue());
+                break;
+            case Node.TEXT_NODE:
+                appendText(node.getNodeValue());
+                break;
+            case Node.CDATA_SECTION_NODE:
+                mBody.append("<![CDATA[").append(node.getNodeValue()).append("]]>");
+                break;
+            case Node.ELEMENT_NODE: {
+                String name = getName(node);
+                mBody.append('<').append(name);
+
+                if (node.hasAttributes()) {
+                    NamedNodeMap attributes = node.getAttributes();
+                    for (int i = 0, n = attributes.getLength(); i < n; i++) {
+                        Attr attribute = (Attr) attributes.item(i);
+                        if (XMLNS_URI.equals(attribute.getNamespaceURI())
+                                || XMLNS.equals(attribute.getName())) {
+                            // namespaces are declared on the root element.
+                            continue;
+                        }
+                        mBody.append(' ').append(getName(attribute)).append('=').append('"');
+                        XmlUtils.appendXmlAttributeValue(mBody, attribute.getValue());
+                        mBody.append('"');
+                    }
+                }
+
+                Node child = node.getFirstChild();
+                if (child == null) {
+                    mBody.append("/>");
+                } else {
+                    mBody.append('>');
+                    for (; child != null; child = child.getNextSibling()) {
+                        appendNode(child);
+                    }
+                    mBody.append('<').append('/').append(name).append('>');
+                }
+                break;
+            }
+            default:
+                throw new UnsupportedOperationException(
+                        "Unsupported node type " + nodeType + ": not yet implemented");
+        }
+    }
+
+    /**
+     * Returns the content of the values file.
+     */
+    @NonNull
+    String getContent() {
+        StringBuilder sb = new StringBuilder(mBody.length() + 200);
+        sb.append(XmlUtils.XML_PROLOG);
+        sb.append('<').append(mRootTag);
+        for (Map.Entry<String, String> entry : mPrefixes.entrySet()) {
+            sb.append(' ').append(XMLNS).append(XmlUtils.NS_SEPARATOR).append(entry.getValue())
+                    .append('=').append('"');
+            XmlUtils.appendXmlAttributeValue(sb, entry.getKey());
+            sb.append('"');
+        }
+        if (mBody.length() == 0) {
+            sb.append("/>");
+        } else {
+            sb.append('>').append(mBody).append('<').append('/').append(mRootTag).append('>');
+        }
+        return sb.toString();
+    }
+
+    @NonNull
+    private String getName(@NonNull Node node) {
+        String namespace = node.getNamespaceURI();
+        if (namespace == null) {
+            return node.getNodeName();
+        }
+
+        String localName = node.getLocalName();
+        return getPrefix(namespace, node.getPrefix()) + XmlUtils.NS_SEPARATOR
+                + (localName != null ? localName : node.getNodeName());
+    }
+
+    @NonNull
+    private String getPrefix(@NonNull String namespace, @Nullable String preferredPrefix) {
+        String prefix = mPrefixes.get(namespace);
+        if (prefix == null) {
+            prefix = preferredPrefix;
+            if (prefix == null || prefix.isEmpty() || XMLNS.equals(prefix)
+                    || mUsedPrefixes.contains(prefix)) {
+                int i = 1;
+                do {
+                    prefix = "ns" + i++;
+                } while (mUsedPrefixes.contains(prefix));
+            }
+            mPrefixes.put(namespace, prefix);
+            mUsedPrefixes.add(prefix);
+        }
+        return prefix;
+    }
+}
@@ -214,6 +214,86 @@ public class ResourceMergerTest extends BaseTestCase {
         checkLogger(logger);
     }
 
+    public void testWrittenValuesNamespaces() throws Exception {
+        File folder = getWrittenResources();
+
+        String values = Files.toString(new File(folder, "values" + File.separator + "values.xml"),
+                Charsets.UTF_8);
+        assertTrue(values, values.startsWith("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
+                + "<resources xmlns:xliff=\"urn:oasis:names:tc:xliff:document:1.2\">\n"));
+        assertTrue(values, values.contains("<string name=\"xliff_string\">"
+                + "<xliff:g id=\"firstName\">%1$s</xliff:g> "
+                + "<xliff:g id=\"lastName\">%2$s</xliff:g></string>"));
+        assertTrue(values, values.endsWith("\n</resources>"));
+    }
+
+    public void testUnchangedValuesNotRewritten() throws Exception {
+        File folder = getWrittenResources();
+        File values = new File(folder, "values" + File.separator + "values.xml");
+        byte[] content = Files.toByteArray(values);
+        assertTrue(values.setLastModified(1000000000000L));
+
+        // a new merge writes all the values files again, with the same content.
+        MergedResourceWriter writer =
+                new MergedResourceWriter(folder, mPngCruncher, false, false, null);
+        getResourceMerger(false /*normalize*/).mergeData(writer, false /*doCleanUp*/);
+
+        assertTrue(Arrays.equals(content, Files.toByteArray(values)));
+        assertEquals(1000000000000L, values.lastModified());
+    }
+
+    public void testMergeLibraries() throws Exception {
+        File root = Files.createTempDir();
+        try {
+            List<ResourceSet> sets = createLibrarySets(root, 40);
+            ResourceMerger merger = new ResourceMerger();
+            for (ResourceSet set : sets) {
+                merger.addDataSet(set);
+            }
+
+            File out = new File(root, "out");
+            merger.mergeData(new MergedResourceWriter(out, mPngCruncher, false, false, null),
+                    false /*doCleanUp*/);
+
+            // the merge keeps, for each key, the item of the last set which defines it.
+            Map<String, ResourceItem> expected = Maps.newHashMap();
+            for (ResourceSet set : sets) {
+                for (ResourceItem item : set.getDataMap().values()) {
+                    expected.put(item.getKey(), item);
+                }
+            }
+
+            RecordingLogger logger = new RecordingLogger();
+            ResourceSet writtenSet = new ResourceSet("written");
+            writtenSet.addSource(out);
+            writtenSet.loadFromFiles(logger);
+            checkLogger(logger);
+            ListMultimap<String, ResourceItem> written = writtenSet.getDataMap();
+            assertEquals(expected.keySet(), written.keySet());
+            for (ResourceItem item : expected.values()) {
+                List<ResourceItem> writtenItems = written.get(item.getKey());
+                assertEquals(1, writtenItems.size());
+                if (item.getValue() != null) {
+                    assertEquals(item.getKey(), item.getValue().getTextContent(),
+                            writtenItems.get(0).getValue().getTextContent());
+                }
+            }
+            assertEquals("Library 39", written.get("string-fr/shared").get(0).getValue()
+                    .getTextContent());
+
+            // merging again does not rewrite the values files.
+            File values = new File(out, "values-fr" + File.separator + "values-fr.xml");
+            long lastModified = values.lastModified();
+            Map<String, String> files = readFiles(out);
+            merger.mergeData(new MergedResourceWriter(out, mPngCruncher, false, false, null),
+                    false /*doCleanUp*/);
+            assertEquals(lastModified, values.lastModified());
+            assertEquals(files, readFiles(out));
+        } finally {
+            TestUtils.deleteFile(root);
+        }
+    }
+
     public void testXliffString() throws Exception {
         ResourceMerger merger = getResourceMerger(false /*normalize*/);
 
@@ -1435,6 +1515,70 @@ public class ResourceMergerTest extends BaseTestCase {
         }
     }
 
+    /**
+     * Creates the resource sets of libraries which each define their own strings and layouts,
+     * and override a string shared by all of them.
+     */
+    private static List<ResourceSet> createLibrarySets(File root, int count)
+            throws IOException, MergingException {
+        List<ResourceSet> sets = Lists.newArrayList();
+        for (int i = 0; i < count; i++) {
+            File res = new File(root, "lib" + i + File.separator + "res");
+            for (String qualifier : new String[] { "", "-fr", "-de", "-land" }) {
+                StringBuilder values = new StringBuilder("<resources>\n");
+                values.append("    <string name=\"shared\">Library ").append(i)
+                        .append("</string>\n");
+                for (int j = 0; j < 200; j++) {
+                    values.append("    <string name=\"lib").append(i).append("_string")
+                            .append(j).append("\">Text ").append(j).append("</string>\n");
+                }
+                values.append("</resources>\n");
+                File file = new File(res, "values" + qualifier + File.separator + "values.xml");
+                Files.createParentDirs(file);
+                Files.write(values.toString(), file, Charsets.UTF_8);
+            }
+            for (int j = 0; j < 10; j++) {
+                File file = new File(res,
+                        FD_RES_LAYOUT + File.separator + "lib" + i + "_layout" + j + ".xml");
+                Files.createParentDirs(file);
+                Files.write("<FrameLayout/>", file, Charsets.UTF_8);
+            }
+            ResourceSet set = new ResourceSet("lib" + i);
+            set.addSource(res);
+            sets.add(set);
+        }
+
+        RecordingLogger logger = new RecordingLogger();
+        ResourceSet.loadFromFiles(sets, logger);
+        checkLogger(logger);
+        return sets;
+    }
+
+    /**
+     * Returns the content of the files of a folder, by path relative to the folder.
+     */
+    private static Map<String, String> readFiles(File folder) throws IOException {
+        Map<String, String> files = Maps.newTreeMap();
+        readFiles(folder, "", files);
+        return files;
+    }
+
+    private static void readFiles(File folder, String prefix, Map<String, String> files)
+            throws IOException {
+        File[] children = folder.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            String path = prefix + child.getName();
+            if (child.isDirectory()) {
+                readFiles(child, path + '/', files);
+            } else {
+                files.put(path, Files.toString(child, Charsets.UTF_8));
+            }
+        }
+    }
+
     private static Map<String, String> quickStringOnlyValueFileParser(File file)
             throws IOException, MergingException {
         Map<String, String> result = Maps.newHashMap();
@@ -1531,7 +1675,7 @@ public class ResourceMergerTest extends BaseTestCase {
         merger.writeBlobTo(folder,
                 new MergedResourceWriter(Files.createTempDir(), mPngCruncher, false, false, null));
         } catch (MergingException e) {
-            File file = new File(folder, "merger.xml");
+            File file = new File(folder, "merger.bin");
             assertEquals(file.getPath() + ": Error: (Permission denied)",
                     e.getMessage());
             return;
@@ -1551,6 +1695,119 @@ public class ResourceMergerTest extends BaseTestCase {
         assertTrue(loadedMerger.loadFromBlob(folder, true /*incrementalState*/));
     }
 
+    public void testLoadXmlBlob() throws Exception {
+        ResourceMerger merger = getResourceMerger(false /*normalize*/);
+        MergedResourceWriter writer =
+                new MergedResourceWriter(Files.createTempDir(), mPngCruncher, false, false, null);
+
+        File folder = Files.createTempDir();
+        merger.writeXmlBlobTo(folder, writer);
+        assertFalse(new File(folder, MergerBlob.FN_MERGER_BLOB).exists());
+
+        ResourceMerger loadedMerger = new ResourceMerger();
+        assertTrue(loadedMerger.loadFromBlob(folder, true /*incrementalState*/));
+        compareResourceMaps(merger, loadedMerger, true /*full compare*/);
+
+        // writing the blob again replaces the XML blob with the binary one.
+        loadedMerger.writeBlobTo(folder, writer);
+        assertFalse(new File(folder, DataMerger.FN_MERGER_XML).exists());
+        assertTrue(new File(folder, MergerBlob.FN_MERGER_BLOB).isFile());
+
+        ResourceMerger reloadedMerger = new ResourceMerger();
+        assertTrue(reloadedMerger.loadFromBlob(folder, true /*incrementalState*/));
+        compareResourceMaps(merger, reloadedMerger, true /*full compare*/);
+    }
+
+    public void testUnchangedSetsWrittenAsLoaded() throws Exception {
+        ResourceMerger merger = getResourceMerger(false /*normalize*/);
+        MergedResourceWriter writer =
+                new MergedResourceWriter(Files.createTempDir(), mPngCruncher, false, false, null);
+
+        File folder = Files.createTempDir();
+        merger.writeBlobTo(folder, writer);
+
+        ResourceMerger loadedMerger = new ResourceMerger();
+        assertTrue(loadedMerger.loadFromBlob(folder, true /*incrementalState*/));
+        for (ResourceSet set : loadedMerger.getDataSets()) {
+            assertNotNull(set.getBlobSection());
+        }
+
+        File folder2 = Files.createTempDir();
+        loadedMerger.writeBlobTo(folder2, writer);
+        assertTrue(Arrays.equals(
+                Files.toByteArray(new File(folder, MergerBlob.FN_MERGER_BLOB)),
+                Files.toByteArray(new File(folder2, MergerBlob.FN_MERGER_BLOB))));
+
+        // an updated set is written again.
+        ResourceSet set = loadedMerger.getDataSets().get(0);
+        ResourceFile resourceFile = set.getDataMap().values().iterator().next().getSource();
+        assertTrue(set.updateWith(set.getSourceFiles().get(0), resourceFile.getFile(),
+                FileStatus.REMOVED, new RecordingLogger()));
+        assertNull(set.getBlobSection());
+        assertNotNull(loadedMerger.getDataSets().get(1).getBlobSection());
+
+        loadedMerger.writeBlobTo(folder2, writer);
+        ResourceMerger reloadedMerger = new ResourceMerger();
+        assertTrue(reloadedMerger.loadFromBlob(folder2, true /*incrementalState*/));
+        assertTrue(reloadedMerger.getDataSets().get(0).size() < merger.getDataSets().get(0).size());
+    }
+
+    public void testCorruptedBlob() throws Exception {
+        ResourceMerger merger = getResourceMerger(false /*normalize*/);
+
+        File folder = Files.createTempDir();
+        merger.writeBlobTo(folder,
+                new MergedResourceWriter(Files.createTempDir(), mPngCruncher, false, false, null));
+
+        File file = new File(folder, MergerBlob.FN_MERGER_BLOB);
+        byte[] content = Files.toByteArray(file);
+        content[content.length / 2] ^= 0x5a;
+        Files.write(content, file);
+
+        // a corrupted blob is not loaded, so that the merge is done again from scratch.
+        ResourceMerger loadedMerger = new ResourceMerger();
+        assertFalse(loadedMerger.loadFromBlob(folder, true /*incrementalState*/));
+        assertTrue(loadedMerger.getDataSets().isEmpty());
+
+        Files.write(Arrays.copyOf(content, content.length / 2), file);
+        assertFalse(loadedMerger.loadFromBlob(folder, true /*incrementalState*/));
+    }
+
+    public void testBlobRoundTrip() throws Exception {
+        File root = Files.createTempDir();
+        try {
+            ResourceMerger merger = new ResourceMerger();
+            for (ResourceSet set : createLibrarySets(root, 10)) {
+                merger.addDataSet(set);
+            }
+            File out = new File(root, "out");
+            MergedResourceWriter writer =
+                    new MergedResourceWriter(out, mPngCruncher, false, false, null);
+            merger.mergeData(writer, false /*doCleanUp*/);
+
+            File binaryFolder = new File(root, "binary");
+            merger.writeBlobTo(binaryFolder, writer);
+            assertTrue(new File(binaryFolder, MergerBlob.FN_MERGER_BLOB).isFile());
+            File xmlFolder = new File(root, "xml");
+            merger.writeXmlBlobTo(xmlFolder, writer);
+
+            // both blobs give back the same sets, which merge into the same output.
+            for (File blobFolder : new File[] { binaryFolder, xmlFolder }) {
+                ResourceMerger loadedMerger = new ResourceMerger();
+                assertTrue(loadedMerger.loadFromBlob(blobFolder, false /*incrementalState*/));
+                compareResourceMaps(merger, loadedMerger, true /*full compare*/);
+
+                File loadedOut = new File(root, blobFolder.getName() + "-out");
+                loadedMerger.mergeData(
+                        new MergedResourceWriter(loadedOut, mPngCruncher, false, false, null),
+                        false /*doCleanUp*/);
+                assertEquals(readFiles(out), readFiles(loadedOut));
+            }
+        } finally {
+            TestUtils.deleteFile(root);
+        }
+    }
+
     public void testInvalidFileNames() throws Exception {
         File root = TestUtils.getRoot("resources", "brokenSet5");
         ResourceSet resourceSet = new ResourceSet("brokenSet5");
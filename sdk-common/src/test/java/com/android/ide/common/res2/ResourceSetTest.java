@@ -19,9 +19,14 @@ package com.android.ide.common.res2;
 import static java.io.File.separator;
 
 import com.android.testutils.TestUtils;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 
 public class ResourceSetTest extends BaseTestCase {
 
@@ -215,6 +220,93 @@ public class ResourceSetTest extends BaseTestCase {
         assertFalse(logger.getErrorMsgs().isEmpty());
     }
 
+    public void testLoadSetsTogether() throws Exception {
+        List<ResourceSet> sets = Lists.newArrayList();
+        List<ResourceSet> expectedSets = Lists.newArrayList();
+        for (File source : new File[] {
+                TestUtils.getRoot("resources", "baseSet"),
+                TestUtils.getRoot("resources", "baseMerge", "overlay") }) {
+            ResourceSet set = new ResourceSet(source.getName());
+            set.addSource(source);
+            sets.add(set);
+
+            ResourceSet expectedSet = new ResourceSet(source.getName());
+            expectedSet.addSource(source);
+            expectedSet.loadFromFiles(new RecordingLogger());
+            expectedSets.add(expectedSet);
+        }
+
+        RecordingLogger logger = new RecordingLogger();
+        ResourceSet.loadFromFiles(sets, logger);
+        checkLogger(logger);
+
+        for (int i = 0; i < sets.size(); i++) {
+            assertEquals(expectedSets.get(i).getDataMap().keys(), sets.get(i).getDataMap().keys());
+        }
+    }
+
+    /**
+     * Loads the resources of an app depending on 40 libraries together, and checks each item
+     * against the content the files were written with.
+     */
+    public void testLoadManyLibraries() throws Exception {
+        File root = Files.createTempDir();
+        try {
+            String[] qualifiers = new String[] { "", "fr", "de", "land" };
+            List<ResourceSet> sets = Lists.newArrayList();
+            for (int i = 0; i < 40; i++) {
+                File res = new File(root, "lib" + i + separator + "res");
+                for (String qualifier : qualifiers) {
+                    StringBuilder values = new StringBuilder("<resources>\n");
+                    for (int j = 0; j < 200; j++) {
+                        values.append("    <string name=\"lib").append(i).append("_string")
+                                .append(j).append("\">Text ").append(qualifier).append(j)
+                                .append("</string>\n");
+                    }
+                    values.append("</resources>\n");
+                    String folder = qualifier.isEmpty() ? "values" : "values-" + qualifier;
+                    File file = new File(res, folder + separator + "values.xml");
+                    Files.createParentDirs(file);
+                    Files.write(values.toString(), file, Charsets.UTF_8);
+                }
+                for (int j = 0; j < 100; j++) {
+                    File file = new File(res,
+                            "layout" + separator + "lib" + i + "_layout" + j + ".xml");
+                    Files.createParentDirs(file);
+                    Files.write("<FrameLayout/>", file, Charsets.UTF_8);
+                }
+
+                ResourceSet set = new ResourceSet("lib" + i);
+                set.addSource(res);
+                sets.add(set);
+            }
+
+            RecordingLogger logger = new RecordingLogger();
+            ResourceSet.loadFromFiles(sets, logger);
+            checkLogger(logger);
+
+            for (int i = 0; i < sets.size(); i++) {
+                ListMultimap<String, ResourceItem> items = sets.get(i).getDataMap();
+                assertEquals(4 * 200 + 100, items.size());
+                for (String qualifier : qualifiers) {
+                    String type = qualifier.isEmpty() ? "string" : "string-" + qualifier;
+                    for (int j = 0; j < 200; j++) {
+                        List<ResourceItem> item = items.get(
+                                type + "/lib" + i + "_string" + j);
+                        assertEquals(1, item.size());
+                        assertEquals("Text " + qualifier + j,
+                                item.get(0).getValue().getTextContent());
+                    }
+                }
+                for (int j = 0; j < 100; j++) {
+                    assertEquals(1, items.get("layout/lib" + i + "_layout" + j).size());
+                }
+            }
+        } finally {
+            TestUtils.deleteFile(root);
+        }
+    }
+
     static ResourceSet getBaseResourceSet(boolean normalize) throws MergingException, IOException {
         File root = TestUtils.getRoot("resources", "baseSet");
 
@@ -20,6 +20,7 @@ import com.android.SdkConstants;
 import com.android.testutils.TestUtils;
 import com.google.common.base.Charsets;
 import com.google.common.collect.Maps;
+import com.google.common.io.Files;
 
 import org.w3c.dom.Document;
 
@@ -130,4 +131,30 @@ public class ValueResourceParser2Test extends BaseTestCase {
         //noinspection ResultOfMethodCallIgnored
         file.delete();
     }
+
+    public void testParseAfterError() throws IOException, MergingException {
+        File invalid = File.createTempFile(getName(), SdkConstants.DOT_XML);
+        Files.write("<resources><string name=\"a\">", invalid, Charsets.UTF_8);
+        File valid = File.createTempFile(getName(), SdkConstants.DOT_XML);
+        Files.write("<resources><string name=\"b\">B</string></resources>", valid,
+                Charsets.UTF_8);
+        try {
+            try {
+                ValueResourceParser2.parseDocument(invalid);
+                fail("Expected a parse error");
+            } catch (MergingException e) {
+                // expected
+            }
+
+            // the document builder of this thread is reused for the next file.
+            List<ResourceItem> items = new ValueResourceParser2(valid).parseFile();
+            assertEquals(1, items.size());
+            assertEquals("b", items.get(0).getName());
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            invalid.delete();
+            //noinspection ResultOfMethodCallIgnored
+            valid.delete();
+        }
+    }
 }
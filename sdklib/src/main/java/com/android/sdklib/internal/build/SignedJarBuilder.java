@@ -17,6 +17,8 @@
 package com.android.sdklib.internal.build;
 
 import com.android.SdkConstants;
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
@@ -25,8 +27,10 @@ import java.io.FileInputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.charset.Charset;
 import java.security.DigestOutputStream;
 import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
@@ -35,14 +39,29 @@ import java.security.PrivateKey;
 import java.security.Signature;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.Attributes;
-import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
-import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipInputStream;
 
 import org.bouncycastle.asn1.ASN1InputStream;
@@ -64,7 +83,10 @@ import com.android.sdklib.internal.build.SignedJarBuilder.IZipEntryFilter.ZipAbo
 
 /**
  * A Jar file builder with signature support.
- * 
+ * <p/>The entries are compressed and digested by a pool of worker threads, and written in the
+ * order they were added. The number of entries being processed is bounded so that the memory
+ * used does not depend on the size of the archive.
+ *
  * @deprecated Use Android-Builder instead
  */
 @Deprecated
@@ -73,11 +95,23 @@ public class SignedJarBuilder {
     private static final String DIGEST_ATTR = "SHA1-Digest";
     private static final String DIGEST_MANIFEST_ATTR = "SHA1-Digest-Manifest";
 
+    /** Maximum amount of uncompressed content waiting to be written. */
+    private static final long MAX_PENDING_BYTES = 32 * 1024 * 1024;
+    /** Maximum number of entries waiting to be written, per worker thread. */
+    private static final int MAX_PENDING_ENTRIES_PER_THREAD = 16;
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int ZIP_VERSION = 20;
+    private static final int FLAG_UTF8 = 0x800;
+    private static final Charset UTF_8 = Charset.forName(SdkConstants.UTF_8);
+
     /** Write to another stream and track how many bytes have been
      *  written.
      */
     private static class CountOutputStream extends FilterOutputStream {
-        private int mCount = 0;
+        private long mCount = 0;
 
         public CountOutputStream(OutputStream out) {
             super(out);
@@ -92,23 +126,78 @@ public class SignedJarBuilder {
 
         @Override
         public void write(byte[] b, int off, int len) throws IOException {
-            super.write(b, off, len);
+            out.write(b, off, len);
             mCount += len;
         }
 
-        public int size() {
+        public long size() {
             return mCount;
         }
     }
 
-    private JarOutputStream mOutputJar;
+    /**
+     * An entry compressed and digested by a worker thread, waiting to be written.
+     */
+    private static final class CompressedEntry {
+        final String name;
+        final int method;
+        final int dosTime;
+        final long crc;
+        final long size;
+        final byte[] data;
+        final String digest;
+
+        CompressedEntry(String name, int method, int dosTime, long crc, long size, byte[] data,
+                String digest) {
+            this.name = name;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.size = size;
+            this.data = data;
+            this.digest = digest;
+        }
+    }
+
+    /**
+     * An entry written in the archive, as recorded in the central directory.
+     */
+    private static final class ZipRecord {
+        final byte[] name;
+        final int method;
+        final int dosTime;
+        final long crc;
+        final long compressedSize;
+        final long size;
+        final long offset;
+
+        ZipRecord(byte[] name, int method, int dosTime, long crc, long compressedSize,
+                long size, long offset) {
+            this.name = name;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.offset = offset;
+        }
+    }
+
+    private CountOutputStream mOutput;
     private PrivateKey mKey;
     private X509Certificate mCertificate;
     private Manifest mManifest;
-    private Base64 mBase64;
-    private MessageDigest mMessageDigest;
 
-    private byte[] mBuffer = new byte[4096];
+    private final ExecutorService mExecutor;
+    private final int mMaxPendingEntries;
+    private final ArrayDeque<Future<CompressedEntry>> mPendingEntries =
+            new ArrayDeque<Future<CompressedEntry>>();
+    private final ArrayDeque<Long> mPendingSizes = new ArrayDeque<Long>();
+    private long mPendingBytes = 0;
+
+    private final Set<String> mEntryNames = new HashSet<String>();
+    private final List<ZipRecord> mRecords = new ArrayList<ZipRecord>();
+    private final Map<String, String> mDigests = new HashMap<String, String>();
 
     /**
      * Classes which implement this interface provides a method to check whether a file should
@@ -164,8 +253,23 @@ public class SignedJarBuilder {
      */
     public SignedJarBuilder(OutputStream out, PrivateKey key, X509Certificate certificate)
             throws IOException, NoSuchAlgorithmException {
-        mOutputJar = new JarOutputStream(new BufferedOutputStream(out));
-        mOutputJar.setLevel(9);
+        this(out, key, certificate, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a {@link SignedJarBuilder} with a given output stream, signing information and
+     * number of worker threads.
+     * @param out the {@link OutputStream} where to write the Jar archive.
+     * @param key the {@link PrivateKey} used to sign the archive, or <code>null</code>.
+     * @param certificate the {@link X509Certificate} used to sign the archive, or
+     * <code>null</code>.
+     * @param threadCount the number of threads compressing and digesting the entries.
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public SignedJarBuilder(OutputStream out, PrivateKey key, X509Certificate certificate,
+            int threadCount) throws IOException, NoSuchAlgorithmException {
+        mOutput = new CountOutputStream(new BufferedOutputStream(out, 65536));
         mKey = key;
         mCertificate = certificate;
 
@@ -175,9 +279,23 @@ public class SignedJarBuilder {
             main.putValue("Manifest-Version", "1.0");
             main.putValue("Created-By", "1.0 (Android)");
 
-            mBase64 = new Base64();
-            mMessageDigest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+            // fail early if the digest is not available.
+            MessageDigest.getInstance(DIGEST_ALGORITHM);
         }
+
+        threadCount = Math.max(1, threadCount);
+        mMaxPendingEntries = threadCount * MAX_PENDING_ENTRIES_PER_THREAD;
+        mExecutor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(@NonNull Runnable runnable) {
+                Thread thread = new Thread(runnable,
+                        "SignedJarBuilder-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
     }
 
     /**
@@ -187,19 +305,27 @@ public class SignedJarBuilder {
      * @throws IOException
      */
     public void writeFile(File inputFile, String jarPath) throws IOException {
-        // Get an input stream on the file.
-        FileInputStream fis = new FileInputStream(inputFile);
-        try {
-
-            // create the zip entry
-            JarEntry entry = new JarEntry(jarPath);
-            entry.setTime(inputFile.lastModified());
+        writeFile(inputFile, jarPath, null);
+    }
 
-            writeEntry(fis, entry);
-        } finally {
-            // close the file stream used to read the file
-            fis.close();
-        }
+    /**
+     * Writes a new {@link File} into the archive, with a known digest.
+     * <p/>The digest can be one returned by {@link #getDigests()} when the same file was
+     * packaged by a previous build, in which case the content is not digested again.
+     * @param inputFile the {@link File} to write.
+     * @param jarPath the filepath inside the archive.
+     * @param digest the Base64 encoded SHA-1 digest of the content, or <code>null</code>.
+     * @throws IOException
+     */
+    public void writeFile(final File inputFile, final String jarPath,
+            @Nullable final String digest) throws IOException {
+        final long time = inputFile.lastModified();
+        submit(jarPath, inputFile.length(), new Callable<CompressedEntry>() {
+            @Override
+            public CompressedEntry call() throws Exception {
+                return compress(jarPath, readFile(inputFile), ZipEntry.DEFLATED, time, digest);
+            }
+        });
     }
 
     /**
@@ -220,7 +346,7 @@ public class SignedJarBuilder {
             // loop on the entries of the intermediary package and put them in the final package.
             ZipEntry entry;
             while ((entry = zis.getNextEntry()) != null) {
-                String name = entry.getName();
+                final String name = entry.getName();
 
                 // do not take directories or anything inside a potential META-INF folder.
                 if (entry.isDirectory() || name.startsWith("META-INF/")) {
@@ -232,17 +358,22 @@ public class SignedJarBuilder {
                     continue;
                 }
 
-                JarEntry newEntry;
+                // the entries of a zip are read in sequence, only the compression and digest
+                // are done by the workers.
+                final byte[] content = readFully(zis);
 
                 // Preserve the STORED method of the input entry.
-                if (entry.getMethod() == JarEntry.STORED) {
-                    newEntry = new JarEntry(entry);
-                } else {
-                    // Create a new entry so that the compressed len is recomputed.
-                    newEntry = new JarEntry(name);
-                }
-
-                writeEntry(zis, newEntry);
+                final int method = entry.getMethod() == ZipEntry.STORED
+                        ? ZipEntry.STORED : ZipEntry.DEFLATED;
+                final long time = entry.getTime() != -1
+                        ? entry.getTime() : System.currentTimeMillis();
+
+                submit(name, content.length, new Callable<CompressedEntry>() {
+                    @Override
+                    public CompressedEntry call() throws Exception {
+                        return compress(name, content, method, time, null);
+                    }
+                });
 
                 zis.closeEntry();
             }
@@ -251,34 +382,57 @@ public class SignedJarBuilder {
         }
     }
 
+    /**
+     * Returns the Base64 encoded SHA-1 digests of the entries written so far, indexed by their
+     * path in the archive. This is empty if the archive is not signed.
+     */
+    @NonNull
+    public Map<String, String> getDigests() {
+        return Collections.unmodifiableMap(mDigests);
+    }
+
     /**
      * Closes the Jar archive by creating the manifest, and signing the archive.
      * @throws IOException
      * @throws GeneralSecurityException
      */
     public void close() throws IOException, GeneralSecurityException, Exception {
-        if (mManifest != null) {
-            // write the manifest to the jar file
-            mOutputJar.putNextEntry(new JarEntry(JarFile.MANIFEST_NAME));
-            mManifest.write(mOutputJar);
-
-            // CERT.SF
-            Signature signature = Signature.getInstance("SHA1with" + mKey.getAlgorithm());
-            signature.initSign(mKey);
-            mOutputJar.putNextEntry(new JarEntry("META-INF/CERT.SF"));
-            
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            writeSignatureFile(baos);
-            byte[] signedData = baos.toByteArray();
-            mOutputJar.write(signedData);
-
-            // CERT.*
-            mOutputJar.putNextEntry(new JarEntry("META-INF/CERT." + mKey.getAlgorithm()));
-            writeSignatureBlock(new CMSProcessableByteArray(signedData), mCertificate, mKey);
-        }
+        try {
+            while (!mPendingEntries.isEmpty()) {
+                writeNextPendingEntry();
+            }
+
+            if (mManifest != null) {
+                // write the manifest to the jar file
+                ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+                mManifest.write(manifest);
+                writeEntry(compress(JarFile.MANIFEST_NAME, manifest.toByteArray(),
+                        ZipEntry.DEFLATED, System.currentTimeMillis(), ""));
+
+                // CERT.SF
+                Signature signature = Signature.getInstance("SHA1with" + mKey.getAlgorithm());
+                signature.initSign(mKey);
+
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                writeSignatureFile(baos);
+                byte[] signedData = baos.toByteArray();
+                writeEntry(compress("META-INF/CERT.SF", signedData, ZipEntry.DEFLATED,
+                        System.currentTimeMillis(), ""));
+
+                // CERT.*
+                ByteArrayOutputStream block = new ByteArrayOutputStream();
+                writeSignatureBlock(new CMSProcessableByteArray(signedData), mCertificate, mKey,
+                        block);
+                writeEntry(compress("META-INF/CERT." + mKey.getAlgorithm(), block.toByteArray(),
+                        ZipEntry.DEFLATED, System.currentTimeMillis(), ""));
+            }
 
-        mOutputJar.close();
-        mOutputJar = null;
+            writeCentralDirectory();
+            mOutput.close();
+            mOutput = null;
+        } finally {
+            mExecutor.shutdownNow();
+        }
     }
 
     /**
@@ -286,51 +440,226 @@ public class SignedJarBuilder {
      * This does nothing if {@link #close()} was called successfully.
      */
     public void cleanUp() {
-        if (mOutputJar != null) {
+        mExecutor.shutdownNow();
+        if (mOutput != null) {
             try {
-                mOutputJar.close();
+                mOutput.close();
             } catch (IOException e) {
                 // pass
             }
+            mOutput = null;
         }
     }
 
     /**
-     * Adds an entry to the output jar, and write its content from the {@link InputStream}
-     * @param input The input stream from where to write the entry content.
-     * @param entry the entry to write in the jar.
-     * @throws IOException
+     * Queues an entry to be compressed by a worker thread. The completed entries at the head
+     * of the queue are written, and if too much content is pending this waits for the head of
+     * the queue to be completed.
      */
-    private void writeEntry(InputStream input, JarEntry entry) throws IOException {
-        // add the entry to the jar archive
-        mOutputJar.putNextEntry(entry);
+    private void submit(String name, long size, Callable<CompressedEntry> task)
+            throws IOException {
+        if (!mEntryNames.add(name)) {
+            throw new ZipException("duplicate entry: " + name);
+        }
 
-        // read the content of the entry from the input stream, and write it into the archive.
-        int count;
-        while ((count = input.read(mBuffer)) != -1) {
-            mOutputJar.write(mBuffer, 0, count);
+        // make room for this entry.
+        writePendingEntries(MAX_PENDING_BYTES - size);
 
-            // update the digest
-            if (mMessageDigest != null) {
-                mMessageDigest.update(mBuffer, 0, count);
-            }
+        mPendingEntries.add(mExecutor.submit(task));
+        mPendingSizes.add(size);
+        mPendingBytes += size;
+
+        // write what is already done, without waiting.
+        while (!mPendingEntries.isEmpty() && mPendingEntries.peek().isDone()) {
+            writeNextPendingEntry();
+        }
+    }
+
+    /**
+     * Writes pending entries, in order, until there are at most <var>maxPendingBytes</var> of
+     * pending content and there is room for another entry.
+     */
+    private void writePendingEntries(long maxPendingBytes) throws IOException {
+        while (!mPendingEntries.isEmpty()
+                && (mPendingBytes > maxPendingBytes
+                        || mPendingEntries.size() >= mMaxPendingEntries)) {
+            writeNextPendingEntry();
         }
+    }
+
+    private void writeNextPendingEntry() throws IOException {
+        Future<CompressedEntry> future = mPendingEntries.poll();
+        mPendingBytes -= mPendingSizes.poll();
 
-        // close the entry for this file
-        mOutputJar.closeEntry();
+        CompressedEntry entry;
+        try {
+            entry = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing the archive");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
 
+        writeEntry(entry);
         if (mManifest != null) {
             // update the manifest for this entry.
-            Attributes attr = mManifest.getAttributes(entry.getName());
+            Attributes attr = mManifest.getAttributes(entry.name);
             if (attr == null) {
                 attr = new Attributes();
-                mManifest.getEntries().put(entry.getName(), attr);
+                mManifest.getEntries().put(entry.name, attr);
             }
-            attr.putValue(DIGEST_ATTR, 
-                          new String(mBase64.encode(mMessageDigest.digest()), "ASCII"));
+            attr.putValue(DIGEST_ATTR, entry.digest);
+            mDigests.put(entry.name, entry.digest);
         }
     }
 
+    /**
+     * Compresses and digests the content of an entry. This is called by the worker threads.
+     * @param digest the known digest of the content, an empty string if the entry does not
+     * need to be digested, or <code>null</code> to compute it.
+     */
+    private CompressedEntry compress(String name, byte[] content, int method, long time,
+            @Nullable String digest) throws IOException, NoSuchAlgorithmException {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+
+        if (digest == null && mManifest != null) {
+            MessageDigest messageDigest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+            digest = new String(Base64.encode(messageDigest.digest(content)), "ASCII");
+        }
+
+        byte[] data = content;
+        if (method == ZipEntry.DEFLATED) {
+            Deflater deflater = new Deflater(9, true /* nowrap */);
+            try {
+                deflater.setInput(content);
+                deflater.finish();
+                ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 2 + 64);
+                byte[] buffer = new byte[8192];
+                while (!deflater.finished()) {
+                    out.write(buffer, 0, deflater.deflate(buffer));
+                }
+                data = out.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        return new CompressedEntry(name, method, toDosTime(time), crc.getValue(),
+                content.length, data, digest);
+    }
+
+    /**
+     * Writes an entry in the archive, with its local header.
+     */
+    private void writeEntry(CompressedEntry entry) throws IOException {
+        byte[] name = entry.name.getBytes(UTF_8);
+        ZipRecord record = new ZipRecord(name, entry.method, entry.dosTime, entry.crc,
+                entry.data.length, entry.size, mOutput.size());
+        if (record.offset > 0xFFFFFFFFL || record.size > 0xFFFFFFFFL) {
+            throw new ZipException("Archive too large: " + entry.name);
+        }
+
+        writeInt(mOutput, LOCAL_HEADER_SIGNATURE);
+        writeShort(mOutput, ZIP_VERSION);
+        writeShort(mOutput, FLAG_UTF8);
+        writeShort(mOutput, record.method);
+        writeInt(mOutput, record.dosTime);
+        writeInt(mOutput, record.crc);
+        writeInt(mOutput, record.compressedSize);
+        writeInt(mOutput, record.size);
+        writeShort(mOutput, name.length);
+        writeShort(mOutput, 0);
+        mOutput.write(name);
+        mOutput.write(entry.data);
+
+        mRecords.add(record);
+    }
+
+    private void writeCentralDirectory() throws IOException {
+        long offset = mOutput.size();
+        for (ZipRecord record : mRecords) {
+            writeInt(mOutput, CENTRAL_HEADER_SIGNATURE);
+            writeShort(mOutput, ZIP_VERSION);
+            writeShort(mOutput, ZIP_VERSION);
+            writeShort(mOutput, FLAG_UTF8);
+            writeShort(mOutput, record.method);
+            writeInt(mOutput, record.dosTime);
+            writeInt(mOutput, record.crc);
+            writeInt(mOutput, record.compressedSize);
+            writeInt(mOutput, record.size);
+            writeShort(mOutput, record.name.length);
+            writeShort(mOutput, 0); // extra
+            writeShort(mOutput, 0); // comment
+            writeShort(mOutput, 0); // disk
+            writeShort(mOutput, 0); // internal attributes
+            writeInt(mOutput, 0);   // external attributes
+            writeInt(mOutput, record.offset);
+            mOutput.write(record.name);
+        }
+        long size = mOutput.size() - offset;
+
+        if (mRecords.size() >= 0xFFFF || offset > 0xFFFFFFFFL) {
+            throw new ZipException("Archive too large");
+        }
+        writeInt(mOutput, END_SIGNATURE);
+        writeShort(mOutput, 0);
+        writeShort(mOutput, 0);
+        writeShort(mOutput, mRecords.size());
+        writeShort(mOutput, mRecords.size());
+        writeInt(mOutput, size);
+        writeInt(mOutput, offset);
+        writeShort(mOutput, 0);
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            return readFully(fis);
+        } finally {
+            fis.close();
+        }
+    }
+
+    private static byte[] readFully(InputStream input) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = input.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    private static int toDosTime(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25
+                | (calendar.get(Calendar.MONTH) + 1) << 21
+                | calendar.get(Calendar.DAY_OF_MONTH) << 16
+                | calendar.get(Calendar.HOUR_OF_DAY) << 11
+                | calendar.get(Calendar.MINUTE) << 5
+                | calendar.get(Calendar.SECOND) >> 1;
+    }
+
+    private static void writeShort(OutputStream out, int value) throws IOException {
+        out.write(value & 0xFF);
+        out.write((value >>> 8) & 0xFF);
+    }
+
+    private static void writeInt(OutputStream out, long value) throws IOException {
+        writeShort(out, (int) (value & 0xFFFF));
+        writeShort(out, (int) ((value >>> 16) & 0xFFFF));
+    }
+
     /** Writes a .SF file with a digest to the manifest. */
     private void writeSignatureFile(OutputStream out)
             throws IOException, GeneralSecurityException {
@@ -379,7 +708,7 @@ public class SignedJarBuilder {
 
     /** Write the certificate file with a digital signature. */
     private void writeSignatureBlock(CMSTypedData data, X509Certificate publicKey,
-            PrivateKey privateKey)
+            PrivateKey privateKey, OutputStream out)
                         throws IOException,
                         CertificateEncodingException,
                         OperatorCreationException,
@@ -403,7 +732,8 @@ public class SignedJarBuilder {
         CMSSignedData sigData = gen.generate(data, false);
 
         ASN1InputStream asn1 = new ASN1InputStream(sigData.getEncoded());
-        DEROutputStream dos = new DEROutputStream(mOutputJar);
+        DEROutputStream dos = new DEROutputStream(out);
         dos.writeObject(asn1.readObject());
+        dos.flush();
     }
 }
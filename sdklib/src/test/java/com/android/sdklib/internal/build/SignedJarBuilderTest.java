@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.sdklib.internal.build;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+@SuppressWarnings({"javadoc", "deprecation"})
+public class SignedJarBuilderTest extends TestCase {
+
+    private File mTmpDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTmpDir = Files.createTempDir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteRecursively(mTmpDir);
+        super.tearDown();
+    }
+
+    public void testEntriesAreWrittenInOrder() throws Exception {
+        File out = new File(mTmpDir, "out.apk");
+        List<String> names = Lists.newArrayList();
+        SignedJarBuilder builder = new SignedJarBuilder(new FileOutputStream(out), null, null, 4);
+        Random random = new Random(42);
+        for (int i = 0; i < 100; i++) {
+            // entries of very different sizes, including empty ones, so they complete out of
+            // order.
+            File file = new File(mTmpDir, "file" + i);
+            Files.write(createContent(random, (i % 7) * 20000), file);
+            builder.writeFile(file, "assets/file" + i);
+            names.add("assets/file" + i);
+        }
+        builder.close();
+
+        ZipInputStream zis = new ZipInputStream(new FileInputStream(out));
+        try {
+            List<String> actual = Lists.newArrayList();
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                actual.add(entry.getName());
+                int index = Integer.parseInt(entry.getName().substring("assets/file".length()));
+                assertTrue(Arrays.equals(
+                        Files.toByteArray(new File(mTmpDir, "file" + index)),
+                        ByteStreams.toByteArray(zis)));
+            }
+            assertEquals(names, actual);
+        } finally {
+            zis.close();
+        }
+    }
+
+    public void testWriteZip() throws Exception {
+        ByteArrayOutputStream input = new ByteArrayOutputStream();
+        ZipOutputStream zos = new ZipOutputStream(input);
+        zos.putNextEntry(new ZipEntry("res/"));
+        zos.closeEntry();
+        zos.putNextEntry(new ZipEntry("res/layout/main.xml"));
+        zos.write("<LinearLayout/>".getBytes(Charsets.UTF_8));
+        zos.closeEntry();
+        byte[] arsc = "resources".getBytes(Charsets.UTF_8);
+        ZipEntry stored = new ZipEntry("resources.arsc");
+        stored.setMethod(ZipEntry.STORED);
+        stored.setSize(arsc.length);
+        CRC32 crc = new CRC32();
+        crc.update(arsc);
+        stored.setCrc(crc.getValue());
+        zos.putNextEntry(stored);
+        zos.write(arsc);
+        zos.closeEntry();
+        zos.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
+        zos.write("Manifest-Version: 1.0\n".getBytes(Charsets.UTF_8));
+        zos.closeEntry();
+        zos.putNextEntry(new ZipEntry("excluded.txt"));
+        zos.closeEntry();
+        zos.close();
+
+        File out = new File(mTmpDir, "out.apk");
+        SignedJarBuilder builder = new SignedJarBuilder(new FileOutputStream(out), null, null);
+        builder.writeZip(new ByteArrayInputStream(input.toByteArray()),
+                new SignedJarBuilder.IZipEntryFilter() {
+                    @Override
+                    public boolean checkEntry(String archivePath) {
+                        return !archivePath.equals("excluded.txt");
+                    }
+                });
+        builder.close();
+
+        ZipFile zipFile = new ZipFile(out);
+        try {
+            List<String> names = Lists.newArrayList();
+            for (Enumeration<? extends ZipEntry> e = zipFile.entries(); e.hasMoreElements(); ) {
+                names.add(e.nextElement().getName());
+            }
+            assertEquals(Lists.newArrayList("res/layout/main.xml", "resources.arsc"), names);
+
+            ZipEntry arscEntry = zipFile.getEntry("resources.arsc");
+            assertEquals(ZipEntry.STORED, arscEntry.getMethod());
+            assertEquals("resources", read(zipFile, arscEntry));
+            ZipEntry layout = zipFile.getEntry("res/layout/main.xml");
+            assertEquals(ZipEntry.DEFLATED, layout.getMethod());
+            assertEquals("<LinearLayout/>", read(zipFile, layout));
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    public void testDuplicateEntry() throws Exception {
+        File file = new File(mTmpDir, "file");
+        Files.write("content", file, Charsets.UTF_8);
+
+        SignedJarBuilder builder = new SignedJarBuilder(
+                new FileOutputStream(new File(mTmpDir, "out.apk")), null, null);
+        try {
+            builder.writeFile(file, "file");
+            builder.writeFile(file, "file");
+            fail("Expected a duplicate entry");
+        } catch (ZipException expected) {
+            // expected.
+        } finally {
+            builder.cleanUp();
+        }
+    }
+
+    public void testErrorIsReported() throws Exception {
+        SignedJarBuilder builder = new SignedJarBuilder(
+                new FileOutputStream(new File(mTmpDir, "out.apk")), null, null);
+        try {
+            builder.writeFile(new File(mTmpDir, "missing"), "missing");
+            builder.close();
+            fail("Expected a missing file");
+        } catch (IOException expected) {
+            // expected.
+        } finally {
+            builder.cleanUp();
+        }
+    }
+
+    public void testThreadCountDoesNotChangeOutput() throws Exception {
+        Random random = new Random(0);
+        List<File> files = Lists.newArrayList();
+        for (int i = 0; i < 20; i++) {
+            File file = new File(mTmpDir, "lib" + i + ".so");
+            Files.write(createContent(random, random.nextInt(100000)), file);
+            files.add(file);
+        }
+
+        byte[] expected = null;
+        for (int threads : new int[] { 1, 4 }) {
+            File out = new File(mTmpDir, "out" + threads + ".apk");
+            SignedJarBuilder builder = new SignedJarBuilder(
+                    new FileOutputStream(out), null, null, threads);
+            for (File file : files) {
+                builder.writeFile(file, "lib/x86/" + file.getName());
+            }
+            builder.close();
+
+            byte[] content = Files.toByteArray(out);
+            if (expected == null) {
+                expected = content;
+            } else {
+                assertTrue(Arrays.equals(expected, content));
+            }
+        }
+    }
+
+    public void testSignedArchive() throws Exception {
+        DebugKeyProvider keyProvider = createKeyProvider();
+        File file = new File(mTmpDir, "file");
+        Files.write("content", file, Charsets.UTF_8);
+
+        File out = new File(mTmpDir, "out.apk");
+        SignedJarBuilder builder = new SignedJarBuilder(new FileOutputStream(out),
+                keyProvider.getDebugKey(), (X509Certificate) keyProvider.getCertificate());
+        builder.writeFile(file, "assets/file");
+        builder.close();
+
+        JarFile jarFile = new JarFile(out, true /* verify */);
+        try {
+            assertNotNull(jarFile.getEntry("META-INF/CERT.SF"));
+            assertNotNull(jarFile.getEntry("META-INF/CERT.RSA"));
+            Attributes attributes = jarFile.getManifest().getAttributes("assets/file");
+            assertEquals(builder.getDigests().get("assets/file"),
+                    attributes.getValue("SHA1-Digest"));
+
+            // the certificates are only known once the entry is read.
+            JarEntry entry = jarFile.getJarEntry("assets/file");
+            assertEquals("content", read(jarFile, entry));
+            Certificate[] certificates = entry.getCertificates();
+            assertNotNull(certificates);
+            assertEquals(keyProvider.getCertificate(), certificates[0]);
+        } finally {
+            jarFile.close();
+        }
+    }
+
+    public void testKnownDigestIsNotComputed() throws Exception {
+        DebugKeyProvider keyProvider = createKeyProvider();
+        File file = new File(mTmpDir, "file");
+        Files.write("content", file, Charsets.UTF_8);
+
+        File out = new File(mTmpDir, "out.apk");
+        SignedJarBuilder builder = new SignedJarBuilder(new FileOutputStream(out),
+                keyProvider.getDebugKey(), (X509Certificate) keyProvider.getCertificate());
+        builder.writeFile(file, "assets/file");
+        // not the digest of the content, to check that the file is not digested again.
+        builder.writeFile(file, "assets/copy", "known");
+        builder.close();
+
+        assertEquals("known", builder.getDigests().get("assets/copy"));
+        JarFile jarFile = new JarFile(out, false /* verify */);
+        try {
+            Manifest manifest = jarFile.getManifest();
+            assertEquals("known",
+                    manifest.getAttributes("assets/copy").getValue("SHA1-Digest"));
+            assertEquals(builder.getDigests().get("assets/file"),
+                    manifest.getAttributes("assets/file").getValue("SHA1-Digest"));
+            assertFalse("known".equals(builder.getDigests().get("assets/file")));
+        } finally {
+            jarFile.close();
+        }
+    }
+
+    public void testUnsignedArchiveHasNoDigests() throws Exception {
+        File file = new File(mTmpDir, "file");
+        Files.write("content", file, Charsets.UTF_8);
+
+        File out = new File(mTmpDir, "out.apk");
+        SignedJarBuilder builder = new SignedJarBuilder(new FileOutputStream(out), null, null);
+        builder.writeFile(file, "assets/file");
+        builder.close();
+
+        assertTrue(builder.getDigests().isEmpty());
+        ZipFile zipFile = new ZipFile(out);
+        try {
+            assertNull(zipFile.getEntry("META-INF/MANIFEST.MF"));
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    private DebugKeyProvider createKeyProvider() throws Exception {
+        File keystore = new File(mTmpDir, "debug.keystore");
+        DebugKeyProvider keyProvider = new DebugKeyProvider(keystore.getAbsolutePath(),
+                null /*storeType*/, null /*keygenOutput*/);
+        assertNotNull(keyProvider.getDebugKey());
+        return keyProvider;
+    }
+
+    /**
+     * Creates content which compresses about as well as code.
+     */
+    private static byte[] createContent(Random random, int size) {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) (random.nextInt(4) == 0 ? random.nextInt(256) : 'a' + (i % 16));
+        }
+        return content;
+    }
+
+    private static String read(ZipFile zipFile, ZipEntry entry) throws IOException {
+        InputStream in = zipFile.getInputStream(entry);
+        try {
+            return new String(ByteStreams.toByteArray(in), Charsets.UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}